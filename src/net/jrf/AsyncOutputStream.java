@@ -0,0 +1,212 @@
+package net.jrf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>Writes to another stream on another thread, so that producing the bytes (e.g. receiving and inflating
+ * them) and writing them (e.g. to disk) run in a pipeline.</p>
+ * <p>Bytes are copied into buffers of {@link #BUFFER_SIZE} bytes, which are queued and written by a task run
+ * on an executor while there are some. At most {@link #MAX_QUEUED} buffers are queued, writing blocks until
+ * one is written. An error writing the underlying stream is thrown by the next write, flush or close.</p>
+ * <p>The stream is written by a single thread.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class AsyncOutputStream extends OutputStream {
+	
+	/** Number of bytes written to the underlying stream at once. */
+	public static final int BUFFER_SIZE = 1 << 16;
+	
+	/** Maximum number of buffers waiting to be written. */
+	public static final int MAX_QUEUED = 16;
+	
+	private final OutputStream out;
+	
+	private final Executor exec;
+	
+	/** Buffers to write, in order. */
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+	
+	/** Buffers already written, to reuse. */
+	private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+	
+	/** The buffer being filled. */
+	private byte[] buf;
+	
+	/** Number of bytes in {@link #buf}. */
+	private int len;
+	
+	/** {@code true} while a task writes the queued buffers. */
+	private boolean writing;
+	
+	/** The error which occurred when writing, thrown to the writer. */
+	private IOException error;
+	
+	private boolean closed;
+	
+	/**
+	 * Create a stream written on the {@linkplain ForkJoinPool#commonPool() common pool}.
+	 * @param out The stream to write to, closed when this stream is closed.
+	 */
+	public AsyncOutputStream(OutputStream out) {
+		this(out, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * @param out The stream to write to, closed when this stream is closed.
+	 * @param exec Runs the tasks writing to {@code out}.
+	 */
+	public AsyncOutputStream(OutputStream out, Executor exec) {
+		this.out = out;
+		this.exec = exec;
+		buf = new byte[BUFFER_SIZE];
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (len == buf.length)
+			enqueue();
+		buf[len++] = (byte)b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (n > 0) {
+			if (len == buf.length)
+				enqueue();
+			int k = Math.min(n, buf.length - len);
+			System.arraycopy(b, off, buf, len, k);
+			len += k;
+			off += k;
+			n -= k;
+		}
+	}
+	
+	/**
+	 * Queue the current buffer, and start writing the queue if it is not.
+	 */
+	private void enqueue() throws IOException {
+		boolean start;
+		synchronized (this) {
+			try {
+				while (error == null && queue.size() >= MAX_QUEUED)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing");
+			}
+			checkError();
+			queue.addLast(ByteBuffer.wrap(buf, 0, len));
+			buf = free.pollFirst();
+			start = !writing;
+			writing = true;
+		}
+		if (buf == null)
+			buf = new byte[BUFFER_SIZE];
+		len = 0;
+		if (start) {
+			try {
+				exec.execute(this::writeQueue);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					writing = false;
+					error = new IOException("Cannot write: "+e.getMessage());
+				}
+				checkError();
+			}
+		}
+	}
+	
+	/**
+	 * Write the queued buffers, until there are none. Run by the executor.
+	 */
+	private void writeQueue() {
+		for (;;) {
+			ByteBuffer b;
+			synchronized (this) {
+				b = queue.pollFirst();
+				if (b == null) {
+					writing = false;
+					notifyAll();
+					return;
+				}
+			}
+			try {
+				out.write(b.array(), 0, b.limit());
+			} catch (IOException | RuntimeException e) {
+				synchronized (this) {
+					error = (e instanceof IOException ? (IOException)e : new IOException(e.getMessage(), e));
+					queue.clear();
+					writing = false;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				free.addLast(b.array());
+				notifyAll();
+			}
+		}
+	}
+	
+	private synchronized void checkError() throws IOException {
+		if (error != null)
+			throw new IOException(error.getMessage(), error); // Thrown in the writer thread
+	}
+	
+	/**
+	 * Wait for all the bytes written so far to be written to the underlying stream.
+	 */
+	private void drain() throws IOException {
+		if (len > 0)
+			enqueue();
+		synchronized (this) {
+			try {
+				while (writing)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing");
+			}
+		}
+		checkError();
+	}
+	
+	/**
+	 * Write all the bytes written so far to the underlying stream, and flush it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (closed)
+			return;
+		drain();
+		out.flush();
+	}
+	
+	/**
+	 * Write all the bytes written so far to the underlying stream, and close it.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			drain();
+		} finally {
+			out.close();
+		}
+	}
+	
+}
@@ -76,6 +76,22 @@ public class ByteBufferOut extends DataOutputStream {
 		}
 	}
 	
+	/**
+	 * Write an {@code int} as a variable-length quantity: 7 bits per byte, least significant first, with
+	 * the most significant bit set on all bytes but the last. Values below 128 are written on a single
+	 * byte, negative values on 5 bytes.
+	 * @param v The value to write, considered unsigned.
+	 * @throws IOException if an I/O error occurs.
+	 * @see Utils#readVarInt(java.io.DataInput)
+	 */
+	public void writeVarInt(int v) throws IOException {
+		while ((v & ~0x7f) != 0) {
+			write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		write(v);
+	}
+	
 	
 	
 	/**
@@ -0,0 +1,502 @@
+package net.jrf;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Block-hash engine for delta transfers, in the way of rsync: the receiver of a file computes the
+ * {@link Signature} of its current copy (the basis), made of a weak rolling checksum and a strong hash of
+ * each of its blocks. The sender {@linkplain #diff(Signature, InputStream, OutputStream) scans} its file
+ * for blocks having the same hashes, at any offset, and sends references to those blocks and the literal
+ * bytes in between. The receiver then rebuilds the file from its basis and the delta with a {@link Patcher}.</p>
+ * <p>A delta is a sequence of operations, each starting with its code:</p>
+ * <ul><li>{@code COPY}, followed by the index of the first block to copy from the basis (int) and the
+ * 		number of consecutive blocks (int).</li>
+ * <li>{@code LITERAL}, followed by the number of bytes (int) and the bytes.</li>
+ * <li>{@code END}, followed by the file length (long), to check the rebuilt file.</li></ul>
+ * 
+ * @author Matthieu Labas
+ */
+public class Delta {
+	
+	/** Minimum block size. */
+	public static final int MIN_BLOCK = 2048;
+	
+	/** Maximum block size. */
+	public static final int MAX_BLOCK = 1 << 20;
+	
+	/** Length of the strong hash (MD5). */
+	private static final int STRONG = 16;
+	
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte LITERAL = 2;
+	
+	/**
+	 * Get the block size to use for a file, the square root of its length (as rsync), so that the
+	 * signature length and the granularity of the differences found grow with the file.
+	 * @param length The file length.
+	 * @return The block size, between {@link #MIN_BLOCK} and {@link #MAX_BLOCK}.
+	 */
+	public static int blockSize(long length) {
+		long bs = (long)Math.sqrt(length) & ~1023l;
+		return (int)Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, bs));
+	}
+	
+	private static int weak(int s1, int s2) {
+		return (s1 & 0xffff) | (s2 << 16);
+	}
+	
+	private static MessageDigest strongDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) { // Supported by all JVMs
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Scan a file for the blocks of a signature, and write the delta to rebuild it from the signature basis.
+	 * @param sig The signature of the receiver basis.
+	 * @param src The file content. It is read until its end but not closed.
+	 * @param os Where to write the delta. It is not closed.
+	 * @return The number of literal bytes in the delta, i.e. that were not found in the basis.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public static long diff(Signature sig, InputStream src, OutputStream os) throws IOException {
+		int bs = sig.blockSize;
+		Map<Integer,Integer> first = new HashMap<>(); // Index of the first block, by weak checksum
+		int[] nextSame = new int[sig.count]; // Index of the next block with the same weak checksum
+		for (int i = sig.count - 1; i >= 0; i--) {
+			Integer prev = first.put(sig.weak[i], i);
+			nextSame[i] = (prev == null ? -1 : prev.intValue());
+		}
+		MessageDigest md = strongDigest();
+		Encoder enc = new Encoder(os);
+		byte[] buf = new byte[Math.max(2 * bs, 1 << 16)];
+		int n = 0; // Bytes in 'buf'
+		int s = 0; // Start of the window
+		int lit = 0; // Start of the literal bytes not sent yet
+		int s1 = 0, s2 = 0; // Rolling checksum of the window
+		boolean rolled = false; // 's1' and 's2' are those of the window
+		boolean eof = false;
+		long total = 0l;
+		for (;;) {
+			if (n - s < bs && !eof) { // Refill, keeping the window
+				enc.literal(buf, lit, s - lit);
+				System.arraycopy(buf, s, buf, 0, n - s);
+				n -= s;
+				s = lit = 0;
+				while (n < buf.length) {
+					int r = src.read(buf, n, buf.length - n);
+					if (r < 0) {
+						eof = true;
+						break;
+					}
+					n += r;
+					total += r;
+				}
+			}
+			int len = Math.min(bs, n - s);
+			if (len == 0)
+				break;
+			if (!rolled) {
+				s1 = s2 = 0;
+				for (int i = 0; i < len; i++) {
+					s1 += buf[s+i] & 0xff;
+					s2 += s1;
+				}
+				rolled = true;
+			}
+			int match = -1;
+			Integer c = first.get(weak(s1, s2));
+			if (c != null) {
+				byte[] strong = null;
+				for (int i = c.intValue(); i >= 0; i = nextSame[i]) {
+					if (sig.blockLength(i) != len)
+						continue;
+					if (strong == null) {
+						md.update(buf, s, len);
+						strong = md.digest();
+					}
+					if (Arrays.equals(strong, Arrays.copyOfRange(sig.strong, i*STRONG, (i+1)*STRONG))) {
+						match = i;
+						break;
+					}
+				}
+			}
+			if (match >= 0) {
+				enc.literal(buf, lit, s - lit);
+				enc.copy(match);
+				s += len;
+				lit = s;
+				rolled = false;
+				continue;
+			}
+			if (len < bs) { // Tail shorter than a block, and not the last block of the basis
+				s = n;
+				break;
+			}
+			if (s + bs < n) {
+				int out = buf[s] & 0xff;
+				s1 += (buf[s+bs] & 0xff) - out;
+				s2 += s1 - bs * out;
+			} else {
+				rolled = false; // Next byte not read yet
+			}
+			s++;
+		}
+		enc.literal(buf, lit, n - lit);
+		enc.end(total);
+		return enc.literal;
+	}
+	
+	/**
+	 * Writes delta operations, merging references to consecutive blocks.
+	 */
+	private static class Encoder {
+		
+		private final DataOutputStream out;
+		
+		/** First block of the pending {@code COPY}, {@code -1} if none. */
+		private int copyIdx = -1;
+		
+		private int copyCount;
+		
+		/** Number of literal bytes written. */
+		long literal;
+		
+		Encoder(OutputStream os) {
+			out = new DataOutputStream(os);
+		}
+		
+		void copy(int idx) throws IOException {
+			if (copyIdx >= 0 && copyIdx + copyCount == idx) {
+				copyCount++;
+				return;
+			}
+			flushCopy();
+			copyIdx = idx;
+			copyCount = 1;
+		}
+		
+		private void flushCopy() throws IOException {
+			if (copyIdx < 0)
+				return;
+			out.writeByte(COPY);
+			out.writeInt(copyIdx);
+			out.writeInt(copyCount);
+			copyIdx = -1;
+		}
+		
+		void literal(byte[] buf, int off, int len) throws IOException {
+			if (len <= 0)
+				return;
+			flushCopy();
+			out.writeByte(LITERAL);
+			out.writeInt(len);
+			out.write(buf, off, len);
+			literal += len;
+		}
+		
+		void end(long length) throws IOException {
+			flushCopy();
+			out.writeByte(END);
+			out.writeLong(length);
+			out.flush();
+		}
+	
+	}
+	
+	
+	
+	/**
+	 * The weak and strong hashes of the blocks of a file.
+	 */
+	public static class Signature {
+		
+		private final int blockSize;
+		
+		/** The file length. */
+		private final long length;
+		
+		/** The number of blocks, the last one being possibly shorter. */
+		private final int count;
+		
+		/** The weak rolling checksum of each block. */
+		private final int[] weak;
+		
+		/** The strong hash of each block, one after the other. */
+		private final byte[] strong;
+		
+		private Signature(int blockSize, long length, int count, int[] weak, byte[] strong) {
+			this.blockSize = blockSize;
+			this.length = length;
+			this.count = count;
+			this.weak = weak;
+			this.strong = strong;
+		}
+		
+		/**
+		 * Create the signature of an empty (or missing) file, for which everything will be sent as literal.
+		 * @param blockSize The block size.
+		 */
+		public Signature(int blockSize) {
+			this(blockSize, 0l, 0, new int[0], new byte[0]);
+		}
+		
+		/**
+		 * Compute the signature of a file.
+		 * @param is The file content. It is read until its end but not closed.
+		 * @param blockSize The block size.
+		 * @return The signature.
+		 * @throws IOException if an I/O error occurs.
+		 */
+		public static Signature compute(InputStream is, int blockSize) throws IOException {
+			MessageDigest md = strongDigest();
+			byte[] buf = new byte[blockSize];
+			int[] weak = new int[16];
+			byte[] strong = new byte[16*STRONG];
+			int count = 0;
+			long length = 0l;
+			int n;
+			while ((n = Utils.readFully(is, buf)) > 0) {
+				if (count == weak.length) {
+					weak = Arrays.copyOf(weak, 2*count);
+					strong = Arrays.copyOf(strong, 2*count*STRONG);
+				}
+				int s1 = 0, s2 = 0;
+				for (int i = 0; i < n; i++) {
+					s1 += buf[i] & 0xff;
+					s2 += s1;
+				}
+				weak[count] = weak(s1, s2);
+				md.update(buf, 0, n);
+				System.arraycopy(md.digest(), 0, strong, count*STRONG, STRONG);
+				count++;
+				length += n;
+				if (n < buf.length)
+					break;
+			}
+			return new Signature(blockSize, length, count, weak, strong);
+		}
+		
+		public int getBlockSize() {
+			return blockSize;
+		}
+		
+		public long getLength() {
+			return length;
+		}
+		
+		public int getCount() {
+			return count;
+		}
+		
+		/** The length of a block, the last one being possibly shorter. */
+		int blockLength(int i) {
+			return (i < count - 1 ? blockSize : (int)(length - (long)i * blockSize));
+		}
+		
+		/**
+		 * @return The signature serialized, to be sent to the other side.
+		 */
+		public byte[] toBytes() {
+			ByteBuffer bb = ByteBuffer.allocate(16 + count * (4 + STRONG));
+			bb.putInt(blockSize);
+			bb.putLong(length);
+			bb.putInt(count);
+			for (int i = 0; i < count; i++) {
+				bb.putInt(weak[i]);
+				bb.put(strong, i*STRONG, STRONG);
+			}
+			return bb.array();
+		}
+		
+		/**
+		 * Read a signature {@linkplain #toBytes() serialized} by the other side.
+		 * @param buf The serialized signature.
+		 * @return The signature.
+		 * @throws IOException if the signature is invalid.
+		 */
+		public static Signature fromBytes(byte[] buf) throws IOException {
+			try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+				int blockSize = dis.readInt();
+				long length = dis.readLong();
+				int count = dis.readInt();
+				if (blockSize <= 0 || blockSize > MAX_BLOCK || count < 0 || length < 0 || (long)count * (4 + STRONG) != dis.available()
+						|| count != (length + blockSize - 1) / blockSize)
+					throw new IOException("Invalid signature of "+count+" blocks of "+blockSize+" bytes for "+length+" bytes");
+				int[] weak = new int[count];
+				byte[] strong = new byte[count*STRONG];
+				for (int i = 0; i < count; i++) {
+					weak[i] = dis.readInt();
+					dis.readFully(strong, i*STRONG, STRONG);
+				}
+				return new Signature(blockSize, length, count, weak, strong);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return count+" blocks of "+blockSize+" bytes";
+		}
+	
+	}
+	
+	/**
+	 * Rebuilds a file by applying the delta written to it on the basis which signature was sent.
+	 */
+	public static class Patcher extends OutputStream {
+		
+		/** The basis, {@code null} if it did not exist (so the delta can only hold literal bytes). */
+		private final FileChannel basis;
+		
+		private final int blockSize;
+		
+		/** Where the file is rebuilt. */
+		private final OutputStream out;
+		
+		/** Code of the operation being decoded, {@code -1} if none. */
+		private int op = -1;
+		
+		/** Operation arguments being decoded. */
+		private final ByteBuffer args = ByteBuffer.allocate(8);
+		
+		/** Number of literal bytes still to receive for the current operation. */
+		private int literal;
+		
+		/** Buffer to copy blocks from the basis. */
+		private ByteBuffer copy;
+		
+		/** Number of bytes rebuilt. */
+		private long written;
+		
+		private boolean ended;
+		
+		/**
+		 * @param basis The basis the signature was computed on, {@code null} if there is none.
+		 * @param blockSize The block size of the signature.
+		 * @param out Where to rebuild the file. It is closed when the {@code Patcher} is closed.
+		 */
+		public Patcher(FileChannel basis, int blockSize, OutputStream out) {
+			this.basis = basis;
+			this.blockSize = blockSize;
+			this.out = out;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (ended)
+					throw new IOException("Data after the end of the delta");
+				if (literal > 0) {
+					int n = Math.min(len, literal);
+					out.write(b, off, n);
+					written += n;
+					literal -= n;
+					off += n;
+					len -= n;
+					continue;
+				}
+				if (op < 0) {
+					op = b[off++];
+					len--;
+					args.clear();
+					switch (op) {
+						case END: case COPY: break;
+						case LITERAL: args.limit(4); break;
+						default: throw new IOException("Invalid delta operation "+op);
+					}
+					continue;
+				}
+				int n = Math.min(len, args.remaining());
+				args.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!args.hasRemaining()) {
+					args.flip();
+					apply();
+					op = -1;
+				}
+			}
+		}
+		
+		private void apply() throws IOException {
+			switch (op) {
+				case LITERAL:
+					literal = args.getInt();
+					if (literal < 0)
+						throw new IOException("Invalid literal length "+literal);
+					break;
+				
+				case COPY:
+					copy(args.getInt(), args.getInt());
+					break;
+				
+				case END:
+					long length = args.getLong();
+					if (length != written)
+						throw new IOException("Rebuilt "+written+" bytes instead of "+length);
+					ended = true;
+					break;
+			}
+		}
+		
+		private void copy(int idx, int count) throws IOException {
+			long pos = (long)idx * blockSize;
+			long end = (basis == null ? 0l : Math.min(basis.size(), pos + (long)count * blockSize));
+			if (idx < 0 || count <= 0 || pos >= end)
+				throw new IOException("Blocks "+idx+"+"+count+" are not in the basis");
+			if (copy == null)
+				copy = ByteBuffer.allocate(Math.min(blockSize, 1 << 16));
+			while (pos < end) {
+				copy.clear();
+				copy.limit((int)Math.min(copy.capacity(), end - pos));
+				int n = basis.read(copy, pos);
+				if (n <= 0)
+					throw new IOException("Basis was truncated at "+pos);
+				out.write(copy.array(), 0, n);
+				pos += n;
+				written += n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		/**
+		 * Close the rebuilt file.
+		 * @throws IOException if the whole delta was not received, or if the file cannot be closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				if (!ended)
+					throw new IOException("Delta is incomplete: "+written+" bytes rebuilt");
+			} finally {
+				out.close();
+			}
+		}
+	
+	}
+	
+}
@@ -1,15 +1,19 @@
 package net.jrf;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 
 import net.jrf.client.JRFClient;
 import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.file.MsgFAHash;
 import net.jrf.msg.file.MsgFALong;
 import net.jrf.msg.file.MsgFAString;
 import net.jrf.msg.file.MsgFileAction;
+import net.jrf.msg.file.MsgFileDigest;
 import net.jrf.msg.file.MsgFileInfos;
 import net.jrf.msg.file.MsgFileList;
 import net.jrf.msg.file.MsgFileLong;
@@ -111,7 +115,7 @@ public class RemoteFile extends File {
 	 * 		error occured during communication with the server.
 	 */
 	public static RemoteFile[] listRoots(JRFClient server) {
-		short num;
+		int num;
 		try {
 			num = server.send(new MsgFileAction(FileAction.LIST_ROOTS, null));
 			long t0 = System.nanoTime();
@@ -235,7 +239,7 @@ public class RemoteFile extends File {
 	}
 	
 	private long getLong(Message msgLong) {
-		short num;
+		int num;
 		try {
 			num = cli.send(msgLong);
 			long t0 = System.nanoTime();
@@ -251,6 +255,86 @@ public class RemoteFile extends File {
 		}
 	}
 	
+	/**
+	 * Get the CRC32 of the first bytes of the remote file, e.g. to check that a partial copy matches before
+	 * resuming a transfer (see {@link Utils#crc32(File, long)}).
+	 * @param length The number of bytes.
+	 * @return The CRC32 value, or {@code -1} if the file is shorter than {@code length} or cannot be read.
+	 * @throws IOException In case of communication error.
+	 */
+	public long getChecksum(long length) throws IOException {
+		int num = cli.send(new MsgFALong(FileAction.CHECKSUM, pathname, length));
+		long t0 = System.nanoTime();
+		Message msg = cli.getReply(num, 0);
+		cli.addLatencyNow(t0);
+		if (!(msg instanceof MsgFileLong))
+			throw new IOException("Unexpected reply message "+msg);
+		return ((MsgFileLong)msg).getValue();
+	}
+	
+	/**
+	 * Get the digest of the remote file, computed by the server. The server keeps the digests it computed
+	 * as long as the files do not change, so asking for it again is cheap.
+	 * @param algorithm The algorithm, e.g. {@value Utils#CRC32C} or {@value Utils#SHA256} (see
+	 * 		{@link Utils#digest(File, String, long, long)}).
+	 * @return The digest.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if the remote file cannot be read, or in case of communication error.
+	 */
+	public byte[] getDigest(String algorithm) throws IOException {
+		return getDigest(algorithm, 0l, -1l);
+	}
+	
+	/**
+	 * Get the digest of a range of the remote file, computed by the server.
+	 * @param algorithm The algorithm.
+	 * @param offset The position of the first byte.
+	 * @param length The number of bytes, or {@code -1} up to the end of the file.
+	 * @return The digest.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if the remote file cannot be read, or in case of communication error.
+	 * @see #getDigest(String)
+	 */
+	public byte[] getDigest(String algorithm, long offset, long length) throws IOException {
+		int num = cli.send(new MsgFAHash(pathname, algorithm, offset, length));
+		return digest(cli.getReply(num, 0));
+	}
+	
+	/**
+	 * Get the digests of several remote files at once: they are all requested before waiting for the first,
+	 * so the server computes them in parallel.
+	 * @param server The connection to the remote {@code JRFProvider}.
+	 * @param algorithm The algorithm.
+	 * @param pathnames The absolute paths of the <em>remote</em> files.
+	 * @return The digests, in the order of {@code pathnames}, {@code null} for files that could not be read.
+	 * @throws IOException In case of communication error.
+	 * @see #getDigest(String)
+	 */
+	public static byte[][] getDigests(JRFClient server, String algorithm, String... pathnames) throws IOException {
+		int[] nums = new int[pathnames.length];
+		for (int i = 0; i < pathnames.length; i++)
+			nums[i] = server.send(new MsgFAHash(pathnames[i], algorithm, 0l, -1l));
+		byte[][] digests = new byte[pathnames.length][];
+		for (int i = 0; i < pathnames.length; i++) {
+			Message msg = server.getReply(nums[i], 0);
+			if (!(msg instanceof MsgAck)) // Error on that file
+				digests[i] = digest(msg);
+		}
+		return digests;
+	}
+	
+	private static byte[] digest(Message msg) throws IOException {
+		if (msg instanceof MsgAck) {
+			MsgAck ack = (MsgAck)msg;
+			if (ack.getCode() == MsgAck.WARN)
+				throw new FileNotFoundException(ack.getMessage());
+			throw new IOException(ack.getMessage());
+		}
+		if (!(msg instanceof MsgFileDigest))
+			throw new IOException("Unexpected reply message "+msg);
+		return ((MsgFileDigest)msg).getDigest();
+	}
+	
 	@Override
 	public long length() {
 		checkRefresh();
@@ -329,7 +413,7 @@ public class RemoteFile extends File {
 	
 	@Override
 	public RemoteFile[] listFiles() {
-		short num;
+		int num;
 		try {
 			// No latency calculation for file list because the received message can be big
 			num = cli.send(new MsgFileAction(FileAction.LIST_FILES, pathname));
@@ -360,7 +444,7 @@ public class RemoteFile extends File {
 	 * @throws IOException When the communication cannot be performed with the JRF provider.
 	 */
 	public MsgFileInfos getFileInfos() throws IOException {
-		short num = cli.send(new MsgFileAction(FileAction.GET_ATTRIBUTES, pathname));
+		int num = cli.send(new MsgFileAction(FileAction.GET_ATTRIBUTES, pathname));
 		long t0 = System.nanoTime();
 		Message msg = cli.getReply(num, 0);
 		cli.addLatencyNow(t0);
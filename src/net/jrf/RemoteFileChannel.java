@@ -0,0 +1,375 @@
+package net.jrf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jrf.client.JRFClient;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Dictionary;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgClose;
+import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgISAction;
+import net.jrf.msg.MsgISAction.StreamAction;
+import net.jrf.msg.MsgReadAt;
+import net.jrf.msg.MsgWriteAt;
+import net.jrf.server.JRFProvider;
+
+/**
+ * <p>A {@link SeekableByteChannel} on a file served by an instance of {@link JRFProvider}, where the
+ * file is opened with a {@link java.nio.channels.FileChannel}.</p>
+ * <p>As with {@code FileChannel}, {@link #read(ByteBuffer, long)} and {@link #write(ByteBuffer, long)}
+ * do not use nor change the channel position, so several threads can read and write different regions
+ * of the file concurrently: their requests are pipelined on the client connection. Transfers bigger
+ * than {@link #MAX_CHUNK} (or the {@linkplain #setChunkSize(int) chunk size}) are split in several requests,
+ * all sent before waiting for the first reply.</p>
+ * <p>Operations using the channel position ({@link #read(ByteBuffer)}, {@link #write(ByteBuffer)}) are
+ * serialized.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class RemoteFileChannel implements SeekableByteChannel {
+	
+	/** Maximum number of bytes transferred by a single read or write request. */
+	public static final int MAX_CHUNK = 1 << 20;
+	
+	/** Stream statistics. */
+	private StreamInfo info;
+	
+	/** Compresses the written chunks, {@code null} if they are not compressed. Read chunks are compressed
+	 * by the server as requested when opening the file. */
+	private ChunkCompressor compressor;
+	
+	/** Maximum number of bytes transferred by a single request, at most {@link #MAX_CHUNK}. */
+	private volatile int chunkSize;
+	
+	/** The channel position, used by relative reads and writes. */
+	private volatile long position;
+	
+	/** Serializes the operations using {@link #position}. */
+	private ReentrantLock posLock;
+	
+	private volatile boolean open;
+	
+	public RemoteFileChannel(JRFClient cli, String remoteFile, short fileID, int deflate) {
+		this(cli, remoteFile, fileID, deflate, null);
+	}
+	
+	/**
+	 * @param dict The preset dictionary to compress the written chunks with, as given by the server when
+	 * 		opening the file. {@code null} for none.
+	 */
+	public RemoteFileChannel(JRFClient cli, String remoteFile, short fileID, int deflate, Dictionary dict) {
+		info = new StreamInfo(cli, remoteFile, fileID);
+		if (deflate > 0) {
+			info.compressor = compressor = new ChunkCompressor(deflate);
+			compressor.setDictionary(dict);
+		}
+		posLock = new ReentrantLock();
+		chunkSize = MAX_CHUNK;
+		open = true;
+	}
+	
+	public int getFileID() {
+		return info.fileID;
+	}
+	
+	public StreamInfo getInfo() {
+		return info;
+	}
+	
+	/**
+	 * Set the maximum number of bytes transferred by a single read or write request, e.g. to fit the
+	 * network MTU. Bigger transfers are split in several requests.
+	 * @param size The number of bytes, between {@code 1} and {@link #MAX_CHUNK}.
+	 */
+	public void setChunkSize(int size) {
+		chunkSize = Math.max(1, Math.min(size, MAX_CHUNK));
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	private JRFClient checkOpen() throws IOException {
+		JRFClient cli = info.cli;
+		if (!open || cli == null)
+			throw new ClosedChannelException();
+		return cli;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (!open)
+			return;
+		open = false;
+		JRFClient cli = info.cli;
+		try {
+			cli.send(new MsgClose(info.fileID));
+		} finally { // Do that even when IOException occurs
+			cli.remoteChannelClosed(this);
+		}
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		posLock.lock();
+		try {
+			int n = read(dst, position);
+			if (n > 0)
+				position += n;
+			return n;
+		} finally {
+			posLock.unlock();
+		}
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		posLock.lock();
+		try {
+			int n = write(src, position);
+			position += n;
+			return n;
+		} finally {
+			posLock.unlock();
+		}
+	}
+	
+	@Override
+	public long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+	
+	@Override
+	public RemoteFileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position "+newPosition);
+		checkOpen();
+		posLock.lock();
+		try {
+			position = newPosition;
+		} finally {
+			posLock.unlock();
+		}
+		return this;
+	}
+	
+	@Override
+	public long size() throws IOException {
+		return action(StreamAction.SIZE, -1l);
+	}
+	
+	@Override
+	public RemoteFileChannel truncate(long size) throws IOException {
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size "+size);
+		action(StreamAction.TRUNCATE, size);
+		posLock.lock();
+		try {
+			if (position > size)
+				position = size;
+		} finally {
+			posLock.unlock();
+		}
+		return this;
+	}
+	
+	/**
+	 * Read bytes from the remote file, starting at the given position. The channel position is not used
+	 * nor changed.
+	 * @param dst The buffer to read into, up to its remaining bytes.
+	 * @param position The file position to read from.
+	 * @return The number of bytes read, possibly {@code 0}, or {@code -1} if {@code position} is at or
+	 * 		beyond the end of file.
+	 * @throws IOException if an I/O error occurs, remotely or on the network.
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position "+position);
+		JRFClient cli = checkOpen();
+		int len = dst.remaining();
+		if (len == 0)
+			return 0;
+		
+		// Request all chunks before waiting for the first
+		int chunk = chunkSize;
+		@SuppressWarnings({"unchecked","rawtypes"})
+		CompletableFuture<Message>[] replies = new CompletableFuture[(len + chunk - 1) / chunk];
+		long t0 = System.currentTimeMillis();
+		for (int i = 0; i < replies.length; i++) {
+			int off = i * chunk;
+			int num = cli.send(new MsgReadAt(info.fileID, position + off, Math.min(chunk, len - off)));
+			replies[i] = cli.getReplyAsync(num, 0);
+		}
+		
+		int n = 0;
+		try {
+			for (int i = 0; i < replies.length; i++) {
+				Message m = await(replies[i]);
+				if (m instanceof MsgAck)
+					checkAck(m);
+				if (!(m instanceof MsgData)) // Unexpected message
+					throw new IOException("Unexpected message "+m+" ("+MsgData.class+" was expected)");
+				MsgData msg = (MsgData)m;
+				byte[] data = msg.getData();
+				int r = msg.getLength();
+				addXfer(0, r);
+				addChunk(msg.getDeflate());
+				if (msg.getDeflate() > 0) { // Each chunk is compressed independently
+					data = Utils.decompress(data, 0, r, msg.getDeflate());
+					r = data.length;
+				}
+				dst.put(data, 0, r);
+				n += r;
+				addXfer(r, 0);
+				if (r < Math.min(chunk, len - i * chunk)) // End of file: next chunks are empty
+					break;
+			}
+		} finally {
+			addTime(System.currentTimeMillis() - t0);
+		}
+		return (n == 0 ? -1 : n);
+	}
+	
+	/**
+	 * Write bytes to the remote file, starting at the given position. The channel position is not used
+	 * nor changed. The file grows if {@code position} is beyond its size.
+	 * @param src The buffer to write, all its remaining bytes.
+	 * @param position The file position to write to.
+	 * @return The number of bytes written.
+	 * @throws IOException if an I/O error occurs, remotely or on the network.
+	 */
+	public int write(ByteBuffer src, long position) throws IOException {
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position "+position);
+		JRFClient cli = checkOpen();
+		int len = src.remaining();
+		if (len == 0)
+			return 0;
+		byte[] b;
+		int off;
+		if (src.hasArray()) {
+			b = src.array();
+			off = src.arrayOffset() + src.position();
+			src.position(src.limit());
+		} else {
+			b = new byte[len];
+			off = 0;
+			src.get(b);
+		}
+		
+		// Send all chunks before waiting for the first acknowledge
+		int chunk = chunkSize;
+		@SuppressWarnings({"unchecked","rawtypes"})
+		CompletableFuture<Message>[] acks = new CompletableFuture[(len + chunk - 1) / chunk];
+		long t0 = System.currentTimeMillis();
+		long nsXfer = 0l, xfer = 0l; // Time spent sending (without compressing) and waiting for the acknowledges
+		try {
+			for (int i = 0; i < acks.length; i++) {
+				int o = i * chunk;
+				int l = Math.min(chunk, len - o);
+				byte[] bc = b;
+				int oc = off + o, lc = l, level = 0;
+				if (compressor != null) {
+					ChunkCompressor.Chunk c = compressor.compress(b, off + o, l);
+					bc = c.data;
+					oc = c.off;
+					lc = c.len;
+					level = c.compression;
+				}
+				long ns = System.nanoTime();
+				int num = cli.send(new MsgWriteAt(info.fileID, position + o, bc, oc, lc, level));
+				nsXfer += System.nanoTime() - ns;
+				acks[i] = cli.getReplyAsync(num, 0);
+				addXfer(l, lc);
+				xfer += lc;
+				addChunk(level);
+			}
+			long ns = System.nanoTime();
+			for (CompletableFuture<Message> ack : acks)
+				checkAck(await(ack));
+			if (compressor != null)
+				compressor.transferred(xfer, nsXfer + System.nanoTime() - ns);
+		} finally {
+			addTime(System.currentTimeMillis() - t0);
+		}
+		return len;
+	}
+	
+	/**
+	 * Perform an action on the remote file.
+	 * @param action The action.
+	 * @param val The action argument.
+	 * @return The action result.
+	 * @throws IOException if an I/O error occurs, remotely or on the network.
+	 */
+	private long action(StreamAction action, long val) throws IOException {
+		JRFClient cli = checkOpen();
+		int num = cli.send(new MsgISAction(action, info.fileID, val));
+		long t0 = System.nanoTime();
+		Message m = await(cli.getReplyAsync(num, 0));
+		cli.addLatencyNow(t0);
+		if (!(m instanceof MsgAck)) // Unexpected message
+			throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		MsgAck ack = (MsgAck)m;
+		if (ack.getMessage() != null) // The code is the action result, unless there is an error message
+			throw new IOException(ack.getMessage());
+		return ack.getCode();
+	}
+	
+	private static Message await(CompletableFuture<Message> reply) throws IOException {
+		try {
+			return reply.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for reply", e);
+		} catch (ExecutionException e) {
+			throw new IOException("No reply: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+	
+	private static void checkAck(Message m) throws IOException {
+		if (!(m instanceof MsgAck)) // Unexpected message
+			throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		MsgAck ack = (MsgAck)m;
+		if (ack.getCode() != MsgAck.OK)
+			throw new IOException(ack.getMessage());
+	}
+	
+	// Statistics can be updated by concurrent positional reads and writes
+	private void addXfer(long io, long xfer) {
+		synchronized (info) {
+			info.bytesIO += io;
+			info.bytesXfer += xfer;
+		}
+	}
+	
+	private void addChunk(int compression) {
+		synchronized (info) {
+			info.compression = compression;
+			info.chunks++;
+			if (compression > 0)
+				info.chunksCompressed++;
+		}
+	}
+	
+	private void addTime(long ms) {
+		synchronized (info) {
+			info.msXfer += ms;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "<>"+info;
+	}
+	
+}
@@ -2,9 +2,14 @@ package net.jrf;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.Inflater;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import net.jrf.client.JRFClient;
+import net.jrf.codec.ChunkInflater;
 import net.jrf.msg.Message;
 import net.jrf.msg.MsgAck;
 import net.jrf.msg.MsgClose;
@@ -15,15 +20,37 @@ import net.jrf.msg.MsgISAction.StreamAction;
 import net.jrf.server.JRFProvider;
 
 /**
- * An {@link InputStream} on a file served by an instance of {@link JRFProvider}.
+ * <p>An {@link InputStream} on a file served by an instance of {@link JRFProvider}.</p>
+ * <p>Reads are buffered: a read request asks for at least {@link #getBufferSize()} bytes, and the data
+ * not read yet is kept locally for the next reads.</p>
+ * <p>When the stream is read sequentially, it switches to read-ahead: several {@link MsgRead} requests
+ * of growing size are kept in flight, and data is served from the chunks received. The number of
+ * requests in flight grows each time a read has to wait for data, up to {@link #getReadAhead()}.
+ * Read-ahead is transparent to {@link #skip(long)}, {@link #mark(int)} and {@link #reset()}, though
+ * it is suspended after them until sequential reads resume.</p>
+ * <p>When the server deflates the chunks as a single stream ({@linkplain StreamInfo#isContextual()
+ * contextual} compression), they are inflated in order with the same inflater, so that each chunk uses
+ * the previous ones as history.</p>
  * 
  * @author Matthieu Labas
  */
 // TODO: Protocol handler? Change package to java.protocol.handler.pkgs.jrf. See http://stackoverflow.com/a/26409796/1098603
 public class RemoteInputStream extends InputStream {
 	
-	/** The inflater to inflate data, when compression is used. {@code null} otherwise. */
-	private Inflater infl;
+	/** Default size of the local read buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/** Default maximum number of read-ahead requests in flight. */
+	public static final int DEFAULT_READ_AHEAD = 4;
+	
+	/** Default maximum size of a read-ahead request. */
+	public static final int DEFAULT_READ_AHEAD_CHUNK = 1 << 20;
+	
+	/** Size of the first read-ahead request. */
+	private static final int MIN_READ_AHEAD_CHUNK = 8192;
+	
+	/** Number of consecutive reads after which the stream is considered read sequentially. */
+	private static final int SEQUENTIAL_READS = 2;
 	
 	/** Stream information. */
 	private StreamInfo info;
@@ -32,9 +59,93 @@ public class RemoteInputStream extends InputStream {
 	 * to throw exceptions (e.g. {@link #mark(int)}, {@link #reset()}). */
 	private Exception ex;
 	
+	/** Data received but not read yet, from {@link #pos} to {@link #lim}. */
+	private byte[] buf;
+	private int pos, lim;
+	
+	/** Minimum number of bytes asked by a read request. */
+	private int bufferSize;
+	
+	/** Replies to the read-ahead requests in flight, oldest first. */
+	private ArrayDeque<CompletableFuture<Message>> ahead;
+	
+	/** Maximum number of read-ahead requests in flight, {@code 0} to disable read-ahead. */
+	private int readAhead;
+	
+	/** Maximum size of a read-ahead request. */
+	private int readAheadChunk;
+	
+	/** Current number of read-ahead requests to keep in flight. */
+	private int window;
+	
+	/** Size of the next read-ahead request. */
+	private int chunk;
+	
+	/** Number of consecutive reads since the stream was opened, or since the last skip or reset. */
+	private int sequential;
+	
+	/** {@code true} when a read-ahead request reached the end of file, so no more are sent. */
+	private boolean eof;
+	
+	/** Data between the read position and the remote position when {@link #mark(int)} was called,
+	 * restored by {@link #reset()}. */
+	private byte[] marked;
+	
+	/** Inflates the chunks deflated as a single stream, {@code null} if they are compressed independently. */
+	private ChunkInflater inflater;
+	
 	public RemoteInputStream(JRFClient cli, String remoteFile, short fileID) {
+		this(cli, remoteFile, fileID, false);
+	}
+	
+	/**
+	 * @param contextual {@code true} if the server deflates the chunks as a single stream, as given when
+	 * 		opening the file.
+	 */
+	public RemoteInputStream(JRFClient cli, String remoteFile, short fileID, boolean contextual) {
 		info = new StreamInfo(cli, remoteFile, fileID);
+		info.contextual = contextual;
+		if (contextual)
+			inflater = new ChunkInflater();
 		ex = null;
+		buf = new byte[0];
+		bufferSize = DEFAULT_BUFFER_SIZE;
+		ahead = new ArrayDeque<>();
+		readAhead = DEFAULT_READ_AHEAD;
+		readAheadChunk = DEFAULT_READ_AHEAD_CHUNK;
+	}
+	
+	/**
+	 * @return The minimum number of bytes asked by a read request.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * Set the minimum number of bytes asked by a read request. Data not read yet is kept locally.
+	 * @param size The buffer size, {@code 0} to ask only for the bytes requested by each read.
+	 */
+	public void setBufferSize(int size) {
+		bufferSize = Math.max(0, size);
+	}
+	
+	/**
+	 * @return The maximum number of read-ahead requests in flight, {@code 0} if read-ahead is disabled.
+	 */
+	public int getReadAhead() {
+		return readAhead;
+	}
+	
+	/**
+	 * Configure read-ahead.
+	 * @param requests The maximum number of read-ahead requests in flight, {@code 0} to disable read-ahead.
+	 * @param maxChunk The maximum size of a read-ahead request. Requests start at 8 KB and double up
+	 * 		to that size.
+	 */
+	public void setReadAhead(int requests, int maxChunk) {
+		readAhead = Math.max(0, requests);
+		readAheadChunk = Math.max(MIN_READ_AHEAD_CHUNK, maxChunk);
 	}
 	
 	public int getFileID() {
@@ -74,9 +185,13 @@ public class RemoteInputStream extends InputStream {
 		if (info.cli == null)
 			return;
 		
-		if (infl != null) {
-			infl.end();
-			infl = null;
+		ahead.clear(); // Pending replies are still claimed by their futures
+		buf = new byte[0];
+		pos = lim = 0;
+		marked = null;
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
 		}
 		try {
 			info.cli.send(new MsgClose(info.fileID));
@@ -88,7 +203,12 @@ public class RemoteInputStream extends InputStream {
 	
 	@Override
 	public int read() throws IOException {
-		return read(new byte[1], 0, 1);
+		if (info.cli == null)
+			throw new IOException("Closed");
+		if (pos == lim && !fill(1))
+			return -1;
+		info.bytesIO++;
+		return buf[pos++] & 0xff;
 	}
 	
 	@Override
@@ -99,11 +219,114 @@ public class RemoteInputStream extends InputStream {
 		
 		if (len == 0)
 			return 0;
-		// No latency computing for read messages because the received size can be too big and bandwidth would further polute the measurement
+		if (pos == lim && !fill(len))
+			return -1;
+		int n = Math.min(len, lim - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		info.bytesIO += n;
+		return n;
+	}
+	
+	/**
+	 * Fill {@link #buf} with the next data chunk: the oldest read-ahead reply if the stream is read sequentially,
+	 * or the reply to a read request of {@code len} bytes, or {@link #bufferSize} if bigger.
+	 * @param len The number of bytes requested by the caller.
+	 * @return {@code false} if the end of file was reached.
+	 * @throws IOException if an I/O error occurs, or if the file could not be read remotely.
+	 */
+	private boolean fill(int len) throws IOException {
+		JRFClient cli = info.cli;
+		if (++sequential > SEQUENTIAL_READS && readAhead > 0) {
+			if (window == 0) { // Start read-ahead
+				window = 1;
+				chunk = Math.max(MIN_READ_AHEAD_CHUNK, Math.min(Math.max(len, bufferSize), readAheadChunk));
+			}
+			requestAhead();
+			CompletableFuture<Message> f = ahead.peekFirst();
+			if (f == null) // End of file already reached
+				return false;
+			if (!f.isDone() && window < readAhead) { // Waiting for data: keep more requests in flight
+				window++;
+				requestAhead();
+			}
+			ahead.pollFirst();
+			setChunk(await(f));
+			requestAhead(); // Replace the request just consumed
+		} else {
+			// No latency computing for read messages because the received size can be too big and bandwidth would further polute the measurement
+			int num = cli.send(new MsgRead(info.fileID, Math.max(len, bufferSize)));
+			setChunk(await(cli.getReplyAsync(num, 0)));
+		}
+		if (lim == 0) {
+			eof = true;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Send read-ahead requests until {@link #window} requests are in flight, doubling the request size each
+	 * time up to {@link #readAheadChunk}.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private void requestAhead() throws IOException {
+		JRFClient cli = info.cli;
+		while (!eof && ahead.size() < window) {
+			int num = cli.send(new MsgRead(info.fileID, chunk));
+			ahead.addLast(cli.getReplyAsync(num, 0));
+			chunk = Math.min(2 * chunk, readAheadChunk);
+		}
+	}
+	
+	/**
+	 * Stop read-ahead, keeping all data received in {@link #buf}, so that the remote read position is
+	 * exactly {@code lim - pos} bytes ahead of the local one.
+	 * @throws IOException if an I/O error occurs, or if the file could not be read remotely.
+	 */
+	private void drainAhead() throws IOException {
+		sequential = 0;
+		window = 0;
+		eof = false;
+		while (!ahead.isEmpty()) {
+			byte[] b = buf;
+			int p = pos, l = lim;
+			setChunk(await(ahead.pollFirst()));
+			if (p < l) { // Prepend the data not read yet
+				byte[] nb = new byte[l - p + lim];
+				System.arraycopy(b, p, nb, 0, l - p);
+				System.arraycopy(buf, 0, nb, l - p, lim);
+				buf = nb;
+				lim = nb.length;
+			}
+		}
+	}
+	
+	/**
+	 * Wait for a read reply.
+	 * @param f The future reply.
+	 * @return The reply.
+	 * @throws IOException if the connection was closed before the reply was received.
+	 */
+	private Message await(CompletableFuture<Message> f) throws IOException {
 		long t0 = System.currentTimeMillis();
-		short num = cli.send(new MsgRead(info.fileID, len));
-		Message msg = cli.getReply(num, 0);
-		info.msXfer += System.currentTimeMillis() - t0;
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading", e);
+		} catch (ExecutionException e) {
+			throw new IOException("No read reply: "+e.getCause().getMessage(), e.getCause());
+		} finally {
+			info.msXfer += System.currentTimeMillis() - t0;
+		}
+	}
+	
+	/**
+	 * Set a read reply as the current data chunk in {@link #buf}.
+	 * @param msg The reply.
+	 * @throws IOException if the file could not be read remotely.
+	 */
+	private void setChunk(Message msg) throws IOException {
 		if (msg instanceof MsgAck) { // Exception occurred
 			MsgAck m = (MsgAck)msg;
 			close();
@@ -117,20 +340,29 @@ public class RemoteInputStream extends InputStream {
 		byte[] data = m.getData();
 		int l = m.getLength();
 		info.bytesXfer += l;
+		info.compression = m.getDeflate();
+		info.chunks++;
+		if (m.getDeflate() > 0)
+			info.chunksCompressed++;
 		if (m.getDeflate() > 0) {
-			if (infl == null)
-				infl = new Inflater();
-			data = Utils.inflate(data, 0, l, infl);
+			if (inflater != null && ChunkInflater.isContextual(m.getDeflate())) { // Continues the previous chunks
+				ByteBuffer bb = inflater.inflate(data, 0, l);
+				data = Arrays.copyOf(bb.array(), bb.remaining());
+			} else { // Compressed independently
+				data = Utils.decompress(data, 0, l, m.getDeflate());
+			}
 			l = data.length;
+		} else if (inflater != null) { // The server restarts the stream after uncompressed chunks
+			inflater.reset();
 		}
-		info.bytesIO += l;
-		System.arraycopy(data, 0, b, off, l);
-		return (l == 0 ? -1 : l);
+		buf = data;
+		pos = 0;
+		lim = l;
 	}
 	
 	private long sendAction(StreamAction action, short fileID, long val) throws IOException {
 		JRFClient cli = info.cli;
-		short num = cli.send(new MsgISAction(action, fileID, val));
+		int num = cli.send(new MsgISAction(action, fileID, val));
 		long t0 = System.nanoTime();
 		Message msg = cli.getReply(num, 0);
 		cli.addLatencyNow(t0);
@@ -150,16 +382,22 @@ public class RemoteInputStream extends InputStream {
     public long skip(final long len) throws IOException {
 		if (info.cli == null)
 			throw new IOException("Closed");
-		if (len == 0)
+		if (len <= 0)
 			return 0;
-		return sendAction(StreamAction.SKIP, info.fileID, len);
+		drainAhead();
+		long n = Math.min(len, lim - pos); // Skip data already received first
+		pos += n;
+		if (n < len)
+			n += sendAction(StreamAction.SKIP, info.fileID, len - n);
+		return n;
     }
 	
 	@Override
     public int available() throws IOException {
 		if (info.cli == null)
 			throw new IOException("Closed");
-		return (int)sendAction(StreamAction.AVAILABLE, info.fileID, -1l);
+		long n = (lim - pos) + sendAction(StreamAction.AVAILABLE, info.fileID, -1l); // Read-ahead requests in flight are not counted
+		return (int)Math.min(n, Integer.MAX_VALUE);
 	}
 	
 	@Override
@@ -181,7 +419,9 @@ public class RemoteInputStream extends InputStream {
 		if (info.cli == null)
 			return;
 		try {
-			sendAction(StreamAction.MARK, info.fileID, readLimit);
+			drainAhead();
+			marked = Arrays.copyOfRange(buf, pos, lim); // Remote mark is that far ahead
+			sendAction(StreamAction.MARK, info.fileID, Math.min(Integer.MAX_VALUE, readLimit + (long)readAhead * readAheadChunk));
 			ex = null;
 		} catch (IOException e) {
 			ex = e;
@@ -193,7 +433,13 @@ public class RemoteInputStream extends InputStream {
 		if (info.cli == null)
 			return;
 		try {
+			drainAhead();
 			sendAction(StreamAction.RESET, info.fileID, -1l);
+			if (marked != null) {
+				buf = marked.clone();
+				pos = 0;
+				lim = buf.length;
+			}
 			ex = null;
 		} catch (IOException e) {
 			ex = e;
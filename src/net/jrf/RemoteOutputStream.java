@@ -2,32 +2,122 @@ package net.jrf;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.Deflater;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import net.jrf.client.JRFClient;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Dictionary;
 import net.jrf.msg.Message;
 import net.jrf.msg.MsgAck;
 import net.jrf.msg.MsgClose;
+import net.jrf.msg.MsgFlush;
 import net.jrf.msg.MsgWrite;
 import net.jrf.server.JRFProvider;
 
 /**
- * An {@link OutputStream} on a file served by an instance of {@link JRFProvider}.
+ * <p>An {@link OutputStream} on a file served by an instance of {@link JRFProvider}.</p>
+ * <p>Small writes are buffered locally, up to {@link #getBufferSize()} bytes, until the buffer is full or
+ * the stream is {@linkplain #flush() flushed} or closed.</p>
+ * <p>Writes are pipelined: up to {@link #getWindow()} written chunks can wait for their acknowledge
+ * from the server, so that {@link #write(byte[], int, int)} does not wait for a network round-trip.
+ * An error reported by the server on a chunk is thrown by the next call to {@code write()},
+ * {@code flush()} or {@code close()}.</p>
+ * <p>When the server accepts it, the deflated chunks are sent as a single deflate stream ({@linkplain
+ * StreamInfo#isContextual() contextual} compression), each chunk using the previous ones as history.</p>
  * 
  * @author Matthieu Labas
  */
 public class RemoteOutputStream extends OutputStream {
 	
-	private int deflateLevel;
-	private Deflater defl;
+	/** Default number of written chunks that can wait for their acknowledge. */
+	public static final int DEFAULT_WINDOW = 8;
+	
+	/** Default size of the local write buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/** Compresses the chunks sent, {@code null} if they are not compressed. */
+	private ChunkCompressor compressor;
 	
 	/** Stream statistics. */
 	private StreamInfo info;
 	
+	/** Maximum number of chunks waiting for their acknowledge. */
+	private int window;
+	
+	/** Acknowledges of the chunks sent, oldest first. */
+	private ArrayDeque<CompletableFuture<Message>> pending;
+	
+	/** First error reported by the server on a pipelined write, {@code null} if none. */
+	private IOException error;
+	
+	/** Data written but not sent yet, from {@code 0} to {@link #count}. */
+	private byte[] buf;
+	private int count;
+	
 	public RemoteOutputStream(JRFClient cli, String remoteFile, short fileID, int deflate) {
+		this(cli, remoteFile, fileID, deflate, null);
+	}
+	
+	/**
+	 * @param dict The preset dictionary to compress the written chunks with, as given by the server when
+	 * 		opening the file. {@code null} for none.
+	 */
+	public RemoteOutputStream(JRFClient cli, String remoteFile, short fileID, int deflate, Dictionary dict) {
+		this(cli, remoteFile, fileID, deflate, dict, false);
+	}
+	
+	/**
+	 * @param dict The preset dictionary to compress the written chunks with, as given by the server when
+	 * 		opening the file. {@code null} for none.
+	 * @param contextual {@code true} to deflate the written chunks as a single stream, as accepted by the
+	 * 		server when opening the file.
+	 */
+	public RemoteOutputStream(JRFClient cli, String remoteFile, short fileID, int deflate, Dictionary dict, boolean contextual) {
 		info = new StreamInfo(cli, remoteFile, fileID);
-		if (deflate > 0)
-			this.defl = new Deflater(deflate);
+		if (deflate > 0) {
+			info.compressor = compressor = new ChunkCompressor(deflate);
+			compressor.setDictionary(dict);
+			compressor.setContextual(contextual);
+			info.contextual = contextual;
+		}
+		window = DEFAULT_WINDOW;
+		pending = new ArrayDeque<>();
+		buf = new byte[DEFAULT_BUFFER_SIZE];
+	}
+	
+	/**
+	 * @return The size of the local write buffer.
+	 */
+	public int getBufferSize() {
+		return buf.length;
+	}
+	
+	/**
+	 * Set the size of the local write buffer, sending the data already buffered.
+	 * @param size The buffer size, {@code 0} to send each write immediately.
+	 * @throws IOException if an I/O error occurs while sending buffered data.
+	 */
+	public void setBufferSize(int size) throws IOException {
+		flushBuffer(info.cli);
+		buf = new byte[Math.max(0, size)];
+	}
+	
+	/**
+	 * @return The maximum number of written chunks that can wait for their acknowledge.
+	 */
+	public int getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Set the maximum number of written chunks that can wait for their acknowledge from the server.
+	 * @param window The number of chunks, {@code 1} to wait for each chunk acknowledge before the next
+	 * 		one is written.
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(1, window);
 	}
 	
 	public int getFileID() {
@@ -56,24 +146,84 @@ public class RemoteOutputStream extends OutputStream {
 	
 	@Override
 	public void close() throws IOException {
-		if (info.cli == null)
+		JRFClient cli = info.cli;
+		if (cli == null)
 			return;
+		info.cli = null; // Closed, even if an error occurs below
 		
-		if (defl != null) {
-			defl.end();
-			defl = null;
+		try {
+			flushBuffer(cli);
+			// Written chunks are acknowledged before the close is sent. When the connection is lost, or when
+			// closed by the client reader thread, only the acknowledges already received are checked
+			awaitAcks(cli.canAwaitReplies() ? 0 : pending.size());
+		} finally {
+			try {
+				cli.send(new MsgClose(info.fileID));
+			} finally { // Do that even when IOException occurs
+				cli.remoteStreamClosed(this);
+				if (compressor != null)
+					compressor.end();
+			}
 		}
+	}
+	
+	/**
+	 * Wait until at most {@code max} written chunks are waiting for their acknowledge, checking the
+	 * acknowledges already received as well.
+	 * @param max The maximum number of chunks that can remain unacknowledged.
+	 * @throws IOException if the server reported an error on a written chunk.
+	 */
+	private void awaitAcks(int max) throws IOException {
+		long t0 = System.currentTimeMillis();
 		try {
-			info.cli.send(new MsgClose(info.fileID));
-		} finally { // Do that even when IOException occurs
-			info.cli.remoteStreamClosed(this);
-			info.cli = null;
+			while (pending.size() > max || (!pending.isEmpty() && pending.peekFirst().isDone())) {
+				CompletableFuture<Message> f = pending.pollFirst();
+				Message msg;
+				try {
+					msg = f.get();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for write acknowledge", e);
+				} catch (ExecutionException e) {
+					fail(new IOException("No write acknowledge: "+e.getCause().getMessage(), e.getCause()));
+					continue;
+				}
+				if (!(msg instanceof MsgAck)) // Unexpected message
+					fail(new IOException("Unexpected message "+msg+" ("+MsgAck.class+" was expected)"));
+				else if (((MsgAck)msg).getCode() != MsgAck.OK)
+					fail(new IOException(((MsgAck)msg).getMessage()));
+			}
+		} finally {
+			info.msXfer += System.currentTimeMillis() - t0;
+		}
+		IOException ex = error;
+		if (ex != null) {
+			pending.clear();
+			throw ex;
 		}
 	}
 	
+	/**
+	 * Record the first error reported on a written chunk.
+	 * @param ex The error.
+	 */
+	private void fail(IOException ex) {
+		if (error == null)
+			error = ex;
+	}
+	
 	@Override
 	public void write(int b) throws IOException {
-		write(new byte[]{ (byte)(b & 0xff) }, 0, 1);
+		JRFClient cli = info.cli;
+		if (cli == null)
+			throw new IOException("Closed");
+		if (count == buf.length) {
+			flushBuffer(cli);
+			if (buf.length == 0) { // Unbuffered
+				sendChunk(cli, new byte[] { (byte)b }, 0, 1);
+				return;
+			}
+		}
+		buf[count++] = (byte)b;
 	}
 	
 	@Override
@@ -84,37 +234,83 @@ public class RemoteOutputStream extends OutputStream {
 		
 		if (len == 0)
 			return;
+		if (len >= buf.length) { // Big enough to be sent as-is
+			flushBuffer(cli);
+			sendChunk(cli, b, off, len);
+			return;
+		}
+		if (len > buf.length - count)
+			flushBuffer(cli);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+	
+	/**
+	 * Send the data buffered locally, if any.
+	 * @param cli The client the stream was opened with.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private void flushBuffer(JRFClient cli) throws IOException {
+		if (count == 0)
+			return;
+		int n = count;
+		count = 0;
+		sendChunk(cli, buf, 0, n);
+	}
+	
+	/**
+	 * Send a data chunk in a {@link MsgWrite}, after waiting for room in the in-flight window.
+	 * @param cli The client the stream was opened with.
+	 * @param b The data.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes to send.
+	 * @throws IOException if an I/O error occurs, or if the server reported an error on a previous chunk.
+	 */
+	private void sendChunk(final JRFClient cli, byte[] b, int off, int len) throws IOException {
+		long ns = System.nanoTime();
+		awaitAcks(window - 1); // Make room for this chunk. The stream is to be closed on error
+		ns = System.nanoTime() - ns;
 		info.bytesIO += len;
-		int level = deflateLevel;
-		if (defl != null) {
-			byte[] bd = Utils.deflate(b, off, len, defl);
-			if (bd.length < len) { // Only apply deflate if it's worth it
-				b = bd;
-				len = b.length;
-			} else
-				level = 0;
+		int level = 0;
+		if (compressor != null) { // Each chunk is compressed independently, or after the previous ones when contextual
+			ChunkCompressor.Chunk c = compressor.compressNext(b, off, len);
+			b = c.data;
+			off = c.off;
+			len = c.len;
+			level = c.compression;
 		}
 		info.bytesXfer += len;
+		info.compression = level;
+		info.chunks++;
+		if (level > 0)
+			info.chunksCompressed++;
 		long t0 = System.currentTimeMillis();
-		short num = cli.send(new MsgWrite(info.fileID, b, off, len, level));
-		long t1 = System.nanoTime();
-		Message msg = cli.getReply(num, 0);
-		cli.addLatencyNow(t1);
+		long ns0 = System.nanoTime();
+		int num = cli.send(new MsgWrite(info.fileID, b, off, len, level));
 		info.msXfer += System.currentTimeMillis() - t0;
-		if (!(msg instanceof MsgAck)) // Unexpected message
-			throw new IOException("Unexpected message "+msg+" ("+MsgAck.class+" was expected)");
-		
-		MsgAck m = (MsgAck)msg;
-		if (m.getCode() != MsgAck.OK) {
-			close();
-			throw new IOException(m.getMessage());
-		}
+		if (compressor != null) // Time to send the chunk, including the wait for the network to accept it
+			compressor.transferred(len, ns + System.nanoTime() - ns0);
+		final long t1 = System.nanoTime();
+		CompletableFuture<Message> ack = cli.getReplyAsync(num, 0);
+		ack.whenComplete((msg, e) -> {
+			if (e == null) // Errors are checked by awaitAcks()
+				cli.addLatencyNow(t1);
+		});
+		pending.addLast(ack);
 	}
 	
+	/**
+	 * Send the data buffered locally, wait for all written chunks to be acknowledged, and flush the remote
+	 * file.
+	 */
 	@Override
     public void flush() throws IOException {
 		JRFClient cli = info.cli;
-		short num = cli.send(new MsgClose(info.fileID));
+		if (cli == null)
+			throw new IOException("Closed");
+		flushBuffer(cli);
+		awaitAcks(0);
+		int num = cli.send(new MsgFlush(info.fileID));
 		long t0 = System.nanoTime();
 		Message msg = cli.getReply(num, 0);
 		cli.addLatencyNow(t0);
@@ -122,9 +318,10 @@ public class RemoteOutputStream extends OutputStream {
 			throw new IOException("Unexpected message "+msg+" ("+MsgAck.class+" was expected)");
 		
 		MsgAck m = (MsgAck)msg;
-		if (m.getCode() != MsgAck.OK) {
+		String err = m.getMessage();
+		if (err != null) { // Older servers acknowledge with a non-OK code, but no message
 			close();
-			throw new IOException(m.getMessage());
+			throw new IOException(err);
 		}
     }
 	
@@ -1,6 +1,9 @@
 package net.jrf;
 
 import net.jrf.client.JRFClient;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Codec;
+import net.jrf.codec.Dictionary;
 import net.jrf.server.JRFProvider;
 
 /**
@@ -37,6 +40,23 @@ public class StreamInfo {
 	 *    Data throughput is {@code 1000 * bytesIO / msXfer}</p> */
 	long msXfer; // Package-private
 	
+	/** The compression of the last chunk transferred (see {@link Codec}), which changes from chunk to chunk
+	 * with {@link Codec#ADAPTIVE} compression. */
+	int compression; // Package-private
+	
+	/** Number of chunks transferred. */
+	long chunks; // Package-private
+	
+	/** Number of chunks transferred compressed. */
+	long chunksCompressed; // Package-private
+	
+	/** Compresses the chunks written, {@code null} when no compression was requested, or for a
+	 * {@link RemoteInputStream} (read chunks are compressed by the server). */
+	ChunkCompressor compressor; // Package-private
+	
+	/** {@code true} when the deflated chunks are transferred as a single deflate stream. */
+	boolean contextual; // Package-private
+	
 	StreamInfo(JRFClient cli, String remoteFile, short fileID) {
 		this.cli = cli;
 		this.remoteFile = remoteFile;
@@ -73,6 +93,76 @@ public class StreamInfo {
 		return (double)bytesXfer / bytesIO;
 	}
 	
+	/**
+	 * @return The compression of the last chunk transferred, {@code 0} if it was not compressed.
+	 * @see Codec#toString(int)
+	 */
+	public int getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * @return The number of chunks transferred.
+	 */
+	public long getChunks() {
+		return chunks;
+	}
+	
+	/**
+	 * @return The number of chunks transferred compressed.
+	 */
+	public long getCompressedChunks() {
+		return chunksCompressed;
+	}
+	
+	/**
+	 * @return The number of chunks written uncompressed without trying to compress them, as they were
+	 * 		detected as incompressible.
+	 * @see ChunkCompressor
+	 */
+	public long getBypassedChunks() {
+		ChunkCompressor c = compressor;
+		return (c == null ? 0l : c.getBypassedChunks());
+	}
+	
+	/**
+	 * @return {@code true} if compression of the chunks written is currently bypassed, as the last chunks
+	 * 		were not compressible.
+	 */
+	public boolean isCompressionBypassed() {
+		ChunkCompressor c = compressor;
+		return (c != null && c.isBypassed());
+	}
+	
+	/**
+	 * @return The preset dictionary the chunks written are compressed with, as given by the server when
+	 * 		opening the file. {@code null} if none.
+	 */
+	public Dictionary getDictionary() {
+		ChunkCompressor c = compressor;
+		return (c == null ? null : c.getDictionary());
+	}
+	
+	/**
+	 * @return {@code true} if the deflated chunks are transferred as a single deflate stream, each chunk
+	 * 		continuing the previous ones, as agreed with the server when opening the file.
+	 */
+	public boolean isContextual() {
+		return contextual;
+	}
+	
+	/**
+	 * @return The ratio of chunks compressed to the chunks compression was tried on, for the chunks written
+	 * 		(or for the chunks read when nothing is written, all of them counting as tried, as the server
+	 * 		does not tell which ones it tried), {@code 0} if none.
+	 */
+	public double getCompressionHitRate() {
+		ChunkCompressor c = compressor;
+		long tried = (c == null ? chunks : c.getTriedChunks());
+		long ok = (c == null ? chunksCompressed : c.getCompressedChunks());
+		return (tried == 0 ? 0.0 : (double)ok / tried);
+	}
+	
 	/**
 	 * @return The average network speed, in bytes per seconds.
 	 */
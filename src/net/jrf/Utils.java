@@ -1,14 +1,32 @@
 package net.jrf;
 
 import java.io.DataInput;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
-import net.jrf.ByteBufferOut.DirectByteArrayOutputStream;
+import net.jrf.codec.Codec;
+import net.jrf.codec.CodecPool;
+import net.jrf.codec.Dictionary;
 import net.jrf.msg.Message;
 
 /**
@@ -18,8 +36,119 @@ import net.jrf.msg.Message;
  */
 public class Utils {
 	
+	/** Per-thread buffer of {@link #deflate(byte[], int, int, Deflater)} and {@link #inflate(byte[], int, int, Inflater)}. */
+	private static final CodecPool.Buffer zbuf = new CodecPool.Buffer();
+	
+	/** {@code Thread.ofVirtual()}, {@code null} if the JVM does not support virtual threads (before Java 21). */
+	private static final Method ofVirtual;
+	/** {@code Thread.Builder.name(String)}. */
+	private static final Method builderName;
+	/** {@code Thread.Builder.unstarted(Runnable)}. */
+	private static final Method builderUnstarted;
+	/** {@code Executors.newVirtualThreadPerTaskExecutor()}. */
+	private static final Method newVirtualExecutor;
+	/** {@code java.util.zip.CRC32C} constructor, {@code null} if the JVM does not have it (before Java 9). */
+	private static final Constructor<?> crc32c;
+	static {
+		Method ofv = null, name = null, unstarted = null, exec = null;
+		try {
+			ofv = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			exec = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException | ClassNotFoundException e) { // Virtual threads not supported
+			ofv = null;
+		}
+		ofVirtual = ofv;
+		builderName = name;
+		builderUnstarted = unstarted;
+		newVirtualExecutor = exec;
+		Constructor<?> c;
+		try {
+			c = Class.forName("java.util.zip.CRC32C").getConstructor();
+		} catch (NoSuchMethodException | ClassNotFoundException e) { // Computed by Crc32c
+			c = null;
+		}
+		crc32c = c;
+	}
+	
+	/** {@link #digest(File, String, long, long) Digest} algorithm of the CRC32C checksum, 4 bytes. */
+	public static final String CRC32C = "CRC32C";
+	
+	/** {@link #digest(File, String, long, long) Digest} algorithm of the SHA-256 hash, 32 bytes. */
+	public static final String SHA256 = "SHA-256";
+	
+	/**
+	 * @return {@code true} if the JVM supports virtual threads.
+	 */
+	public static boolean hasVirtualThreads() {
+		return ofVirtual != null;
+	}
+	
+	/**
+	 * Create a new (unstarted) thread.
+	 * @param r The code to run in the thread.
+	 * @param name The thread name.
+	 * @param virtual {@code true} to create a virtual thread, if {@linkplain #hasVirtualThreads() supported}.
+	 * 		A platform thread is created otherwise.
+	 * @return The thread.
+	 */
+	public static Thread newThread(Runnable r, String name, boolean virtual) {
+		if (virtual && ofVirtual != null) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread)builderUnstarted.invoke(builder, r);
+			} catch (IllegalAccessException | InvocationTargetException e) { // Should not happen
+				throw new IllegalStateException("Unable to create virtual thread: "+e.getMessage(), e);
+			}
+		}
+		return new Thread(r, name);
+	}
+	
+	/**
+	 * Create an executor running each task in a new virtual thread.
+	 * @return The executor, or {@code null} if virtual threads are not {@linkplain #hasVirtualThreads() supported}.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		if (newVirtualExecutor == null)
+			return null;
+		try {
+			return (ExecutorService)newVirtualExecutor.invoke(null);
+		} catch (IllegalAccessException | InvocationTargetException e) { // Should not happen
+			throw new IllegalStateException("Unable to create virtual thread executor: "+e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Compress a byte array with the codec and level of a compression value (see {@link Codec}).
+	 * @param source The array to compress.
+	 * @param off The offset in {@code source}.
+	 * @param len The number of bytes to process in {@code source}.
+	 * @param compression The compression value, {@code > 0}.
+	 * @return The compressed array.
+	 * @throws IllegalArgumentException if the codec is not supported.
+	 */
+	public static byte[] compress(byte[] source, int off, int len, int compression) {
+		return Codec.of(compression).compress(source, off, len, Codec.getLevel(compression));
+	}
+	
+	/**
+	 * Decompress a byte array compressed by {@link #compress(byte[], int, int, int)}.
+	 * @param source The compressed array.
+	 * @param off The offset in {@code source}.
+	 * @param len The number of bytes to decompress from {@code source}.
+	 * @param compression The compression value {@code source} was compressed with, {@code > 0}.
+	 * @return The decompressed byte array.
+	 * @throws IOException If the codec is not supported, or if the input array contains invalid data.
+	 */
+	public static byte[] decompress(byte[] source, int off, int len, int compression) throws IOException {
+		Codec.check(compression);
+		return Codec.of(compression).decompress(source, off, len);
+	}
+	
 	/**
-	 * Compress a byte array with a given level.
+	 * Compress a byte array with a given level, with a {@linkplain CodecPool pooled} {@link Deflater}.
 	 * @param source The array to compress.
 	 * @param off The offset in {@code source}.
 	 * @param len The number of bytes to process in {@code source}.
@@ -27,16 +156,16 @@ public class Utils {
 	 * @return The compressed array.
 	 */
 	public static byte[] deflate(byte[] source, int off, int len, int level) {
-		Deflater defl = new Deflater(level);
+		Deflater defl = CodecPool.deflater(level);
 		try {
 			return deflate(source, off, len, defl);
 		} finally {
-			defl.end();
+			CodecPool.release(defl, level);
 		}
 	}
 	
 	/**
-	 * Compress a byte array with a given {@link Deflater}.
+	 * Compress a byte array with a given {@link Deflater}, which is then finished.
 	 * @param source The array to compress.
 	 * @param off The offset in {@code source}.
 	 * @param len The number of bytes to process in {@code source}.
@@ -46,20 +175,26 @@ public class Utils {
 	public static byte[] deflate(byte[] source, int off, int len, Deflater defl) {
 		defl.setInput(source, off, len);
 		defl.finish();
-		byte[] buf = new byte[1024];
-		try (DirectByteArrayOutputStream bos = new DirectByteArrayOutputStream(1024)) {
-			int n;
-			while ((n = defl.deflate(buf)) > 0)
-				bos.write(buf, 0, n);
-			defl = null;
-			return Arrays.copyOf(bos.toByteArray(), bos.size());
-		} catch (IOException e) { // Never happens with ByteArrayOutputStream
-			return null;
+		byte[] buf = zbuf.get(deflateBound(len));
+		int n = 0;
+		while (!defl.finished()) {
+			if (n == buf.length) // Never happens within the bound
+				buf = zbuf.get(2 * n, n);
+			n += defl.deflate(buf, n, buf.length - n);
 		}
+		return Arrays.copyOf(buf, n);
+	}
+	
+	/**
+	 * @param len A number of bytes.
+	 * @return The maximum length of {@code len} deflated bytes (as zlib {@code compressBound()}).
+	 */
+	public static int deflateBound(int len) {
+		return len + (len >>> 12) + (len >>> 14) + (len >>> 25) + 13;
 	}
 	
 	/**
-	 * Utility method to decompress a compressed byte array.
+	 * Utility method to decompress a compressed byte array, with a {@linkplain CodecPool pooled} {@link Inflater}.
 	 * @param source The compressed array.
 	 * @param off The offset in {@code source}.
 	 * @param len The number of bytes to decompress from {@code source}.
@@ -67,11 +202,11 @@ public class Utils {
 	 * @throws IOException If input array contains invalid data.
 	 */
 	public static byte[] inflate(byte[] source, int off, int len) throws IOException {
-		Inflater infl = new Inflater();
+		Inflater infl = CodecPool.inflater();
 		try {
 			return inflate(source, off, len, infl);
 		} finally {
-			infl.end();
+			CodecPool.release(infl);
 		}
 	}
 	
@@ -86,12 +221,22 @@ public class Utils {
 	 */
 	public static byte[] inflate(byte[] source, int off, int len, Inflater infl) throws IOException {
 		infl.setInput(source, off, len);
-		byte[] buf = new byte[1024];
-		try (DirectByteArrayOutputStream bos = new DirectByteArrayOutputStream(buf.length)) {
-			int n;
-			while ((n = infl.inflate(buf)) > 0)
-				bos.write(buf, 0, n);
-			return Arrays.copyOf(bos.toByteArray(), bos.size());
+		byte[] buf = zbuf.get(Math.max(4 * len, 1 << 12));
+		int n = 0;
+		try {
+			while (!infl.finished()) {
+				if (n == buf.length)
+					buf = zbuf.get(2 * n, n);
+				int r = infl.inflate(buf, n, buf.length - n);
+				if (r == 0 && infl.needsDictionary()) { // Deflated with a preset dictionary
+					Dictionary.supply(infl);
+					continue;
+				}
+				if (r == 0 && infl.needsInput()) // Truncated: return what was inflated
+					break;
+				n += r;
+			}
+			return Arrays.copyOf(buf, n);
 		} catch (DataFormatException e) {
 			throw new IOException("Cannot inflate data: "+e.getMessage(), e);
 		}
@@ -118,6 +263,161 @@ public class Utils {
 		return tot;
 	}
 	
+	/**
+	 * Compute the CRC32 of the first bytes of a file, e.g. to check that a partial copy matches before
+	 * resuming a transfer.
+	 * @param file The file.
+	 * @param length The number of bytes.
+	 * @return The CRC32 value, or {@code -1} if the file is shorter than {@code length}.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static long crc32(File file, long length) throws IOException {
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (fc.size() < length)
+				return -1l;
+			CRC32 crc = new CRC32();
+			ByteBuffer bb = ByteBuffer.allocateDirect(1 << 20);
+			for (long pos = 0l; pos < length; ) {
+				bb.clear();
+				bb.limit((int)Math.min(bb.capacity(), length - pos));
+				int n = fc.read(bb, pos);
+				if (n < 0) // Truncated meanwhile
+					return -1l;
+				bb.flip();
+				crc.update(bb);
+				pos += n;
+			}
+			return crc.getValue();
+		}
+	}
+	
+	/**
+	 * Compute the digest of a file, or of a range of it.
+	 * @param file The file.
+	 * @param algorithm The algorithm: {@value #CRC32C}, {@code CRC32} (both as 4 bytes, big-endian), or any
+	 * 		{@code MessageDigest} algorithm (e.g. {@value #SHA256}).
+	 * @param offset The position of the first byte.
+	 * @param length The number of bytes, or {@code -1} up to the end of the file. Less bytes are hashed if
+	 * 		the file ends before.
+	 * @return The digest.
+	 * @throws FileNotFoundException if the file does not exist.
+	 * @throws IOException if the file cannot be read, or the algorithm is not supported.
+	 */
+	public static byte[] digest(File file, String algorithm, long offset, long length) throws IOException {
+		Checksum crc = null;
+		MessageDigest md = null;
+		if (CRC32C.equalsIgnoreCase(algorithm)) {
+			crc = newCrc32c();
+		} else if ("CRC32".equalsIgnoreCase(algorithm)) {
+			crc = new CRC32();
+		} else {
+			try {
+				md = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("Unsupported digest algorithm "+algorithm);
+			}
+		}
+		FileChannel fc;
+		try {
+			fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException | InvalidPathException e) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		try {
+			long end = (length < 0 ? fc.size() : Math.min(fc.size(), offset + length));
+			ByteBuffer bb = ByteBuffer.allocate(1 << 20);
+			for (long pos = Math.max(0l, offset); pos < end; ) {
+				bb.clear();
+				bb.limit((int)Math.min(bb.capacity(), end - pos));
+				int n = fc.read(bb, pos);
+				if (n < 0) // Truncated meanwhile
+					break;
+				if (crc != null)
+					crc.update(bb.array(), 0, n);
+				else
+					md.update(bb.array(), 0, n);
+				pos += n;
+			}
+		} finally {
+			fc.close();
+		}
+		if (crc != null)
+			return ByteBuffer.allocate(4).putInt((int)crc.getValue()).array();
+		return md.digest();
+	}
+	
+	/**
+	 * @return A CRC32C checksum, the JVM one if available.
+	 */
+	private static Checksum newCrc32c() {
+		if (crc32c != null) {
+			try {
+				return (Checksum)crc32c.newInstance();
+			} catch (ReflectiveOperationException e) { } // Should not happen
+		}
+		return new Crc32c();
+	}
+	
+	/**
+	 * CRC32C (Castagnoli) checksum, for JVMs which do not have {@code java.util.zip.CRC32C}.
+	 */
+	private static class Crc32c implements Checksum {
+		
+		private static final int[] TABLE = new int[256];
+		static {
+			for (int i = 0; i < TABLE.length; i++) {
+				int c = i;
+				for (int k = 0; k < 8; k++)
+					c = ((c & 1) != 0 ? (c >>> 1) ^ 0x82f63b78 : c >>> 1);
+				TABLE[i] = c;
+			}
+		}
+		
+		private int crc;
+		
+		@Override
+		public void update(int b) {
+			crc = ~((~crc >>> 8) ^ TABLE[(~crc ^ b) & 0xff]);
+		}
+		
+		@Override
+		public void update(byte[] b, int off, int len) {
+			int c = ~crc;
+			for (int i = off; i < off + len; i++)
+				c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+			crc = ~c;
+		}
+		
+		@Override
+		public long getValue() {
+			return crc & 0xffffffffl;
+		}
+		
+		@Override
+		public void reset() {
+			crc = 0;
+		}
+		
+	}
+	
+	/**
+	 * Utility method to read a variable-length {@code int} from a {@code DataInput}, as encoded by
+	 * {@link ByteBufferOut#writeVarInt(int)}.
+	 * @param data The {@code DataInput} from which to read the value.
+	 * @return The value.
+	 * @throws IOException from reading {@code data}, or if the value is coded on more than 5 bytes.
+	 */
+	public static int readVarInt(DataInput data) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = data.readUnsignedByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+	
 	/**
 	 * Utility method to read a {@code String} from a {@code DataInput}, as encoded by {@link ByteBufferOut#writeString(String)}.
 	 * @param data The {@code DataInput} from which to read the {@code String}.
@@ -0,0 +1,202 @@
+package net.jrf.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.jrf.Delta;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Codec;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgClose;
+import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgDataOutputStream;
+import net.jrf.msg.MsgSync;
+
+/**
+ * <p>Synchronization of a file with a delta transfer through {@link MsgSync}: only the parts of the file
+ * which are not found in the receiver copy are sent (see {@link Delta}).</p>
+ * <p>The receiver rebuilds the file in a temporary file, in the same directory, which replaces its copy
+ * once complete, so that the copy is left untouched if the transfer fails.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class DeltaSync {
+	
+	/**
+	 * Update a local file to the content of a remote file.
+	 * @see JRFClient#syncFile(String, String, boolean, int, int)
+	 */
+	static long get(JRFClient cli, String remote, int deflate, String local, int mtu) throws IOException {
+		Codec.check(deflate);
+		File f = new File(local).getAbsoluteFile();
+		File tmp = File.createTempFile(".jrf", ".tmp", f.getParentFile());
+		FileChannel basis = null;
+		boolean done = false;
+		long len = 0l;
+		try {
+			Delta.Signature sig;
+			if (f.isFile()) {
+				basis = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+				sig = Delta.Signature.compute(new BufferedInputStream(Channels.newInputStream(basis), 1 << 16), Delta.blockSize(f.length())); // Not closed, so the basis stays open
+			} else {
+				sig = new Delta.Signature(Delta.MIN_BLOCK);
+			}
+			int num = cli.send(new MsgSync(remote, deflate, mtu, sig));
+			OutputStream os = new Delta.Patcher(basis, sig.getBlockSize(), new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			boolean chunked = Codec.isAdaptive(deflate); // Each chunk is compressed on its own
+			if (deflate > 0 && !chunked)
+				os = Codec.of(deflate).decompressing(os);
+			try {
+				for (;;) {
+					MsgData msg = data(cli.getReply(num, 0));
+					if (chunked) {
+						os.write(msg.getChunkData());
+					} else
+						os.write(msg.getData(), 0, msg.getLength());
+					len += msg.getLength();
+					if (!msg.hasNext())
+						break;
+				}
+			} catch (IOException e) {
+				try {
+					os.close();
+				} catch (IOException ex) { }
+				throw e;
+			}
+			os.close(); // Checks the whole file was rebuilt
+			done = true;
+		} finally {
+			if (basis != null)
+				basis.close(); // Before replacing it
+			if (!done)
+				tmp.delete();
+		}
+		try {
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		return len;
+	}
+	
+	/**
+	 * Update a remote file to the content of a local file.
+	 * @see JRFClient#syncFile(String, String, boolean, int, int)
+	 */
+	static long put(JRFClient cli, String local, int deflate, String remote, int mtu) throws IOException {
+		Codec.check(deflate);
+		File f = new File(local);
+		if (!f.isFile())
+			throw new FileNotFoundException(local);
+		int num = cli.send(new MsgSync(remote, deflate, mtu, Delta.blockSize(f.length())));
+		ByteArrayOutputStream sigBytes = new ByteArrayOutputStream();
+		short fileID;
+		for (;;) { // Signature of the remote file
+			MsgData msg = data(cli.getReply(num, 0));
+			sigBytes.write(msg.getData(), 0, msg.getLength());
+			fileID = msg.getFileID();
+			if (!msg.hasNext())
+				break;
+		}
+		Sender sender = new Sender(cli, num);
+		try (InputStream is = new BufferedInputStream(new FileInputStream(f), 1 << 16)) {
+			Delta.Signature sig = Delta.Signature.fromBytes(sigBytes.toByteArray());
+			int chunk = mtu - Message.getHeaderSize(MsgData.class);
+			OutputStream os;
+			if (Codec.isAdaptive(deflate)) {
+				os = new MsgDataOutputStream(sender, num, fileID, chunk, new ChunkCompressor(deflate));
+			} else {
+				os = new MsgDataOutputStream(sender, num, fileID, chunk, deflate);
+				if (deflate > 0)
+					os = Codec.of(deflate).compressing(os, Codec.getLevel(deflate), chunk);
+			}
+			Delta.diff(sig, is, os);
+			os.close();
+		} catch (IOException e) {
+			try {
+				cli.send(new MsgClose(fileID)); // Abort
+			} catch (IOException ex) { }
+			throw e;
+		}
+		Message m = cli.getReply(num, 0); // Wait for the file to be rebuilt
+		if (!(m instanceof MsgAck))
+			throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		MsgAck ack = (MsgAck)m;
+		if (ack.getCode() != MsgAck.OK)
+			throw new IOException(ack.getMessage());
+		return sender.len;
+	}
+	
+	/**
+	 * Check a reply is a data chunk.
+	 * @throws FileNotFoundException if the server reported the file cannot be opened.
+	 * @throws IOException if the server reported another error, or if the message is not expected.
+	 */
+	private static MsgData data(Message m) throws IOException {
+		if (m instanceof MsgAck) { // Exception
+			MsgAck ack = (MsgAck)m;
+			if (ack.getCode() == MsgAck.WARN)
+				throw new FileNotFoundException(ack.getMessage());
+			throw new IOException(ack.getMessage());
+		}
+		if (!(m instanceof MsgData)) // Unknown message
+			throw new IOException("Unexpected message during file SYNC: "+m);
+		return (MsgData)m;
+	}
+	
+	/**
+	 * Sends the data of an upload (e.g. the delta), stopping as soon as the server reports an error.
+	 */
+	static class Sender implements MsgDataOutputStream.Sender {
+		
+		private final JRFClient cli;
+		
+		private final int num;
+		
+		/** Number of network bytes sent. */
+		long len;
+		
+		Sender(JRFClient cli, int num) {
+			this.cli = cli;
+			this.num = num;
+		}
+		
+		@Override
+		public void send(Message msg) throws IOException {
+			MsgData data = (MsgData)msg;
+			cli.send(data);
+			len += data.getLength();
+			if (data.hasNext())
+				check();
+		}
+		
+		/**
+		 * Check that the server did not report an error, which it only replies before the last chunk
+		 * to abort the upload. Also called while preparing chunks that take long to fill, e.g. with
+		 * highly compressible data.
+		 * @throws IOException with the error reported by the server.
+		 */
+		void check() throws IOException {
+			Message m = cli.getReply(num, -1);
+			if (m != null) // Error reported while sending
+				throw new IOException(m instanceof MsgAck ? ((MsgAck)m).getMessage() : "Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		}
+	
+	}
+	
+}
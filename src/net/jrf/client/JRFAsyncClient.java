@@ -0,0 +1,323 @@
+package net.jrf.client;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import net.jrf.FileInfos;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Codec;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgClose;
+import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgGet;
+import net.jrf.msg.MsgOpen;
+import net.jrf.msg.MsgRead;
+import net.jrf.msg.MsgWrite;
+import net.jrf.msg.file.MsgFileAction;
+import net.jrf.msg.file.MsgFileAction.FileAction;
+import net.jrf.msg.file.MsgFileInfos;
+import net.jrf.msg.file.MsgFileList;
+
+/**
+ * <p>Asynchronous facade over a {@link JRFClient}: each call sends its command immediately and returns
+ * a {@link CompletableFuture} completed when the reply is received, so that many operations can be
+ * pipelined on the client connection from a few threads.</p>
+ * <p>Files are handled through the file IDs given by the JRF Server, as returned by {@link #openAsync(String, char, int)}.
+ * They should be closed by {@link #closeAsync(short)}.</p>
+ * <p>Replies are processed (e.g. inflated, or written to disk) on the {@code Executor} given at creation,
+ * which also runs the dependent actions of the returned futures, so the thread reading server messages
+ * is never blocked.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class JRFAsyncClient {
+	
+	/** The client connected to the JRF Server. */
+	private final JRFClient cli;
+	
+	/** Executor processing replies. */
+	private final Executor exec;
+	
+	/** Time after which a reply is considered lost, in ms, or {@code 0} to wait until the connection is closed. */
+	private final int timeout;
+	
+	/**
+	 * Create an asynchronous facade processing replies in the {@linkplain ForkJoinPool#commonPool() common pool}
+	 * and waiting for replies until the connection is closed.
+	 * @param cli The (started) client connected to the JRF Server.
+	 */
+	public JRFAsyncClient(JRFClient cli) {
+		this(cli, ForkJoinPool.commonPool(), 0);
+	}
+	
+	/**
+	 * Create an asynchronous facade.
+	 * @param cli The (started) client connected to the JRF Server.
+	 * @param exec The executor processing replies.
+	 * @param timeout Time after which the futures are completed with a {@link java.util.concurrent.TimeoutException}
+	 * 		if no reply is received, in ms, or {@code 0} to wait until the connection is closed.
+	 */
+	public JRFAsyncClient(JRFClient cli, Executor exec, int timeout) {
+		this.cli = cli;
+		this.exec = exec;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * @return The client connected to the JRF Server.
+	 */
+	public JRFClient getClient() {
+		return cli;
+	}
+	
+	/**
+	 * Open a remote file.
+	 * @param remoteFile The absolute path name of the file, <em>as seen by the server</em>.
+	 * @param mode {@code 'r'} to read or {@code 'w'} to write.
+	 * @param deflate The deflate level to use on read chunks ({@code 0} for no compression).
+	 * @return The file ID, to be used in {@link #readAsync(short, int)}, {@link #writeAsync(short, byte[], int, int, int)}
+	 * 		and {@link #closeAsync(short)}. Completed with a {@link FileNotFoundException} if the file could not
+	 * 		be opened remotely.
+	 */
+	public CompletableFuture<Short> openAsync(String remoteFile, char mode, int deflate) {
+		return request(new MsgOpen(remoteFile, mode, deflate), new ReplyHandler<Short>() {
+			@Override public Short handle(Message m) throws IOException {
+				MsgAck ack = checkAck(m, true);
+				return Short.valueOf(ack.getFileID());
+			}
+		});
+	}
+	
+	/**
+	 * Read bytes from a remote file, at its current position. Pipelined reads on the same file are served in
+	 * the order they were issued.
+	 * @param fileID The file ID, as returned by {@link #openAsync(String, char, int)}.
+	 * @param len The maximum number of bytes to read.
+	 * @return The (inflated) bytes read, an empty array when the end of file is reached.
+	 */
+	public CompletableFuture<byte[]> readAsync(short fileID, int len) {
+		return request(new MsgRead(fileID, len), new ReplyHandler<byte[]>() {
+			@Override public byte[] handle(Message m) throws IOException {
+				if (m instanceof MsgAck)
+					checkAck(m, false);
+				if (!(m instanceof MsgData)) // Unexpected message
+					throw new IOException("Unexpected message "+m+" ("+MsgData.class+" was expected)");
+				return ((MsgData)m).getChunkData(); // Each chunk is compressed independently
+			}
+		});
+	}
+	
+	/**
+	 * Write bytes to a remote file. Pipelined writes on the same file are applied in the order they were
+	 * issued. The bytes are sent before the method returns, so {@code b} can be reused right away.
+	 * @param fileID The file ID, as returned by {@link #openAsync(String, char, int)}.
+	 * @param b The bytes to write.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes to write.
+	 * @param deflate The deflate level to use ({@code 0} for no compression). As writes are independent,
+	 * 		{@link Codec#ADAPTIVE} compression uses the fastest codec.
+	 * @return A future completed when the server acknowledged the write.
+	 */
+	public CompletableFuture<Void> writeAsync(short fileID, byte[] b, int off, int len, int deflate) {
+		if (deflate > 0) {
+			ChunkCompressor.Chunk c;
+			try {
+				c = new ChunkCompressor(deflate).compress(b, off, len);
+			} catch (IllegalArgumentException e) {
+				CompletableFuture<Void> ret = new CompletableFuture<>();
+				ret.completeExceptionally(new IOException(e.getMessage()));
+				return ret;
+			}
+			b = c.data;
+			off = c.off;
+			len = c.len;
+			deflate = c.compression;
+		}
+		return request(new MsgWrite(fileID, b, off, len, deflate), new ReplyHandler<Void>() {
+			@Override public Void handle(Message m) throws IOException {
+				checkAck(m, false);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Close a remote file. The server does not acknowledge the close, so the future is completed as soon
+	 * as the command is sent.
+	 * @param fileID The file ID, as returned by {@link #openAsync(String, char, int)}.
+	 * @return A future completed when the close command was sent.
+	 */
+	public CompletableFuture<Void> closeAsync(short fileID) {
+		CompletableFuture<Void> ret = new CompletableFuture<>();
+		try {
+			cli.send(new MsgClose(fileID));
+			ret.complete(null);
+		} catch (IOException e) {
+			ret.completeExceptionally(e);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get remote file information.
+	 * @param remoteFile The absolute path name of the file, <em>as seen by the server</em>.
+	 * @return The file information (length, last modified date, attributes).
+	 */
+	public CompletableFuture<FileInfos> statAsync(String remoteFile) {
+		return request(new MsgFileAction(FileAction.GET_ATTRIBUTES, remoteFile), new ReplyHandler<FileInfos>() {
+			@Override public FileInfos handle(Message m) throws IOException {
+				if (!(m instanceof MsgFileInfos))
+					throw new IOException("Unexpected message "+m+" ("+MsgFileInfos.class+" was expected)");
+				return ((MsgFileInfos)m).getFileInfos();
+			}
+		});
+	}
+	
+	/**
+	 * List a remote directory.
+	 * @param remoteDir The absolute path name of the directory, <em>as seen by the server</em>.
+	 * @return Information on the files in the directory, {@code null} if {@code remoteDir} is not a directory.
+	 */
+	public CompletableFuture<FileInfos[]> listAsync(String remoteDir) {
+		return request(new MsgFileAction(FileAction.LIST_FILES, remoteDir), new ReplyHandler<FileInfos[]>() {
+			@Override public FileInfos[] handle(Message m) throws IOException {
+				if (!(m instanceof MsgFileList))
+					throw new IOException("Unexpected message "+m+" ("+MsgFileList.class+" was expected)");
+				return ((MsgFileList)m).getFiles();
+			}
+		});
+	}
+	
+	/**
+	 * Retrieve a remote file completely, as {@link JRFClient#getFile(String, int, String, int)} does.
+	 * @param remote The remote file path.
+	 * @param deflate The deflate value to apply remotely on the data.
+	 * @param local The local file to write to.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @return The number of <em>network</em> bytes received.
+	 */
+	public CompletableFuture<Long> getFileAsync(String remote, int deflate, String local, int mtu) {
+		CompletableFuture<Long> ret = new CompletableFuture<>();
+		OutputStream os;
+		try {
+			Codec.check(deflate);
+			os = new BufferedOutputStream(new FileOutputStream(local));
+		} catch (IOException e) {
+			ret.completeExceptionally(e);
+			return ret;
+		}
+		if (deflate > 0 && !Codec.isAdaptive(deflate)) // Adaptive: each chunk is compressed on its own
+			os = Codec.of(deflate).decompressing(os);
+		int num;
+		try {
+			num = cli.send(new MsgGet(remote, deflate, mtu));
+		} catch (IOException e) {
+			closeQuietly(os);
+			ret.completeExceptionally(e);
+			return ret;
+		}
+		receiveFile(num, os, Codec.isAdaptive(deflate), 0l, ret);
+		return ret;
+	}
+	
+	/**
+	 * Write the next data chunk of a file GET to {@code os}, then wait for the following one.
+	 * @param num The {@link MsgGet} message number.
+	 * @param os The local file.
+	 * @param chunked {@code true} if each chunk is compressed on its own.
+	 * @param len The number of network bytes received so far.
+	 * @param ret The future to complete when the whole file is received.
+	 */
+	private void receiveFile(final int num, final OutputStream os, final boolean chunked, final long len, final CompletableFuture<Long> ret) {
+		cli.getReplyAsync(num, timeout).whenCompleteAsync((m, e) -> {
+			try {
+				if (e != null)
+					throw e;
+				if (m instanceof MsgAck) // Exception
+					throw new IOException(((MsgAck)m).getMessage());
+				if (!(m instanceof MsgData)) // Unknown message
+					throw new IOException("Unexpected message during file GET: "+m);
+				MsgData msg = (MsgData)m;
+				os.write(chunked ? msg.getChunkData() : msg.getData());
+				if (msg.hasNext()) {
+					receiveFile(num, os, chunked, len + msg.getLength(), ret);
+				} else {
+					os.close();
+					ret.complete(Long.valueOf(len + msg.getLength()));
+				}
+			} catch (Throwable ex) {
+				closeQuietly(os);
+				ret.completeExceptionally(ex);
+			}
+		}, exec);
+	}
+	
+	/**
+	 * Send a command and process its reply in {@link #exec}.
+	 * @param msg The command.
+	 * @param handler Converts the reply to the result.
+	 * @return The future result.
+	 */
+	private <T> CompletableFuture<T> request(Message msg, final ReplyHandler<T> handler) {
+		final CompletableFuture<T> ret = new CompletableFuture<>();
+		int num;
+		try {
+			num = cli.send(msg);
+		} catch (IOException e) {
+			ret.completeExceptionally(e);
+			return ret;
+		}
+		cli.getReplyAsync(num, timeout).whenCompleteAsync((m, e) -> {
+			if (e != null) {
+				ret.completeExceptionally(e);
+				return;
+			}
+			try {
+				ret.complete(handler.handle(m));
+			} catch (IOException | RuntimeException ex) {
+				ret.completeExceptionally(ex);
+			}
+		}, exec);
+		return ret;
+	}
+	
+	/**
+	 * Check a reply is a successful {@link MsgAck}.
+	 * @param m The reply.
+	 * @param open {@code true} if the reply is to an open command, where warnings mean the file was not found.
+	 * @return The acknowledge.
+	 * @throws IOException if the reply is not a {@code MsgAck} or reports an error.
+	 */
+	private static MsgAck checkAck(Message m, boolean open) throws IOException {
+		if (!(m instanceof MsgAck)) // Unexpected message
+			throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		MsgAck ack = (MsgAck)m;
+		if (ack.getCode() != MsgAck.OK) {
+			if (open && ack.getCode() == MsgAck.WARN) // File not found
+				throw new FileNotFoundException(ack.getMessage());
+			throw new IOException(ack.getMessage());
+		}
+		return ack;
+	}
+	
+	private static void closeQuietly(OutputStream os) {
+		try {
+			os.close();
+		} catch (IOException e) { }
+	}
+	
+	/**
+	 * Converts a reply message to the result of an asynchronous call.
+	 */
+	private static interface ReplyHandler<T> {
+		T handle(Message m) throws IOException;
+	}
+	
+}
@@ -2,6 +2,7 @@ package net.jrf.client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -12,55 +13,132 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 
+import net.jrf.AsyncOutputStream;
+import net.jrf.RemoteFile;
+import net.jrf.RemoteFileChannel;
 import net.jrf.RemoteInputStream;
 import net.jrf.RemoteOutputStream;
+import net.jrf.Utils;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Codec;
+import net.jrf.codec.Dictionary;
 import net.jrf.msg.Message;
 import net.jrf.msg.MsgAck;
 import net.jrf.msg.MsgClose;
 import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgDataOutputStream;
+import net.jrf.msg.MsgDict;
 import net.jrf.msg.MsgFileCmd;
 import net.jrf.msg.MsgGet;
+import net.jrf.msg.MsgISAction;
+import net.jrf.msg.MsgISAction.StreamAction;
 import net.jrf.msg.MsgOpen;
 import net.jrf.msg.MsgPing;
+import net.jrf.msg.MsgPut;
+import net.jrf.msg.file.MsgFAHash;
+import net.jrf.msg.file.MsgFileDigest;
 import net.jrf.server.JRFProvider;
 import net.jrf.server.JRFServer;
 
 /**
- * The JRF Client is used to send file commands to a {@linkplain JRFProvider JRF Server}.
+ * <p>The JRF Client is used to send file commands to a {@linkplain JRFProvider JRF Server}.</p>
+ * <p>Messages sent by the server are read in a dedicated thread, started by {@link #start()}. It can
+ * be a virtual thread (on JVMs supporting them), in which case no socket timeout is used.</p>
  * 
  * @author Matthieu Labas
  */
 
 // TODO: Create SocketFactory to use SSLSocket, UDTSocket
 
-public class JRFClient extends Thread {
+public class JRFClient implements Runnable {
 	
 	private static final Logger log = Logger.getLogger(JRFClient.class.getName());
 	
 	/** The Socket timeout, in ms. */
 	public static final int TIMEOUT = 1000;
 	
+	/** Time to wait for the reply to the protocol handshake, in ms. Servers not replying in time are considered
+	 * not to know it, and messages are exchanged in {@link Message#PROTOCOL_V1}. */
+	public static final int HANDSHAKE_TIMEOUT = TIMEOUT;
+	
+	/** Time after which received replies nobody asked for are discarded, in ms. */
+	public static final int ORPHAN_TIMEOUT = 60_000;
+	
+	/** Timer shared by all clients, to expire {@linkplain #getReplyAsync(int, int) reply timeouts} and
+	 * discard orphan replies. */
+	private static final ScheduledExecutorService timer;
+	static {
+		ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, "JRFClient timer");
+				th.setDaemon(true);
+				return th;
+			}
+		});
+		t.setRemoveOnCancelPolicy(true); // Most timeouts are cancelled when the reply arrives
+		timer = t;
+	}
+	
 	/** Socket connected to a {@link JRFProvider}. */
 	private Socket sok;
 	
+	/** Lock to send whole messages on {@link #sok}. */
+	private ReentrantLock sendLock;
+	
+	/** The protocol used to send messages, upgraded when the server replies to the handshake. */
+	private volatile int protocol;
+	
+	/** {@code true} once the server replied to a message, which it handled after the handshake. */
+	private volatile boolean negotiated;
+	
+	/** The reply to the handshake sent by {@link #start()}, completed exceptionally if the server did not
+	 * reply in {@link #HANDSHAKE_TIMEOUT} ms. */
+	private volatile CompletableFuture<Message> handshake;
+	
+	/** The client name, used for logging. */
+	private String name;
+	
+	/** The thread reading messages from {@link #sok}. */
+	private Thread reader;
+	
 	/** Map of remotely opened {@code InputStream}. Key is the file ID. */
 	private Map<Integer,RemoteInputStream> remoteIS;
 	
 	/** Map of remotely opened {@code OutputStream}. Key is the file ID. */
 	private Map<Integer,RemoteOutputStream> remoteOS;
 	
-	/** List of {@link Message}s received that can be queried by {@link RemoteInputStream}s looking
-	 * for a reply message to their command message. */
-	private List<Message> msgQueue;
+	/** Map of remotely opened {@code RemoteFileChannel}. Key is the file ID. */
+	private Map<Integer,RemoteFileChannel> remoteCH;
+	
+	/** Replies to sent messages, keyed by message number: either replies received and not retrieved yet,
+	 * or futures of callers waiting for replies. Updated atomically per key with
+	 * {@link ConcurrentHashMap#compute(Object, java.util.function.BiFunction)}. */
+	private ConcurrentHashMap<Integer,Replies> replies;
+	
+	/** Full message numbers of messages sent in {@link Message#PROTOCOL_V1}, keyed by their lower 16 bits,
+	 * which is all their replies hold. */
+	private Map<Integer,Integer> v1Nums;
+	
+	/** Periodic task discarding orphan replies from {@link #replies}. */
+	private ScheduledFuture<?> orphanCleaner;
 	
 	/** Latency accumulator, in µs. Average latency is {@code totLatency / nLatency}. */
 	private long totLatency;
@@ -69,10 +147,17 @@ public class JRFClient extends Thread {
 	
 	private volatile boolean goOn;
 	
-	JRFClient(Socket sok) {
-		setName("JRFClient "+sok.getLocalSocketAddress()+">"+sok.getRemoteSocketAddress());
+	/** {@code true} once the connection is closed, when no more replies can be received. */
+	private volatile boolean closed;
+	
+	JRFClient(Socket sok, boolean virtual) {
+		name = "JRFClient "+sok.getLocalSocketAddress()+">"+sok.getRemoteSocketAddress();
+		if (virtual && !Utils.hasVirtualThreads()) {
+			log.warning(getName()+": Virtual threads are not supported, using a platform thread");
+			virtual = false;
+		}
 		try {
-			sok.setSoTimeout(TIMEOUT);
+			sok.setSoTimeout(virtual ? 0 : TIMEOUT); // A virtual thread can block until the socket is closed
 		} catch (SocketException e) {
 			log.warning(getName()+": Unable to set timeout on "+sok+": "+e.getMessage());
 		}
@@ -82,12 +167,17 @@ public class JRFClient extends Thread {
 			log.warning(getName()+": Unable to set keepalive on "+sok+": "+e.getMessage());
 		}
 		this.sok = sok;
+		sendLock = new ReentrantLock();
+		protocol = Message.PROTOCOL_V1;
 		remoteIS = new HashMap<>();
 		remoteOS = new HashMap<>();
-		msgQueue = new ArrayList<Message>();
+		remoteCH = new HashMap<>();
+		replies = new ConcurrentHashMap<>();
+		v1Nums = new ConcurrentHashMap<>();
 		totLatency = 0;
 		nLatency = 0;
 		goOn = true;
+		reader = Utils.newThread(this, name, virtual);
 	}
 	
 	/**
@@ -96,7 +186,92 @@ public class JRFClient extends Thread {
 	 * @throws IOException if an I/O error occurs during Socket creation.
 	 */
 	public JRFClient(InetSocketAddress addr) throws IOException {
-		this(new Socket(addr.getAddress(), addr.getPort()));
+		this(addr, false);
+	}
+	
+	/**
+	 * Instantiate and connects a JRF Client to a {@linkplain JRFServer JRF Server}.
+	 * @param addr The address of the JRF Server to connect to.
+	 * @param virtual {@code true} to read server messages in a virtual thread, if supported by the JVM.
+	 * @throws IOException if an I/O error occurs during Socket creation.
+	 */
+	public JRFClient(InetSocketAddress addr, boolean virtual) throws IOException {
+		this(new Socket(addr.getAddress(), addr.getPort()), virtual);
+	}
+	
+	/**
+	 * @return The client name.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Start reading messages sent by the JRF Server, and negotiate the protocol version with a
+	 * {@link MsgPing} handshake. Messages are sent in {@link Message#PROTOCOL_V1} until the server replies.
+	 */
+	public void start() {
+		orphanCleaner = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override public void run() {
+				discardOrphans();
+			}
+		}, ORPHAN_TIMEOUT, ORPHAN_TIMEOUT, TimeUnit.MILLISECONDS);
+		reader.start();
+		try {
+			handshake = getReplyAsync(send(new MsgPing(-1, Message.PROTOCOL)), HANDSHAKE_TIMEOUT);
+		} catch (IOException e) { // The reader will fail as well
+			log.warning(getName()+": Unable to send handshake: "+e.getMessage());
+			handshake = new CompletableFuture<>();
+			handshake.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * @return The protocol version used to send messages to the JRF Server.
+	 */
+	public int getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * Get the protocol version once negotiated, waiting for the reply to the handshake if needed. Servers
+	 * which do not know the handshake never reply to it, but they handle messages in order: the protocol
+	 * is also settled once the server replied to any message.
+	 * @return The protocol version used to send messages to the JRF Server.
+	 */
+	int negotiatedProtocol() {
+		if (!negotiated && handshake != null) {
+			try {
+				handshake.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) { // No reply in time, or connection closed
+			}
+		}
+		return protocol;
+	}
+	
+	/**
+	 * @return {@code true} if the current thread can wait for replies from the JRF Server: the connection
+	 * 		is not closed, and the current thread is not the one reading the replies.
+	 */
+	public boolean canAwaitReplies() {
+		return !closed && Thread.currentThread() != reader;
+	}
+	
+	/**
+	 * @return {@code true} if the client is still reading messages from the JRF Server.
+	 */
+	public boolean isAlive() {
+		return reader.isAlive();
+	}
+	
+	/**
+	 * Wait for the client to be closed.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 */
+	public void join() throws InterruptedException {
+		reader.join();
 	}
 	
 	/**
@@ -153,9 +328,40 @@ public class JRFClient extends Thread {
 		remoteOS.remove(ros.getFileID());
 	}
 	
+	/**
+	 * Called by {@code RemoteFileChannel} when it has been closed, so it can be removed
+	 * from {@link #remoteCH}.
+	 * @param rfc The closed {@code RemoteFileChannel} to remove.
+	 */
+	public synchronized void remoteChannelClosed(RemoteFileChannel rfc) {
+		remoteCH.remove(rfc.getFileID());
+	}
+	
+	/**
+	 * @return The number of remote files currently opened through this client (streams and channels).
+	 */
+	public synchronized int getOpenedFileCount() {
+		return remoteIS.size() + remoteOS.size() + remoteCH.size();
+	}
+	
 	/** Close all remotely opened files and gracefully disconnects from the JRF Server. */
 	private synchronized void close() {
-		for (RemoteInputStream ris : remoteIS.values()) {
+		// Nothing will be received anymore: release callers waiting for replies, including the streams
+		// closed below, which would otherwise wait for acknowledges only this thread can deliver
+		closed = true;
+		if (orphanCleaner != null)
+			orphanCleaner.cancel(false);
+		IOException closed = new IOException("Connection closed");
+		for (Integer key : replies.keySet()) {
+			Replies r = replies.remove(key);
+			if (r == null)
+				continue;
+			for (CompletableFuture<Message> f : r)
+				f.completeExceptionally(closed); // No effect on replies already received
+		}
+		v1Nums.clear();
+		
+		for (RemoteInputStream ris : new ArrayList<>(remoteIS.values())) { // Closing removes from remoteIS
 			try {
 				ris.close();
 			} catch (IOException e) {
@@ -164,7 +370,7 @@ public class JRFClient extends Thread {
 		}
 		remoteIS.clear();
 		
-		for (RemoteOutputStream ros : remoteOS.values()) {
+		for (RemoteOutputStream ros : new ArrayList<>(remoteOS.values())) { // Closing removes from remoteOS
 			try {
 				ros.close();
 			} catch (IOException e) {
@@ -173,6 +379,15 @@ public class JRFClient extends Thread {
 		}
 		remoteOS.clear();
 		
+		for (RemoteFileChannel rfc : new ArrayList<>(remoteCH.values())) { // Closing removes from remoteCH
+			try {
+				rfc.close();
+			} catch (IOException e) {
+				log.warning(getName()+": Exception while closing remote file channel "+rfc+": "+e.getMessage());
+			}
+		}
+		remoteCH.clear();
+		
 		// Close the connection
 		gracefulClose(sok, true);
 	}
@@ -186,14 +401,14 @@ public class JRFClient extends Thread {
 	/**
 	 * Get a {@link RemoteInputStream} from the server.
 	 * @param remoteFile The absolute path name of the file to retrieve, <em>as seen by the server</em>.
-	 * @param deflate The deflate level to use when transferring file chunks. No compression is performed
-	 * 		if {@code <= 0}.
+	 * @param deflate The compression to use when transferring file chunks: a deflate level, or a codec and
+	 * 		level built by {@link Codec#compression(int, int)}. No compression is performed if {@code <= 0}.
 	 * @return The {@code RemoteInputStream} (never {@code null}).
 	 * @throws FileNotFoundException If the file was not found remotely.
 	 * @throws IOException If a network error occurs.
 	 */
 	public RemoteInputStream getRemoteInputStream(String remoteFile, int deflate) throws IOException {
-		short num = new MsgOpen(remoteFile, 'r', deflate).send(sok); // Remote open file
+		int num = send(new MsgOpen(remoteFile, 'r', deflate, deflate > 0, deflate > 0)); // Remote open file
 		long t0 = System.nanoTime();
 		Message m = getReply(num, 0); // Wait for MsgAck to get file ID
 		addLatencyNow(t0);
@@ -206,7 +421,8 @@ public class JRFClient extends Thread {
 				throw new IOException(err);
 			}
 			short fileID = msg.getFileID();
-			RemoteInputStream ris = new RemoteInputStream(this, remoteFile, fileID);
+			dictionary(msg); // Chunks are inflated with it
+			RemoteInputStream ris = new RemoteInputStream(this, remoteFile, fileID, msg.isContextual());
 			synchronized (this) {
 				remoteIS.put(Integer.valueOf(fileID), ris);
 			}
@@ -237,7 +453,7 @@ public class JRFClient extends Thread {
 	 * @throws IOException If a network error occurs.
 	 */
 	public RemoteOutputStream getRemoteOutputStream(String remoteFile, int deflate) throws IOException {
-		short num = new MsgOpen(remoteFile, 'w', deflate).send(sok); // Remote open file
+		int num = send(new MsgOpen(remoteFile, 'w', deflate, deflate > 0, deflate > 0)); // Remote open file
 		long t0 = System.nanoTime();
 		Message m = getReply(num, 0); // Wait for MsgAck to get file ID
 		addLatencyNow(t0);
@@ -252,7 +468,7 @@ public class JRFClient extends Thread {
 			throw new IOException(err);
 		}
 		short fileID = msg.getFileID();
-		RemoteOutputStream ros = new RemoteOutputStream(this, remoteFile, fileID, deflate);
+		RemoteOutputStream ros = new RemoteOutputStream(this, remoteFile, fileID, deflate, dictionary(msg), msg.isContextual());
 		synchronized (this) {
 			remoteOS.put(Integer.valueOf(fileID), ros);
 		}
@@ -270,65 +486,285 @@ public class JRFClient extends Thread {
 		return getRemoteOutputStream(remoteFile, 0);
 	}
 	
+	/**
+	 * Open a {@link RemoteFileChannel} on the server, to read and write the file at any position. The file
+	 * is created if it does not exist, and is not truncated.
+	 * @param remoteFile The absolute path name of the file to open, <em>as seen by the server</em>.
+	 * @param deflate The deflate level to use when transferring file chunks. No compression is performed
+	 * 		if {@code <= 0}.
+	 * @return The {@code RemoteFileChannel} (never {@code null}).
+	 * @throws FileNotFoundException If the file could not be opened remotely.
+	 * @throws IOException If a network error occurs.
+	 */
+	public RemoteFileChannel getRemoteFileChannel(String remoteFile, int deflate) throws IOException {
+		return openChannel(new MsgOpen(remoteFile, 'u', deflate, deflate > 0), remoteFile, deflate);
+	}
+	
+	/**
+	 * Create a file to upload in parallel from several connections. The file is created or truncated.
+	 * @param remoteFile The absolute path name of the file, <em>as seen by the server</em>.
+	 * @param deflate The deflate level to use on written chunks ({@code 0} for no compression).
+	 * @return The channel, which file ID other connections {@linkplain #attachUpload(String, short, int) attach} to.
+	 * @throws IOException if the file could not be created.
+	 */
+	RemoteFileChannel createUpload(String remoteFile, int deflate) throws IOException {
+		return openChannel(new MsgOpen(remoteFile, 'p', deflate), remoteFile, deflate);
+	}
+	
+	/**
+	 * Attach to a file {@linkplain #createUpload(String, int) created} on another connection to the same server.
+	 * @param remoteFile The absolute path name of the file, <em>as seen by the server</em>.
+	 * @param fileID The file ID given when the upload was created.
+	 * @param deflate The deflate level to use on written chunks ({@code 0} for no compression).
+	 * @return The channel.
+	 * @throws IOException if there is no such upload on the server.
+	 */
+	RemoteFileChannel attachUpload(String remoteFile, short fileID, int deflate) throws IOException {
+		return openChannel(new MsgISAction(StreamAction.ATTACH, fileID), remoteFile, deflate);
+	}
+	
+	private RemoteFileChannel openChannel(Message open, String remoteFile, int deflate) throws IOException {
+		int num = send(open); // Remote open file
+		long t0 = System.nanoTime();
+		Message m = getReply(num, 0); // Wait for MsgAck to get file ID
+		addLatencyNow(t0);
+		if (!(m instanceof MsgAck))
+			throw new IOException("Unexpected message "+remoteFile);
+		
+		MsgAck msg = (MsgAck)m;
+		String err = msg.getMessage();
+		if (err != null) {
+			if (msg.getCode() == MsgAck.WARN) // File not found
+				throw new FileNotFoundException(err);
+			throw new IOException(err);
+		}
+		short fileID = msg.getFileID();
+		RemoteFileChannel rfc = new RemoteFileChannel(this, remoteFile, fileID, deflate, dictionary(msg));
+		synchronized (this) {
+			remoteCH.put(Integer.valueOf(fileID), rfc);
+		}
+		return rfc;
+	}
+	
+	/**
+	 * Get the preset dictionary the chunks of an opened file are compressed with, fetching it from the server
+	 * the first time: it is then {@linkplain Dictionary#register(Dictionary) registered} for all connections.
+	 * The file is closed if the dictionary cannot be fetched.
+	 * @param ack The open acknowledge, holding the dictionary ID.
+	 * @return The dictionary, {@code null} if the file chunks are not compressed with one.
+	 * @throws IOException if the dictionary cannot be fetched.
+	 */
+	private Dictionary dictionary(MsgAck ack) throws IOException {
+		int id = ack.getDictionary();
+		if (id == 0)
+			return null;
+		Dictionary d = Dictionary.get(id);
+		if (d != null)
+			return d;
+		try {
+			int num = send(new MsgDict(id));
+			Message m = getReply(num, 0);
+			if (m instanceof MsgAck)
+				throw new IOException(((MsgAck)m).getMessage());
+			if (!(m instanceof MsgDict) || ((MsgDict)m).getBytes() == null)
+				throw new IOException("Unexpected message "+m+" ("+MsgDict.class+" was expected)");
+			d = new Dictionary(((MsgDict)m).getBytes());
+			if (d.getId() != id)
+				throw new IOException("Invalid dictionary "+d+" received for "+Dictionary.toString(id));
+			log.fine(Thread.currentThread().getName()+": Fetched "+d);
+			return Dictionary.register(d);
+		} catch (IOException | IllegalArgumentException e) {
+			try {
+				send(new MsgClose(ack.getFileID()));
+			} catch (IOException ex) { }
+			throw (e instanceof IOException ? (IOException)e : new IOException(e.getMessage(), e));
+		}
+	}
+	
 	/**
 	 * Send a command message to the remote {@link JRFProvider}.
 	 * @param cmd The command message to send.
 	 * @return The message number {@code cmd.num}.
 	 * @throws IOException on error while sending.
 	 */
-	public short send(Message cmd) throws IOException {
-		return cmd.send(sok);
+	public int send(Message cmd) throws IOException {
+		sendLock.lock();
+		try {
+			int p = protocol;
+			if (p == Message.PROTOCOL_V1) // Replies will only hold the lower 16 bits
+				v1Nums.put(Integer.valueOf(cmd.getNum() & 0xffff), Integer.valueOf(cmd.getNum()));
+			return cmd.send(sok, p);
+		} finally {
+			sendLock.unlock();
+		}
 	}
 	
 	/**
 	 * <p>Retrieve the next reply-message to the given message number, so that
-	 * {@code ret.replyTo == msgNum}. In all cases, if the message was already received, it will be
+	 * {@code ret.isReplyTo(msgNum)}. In all cases, if the message was already received, it will be
 	 * returned immediately.</p>
 	 * <ul>
 	 * <li>If the given {@code timeout} is {@code < 0}, the call will return immediately the reply
 	 * message if it was already received, or {@code null} if it wasn't, which can be useful to
 	 * create an external active polling.</li>
-	 * <li>If {@code 0}, the call will block until the reply message is received or an exception is
-	 * thrown.</li>
+	 * <li>If {@code 0}, the call will block until the reply message is received or the connection
+	 * is closed.</li>
 	 * <li>If {@code > 0}, the call will block at most {@code timeout} ms until the reply message is
-	 * received or an exception is thrown. If the message was not received during this {@code timeout},
+	 * received or the connection is closed. If the message was not received during this {@code timeout},
 	 * {@code null} will be returned.</li></ul>
 	 * @param msgNum The message number to which a reply message was sent.
 	 * @param timeout {@code >= 0} if the call should be blocking, waiting for the reply message to
 	 * 		arrive in the given {@code timeout} ms.
 	 * @return The first received message, sent as a reply to message #{@code msgNum}, or {@code null}
-	 * 		if no such message was received during the given {@code timeout}.
-	 */
-	public Message getReply(short msgNum, int timeout) {
-		synchronized (msgQueue) {
-			for (Iterator<Message> iter = msgQueue.iterator(); iter.hasNext();) {
-				Message msg = iter.next();
-				if (msg.getReplyTo() == msgNum) {
-					iter.remove();
-					return msg;
-				}
-			}
-			// Message not in the queue
-			if (timeout < 0)
-				return null;
-			
-			// Wait for the next received message
-			int sz = msgQueue.size(); // Next received message will be at this index
-			long t0 = System.currentTimeMillis();
+	 * 		if no such message was received during the given {@code timeout}, or if the connection was closed.
+	 */
+	public Message getReply(int msgNum, int timeout) {
+		if (timeout < 0)
+			return pollReply(msgNum);
+		
+		CompletableFuture<Message> f = getReplyAsync(msgNum, timeout);
+		boolean interrupted = false;
+		try {
 			for (;;) {
-				long t = (timeout == 0 ? 0 : timeout - (System.currentTimeMillis() - t0));
-				try { msgQueue.wait(t); } catch (InterruptedException e) { } // Already in synchronized (msgQueue)
-				if (msgQueue.size() != sz) { // New message received
-					Message msg = msgQueue.get(sz);
-					if (msg.getReplyTo() == msgNum) { // Ours
-						msgQueue.remove(sz);
-						return msg;
-					}
-				}
-				if (timeout > 0 && (System.currentTimeMillis() - t0) >= timeout) // Timeout expired: return null
+				try {
+					return f.get();
+				} catch (InterruptedException e) { // Keep waiting, as before
+					interrupted = true;
+				} catch (ExecutionException e) { // Timeout or connection closed
 					return null;
+				}
 			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * <p>Get a future completed with the next reply-message to the given message number. If the message
+	 * was already received, the returned future is already completed.</p>
+	 * <p>The future is completed by the thread reading server messages, so dependent actions should not
+	 * block.</p>
+	 * @param msgNum The message number to which a reply message was sent.
+	 * @param timeout {@code > 0} to complete the future exceptionally with a {@link TimeoutException} if
+	 * 		no reply is received in the given {@code timeout} ms. {@code 0} to wait until the reply message
+	 * 		is received or the connection is closed (the future is then completed exceptionally with an
+	 * 		{@code IOException}).
+	 * @return The future reply.
+	 */
+	public CompletableFuture<Message> getReplyAsync(final int msgNum, int timeout) {
+		final Integer key = Integer.valueOf(msgNum);
+		final CompletableFuture<Message> waiter = new CompletableFuture<>();
+		final CompletableFuture<Message>[] ret = newFutureHolder();
+		replies.compute(key, (k, r) -> {
+			if (r != null && r.peekFirst().isDone()) { // Reply already received
+				ret[0] = r.pollFirst();
+				return (r.isEmpty() ? null : r);
+			}
+			if (r == null)
+				r = new Replies();
+			r.addLast(waiter);
+			ret[0] = waiter;
+			return r;
+		});
+		if (ret[0] != waiter)
+			return ret[0];
+		if (closed) {
+			waiter.completeExceptionally(new IOException("Connection closed"));
+			return waiter;
 		}
+		if (timeout <= 0)
+			return waiter;
+		
+		final ScheduledFuture<?> expire = timer.schedule(new Runnable() {
+			@Override public void run() {
+				final boolean[] removed = new boolean[1];
+				replies.computeIfPresent(key, (k, r) -> {
+					removed[0] = r.remove(waiter);
+					return (r.isEmpty() ? null : r);
+				});
+				if (removed[0]) // Otherwise, the reply was just received
+					waiter.completeExceptionally(new TimeoutException("No reply to message #"+msgNum+" after "+timeout+" ms"));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		waiter.whenComplete((m, e) -> expire.cancel(false));
+		return waiter;
+	}
+	
+	/**
+	 * @param msgNum The message number to which a reply message was sent.
+	 * @return The next reply-message to {@code msgNum} if it was already received, {@code null} otherwise.
+	 */
+	private Message pollReply(int msgNum) {
+		final CompletableFuture<Message>[] ret = newFutureHolder();
+		replies.computeIfPresent(Integer.valueOf(msgNum), (k, r) -> {
+			if (!r.peekFirst().isDone()) // Only waiters
+				return r;
+			ret[0] = r.pollFirst();
+			return (r.isEmpty() ? null : r);
+		});
+		return (ret[0] == null ? null : ret[0].getNow(null));
+	}
+	
+	/**
+	 * Give a received reply message to the caller waiting for it, or keep it until it is
+	 * {@linkplain #getReply(int, int) retrieved}.
+	 * @param msg The reply message.
+	 */
+	private void dispatchReply(final Message msg) {
+		int replyTo = msg.getReplyTo();
+		Integer key = Integer.valueOf(replyTo);
+		if (replyTo <= 0xffff) { // Reply to a message sent in PROTOCOL_V1
+			Integer num = v1Nums.get(key);
+			if (num != null)
+				key = num;
+		}
+		final CompletableFuture<Message>[] waiter = newFutureHolder();
+		replies.compute(key, (k, r) -> {
+			if (r == null)
+				r = new Replies();
+			if (!r.isEmpty() && !r.peekFirst().isDone()) { // Someone is waiting
+				waiter[0] = r.pollFirst();
+			} else {
+				r.addLast(CompletableFuture.completedFuture(msg));
+				r.lastReceived = System.currentTimeMillis();
+			}
+			return (r.isEmpty() ? null : r);
+		});
+		if (waiter[0] != null) // Complete outside of compute(), as it runs dependent actions
+			waiter[0].complete(msg);
+	}
+	
+	/**
+	 * Discard replies that were received more than {@link #ORPHAN_TIMEOUT} ms ago and not retrieved,
+	 * e.g. because their caller timed out.
+	 */
+	private void discardOrphans() {
+		final long limit = System.currentTimeMillis() - ORPHAN_TIMEOUT;
+		for (Integer key : replies.keySet()) {
+			replies.computeIfPresent(key, (k, r) -> {
+				if (r.lastReceived == 0 || r.lastReceived > limit || !r.peekFirst().isDone())
+					return r;
+				log.warning(getName()+": Discarding "+r.size()+" unclaimed replies to message #"+k+", first is "+r.peekFirst().getNow(null));
+				return null;
+			});
+		}
+	}
+	
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private static CompletableFuture<Message>[] newFutureHolder() {
+		return new CompletableFuture[1];
+	}
+	
+	/**
+	 * Replies to a message: either all received messages not retrieved yet, or all futures of callers
+	 * waiting for the next replies.
+	 */
+	private static class Replies extends ArrayDeque<CompletableFuture<Message>> {
+		private static final long serialVersionUID = 1L;
+		
+		/** Time at which the last reply was received, in ms. */
+		private long lastReceived;
 	}
 	
 	/**
@@ -365,7 +801,8 @@ public class JRFClient extends Thread {
 	 * file content, not individual chunks (as performed by {@code RemoteInputStream}). It also allows for MTU
 	 * sizing, when the network has such constraints.
 	 * @param remote The remote file path.
-	 * @param deflate The deflate value to apply remotely on the data.
+	 * @param deflate The deflate value to apply remotely on the data, or a codec and level built by
+	 * 		{@link Codec#compression(int, int)}.
 	 * @param local The local file to write to.
 	 * @param mtu The MTU to use to size packets sent remotely. N.B. that it actually is a <em>payload</em> MTU,
 	 * 		not a network one (i.e. network headers such as TCP will be added), but those are constant and can be
@@ -375,14 +812,40 @@ public class JRFClient extends Thread {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public long getFile(String remote, int deflate, String local, int mtu) throws IOException {
-		short num = new MsgGet(remote, deflate, mtu).send(sok);
+		return getFileFrom(remote, deflate, local, mtu, 0l);
+	}
+	
+	/**
+	 * Retrieve a remote file from a given position, appended to the local file truncated at that position.
+	 * @param offset The position to start at, which is also the number of bytes of the local file kept.
+	 * @see #getFile(String, int, String, int)
+	 */
+	long getFileFrom(String remote, int deflate, String local, int mtu, long offset) throws IOException {
+		Codec.check(deflate);
+		OutputStream os;
+		if (offset > 0) {
+			FileOutputStream fos = new FileOutputStream(local, true);
+			try {
+				fos.getChannel().truncate(offset);
+			} catch (IOException e) {
+				fos.close();
+				throw e;
+			}
+			os = new BufferedOutputStream(fos);
+		} else {
+			os = new BufferedOutputStream(new FileOutputStream(local));
+		}
 		long len = 0l;
-		OutputStream os = new BufferedOutputStream(new FileOutputStream(local));
-		Inflater infl = null;
-		if (deflate > 0) {
-			infl = new Inflater();
-			os = new InflaterOutputStream(os, infl);
+		int num;
+		try {
+			num = send(offset > 0 ? new MsgGet(remote, deflate, mtu, offset, -1l) : new MsgGet(remote, deflate, mtu));
+		} catch (IOException e) {
+			os.close();
+			throw e;
 		}
+		boolean chunked = Codec.isAdaptive(deflate); // Each chunk is compressed on its own
+		if (deflate > 0 && !chunked) // Written to disk while the next data are inflated
+			os = Codec.of(deflate).decompressing(new AsyncOutputStream(os));
 		try {
 			Message m;
 			byte[] buf;
@@ -393,9 +856,9 @@ public class JRFClient extends Thread {
 				if (!(m instanceof MsgData)) // Unknown message
 					throw new IOException("Unexpected message during file GET: "+m);
 				MsgData msg = (MsgData)m;
-				buf = msg.getData();
+				buf = (chunked ? msg.getChunkData() : msg.getData());
 				os.write(buf);
-				len += buf.length; // Bytes received, network-wise (use infl.getBytesWritten() to get disk bytes i.e. actual file size)
+				len += msg.getLength(); // Bytes received, network-wise
 				if (!msg.hasNext())
 					break;
 			}
@@ -408,35 +871,292 @@ public class JRFClient extends Thread {
 	}
 	
 	/**
-	 * Sends a file completely, using a {@link RemoteOutputStream}.
+	 * Retrieve a remote file completely, as {@link #getFile(String, int, String, int)}, but in several ranges
+	 * requested at once. The JRF Server reads (and deflates) the ranges concurrently, and they are written
+	 * at their position in the local file as they are received, which makes a better use of high-latency
+	 * links and of the server CPUs. Use {@link JRFClientPool#getFile(String, int, String, int, int)} to
+	 * spread the ranges on several connections as well.
+	 * @param remote The remote file path.
+	 * @param deflate The deflate value to apply remotely on each range.
 	 * @param local The local file to write to.
-	 * @param deflate The deflate value to apply on each data chunk.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @param ranges The number of ranges. Ranges are at least 1 MB, so smaller files are retrieved in less ranges.
+	 * @return The number of <em>network</em> bytes received.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if an I/O error occurs, or if the local file does not have the remote file length
+	 * 		once retrieved.
+	 */
+	public long getFile(String remote, int deflate, String local, int mtu, int ranges) throws IOException {
+		return ParallelGet.getFile(new JRFClient[] { this }, remote, deflate, local, mtu, ranges);
+	}
+	
+	/**
+	 * Sends a file completely, without using {@link RemoteOutputStream}. As {@link #getFile(String, int, String, int)},
+	 * it compresses the whole file content, not individual chunks, and does not wait for each chunk to be
+	 * acknowledged: the JRF Server inflates the data as they are received and acknowledges the whole file
+	 * once written.
+	 * @param local The local file to send.
+	 * @param deflate The deflate value to apply on the data.
 	 * @param remote The remote file path.
-	 * @param mtu The number of bytes to send for each packet. N.B. that if {@code deflate > 0}, that many
-	 * 		bytes will be deflated (compressed) before being sent, resulting in smaller packets.
+	 * @param mtu The MTU to use to size packets sent remotely (see {@link #getFile(String, int, String, int)}).
 	 * @return The number of <em>network</em> bytes sent (which can be less than the actual file length,
 	 * 		if compression is used).
+	 * @throws FileNotFoundException if the local file cannot be read, or the remote file cannot be created.
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public long putFile(String local, int deflate, String remote, int mtu) throws IOException {
-		// TODO: One day, implement a deflated putFile(), as in getFile(), but requires message queuing in JRFProvider
+		return putFileFrom(local, 0l, deflate, remote, mtu);
+	}
+	
+	/**
+	 * Send a file from a given position, appended to the remote file truncated at that position.
+	 * @param offset The position to start at, which is also the number of bytes of the remote file kept.
+	 * @see #putFile(String, int, String, int)
+	 */
+	long putFileFrom(String local, long offset, int deflate, String remote, int mtu) throws IOException {
+		Codec.check(deflate);
+		if (negotiatedProtocol() == Message.PROTOCOL_V1) // Older servers do not know MsgPut, nor resuming
+			return putFileStream(local, deflate, remote, mtu);
+		byte[] buf = new byte[mtu - Message.getHeaderSize(MsgData.class)];
 		long len = 0l;
-		byte[] buf = new byte[mtu];
-		try (RemoteOutputStream os = getRemoteOutputStream(remote, deflate)) {
-			try (InputStream is = new BufferedInputStream(new FileInputStream(local), 2*buf.length)) {
-				int n;
-				for (;;) {
-					n = is.read(buf);
-					if (n < 0)
-						break;
-					os.write(buf, 0, n);
+		try (FileInputStream in = new FileInputStream(local); InputStream fis = new BufferedInputStream(in, 2*buf.length)) {
+			if (offset > 0) {
+				if (in.getChannel().size() < offset)
+					throw new IOException(local+" is shorter than "+offset+" bytes");
+				in.getChannel().position(offset);
+			}
+			int num = send(new MsgPut(remote, deflate, offset));
+			long t0 = System.nanoTime();
+			Message m = getReply(num, 0); // Wait for MsgAck to get file ID
+			addLatencyNow(t0);
+			if (!(m instanceof MsgAck))
+				throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+			MsgAck ack = (MsgAck)m;
+			if (ack.getMessage() != null) {
+				if (ack.getCode() == MsgAck.WARN) // File cannot be created
+					throw new FileNotFoundException(ack.getMessage());
+				throw new IOException(ack.getMessage());
+			}
+			short fileID = ack.getFileID();
+			
+			ChunkCompressor cc = null;
+			DeltaSync.Sender sender = null;
+			OutputStream os = null;
+			if (Codec.isAdaptive(deflate)) { // Each chunk is compressed on its own
+				cc = new ChunkCompressor(deflate);
+			} else if (deflate > 0) { // Compressed by blocks on several CPUs (when the codec can), sent in order
+				sender = new DeltaSync.Sender(this, num);
+				os = Codec.of(deflate).compressing(new MsgDataOutputStream(sender, num, fileID, buf.length, deflate),
+						Codec.getLevel(deflate), buf.length, ForkJoinPool.commonPool());
+			}
+			try {
+				if (os != null) {
+					int n;
+					while ((n = fis.read(buf)) >= 0) {
+						os.write(buf, 0, n);
+						sender.check(); // Chunks are only sent once blocks are compressed
+					}
+					os.close(); // Sends the last chunk
+					len = sender.len;
+				}
+				boolean next = (os == null);
+				while (next) {
+					int n = Utils.readFully(fis, buf);
+					next = (n == buf.length);
+					if (cc != null) {
+						ChunkCompressor.Chunk c = cc.compress(buf, 0, n);
+						t0 = System.nanoTime();
+						send(new MsgData(num, fileID, c.data, c.len, c.compression, next));
+						cc.transferred(c.len, System.nanoTime() - t0);
+						n = c.len;
+					} else
+						send(new MsgData(num, fileID, buf, n, deflate, next));
 					len += n;
+					if (next && (m = getReply(num, -1)) != null) // Error reported while sending
+						throw new IOException(m instanceof MsgAck ? ((MsgAck)m).getMessage() : "Unexpected message "+m+" ("+MsgAck.class+" was expected)");
 				}
+			} catch (IOException e) {
+				try {
+					send(new MsgClose(fileID)); // Abort
+				} catch (IOException ex) { }
+				throw e;
 			}
+			m = getReply(num, 0); // Wait for the whole file to be written
+			if (!(m instanceof MsgAck))
+				throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+			ack = (MsgAck)m;
+			if (ack.getCode() != MsgAck.OK)
+				throw new IOException(ack.getMessage());
 		}
 		return len;
 	}
 	
+	/**
+	 * Send a file through a {@link RemoteOutputStream}, for servers which do not support {@link MsgPut}
+	 * ({@link Message#PROTOCOL_V1}). The whole file is sent.
+	 * @see #putFile(String, int, String, int)
+	 */
+	private long putFileStream(String local, int deflate, String remote, int mtu) throws IOException {
+		byte[] buf = new byte[mtu];
+		RemoteOutputStream os = getRemoteOutputStream(remote, deflate);
+		try (RemoteOutputStream ros = os; InputStream is = new BufferedInputStream(new FileInputStream(local), 2*buf.length)) {
+			int n;
+			while ((n = is.read(buf)) >= 0)
+				ros.write(buf, 0, n);
+		}
+		return os.getInfo().getXferBytes();
+	}
+	
+	/**
+	 * Sends a file completely, in several ranges written at once. The remote file is created (or truncated)
+	 * with its final size, then the ranges are written at their position. Once all ranges are written, the
+	 * server checks that the whole file was received before forcing it to disk. Use
+	 * {@link JRFClientPool#putFile(String, int, String, int, int)} to spread the ranges on several connections.
+	 * @param local The local file to send.
+	 * @param deflate The deflate value to apply on each data chunk.
+	 * @param remote The remote file path.
+	 * @param mtu The number of bytes to send for each packet (before compression).
+	 * @param ranges The number of ranges. Ranges are at least 1 MB, so smaller files are sent in less ranges.
+	 * @return The number of <em>network</em> bytes sent.
+	 * @throws FileNotFoundException if the local file does not exist.
+	 * @throws IOException if an I/O error occurs, or if the server did not receive the whole file.
+	 */
+	public long putFile(String local, int deflate, String remote, int mtu, int ranges) throws IOException {
+		return ParallelPut.putFile(new JRFClient[] { this }, local, deflate, remote, mtu, ranges);
+	}
+	
+	/**
+	 * Retrieve a remote file completely, as {@link #getFile(String, int, String, int)}, but resuming a previous
+	 * retrieval which was interrupted. The transfer state is recorded in a {@linkplain #getJournal(String, String, boolean)
+	 * journal} until the retrieval completes, so it can be resumed by another process.
+	 * It is resumed only if the remote file did not change, and if the partial local file has the same checksum
+	 * as the beginning of the remote file; otherwise, the file is retrieved from the beginning.
+	 * @param remote The remote file path.
+	 * @param deflate The deflate value to apply remotely on the data.
+	 * @param local The local file to write to.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @return The number of <em>network</em> bytes received during this call.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if an I/O error occurs, or if the local file does not have the remote file length
+	 * 		once retrieved.
+	 */
+	public long getFileResumable(String remote, int deflate, String local, int mtu) throws IOException {
+		return ResumableTransfer.getFile(this, remote, deflate, local, mtu);
+	}
+	
+	/**
+	 * Sends a file completely, as {@link #putFile(String, int, String, int)}, but resuming a previous sending
+	 * which was interrupted. The transfer state is recorded in a {@linkplain #getJournal(String, String, boolean)
+	 * journal} until the sending completes. It is resumed only if the local file did not change, and if
+	 * the partial remote file has the same checksum as the beginning of the local file; otherwise, the file is
+	 * sent from the beginning.
+	 * @param local The local file to send.
+	 * @param deflate The deflate value to apply on the data.
+	 * @param remote The remote file path.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @return The number of <em>network</em> bytes sent during this call.
+	 * @throws FileNotFoundException if the local file cannot be read, or the remote file cannot be created.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public long putFileResumable(String local, int deflate, String remote, int mtu) throws IOException {
+		return ResumableTransfer.putFile(this, local, deflate, remote, mtu);
+	}
+	
+	/**
+	 * Set the directory where the journals of resumable transfers are recorded, for all clients.
+	 * @param dir The directory, created when needed. {@code null} for the default: {@code java.io.tmpdir}.
+	 */
+	public static void setJournalDir(File dir) {
+		ResumableTransfer.setDir(dir);
+	}
+	
+	/**
+	 * Get the journal of a resumable transfer, which exists while the transfer did not complete (e.g. to
+	 * discard an interrupted transfer, so that it is not resumed).
+	 * @param local The local file.
+	 * @param remote The remote file path.
+	 * @param upload {@code true} for a {@linkplain #putFileResumable(String, int, String, int) sending},
+	 * 		{@code false} for a {@linkplain #getFileResumable(String, int, String, int) retrieval}.
+	 * @return The journal file, named after the transfer direction and both files.
+	 */
+	public static File getJournal(String local, String remote, boolean upload) {
+		return ResumableTransfer.journal(upload, local, remote);
+	}
+	
+	/**
+	 * Retrieve a remote file as {@link #getFile(String, int, String, int)}, unless the local file is already
+	 * identical: same length and same {@value Utils#SHA256} digest. The remote digest is computed by the server
+	 * while the local one is computed, and kept by the server as long as the remote file does not change.
+	 * @param remote The remote file path.
+	 * @param deflate The deflate value to apply remotely on the data.
+	 * @param local The local file to write to.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @return The number of <em>network</em> bytes received, or {@code -1} if the files were identical.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public long getFileIfDifferent(String remote, int deflate, String local, int mtu) throws IOException {
+		if (isSame(remote, local))
+			return -1l;
+		return getFile(remote, deflate, local, mtu);
+	}
+	
+	/**
+	 * Send a file as {@link #putFile(String, int, String, int)}, unless the remote file is already identical
+	 * (see {@link #getFileIfDifferent(String, int, String, int)}).
+	 * @param local The local file to send.
+	 * @param deflate The deflate value to apply on the data.
+	 * @param remote The remote file path.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @return The number of <em>network</em> bytes sent, or {@code -1} if the files were identical.
+	 * @throws FileNotFoundException if the local file cannot be read, or the remote file cannot be created.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public long putFileIfDifferent(String local, int deflate, String remote, int mtu) throws IOException {
+		if (isSame(remote, local))
+			return -1l;
+		return putFile(local, deflate, remote, mtu);
+	}
+	
+	/**
+	 * @return {@code true} if the remote and local files have the same length and {@value Utils#SHA256} digest.
+	 * @throws IOException if the local file cannot be read, or in case of communication error.
+	 */
+	private boolean isSame(String remote, String local) throws IOException {
+		File f = new File(local);
+		RemoteFile rf = new RemoteFile(this, remote);
+		if (!f.isFile() || !rf.isFile() || f.length() != rf.length())
+			return false;
+		int num = send(new MsgFAHash(remote, Utils.SHA256, 0l, -1l)); // Computed remotely while computed locally
+		byte[] digest = Utils.digest(f, Utils.SHA256, 0l, -1l);
+		Message m = getReply(num, 0);
+		return (m instanceof MsgFileDigest && Arrays.equals(digest, ((MsgFileDigest)m).getDigest()));
+	}
+	
+	/**
+	 * Synchronize a file with its copy on the other side using a delta transfer, in the way of rsync: the
+	 * receiver sends the weak and strong hashes of the blocks of its copy, and the sender only sends the bytes
+	 * which are not found in any of those blocks (at any offset), along with references to the blocks. This is
+	 * much faster than {@link #getFile(String, int, String, int)} or {@link #putFile(String, int, String, int)}
+	 * when the file was only slightly modified since the last transfer (e.g. virtual machine images or database
+	 * dumps). The file is rebuilt in a temporary file which replaces the copy once complete, so the copy
+	 * is left unchanged if the transfer fails. If the copy does not exist, the whole file is sent.
+	 * @param remote The remote file path.
+	 * @param local The local file path.
+	 * @param upload {@code true} to update the remote file from the local file, {@code false} to update the
+	 * 		local file from the remote file.
+	 * @param deflate The deflate value to apply on the delta.
+	 * @param mtu The MTU to use to size packets (see {@link #getFile(String, int, String, int)}).
+	 * @return The number of <em>network</em> bytes of the delta (not counting the signature).
+	 * @throws FileNotFoundException if the file to send does not exist, or the file to update cannot be created.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public long syncFile(String remote, String local, boolean upload, int deflate, int mtu) throws IOException {
+		if (upload)
+			return DeltaSync.put(this, local, deflate, remote, mtu);
+		return DeltaSync.get(this, remote, deflate, local, mtu);
+	}
+	
 	@Override
 	public void run() {
 		while (goOn) {
@@ -444,11 +1164,17 @@ public class JRFClient extends Thread {
 				log.fine(getName()+": waiting for message...");
 				Message msg = Message.receive(sok);
 				log.fine(getName()+": received message "+msg);
-				if (msg.getReplyTo() > 0) { // Reply message: add it to msgQueue and wakeup all RemoteInputStreams waiting for a reply
-					synchronized (msgQueue) {
-						msgQueue.add(msg);
-						msgQueue.notifyAll();
-					}
+				if (msg instanceof MsgPing && ((MsgPing)msg).getProtocol() > 0) { // Handshake reply
+					protocol = Math.min(((MsgPing)msg).getProtocol(), Message.PROTOCOL);
+					negotiated = true;
+					log.info(getName()+": using protocol version "+protocol);
+					if (msg.getReplyTo() > 0)
+						dispatchReply(msg);
+					continue;
+				}
+				if (msg.getReplyTo() > 0) { // Reply message: hand it over to whoever waits for it
+					negotiated = true;
+					dispatchReply(msg);
 					continue;
 				}
 				
@@ -458,12 +1184,12 @@ public class JRFClient extends Thread {
 					RemoteInputStream ris = remoteIS.get(fileID);
 					if (ris == null) { // Cannot find client: send a close()
 						log.warning(getName()+": Cannot find remote opened file with ID "+fileID+", closing file... (message "+msg+")");
-						new MsgClose(fileID.shortValue()).send(sok);
+						send(new MsgClose(fileID.shortValue()));
 					} else // Handle "spontaneous" messages
 						ris.spontaneousMessage(msg);
 					
 				} else if (msg instanceof MsgPing) {
-					new MsgPing(msg.getNum()).send(sok);
+					send(new MsgPing(msg.getNum()));
 					
 				} else {
 					log.severe(getName()+": Unknown message "+msg);
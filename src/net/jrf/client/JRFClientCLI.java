@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Scanner;
 
 import net.jrf.RemoteFile;
+import net.jrf.codec.Codec;
 
 /**
  * <p>Command Line Interface for {@link JRFClient}. Though it implements {@code Runnable}, it is not
@@ -29,6 +30,8 @@ import net.jrf.RemoteFile;
  * <tr><td><code>lmd</code></td><td>Create local directory</td></tr>
  * <tr><td><code>get &lt;file&gt;</code></td><td>Download remote file</td></tr>
  * <tr><td><code>put &lt;file&gt;</code></td><td>Upload local file</td></tr>
+ * <tr><td><code>sync get|put &lt;file&gt;</code></td><td>Update local (<code>get</code>) or remote (<code>put</code>)
+ * 		file from the other one, sending only the differences</td></tr>
  * <tr><td><code>opt &lt;option&gt; [value]</code></td><td>Set option value:
  * 		<ul><li><code>z</code> Set compression level: 0 (no compression) to 9 (max compression).</li>
  * 		<li><code>mtu</code> Set network chunk size.</li></ul>
@@ -333,25 +336,54 @@ public class JRFClientCLI implements Runnable {
 					}
 					break; }
 					
+				case "sync": {
+					if (remote == null) {
+						System.out.println("No remote directory selected.");
+						break;
+					}
+					arg1 = (cmds.length > 1 ? cmds[1] : sc.next()).toLowerCase();
+					if (!"get".equals(arg1) && !"put".equals(arg1)) {
+						System.out.println("Unknown sync direction '"+arg1+"' (get or put).");
+						break;
+					}
+					arg2 = (cmds.length > 2 ? cmds[2] : sc.next());
+					String rem = remote.getPath()+"/"+arg2;
+					try {
+						long t0 = System.currentTimeMillis();
+						long len = cli.syncFile(rem, arg2, "put".equals(arg1), deflate, mtu);
+						t0 = System.currentTimeMillis() - t0;
+						long len0 = new File(arg2).length();
+						System.out.println(String.format("Synchronized %d bytes in %.1f s (%d bytes sent, %.1f%% saved)", len0, t0 / 1000.0f, len, (len0 == 0 ? 0.0 : 100.0 - 100.0*len/len0)));
+					} catch (IOException e) {
+						System.out.println("Error while synchronizing "+arg2+": "+e.getMessage());
+					}
+					break; }
+					
 				case "opt":
 					arg1 = (cmds.length > 1 ? cmds[1] : sc.next()).toLowerCase();
 					switch (arg1) {
 						case "z":
 							if (cmds.length > 2) {
+								Codec codec = Codec.forName(cmds[2]);
 								try {
-									deflate = Integer.parseInt(cmds[2]);
+									if (codec != null) // Codec name, with an optional level
+										deflate = Codec.compression(codec.getId(), (cmds.length > 3 ? Integer.parseInt(cmds[3]) : 1));
+									else if ("adaptive".equalsIgnoreCase(cmds[2]))
+										deflate = Codec.ADAPTIVE;
+									else
+										deflate = Integer.parseInt(cmds[2]);
 									if (deflate <= 0)
 										System.out.println("Compression disabled");
-									else if (deflate > 9) {
+									else if (codec == null && deflate > 9) {
 										deflate = 9;
 										System.out.println("Compression set to maximum (9)");
 									} else
-										System.out.println("Compression set to "+deflate);
+										System.out.println("Compression set to "+Codec.toString(deflate));
 								} catch (NumberFormatException e) {
-									System.out.println(cmds[2]+" is not a valid compression value (0-9).");
+									System.out.println(cmds[cmds.length-1]+" is not a valid compression value (0-9).");
 								}
 							} else
-								System.out.println("Compression "+(deflate > 0 ? "set to "+deflate : "disabled"));
+								System.out.println("Compression "+(deflate > 0 ? "set to "+Codec.toString(deflate) : "disabled"));
 							break;
 						
 						case "mtu":
@@ -397,8 +429,11 @@ public class JRFClientCLI implements Runnable {
 		System.out.println("LMV <local file> <new name>    - Rename/Move remote file");
 		System.out.println("GET <remote file> [local file] - Retrieve remote file");
 		System.out.println("PUT <local file> [remote file] - Send a local file");
+		System.out.println("SYNC GET|PUT <file>            - Update local (GET) or remote (PUT) file, sending differences only");
 		System.out.println("OPT <option> [value]           - Set or retrieve an option value:");
 		System.out.println("    Z   [0..9]                     - Set deflate compression (0:none, 9:max)");
+		System.out.println("    Z   <codec> [level]            - Set compression codec (deflate, lz)");
+		System.out.println("    Z   adaptive                   - Adapt compression to the network speed");
 		System.out.println("    MTU [value]                    - Set network MTU");
 	}
 	
@@ -0,0 +1,443 @@
+package net.jrf.client;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+import net.jrf.RemoteFile;
+import net.jrf.RemoteFileChannel;
+import net.jrf.RemoteInputStream;
+import net.jrf.RemoteOutputStream;
+
+/**
+ * <p>A pool of {@link JRFClient}s connected to the same JRF Server, so that concurrent operations from
+ * several threads are spread over several connections instead of waiting behind each other (e.g. metadata
+ * requests behind a big {@link JRFClient#getFile(String, int, String, int)}).</p>
+ * <p>Each operation is given to the connection with the least outstanding work: operations in progress
+ * through the pool, and remote files opened through it. Remote streams and channels stay on the connection
+ * they were opened on, so new ones are opened on the least loaded connections. Connections that were
+ * closed (e.g. by a network error) are replaced when next used.</p>
+ * <p>A single pool can be shared by all the threads of an application.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class JRFClientPool {
+	
+	private static final Logger log = Logger.getLogger(JRFClientPool.class.getName());
+	
+	/** The address of the JRF Server. */
+	private final InetSocketAddress addr;
+	
+	/** {@code true} to read server messages in virtual threads. */
+	private final boolean virtual;
+	
+	/** The connections, replaced when closed. Guarded by {@code this}. */
+	private final JRFClient[] clients;
+	
+	/** {@code true} for the connections being replaced. Guarded by {@code this}. */
+	private final boolean[] connecting;
+	
+	/** Number of operations in progress on each connection. */
+	private final AtomicIntegerArray inFlight;
+	
+	/** Index of the connection to check first, to spread operations on equally loaded connections. */
+	private final AtomicInteger next;
+	
+	private volatile boolean stopped;
+	
+	/**
+	 * Create a pool of connections to a JRF Server.
+	 * @param addr The address of the JRF Server to connect to.
+	 * @param size The number of connections.
+	 * @throws IOException if a connection could not be established.
+	 */
+	public JRFClientPool(InetSocketAddress addr, int size) throws IOException {
+		this(addr, size, false);
+	}
+	
+	/**
+	 * Create a pool of connections to a JRF Server.
+	 * @param addr The address of the JRF Server to connect to.
+	 * @param size The number of connections.
+	 * @param virtual {@code true} to read server messages in virtual threads, if supported by the JVM.
+	 * @throws IOException if a connection could not be established.
+	 */
+	public JRFClientPool(InetSocketAddress addr, int size, boolean virtual) throws IOException {
+		if (size <= 0)
+			throw new IllegalArgumentException("Invalid pool size "+size);
+		this.addr = addr;
+		this.virtual = virtual;
+		clients = new JRFClient[size];
+		connecting = new boolean[size];
+		inFlight = new AtomicIntegerArray(size);
+		next = new AtomicInteger();
+		try {
+			for (int i = 0; i < size; i++)
+				clients[i] = connect();
+		} catch (IOException e) {
+			requestStop();
+			throw e;
+		}
+	}
+	
+	private JRFClient connect() throws IOException {
+		JRFClient cli = new JRFClient(addr, virtual);
+		cli.start();
+		return cli;
+	}
+	
+	/**
+	 * @return The address of the JRF Server.
+	 */
+	public InetSocketAddress getAddress() {
+		return addr;
+	}
+	
+	/**
+	 * @return The number of connections.
+	 */
+	public int size() {
+		return clients.length;
+	}
+	
+	/**
+	 * Select the least loaded connection, replacing it if it was closed.
+	 * @return The index of the connection.
+	 * @throws IOException if the pool is stopped, or the connection could not be re-established.
+	 */
+	private int select() throws IOException {
+		int best;
+		JRFClient closed;
+		synchronized (this) {
+			for (;;) {
+				if (stopped)
+					throw new IOException("Pool is stopped");
+				int start = Math.floorMod(next.getAndIncrement(), clients.length);
+				best = -1;
+				int bestLoad = Integer.MAX_VALUE;
+				for (int k = 0; k < clients.length; k++) {
+					int i = (start + k) % clients.length;
+					if (connecting[i]) // Being replaced by another thread
+						continue;
+					JRFClient cli = clients[i];
+					int load = (cli.isAlive() ? inFlight.get(i) + cli.getOpenedFileCount() : 0); // Closed ones are free once replaced
+					if (load < bestLoad) {
+						best = i;
+						bestLoad = load;
+					}
+				}
+				if (best >= 0)
+					break;
+				try { // All connections are being replaced
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a connection");
+				}
+			}
+			closed = clients[best];
+			if (closed.isAlive())
+				return best;
+			connecting[best] = true;
+		}
+		// Reconnect outside the lock, so that other threads keep using the other connections meanwhile
+		JRFClient cli = null;
+		boolean published = false;
+		try {
+			log.info("Connection "+closed.getName()+" is closed, reconnecting...");
+			closed.requestStop(); // Release what it still holds
+			cli = connect();
+		} finally {
+			synchronized (this) {
+				connecting[best] = false;
+				if (cli != null && !stopped) {
+					clients[best] = cli;
+					published = true;
+				}
+				notifyAll();
+			}
+		}
+		if (!published) { // Pool stopped while reconnecting
+			cli.requestStop();
+			throw new IOException("Pool is stopped");
+		}
+		return best;
+	}
+	
+	/**
+	 * Get the least loaded connection, e.g. to perform operations that are not offered by the pool. The
+	 * connection remains shared with other threads, and must not be stopped.
+	 * @return The connection.
+	 * @throws IOException if the pool is stopped, or the connection could not be re-established.
+	 */
+	public JRFClient getClient() throws IOException {
+		return clients[select()];
+	}
+	
+	/**
+	 * Perform an operation on the least loaded connection, counting it as outstanding until it completes.
+	 * @param op The operation.
+	 * @return The operation result.
+	 * @throws IOException if the operation fails.
+	 */
+	private <T> T call(Operation<T> op) throws IOException {
+		int i = select();
+		inFlight.incrementAndGet(i);
+		try {
+			return op.run(clients[i]);
+		} finally {
+			inFlight.decrementAndGet(i);
+		}
+	}
+	
+	/**
+	 * Select the least loaded connections, counting an operation in progress on each of them.
+	 * @param n The number of connections wanted.
+	 * @return The indexes of the connections, at most {@link #size()}, to be {@linkplain #release(int[]) released}
+	 * 		once the operation completes.
+	 * @throws IOException if the pool is stopped, or a connection could not be re-established.
+	 */
+	private int[] lease(int n) throws IOException {
+		int[] idx = new int[Math.max(1, Math.min(n, clients.length))];
+		int i = 0;
+		try {
+			for (; i < idx.length; i++) { // Counted at once, so that the next connection is another one
+				idx[i] = select();
+				inFlight.incrementAndGet(idx[i]);
+			}
+		} catch (IOException e) {
+			release(Arrays.copyOf(idx, i));
+			throw e;
+		}
+		return idx;
+	}
+	
+	private void release(int[] idx) {
+		for (int i : idx)
+			inFlight.decrementAndGet(i);
+	}
+	
+	private synchronized JRFClient[] clients(int[] idx) {
+		JRFClient[] clis = new JRFClient[idx.length];
+		for (int i = 0; i < idx.length; i++)
+			clis[i] = clients[idx[i]];
+		return clis;
+	}
+	
+	/**
+	 * Get a {@link RemoteFile} which queries the server through the least loaded connection.
+	 * @param pathname The absolute path of the <em>remote</em> file.
+	 * @return The {@code RemoteFile}, which meta information has been requested.
+	 * @throws IOException In case of communication error.
+	 */
+	public RemoteFile getRemoteFile(final String pathname) throws IOException {
+		return call(new Operation<RemoteFile>() {
+			@Override public RemoteFile run(JRFClient cli) throws IOException {
+				return new RemoteFile(cli, pathname);
+			}
+		});
+	}
+	
+	/**
+	 * Open a {@link RemoteInputStream} on the least loaded connection.
+	 * @see JRFClient#getRemoteInputStream(String, int)
+	 */
+	public RemoteInputStream getRemoteInputStream(final String remoteFile, final int deflate) throws IOException {
+		return call(new Operation<RemoteInputStream>() {
+			@Override public RemoteInputStream run(JRFClient cli) throws IOException {
+				return cli.getRemoteInputStream(remoteFile, deflate);
+			}
+		});
+	}
+	
+	/**
+	 * Open a {@link RemoteInputStream} on the least loaded connection, without compression.
+	 * @see JRFClient#getRemoteInputStream(String)
+	 */
+	public RemoteInputStream getRemoteInputStream(String remoteFile) throws IOException {
+		return getRemoteInputStream(remoteFile, 0);
+	}
+	
+	/**
+	 * Open a {@link RemoteOutputStream} on the least loaded connection.
+	 * @see JRFClient#getRemoteOutputStream(String, int)
+	 */
+	public RemoteOutputStream getRemoteOutputStream(final String remoteFile, final int deflate) throws IOException {
+		return call(new Operation<RemoteOutputStream>() {
+			@Override public RemoteOutputStream run(JRFClient cli) throws IOException {
+				return cli.getRemoteOutputStream(remoteFile, deflate);
+			}
+		});
+	}
+	
+	/**
+	 * Open a {@link RemoteOutputStream} on the least loaded connection, without compression.
+	 * @see JRFClient#getRemoteOutputStream(String)
+	 */
+	public RemoteOutputStream getRemoteOutputStream(String remoteFile) throws IOException {
+		return getRemoteOutputStream(remoteFile, 0);
+	}
+	
+	/**
+	 * Open a {@link RemoteFileChannel} on the least loaded connection.
+	 * @see JRFClient#getRemoteFileChannel(String, int)
+	 */
+	public RemoteFileChannel getRemoteFileChannel(final String remoteFile, final int deflate) throws IOException {
+		return call(new Operation<RemoteFileChannel>() {
+			@Override public RemoteFileChannel run(JRFClient cli) throws IOException {
+				return cli.getRemoteFileChannel(remoteFile, deflate);
+			}
+		});
+	}
+	
+	/**
+	 * Retrieve a remote file on the least loaded connection.
+	 * @throws FileNotFoundException if the local file cannot be created.
+	 * @see JRFClient#getFile(String, int, String, int)
+	 */
+	public long getFile(final String remote, final int deflate, final String local, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.getFile(remote, deflate, local, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Retrieve a remote file in several ranges, spread on the least loaded connections.
+	 * @see JRFClient#getFile(String, int, String, int, int)
+	 */
+	public long getFile(String remote, int deflate, String local, int mtu, int ranges) throws IOException {
+		int[] idx = lease(ranges);
+		try {
+			return ParallelGet.getFile(clients(idx), remote, deflate, local, mtu, ranges);
+		} finally {
+			release(idx);
+		}
+	}
+	
+	/**
+	 * Send a file on the least loaded connection.
+	 * @throws FileNotFoundException if the local file cannot be read.
+	 * @see JRFClient#putFile(String, int, String, int)
+	 */
+	public long putFile(final String local, final int deflate, final String remote, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.putFile(local, deflate, remote, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Send a file in several ranges, spread on the least loaded connections.
+	 * @see JRFClient#putFile(String, int, String, int, int)
+	 */
+	public long putFile(String local, int deflate, String remote, int mtu, int ranges) throws IOException {
+		int[] idx = lease(ranges);
+		try {
+			return ParallelPut.putFile(clients(idx), local, deflate, remote, mtu, ranges);
+		} finally {
+			release(idx);
+		}
+	}
+	
+	/**
+	 * Retrieve a remote file on the least loaded connection, resuming a previous interrupted retrieval.
+	 * @see JRFClient#getFileResumable(String, int, String, int)
+	 */
+	public long getFileResumable(final String remote, final int deflate, final String local, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.getFileResumable(remote, deflate, local, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Send a file on the least loaded connection, resuming a previous interrupted sending.
+	 * @see JRFClient#putFileResumable(String, int, String, int)
+	 */
+	public long putFileResumable(final String local, final int deflate, final String remote, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.putFileResumable(local, deflate, remote, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Retrieve a remote file on the least loaded connection, unless the local file is identical.
+	 * @see JRFClient#getFileIfDifferent(String, int, String, int)
+	 */
+	public long getFileIfDifferent(final String remote, final int deflate, final String local, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.getFileIfDifferent(remote, deflate, local, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Send a file on the least loaded connection, unless the remote file is identical.
+	 * @see JRFClient#putFileIfDifferent(String, int, String, int)
+	 */
+	public long putFileIfDifferent(final String local, final int deflate, final String remote, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.putFileIfDifferent(local, deflate, remote, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Synchronize a file with a delta transfer on the least loaded connection.
+	 * @see JRFClient#syncFile(String, String, boolean, int, int)
+	 */
+	public long syncFile(final String remote, final String local, final boolean upload, final int deflate, final int mtu) throws IOException {
+		return call(new Operation<Long>() {
+			@Override public Long run(JRFClient cli) throws IOException {
+				return Long.valueOf(cli.syncFile(remote, local, upload, deflate, mtu));
+			}
+		}).longValue();
+	}
+	
+	/**
+	 * Stop all the connections. Remote files opened through the pool are closed.
+	 */
+	public synchronized void requestStop() {
+		stopped = true;
+		for (JRFClient cli : clients) {
+			if (cli != null)
+				cli.requestStop();
+		}
+	}
+	
+	/**
+	 * Wait for all the connections to be closed.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 */
+	public void join() throws InterruptedException {
+		JRFClient[] cl;
+		synchronized (this) {
+			cl = clients.clone();
+		}
+		for (JRFClient cli : cl) {
+			if (cli != null)
+				cli.join();
+		}
+	}
+	
+	/**
+	 * An operation performed on a connection of the pool.
+	 */
+	private static interface Operation<T> {
+		T run(JRFClient cli) throws IOException;
+	}
+	
+}
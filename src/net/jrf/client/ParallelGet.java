@@ -0,0 +1,222 @@
+package net.jrf.client;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import net.jrf.RemoteFile;
+import net.jrf.codec.Codec;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgGet;
+
+/**
+ * <p>Download of a remote file in several ranges requested at once, possibly on several connections.</p>
+ * <p>Each range is requested by its own {@link MsgGet} (so it is deflated on its own by the server) and
+ * written at its position in the local file as its chunks are received. Chunks are processed in the
+ * {@linkplain ForkJoinPool#commonPool() common pool}, so ranges are inflated concurrently and the threads
+ * reading server messages are never blocked.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class ParallelGet {
+	
+	/** Minimum size of a range: smaller files are downloaded in less ranges. */
+	static final long MIN_RANGE = 1 << 20;
+	
+	/** Size of the buffer before positional writes to the local file. */
+	private static final int WRITE_BUFFER = 1 << 16;
+	
+	/**
+	 * Download a remote file in ranges.
+	 * @param clis The connections to request the ranges on, in turn.
+	 * @param remote The remote file path.
+	 * @param deflate The deflate value to apply remotely on each range.
+	 * @param local The local file to write to.
+	 * @param mtu The MTU to use to size packets sent remotely.
+	 * @param ranges The maximum number of ranges.
+	 * @return The number of <em>network</em> bytes received.
+	 * @throws FileNotFoundException if the remote file does not exist.
+	 * @throws IOException if an I/O error occurs, or if the local file does not have the remote file length
+	 * 		once downloaded.
+	 */
+	static long getFile(JRFClient[] clis, String remote, int deflate, String local, int mtu, int ranges) throws IOException {
+		Codec.check(deflate);
+		RemoteFile rf = new RemoteFile(clis[0], remote);
+		if (!rf.isFile())
+			throw new FileNotFoundException(remote);
+		long size = rf.length();
+		int n = (int)Math.max(1l, Math.min(ranges, size / MIN_RANGE));
+		long rangeLen = (size + n - 1) / n;
+		try (FileChannel fc = FileChannel.open(Paths.get(local), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Range[] rs = new Range[n];
+			for (int i = 0; i < n; i++) { // Request all ranges before waiting for the first
+				long off = Math.min(i * rangeLen, size);
+				rs[i] = new Range(clis[i % clis.length], fc, off, Math.min(rangeLen, size - off), deflate);
+				rs[i].start(remote, mtu);
+			}
+			long len = 0l;
+			IOException ex = null;
+			for (Range r : rs) { // Wait for all ranges, even after an error, so the file is not closed while written
+				try {
+					len += r.await();
+				} catch (IOException e) {
+					if (ex == null)
+						ex = e;
+				}
+			}
+			if (ex != null)
+				throw ex;
+			if (fc.size() != size)
+				throw new IOException("Received "+fc.size()+" bytes of "+remote+" instead of "+size);
+			return len;
+		}
+	}
+	
+	
+	
+	/**
+	 * A range of the file, received through a {@link MsgGet}.
+	 */
+	private static class Range {
+		
+		private final JRFClient cli;
+		
+		private final int deflate;
+		
+		private final PositionalOutputStream target;
+		
+		/** Where received chunks are written: {@link #target}, buffered and possibly inflated. */
+		private OutputStream os;
+		
+		/** The {@link MsgGet} message number. */
+		private int num;
+		
+		/** Number of network bytes received. */
+		private long len;
+		
+		/** Completed with {@link #len} once the range is received. */
+		private final CompletableFuture<Long> done;
+		
+		Range(JRFClient cli, FileChannel fc, long offset, long length, int deflate) {
+			this.cli = cli;
+			this.deflate = deflate;
+			target = new PositionalOutputStream(fc, offset, length);
+			os = new BufferedOutputStream(target, WRITE_BUFFER);
+			if (deflate > 0 && !Codec.isAdaptive(deflate)) // Adaptive: each chunk is compressed on its own
+				os = Codec.of(deflate).decompressing(os);
+			done = new CompletableFuture<>();
+		}
+		
+		void start(String remote, int mtu) {
+			try {
+				num = cli.send(new MsgGet(remote, deflate, mtu, target.offset, target.length));
+			} catch (IOException e) {
+				done.completeExceptionally(e);
+				return;
+			}
+			receive();
+		}
+		
+		/**
+		 * Write the next chunk when it is received, then wait for the following one.
+		 */
+		private void receive() {
+			cli.getReplyAsync(num, 0).whenCompleteAsync((m, e) -> {
+				try {
+					if (e != null)
+						throw e;
+					if (m instanceof MsgAck) // Exception
+						throw new IOException(((MsgAck)m).getMessage());
+					if (!(m instanceof MsgData)) // Unknown message
+						throw new IOException("Unexpected message during file GET: "+m);
+					MsgData msg = (MsgData)m;
+					if (Codec.isAdaptive(deflate)) {
+						os.write(msg.getChunkData());
+					} else
+						os.write(msg.getData(), 0, msg.getLength());
+					len += msg.getLength();
+					if (msg.hasNext()) {
+						receive();
+					} else {
+						os.close();
+						if (target.position != target.offset + target.length) // File truncated meanwhile
+							throw new IOException("Range at "+target.offset+" is truncated: "+(target.position - target.offset)+" bytes received instead of "+target.length);
+						done.complete(Long.valueOf(len));
+					}
+				} catch (Throwable ex) {
+					try {
+						os.close();
+					} catch (IOException ioe) { }
+					done.completeExceptionally(ex);
+				}
+			}, ForkJoinPool.commonPool());
+		}
+		
+		/**
+		 * Wait for the range to be received.
+		 * @return The number of network bytes received.
+		 * @throws IOException if the range could not be received.
+		 */
+		long await() throws IOException {
+			try {
+				return done.get().longValue();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for range at "+target.offset, e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException)cause;
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	
+	}
+	
+	/**
+	 * Writes bytes to a file at a given position, with positional writes (so other ranges can be written
+	 * at the same time), refusing to write past the end of the range.
+	 */
+	private static class PositionalOutputStream extends OutputStream {
+		
+		private final FileChannel fc;
+		
+		final long offset;
+		
+		final long length;
+		
+		/** The position of the next byte to write. */
+		long position;
+		
+		PositionalOutputStream(FileChannel fc, long offset, long length) {
+			this.fc = fc;
+			this.offset = offset;
+			this.length = length;
+			position = offset;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (position + len > offset + length) // Server sent the whole file
+				throw new IOException("Received more than the "+length+" bytes of range at "+offset+": the server might not support ranges");
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			while (bb.hasRemaining())
+				position += fc.write(bb, position);
+		}
+	
+	}
+	
+}
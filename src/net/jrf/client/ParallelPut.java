@@ -0,0 +1,151 @@
+package net.jrf.client;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.jrf.RemoteFileChannel;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgISAction;
+import net.jrf.msg.MsgISAction.StreamAction;
+
+/**
+ * <p>Upload of a local file in several ranges written at once, possibly on several connections.</p>
+ * <p>The remote file is created on the first connection and set to its final size, then the other
+ * connections attach to it, so the ranges are written at their position in the same file through
+ * {@link RemoteFileChannel}s. Once all ranges are acknowledged, the upload is committed: the server checks
+ * that the whole file was written before forcing it to disk.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class ParallelPut {
+	
+	/** Number of bytes read from the local file and written remotely before waiting for the acknowledges. */
+	private static final int BLOCK = 4 * RemoteFileChannel.MAX_CHUNK;
+	
+	/**
+	 * Upload a local file in ranges.
+	 * @param clis The connections to write the ranges on, in turn.
+	 * @param local The local file to send.
+	 * @param deflate The deflate value to apply on each chunk.
+	 * @param remote The remote file path.
+	 * @param mtu The number of bytes to send for each packet.
+	 * @param ranges The maximum number of ranges.
+	 * @return The number of <em>network</em> bytes sent.
+	 * @throws FileNotFoundException if the local file does not exist.
+	 * @throws IOException if an I/O error occurs, or if the server did not receive the whole file.
+	 */
+	static long putFile(JRFClient[] clis, String local, int deflate, String remote, int mtu, int ranges) throws IOException {
+		File f = new File(local);
+		if (!f.isFile())
+			throw new FileNotFoundException(local);
+		final long size = f.length();
+		int n = (int)Math.max(1l, Math.min(ranges, size / ParallelGet.MIN_RANGE));
+		long rangeLen = (size + n - 1) / n;
+		RemoteFileChannel[] chs = new RemoteFileChannel[Math.min(n, clis.length)];
+		ExecutorService exec = null;
+		try (FileChannel in = FileChannel.open(Paths.get(local), StandardOpenOption.READ)) {
+			chs[0] = clis[0].createUpload(remote, deflate);
+			short fileID = (short)chs[0].getFileID();
+			action(clis[0], StreamAction.ALLOCATE, fileID, size);
+			for (int i = 1; i < chs.length; i++)
+				chs[i] = clis[i].attachUpload(remote, fileID, deflate);
+			for (RemoteFileChannel ch : chs)
+				ch.setChunkSize(mtu);
+			
+			exec = Executors.newFixedThreadPool(n);
+			List<Future<Void>> fs = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				final long off = Math.min(i * rangeLen, size);
+				final long end = Math.min(off + rangeLen, size);
+				final RemoteFileChannel ch = chs[i % chs.length];
+				fs.add(exec.submit(() -> {
+					sendRange(in, ch, off, end, local);
+					return null;
+				}));
+			}
+			IOException ex = null;
+			for (Future<Void> fut : fs) { // Wait for all ranges, even after an error, so the channels are not closed while written
+				try {
+					fut.get();
+				} catch (InterruptedException e) {
+					if (ex == null)
+						ex = new IOException("Interrupted while uploading "+local, e);
+				} catch (ExecutionException e) {
+					if (ex == null)
+						ex = (e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause().getMessage(), e.getCause()));
+				}
+			}
+			if (ex != null)
+				throw ex;
+			action(clis[0], StreamAction.COMMIT, fileID, size);
+			
+			long len = 0l;
+			for (RemoteFileChannel ch : chs)
+				len += ch.getInfo().getXferBytes();
+			return len;
+		} finally {
+			if (exec != null)
+				exec.shutdown();
+			for (RemoteFileChannel ch : chs) {
+				if (ch != null)
+					ch.close();
+			}
+		}
+	}
+	
+	/**
+	 * Send a range of the local file.
+	 * @param in The local file.
+	 * @param ch The remote file.
+	 * @param off The range start.
+	 * @param end The range end (exclusive).
+	 * @param local The local file name, for error messages.
+	 * @throws IOException if an I/O error occurs, locally or remotely.
+	 */
+	private static void sendRange(FileChannel in, RemoteFileChannel ch, long off, long end, String local) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate((int)Math.min(BLOCK, end - off));
+		for (long pos = off; pos < end; pos += bb.limit()) {
+			bb.clear();
+			bb.limit((int)Math.min(bb.capacity(), end - pos));
+			while (bb.hasRemaining()) {
+				if (in.read(bb, pos + bb.position()) < 0)
+					throw new IOException(local+" was truncated during upload");
+			}
+			bb.flip();
+			ch.write(bb, pos);
+		}
+	}
+	
+	/**
+	 * Perform an action on the upload.
+	 * @param cli The connection the upload was created on.
+	 * @param action The action.
+	 * @param fileID The upload file ID.
+	 * @param val The action argument.
+	 * @throws IOException if the action failed.
+	 */
+	private static void action(JRFClient cli, StreamAction action, short fileID, long val) throws IOException {
+		int num = cli.send(new MsgISAction(action, fileID, val));
+		long t0 = System.nanoTime();
+		Message m = cli.getReply(num, 0);
+		cli.addLatencyNow(t0);
+		if (!(m instanceof MsgAck)) // Unexpected message
+			throw new IOException("Unexpected message "+m+" ("+MsgAck.class+" was expected)");
+		MsgAck ack = (MsgAck)m;
+		if (ack.getMessage() != null)
+			throw new IOException(ack.getMessage());
+	}
+	
+}
@@ -0,0 +1,189 @@
+package net.jrf.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import net.jrf.RemoteFile;
+import net.jrf.Utils;
+import net.jrf.msg.Message;
+
+/**
+ * <p>Transfer of a whole file which can be resumed after an interruption (network error, process killed...).</p>
+ * <p>The transfer state is recorded in a journal: the transfer direction, the local and remote files, and the
+ * length and modification date of the source file. When a transfer is started again with the same source file
+ * unchanged, the CRC32 of the partial target file is compared to the CRC32 of the same bytes of the source file
+ * (computed remotely by the server for the remote file), and the transfer restarts after them if they match,
+ * or from the beginning otherwise.</p>
+ * <p>Journals are recorded in a {@linkplain #setDir(File) directory} shared by all transfers ({@code java.io.tmpdir}
+ * by default), so the directory of the local file does not have to be writable. They are named after a hash
+ * of the direction and both files, so the same local file can be sent to several remote files.</p>
+ * <p>The journal is removed once the transfer completes. Transfers with {@link Message#PROTOCOL_V1} servers
+ * always restart from the beginning.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class ResumableTransfer {
+	
+	private static final Logger log = Logger.getLogger(ResumableTransfer.class.getName());
+	
+	/** Suffix of the journal file name. */
+	static final String SUFFIX = ".jrf";
+	
+	private static final String GET = "get";
+	
+	private static final String PUT = "put";
+	
+	/** Directory of the journals, {@code null} for {@code java.io.tmpdir}. */
+	private static volatile File dir;
+	
+	/**
+	 * @param d The directory of the journals, {@code null} for {@code java.io.tmpdir}.
+	 * @see JRFClient#setJournalDir(File)
+	 */
+	static void setDir(File d) {
+		dir = d;
+	}
+	
+	/**
+	 * Get the journal of a transfer, named after a hash of its direction and files.
+	 * @param upload {@code true} for a sending, {@code false} for a retrieval.
+	 * @param local The local file.
+	 * @param remote The remote file path.
+	 * @return The journal.
+	 */
+	static File journal(boolean upload, String local, String remote) {
+		File d = dir;
+		if (d == null)
+			d = new File(System.getProperty("java.io.tmpdir"));
+		String key = (upload ? PUT : GET)+"\n"+new File(local).getAbsolutePath()+"\n"+remote;
+		return new File(d, "jrf-"+UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8))+SUFFIX);
+	}
+	
+	/**
+	 * Retrieve a remote file, resuming a previous interrupted retrieval.
+	 * @see JRFClient#getFileResumable(String, int, String, int)
+	 */
+	static long getFile(JRFClient cli, String remote, int deflate, String local, int mtu) throws IOException {
+		RemoteFile rf = new RemoteFile(cli, remote);
+		if (!rf.isFile())
+			throw new FileNotFoundException(remote);
+		long size = rf.length();
+		File f = new File(local);
+		File journal = journal(false, local, remote);
+		Properties state = state(GET, f, remote, size, rf.lastModified());
+		long offset = 0l;
+		if (state.equals(load(journal)) && f.isFile() && canResume(cli)) {
+			offset = Math.min(f.length(), size);
+			offset = verify(rf, f, offset);
+		}
+		store(journal, state);
+		long len = cli.getFileFrom(remote, deflate, local, mtu, offset);
+		if (f.length() != size)
+			throw new IOException("Received "+f.length()+" bytes of "+remote+" instead of "+size);
+		delete(journal);
+		return len;
+	}
+	
+	/**
+	 * Send a file, resuming a previous interrupted sending.
+	 * @see JRFClient#putFileResumable(String, int, String, int)
+	 */
+	static long putFile(JRFClient cli, String local, int deflate, String remote, int mtu) throws IOException {
+		File f = new File(local);
+		if (!f.isFile())
+			throw new FileNotFoundException(local);
+		long size = f.length();
+		File journal = journal(true, local, remote);
+		Properties state = state(PUT, f, remote, size, f.lastModified());
+		long offset = 0l;
+		if (state.equals(load(journal)) && canResume(cli)) {
+			RemoteFile rf = new RemoteFile(cli, remote);
+			if (rf.isFile()) {
+				offset = Math.min(rf.length(), size);
+				offset = verify(rf, f, offset);
+			}
+		}
+		store(journal, state);
+		long len = cli.putFileFrom(local, offset, deflate, remote, mtu);
+		delete(journal);
+		return len;
+	}
+	
+	/**
+	 * @return {@code true} if the server can compute checksums and transfer files from an offset, {@code false}
+	 * 		for {@link Message#PROTOCOL_V1} servers, with which transfers restart from the beginning.
+	 */
+	private static boolean canResume(JRFClient cli) {
+		if (cli.negotiatedProtocol() > Message.PROTOCOL_V1)
+			return true;
+		log.info("Server does not support resuming transfers, restarting from the beginning");
+		return false;
+	}
+	
+	/**
+	 * Check that the first bytes of a remote and a local file are the same.
+	 * @return {@code offset} if they match, {@code 0} otherwise.
+	 * @throws IOException if the local file cannot be read, or in case of communication error.
+	 */
+	private static long verify(RemoteFile rf, File f, long offset) throws IOException {
+		if (offset <= 0)
+			return 0l;
+		long crc = Utils.crc32(f, offset);
+		if (crc >= 0 && crc == rf.getChecksum(offset)) {
+			log.info("Resuming transfer of "+f+" at "+offset);
+			return offset;
+		}
+		log.info("Partial transfer of "+f+" does not match, restarting from the beginning");
+		return 0l;
+	}
+	
+	private static Properties state(String type, File local, String remote, long size, long lastModified) {
+		Properties p = new Properties();
+		p.setProperty("type", type);
+		p.setProperty("local", local.getAbsolutePath());
+		p.setProperty("remote", remote);
+		p.setProperty("size", Long.toString(size));
+		p.setProperty("lastModified", Long.toString(lastModified));
+		return p;
+	}
+	
+	/**
+	 * @return The state recorded in the journal, or {@code null} if there is no readable journal.
+	 */
+	private static Properties load(File journal) {
+		if (!journal.isFile())
+			return null;
+		Properties p = new Properties();
+		try (InputStream is = new FileInputStream(journal)) {
+			p.load(is);
+		} catch (IOException | IllegalArgumentException e) {
+			log.warning("Unable to read transfer journal "+journal+": "+e.getMessage());
+			return null;
+		}
+		return p;
+	}
+	
+	private static void store(File journal, Properties state) throws IOException {
+		File d = journal.getParentFile();
+		if (!d.isDirectory() && !d.mkdirs())
+			throw new IOException("Unable to create journal directory "+d);
+		try (OutputStream os = new FileOutputStream(journal)) {
+			state.store(os, "JRF transfer journal");
+		}
+	}
+	
+	private static void delete(File journal) {
+		if (!journal.delete())
+			log.warning("Unable to delete transfer journal "+journal);
+	}
+	
+}
@@ -0,0 +1,519 @@
+package net.jrf.codec;
+
+import java.util.function.DoubleSupplier;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Compresses the chunks of a stream, each on its own, keeping them uncompressed when compression does
+ * not make them smaller.</p>
+ * <p>With the {@link Codec#ADAPTIVE} compression, the codec and level of each chunk are chosen to transfer
+ * the most (uncompressed) bytes per second. For each compression tried, the time spent compressing a byte
+ * and the compression ratio are measured, and the time spent sending a byte on the network is reported by
+ * the stream through {@link #transferred(long, long)}, or measured by the connection (see
+ * {@link #setTransferRate(DoubleSupplier)}). The time to transfer a byte with a compression is
+ * then estimated as its compression time plus its ratio times the network time, and the compression
+ * moves up or down to the neighbour compression which time is lower. Neighbour compressions are probed
+ * regularly, so that the choice follows the network and CPU load.</p>
+ * <p>This way, no compression is used on fast links (where compressing is slower than sending), and the
+ * highest levels are used on slow links.</p>
+ * <p>Chunks which are not worth compressing are detected cheaply: the {@linkplain #sniff(byte[], int, int)
+ * first bytes} of the stream tell whether it is an already compressed format (JPEG, MP4, zip...), and the
+ * entropy of a sample of each chunk tells whether it is random-like. After {@link #FAILURES} chunks in a
+ * row could not be compressed, compression is bypassed, and only tried again after a number of chunks
+ * doubling after each failed try (up to {@link #MAX_REPROBE}).</p>
+ * <p>Chunks can be deflated with a preset {@link Dictionary} shared with the other side, so that small
+ * chunks compress as well as if they followed the dictionary bytes.</p>
+ * <p>When {@linkplain #setContextual(boolean) contextual}, the deflated chunks of a stream read or written
+ * sequentially are not compressed on their own, but as a single deflate stream ending each chunk with a
+ * sync flush: each chunk uses the last 32 KB of the previous ones as history, so small chunks compress
+ * about as well as the whole file. They are then inflated in order by a {@link ChunkInflater}. A chunk
+ * which is not made smaller is sent uncompressed, and the stream restarts after it on both sides.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class ChunkCompressor {
+	
+	/** Adaptive compressions, from the fastest to the most compressing. */
+	private static final int[] LADDER = {
+		Codec.NONE,
+		Codec.compression(Codec.LZ, 1),
+		Codec.compression(Codec.DEFLATE, 1),
+		Codec.compression(Codec.DEFLATE, 3),
+		Codec.compression(Codec.DEFLATE, 6),
+		Codec.compression(Codec.DEFLATE, 9),
+	};
+	
+	/** Index in {@link #LADDER} of the compression used first. */
+	private static final int INITIAL = 1;
+	
+	/** Number of chunks after which a neighbour compression is probed. */
+	private static final int PROBE_INTERVAL = 16;
+	
+	/** Weight of the last measure in the averages. */
+	private static final double ALPHA = 0.25;
+	
+	/** Number of chunks in a row not compressed after which compression is bypassed. */
+	public static final int FAILURES = 4;
+	
+	/** Number of chunks bypassed before compression is tried again, first. */
+	public static final int MIN_REPROBE = 16;
+	
+	/** Maximum number of chunks bypassed before compression is tried again. */
+	public static final int MAX_REPROBE = 256;
+	
+	/** Per-thread array chunks are compressed to. */
+	private static final CodecPool.Buffer out = new CodecPool.Buffer();
+	
+	/** A chunk to send, compressed or not. */
+	public static final class Chunk {
+		public final byte[] data;
+		public final int off;
+		public final int len;
+		/** The compression of {@link #data}, {@code 0} if not compressed. */
+		public final int compression;
+		private Chunk(byte[] data, int off, int len, int compression) {
+			this.data = data;
+			this.off = off;
+			this.len = len;
+			this.compression = compression;
+		}
+	}
+	
+	/** The compression requested. */
+	private final int compression;
+	
+	/** Index in {@link #LADDER} of the current adaptive compression. */
+	private int current;
+	
+	/** Average time to compress a byte, in ns, for each adaptive compression. {@code < 0} if unknown. */
+	private final double[] nsPerByte;
+	
+	/** Average ratio of network bytes to uncompressed bytes, for each adaptive compression. */
+	private final double[] ratio;
+	
+	/** Average time to send a network byte, in ns. {@code < 0} if unknown. */
+	private double nsPerXferByte;
+	
+	/** Measures the time to send a network byte instead of {@link #transferred(long, long)}, {@code null} if none. */
+	private DoubleSupplier transferRate;
+	
+	/** Number of chunks compressed since the last probe. */
+	private int chunks;
+	
+	/** {@code true} if the next probe tries the compression above the current one. */
+	private boolean probeUp;
+	
+	/** Index in {@link #LADDER} of a compression not tried yet, to use for the next chunk. {@code -1} if none. */
+	private int probe;
+	
+	/** {@code true} once the first bytes of the stream were {@linkplain #sniff(byte[], int, int) sniffed}. */
+	private boolean sniffed;
+	
+	/** The compressed format recognized from the first bytes of the stream, {@code null} if none. */
+	private String format;
+	
+	/** Number of chunks in a row which were not compressed. */
+	private int failures;
+	
+	/** {@code true} while compression is bypassed. */
+	private boolean bypass;
+	
+	/** Number of chunks to bypass before trying compression again. */
+	private int reprobe;
+	
+	/** Number of chunks left to bypass before trying compression again. */
+	private int untilProbe;
+	
+	/** Number of chunks compression was tried on. */
+	private long tried;
+	
+	/** Number of chunks compressed. */
+	private long compressed;
+	
+	/** Number of chunks not compressed without trying. */
+	private long bypassed;
+	
+	/** The preset dictionary chunks are compressed with, {@code null} if none. */
+	private volatile Dictionary dictionary;
+	
+	/** {@code true} to deflate the chunks of the stream as a single deflate stream. */
+	private volatile boolean contextual;
+	
+	/** Deflates the chunks of the stream when contextual, {@code null} until the first one. */
+	private Deflater deflater;
+	
+	/** The level {@link #deflater} deflates with. */
+	private int deflaterLevel;
+	
+	/**
+	 * @param compression The compression requested, {@link Codec#ADAPTIVE} to adapt it to the network.
+	 * @throws IllegalArgumentException if the codec is not supported.
+	 */
+	public ChunkCompressor(int compression) {
+		if (!Codec.isAdaptive(compression))
+			Codec.of(compression);
+		this.compression = compression;
+		current = INITIAL;
+		nsPerByte = new double[LADDER.length];
+		ratio = new double[LADDER.length];
+		for (int i = 1; i < LADDER.length; i++)
+			nsPerByte[i] = -1.0;
+		nsPerByte[0] = 0.0;
+		ratio[0] = 1.0;
+		nsPerXferByte = -1.0;
+		probe = -1;
+		reprobe = MIN_REPROBE;
+	}
+	
+	/**
+	 * @return {@code true} for the {@link Codec#ADAPTIVE} compression.
+	 */
+	public boolean isAdaptive() {
+		return Codec.isAdaptive(compression);
+	}
+	
+	/**
+	 * @return The compression requested, or the current one if adaptive.
+	 */
+	public synchronized int getCompression() {
+		return (isAdaptive() ? LADDER[current] : compression);
+	}
+	
+	/**
+	 * Compress a chunk on its own, e.g. read or written at a given position.
+	 * @param b The chunk bytes.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes in the chunk.
+	 * @return The chunk to send: {@code b} itself if it is not compressed, or a per-thread array which is
+	 * 		only valid until the thread compresses another chunk (i.e. the chunk is to be sent right away).
+	 */
+	public Chunk compress(byte[] b, int off, int len) {
+		return compress(b, off, len, false);
+	}
+	
+	/**
+	 * Compress the next chunk of a stream read or written sequentially: after the previous ones if
+	 * {@linkplain #setContextual(boolean) contextual}, otherwise on its own. It is called by a single thread.
+	 * @see #compress(byte[], int, int)
+	 */
+	public Chunk compressNext(byte[] b, int off, int len) {
+		return compress(b, off, len, contextual);
+	}
+	
+	private Chunk compress(byte[] b, int off, int len, boolean next) {
+		if (!sniffed)
+			sniff(b, off, len);
+		int i = (isAdaptive() ? next() : -1);
+		int c = (i < 0 ? compression : LADDER[i]);
+		if (c <= 0 || len <= 0 || !attempt(b, off, len)) {
+			if (next)
+				restart();
+			return new Chunk(b, off, len, 0);
+		}
+		long t0 = System.nanoTime();
+		Chunk chunk = (next && ChunkInflater.isContextual(c) ? deflateNext(b, off, len, c) : compress(b, off, len, c, dictionary));
+		long ns = System.nanoTime() - t0;
+		if (i >= 0)
+			measured(i, (double)ns / len, (double)chunk.len / len);
+		attempted(chunk.compression > 0 && chunk.len < len);
+		return chunk;
+	}
+	
+	/**
+	 * Deflate a chunk after the previous ones, ending it with a sync flush so that it can be inflated right
+	 * away. When the chunk is not smaller, it is sent uncompressed and the deflate stream is restarted.
+	 * @param compression The deflate compression.
+	 */
+	private Chunk deflateNext(byte[] b, int off, int len, int compression) {
+		int level = Math.max(1, Math.min(Codec.getLevel(compression), Deflater.BEST_COMPRESSION));
+		boolean params = false;
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			Dictionary d = dictionary;
+			if (d != null)
+				deflater.setDictionary(d.bytes);
+		} else if (level != deflaterLevel) { // Adaptive compression
+			deflater.setLevel(level);
+			params = true;
+		}
+		deflaterLevel = level;
+		deflater.setInput(b, off, len);
+		byte[] dst = out.get(len + len / 255 + 64);
+		int n = 0;
+		for (int pass = (params ? 2 : 1); pass > 0; pass--) { // After a level change, the first deflate call may only apply it
+			for (;;) {
+				n += deflater.deflate(dst, n, dst.length - n, Deflater.SYNC_FLUSH);
+				if (n < dst.length) // A sync flush is complete when the output is not full
+					break;
+				dst = out.get(2 * dst.length, n);
+			}
+		}
+		if (n >= len) {
+			restart();
+			return new Chunk(b, off, len, 0);
+		}
+		return new Chunk(dst, 0, n, compression);
+	}
+	
+	/**
+	 * Restart the deflate stream after a chunk sent uncompressed, as the {@link ChunkInflater} does when it
+	 * {@linkplain ChunkInflater#reset() receives} one.
+	 */
+	private void restart() {
+		if (deflater == null)
+			return;
+		deflater.reset();
+		Dictionary d = dictionary;
+		if (d != null)
+			deflater.setDictionary(d.bytes);
+	}
+	
+	/**
+	 * Deflate the chunks {@linkplain #compressNext(byte[], int, int) compressed next} as a single deflate
+	 * stream, inflated by a {@link ChunkInflater} on the other side. Only chunks compressed with the deflate
+	 * codec are part of the stream. To be set before the first chunk is compressed.
+	 * @param contextual {@code true} to deflate the chunks after the previous ones.
+	 */
+	public void setContextual(boolean contextual) {
+		this.contextual = contextual;
+	}
+	
+	/**
+	 * @return {@code true} if the chunks compressed next are deflated after the previous ones.
+	 */
+	public boolean isContextual() {
+		return contextual;
+	}
+	
+	/**
+	 * Release the native memory of the contextual deflater, once the stream is closed.
+	 */
+	public void end() {
+		Deflater d = deflater;
+		deflater = null;
+		if (d != null)
+			d.end();
+	}
+	
+	/**
+	 * Recognize an already compressed format from the first bytes of the stream, in which case compression
+	 * is bypassed from the start. Called on the first chunk compressed, if not called before (e.g. when the
+	 * file is opened).
+	 * @param b The first bytes of the stream.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes.
+	 * @see Compressibility#format(byte[], int, int)
+	 */
+	public synchronized void sniff(byte[] b, int off, int len) {
+		if (sniffed)
+			return;
+		sniffed = true;
+		format = Compressibility.format(b, off, len);
+		if (format != null) {
+			bypass = true;
+			failures = FAILURES;
+			untilProbe = reprobe;
+		}
+	}
+	
+	/**
+	 * Compress the next chunks with a preset dictionary, when their codec {@linkplain Codec#usesDictionary()
+	 * uses} one. The other side needs the dictionary {@linkplain Dictionary#register(Dictionary) registered}
+	 * to decompress them.
+	 * @param dict The dictionary, {@code null} for none.
+	 */
+	public void setDictionary(Dictionary dict) {
+		dictionary = dict;
+	}
+	
+	/**
+	 * @return The preset dictionary chunks are compressed with, {@code null} if none.
+	 */
+	public Dictionary getDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * Decide whether compression is to be tried on a chunk: not while bypassed (except to re-probe), nor
+	 * when the chunk entropy is too high (which counts as a failure).
+	 * @return {@code true} to compress the chunk.
+	 */
+	private boolean attempt(byte[] b, int off, int len) {
+		synchronized (this) {
+			if (bypass) {
+				if (--untilProbe > 0) {
+					bypassed++;
+					return false;
+				}
+				reprobe = Math.min(2 * reprobe, MAX_REPROBE); // Next interval, if this one fails as well
+				untilProbe = reprobe;
+			}
+		}
+		if (Compressibility.isIncompressible(b, off, len)) {
+			synchronized (this) {
+				bypassed++;
+			}
+			failed();
+			return false;
+		}
+		return true;
+	}
+	
+	private synchronized void attempted(boolean ok) {
+		tried++;
+		if (!ok) {
+			failed();
+			return;
+		}
+		compressed++;
+		failures = 0;
+		bypass = false;
+		reprobe = MIN_REPROBE;
+	}
+	
+	private synchronized void failed() {
+		if (++failures >= FAILURES && !bypass) {
+			bypass = true;
+			untilProbe = reprobe;
+		}
+	}
+	
+	/**
+	 * @return {@code true} while compression is bypassed, as the last chunks could not be compressed.
+	 */
+	public synchronized boolean isBypassed() {
+		return bypass;
+	}
+	
+	/**
+	 * @return The compressed format recognized from the first bytes of the stream (e.g. {@code "jpeg"}),
+	 * 		{@code null} if none.
+	 */
+	public synchronized String getFormat() {
+		return format;
+	}
+	
+	/**
+	 * @return The number of chunks compression was tried on.
+	 */
+	public synchronized long getTriedChunks() {
+		return tried;
+	}
+	
+	/**
+	 * @return The number of chunks compressed.
+	 */
+	public synchronized long getCompressedChunks() {
+		return compressed;
+	}
+	
+	/**
+	 * @return The number of chunks sent uncompressed without trying to compress them.
+	 */
+	public synchronized long getBypassedChunks() {
+		return bypassed;
+	}
+	
+	private static Chunk compress(byte[] b, int off, int len, int compression, Dictionary dict) {
+		if (compression > 0 && len > 0) {
+			byte[] dst = out.get(len + len / 255 + 64); // Room for the worst case of the built-in codecs
+			int n = Codec.of(compression).compress(b, off, len, Codec.getLevel(compression), dict, dst, 0, len - 1); // Only apply compression if it's worth it
+			if (n >= 0)
+				return new Chunk(dst, 0, n, compression);
+		}
+		return new Chunk(b, off, len, 0);
+	}
+	
+	/**
+	 * Report the time spent to send network bytes (sending them and waiting for the network to accept more,
+	 * e.g. for acknowledges), used to adapt the compression.
+	 * @param bytes The number of network bytes.
+	 * @param ns The time spent, in ns.
+	 */
+	public synchronized void transferred(long bytes, long ns) {
+		if (bytes <= 0 || !isAdaptive())
+			return;
+		if (transferRate != null) { // Only tells that bytes were sent
+			double v = transferRate.getAsDouble();
+			if (v < 0)
+				return;
+			nsPerXferByte = v;
+		} else {
+			double v = (double)ns / bytes;
+			nsPerXferByte = (nsPerXferByte < 0 ? v : nsPerXferByte + ALPHA * (v - nsPerXferByte));
+		}
+		adapt();
+	}
+	
+	/**
+	 * Use the time to send a network byte measured by the connection, instead of the time reported by
+	 * {@link #transferred(long, long)}. Connections which queue the bytes to send, or copy them to a socket
+	 * buffer, return before the bytes are actually sent: the time spent sending them is then not significant.
+	 * @param rate Supplies the average time to send a network byte, in ns, {@code < 0} if not measured yet.
+	 */
+	public synchronized void setTransferRate(DoubleSupplier rate) {
+		transferRate = rate;
+	}
+	
+	/**
+	 * @return The index in {@link #LADDER} of the compression to use for the next chunk: the current one,
+	 * 		or a neighbour to probe.
+	 */
+	private synchronized int next() {
+		if (probe >= 0) {
+			int i = probe;
+			probe = -1;
+			return i;
+		}
+		if (nsPerXferByte < 0 || ++chunks < PROBE_INTERVAL)
+			return current;
+		chunks = 0;
+		probeUp = !probeUp;
+		int i = current + (probeUp ? 1 : -1);
+		if (i < 0 || i >= LADDER.length)
+			i = current + (probeUp ? -1 : 1);
+		return i;
+	}
+	
+	private synchronized void measured(int i, double ns, double r) {
+		if (nsPerByte[i] < 0) {
+			nsPerByte[i] = ns;
+			ratio[i] = Math.min(r, 1.0);
+		} else {
+			nsPerByte[i] += ALPHA * (ns - nsPerByte[i]);
+			ratio[i] += ALPHA * (Math.min(r, 1.0) - ratio[i]);
+		}
+		adapt();
+	}
+	
+	/**
+	 * Move to the neighbour compression which transfers a byte faster, or probe an unknown one.
+	 */
+	private void adapt() {
+		if (nsPerXferByte < 0)
+			return;
+		int best = current;
+		for (int i = Math.max(0, current - 1); i <= Math.min(LADDER.length - 1, current + 1); i++) {
+			if (nsPerByte[i] < 0) { // Not tried yet: worth it when sending takes longer than compressing
+				if (ratio[current] * nsPerXferByte > nsPerByte[current])
+					probe = i;
+				continue;
+			}
+			if (cost(i) < cost(best))
+				best = i;
+		}
+		current = best;
+	}
+	
+	/** @return The estimated time to transfer a byte with an adaptive compression. */
+	private double cost(int i) {
+		return nsPerByte[i] + ratio[i] * nsPerXferByte;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		Dictionary d = dictionary;
+		return Codec.toString(compression)+(isAdaptive() ? " ("+Codec.toString(LADDER[current])+")" : "")+(d != null ? " with "+Dictionary.toString(d.getId()) : "")+(contextual ? ", contextual" : "")+(bypass ? ", bypassed"+(format != null ? " ("+format+")" : "") : "");
+	}
+	
+}
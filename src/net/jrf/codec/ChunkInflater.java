@@ -0,0 +1,118 @@
+package net.jrf.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Inflates the chunks of a stream deflated by a {@linkplain ChunkCompressor#setContextual(boolean)
+ * contextual} {@link ChunkCompressor}: each chunk continues the deflate stream of the previous ones (and
+ * can use their last 32 KB as history), so chunks are inflated in the order they were sent.</p>
+ * <p>Only the chunks deflated are {@linkplain #isContextual(int) contextual}: chunks compressed with another
+ * codec (e.g. by the {@linkplain Codec#ADAPTIVE adaptive} compression) are not part of the stream and are
+ * decompressed on their own. Chunks not compressed restart the stream, which is {@linkplain #reset() reset}
+ * on them.</p>
+ * <p>The inflater is used by a single thread, and holds native memory until it is {@linkplain #end() ended}.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class ChunkInflater {
+	
+	/** Maximum size of an array. */
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	
+	private Inflater infl;
+	
+	/** The array chunks are inflated to, reused from chunk to chunk. */
+	private byte[] out;
+	
+	public ChunkInflater() {
+		infl = new Inflater();
+		out = new byte[0];
+	}
+	
+	/**
+	 * @param compression The compression of a chunk.
+	 * @return {@code true} if the chunk continues the deflate stream of a contextual compressor, {@code false}
+	 * 		if it is decompressed on its own.
+	 */
+	public static boolean isContextual(int compression) {
+		return (Codec.getLevel(compression) > 0 && Codec.getId(compression) == Codec.DEFLATE);
+	}
+	
+	/**
+	 * Inflate the next chunk of the stream.
+	 * @param src The chunk bytes.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes in the chunk.
+	 * @return The inflated bytes, in an array only valid until the next chunk is inflated.
+	 * @throws IOException if the chunk is invalid, or deflated with an unknown preset dictionary.
+	 */
+	public ByteBuffer inflate(byte[] src, int off, int len) throws IOException {
+		return inflate(src, off, len, MAX_ARRAY);
+	}
+	
+	/**
+	 * Inflate the next chunk of the stream.
+	 * @param src The chunk bytes.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes in the chunk.
+	 * @param max The maximum number of inflated bytes.
+	 * @return The inflated bytes, in an array only valid until the next chunk is inflated.
+	 * @throws IOException if the chunk is invalid, deflated with an unknown preset dictionary, or inflates to
+	 * 		more than {@code max} bytes.
+	 */
+	public ByteBuffer inflate(byte[] src, int off, int len, int max) throws IOException {
+		if (infl == null)
+			throw new IOException("Inflater ended");
+		max = Math.min(max, MAX_ARRAY - 1);
+		infl.setInput(src, off, len);
+		int n = 0;
+		try {
+			for (;;) {
+				if (n == out.length) {
+					if (n > max)
+						throw new IOException("Inflated chunk is larger than "+max+" bytes");
+					out = Arrays.copyOf(out, (int)Math.min(max + 1L, Math.max(2L * n, Math.max(4L * len, 1 << 16))));
+				}
+				n += infl.inflate(out, n, out.length - n);
+				if (n < out.length) { // All the output available was inflated
+					if (infl.needsDictionary())
+						Dictionary.supply(infl);
+					else if (infl.needsInput())
+						break;
+					else // Finished: contextual streams are never finished
+						throw new IOException("Unexpected end of the deflate stream");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid deflated chunk: "+e.getMessage(), e);
+		}
+		if (n > max)
+			throw new IOException("Inflated chunk is larger than "+max+" bytes");
+		return ByteBuffer.wrap(out, 0, n);
+	}
+	
+	/**
+	 * Restart the stream after a chunk received uncompressed, as the {@link ChunkCompressor} does after
+	 * sending one.
+	 */
+	public void reset() {
+		if (infl != null)
+			infl.reset();
+	}
+	
+	/**
+	 * Release the native memory of the inflater, once the stream is closed. It cannot inflate chunks anymore.
+	 */
+	public void end() {
+		if (infl == null)
+			return;
+		infl.end();
+		infl = null;
+		out = null;
+	}
+	
+}
@@ -0,0 +1,319 @@
+package net.jrf.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * <p>Compression algorithm used to transfer file data. The compression requested when opening or transferring
+ * a file is a single value, sent as a byte, holding the codec ID (bits 4 to 6) and the level (bits 0 to 3),
+ * as built by {@link #compression(int, int)}. {@code 0} (or less) means no compression.</p>
+ * <p>The {@linkplain DeflateCodec deflate} codec has ID {@code 0}, so that the compression values {@code 1}
+ * to {@code 9} are the deflate levels used before codecs were introduced. The {@linkplain LZCodec LZ} codec,
+ * much faster but compressing less, has ID {@code 1}.</p>
+ * <p>With the {@link #ADAPTIVE} compression, each chunk is compressed on its own, with the codec and level
+ * chosen by a {@link ChunkCompressor} from the measured network and compression speeds.</p>
+ * <p>Other codecs can be {@linkplain #register(Codec) registered}, or declared as a {@link ServiceLoader}
+ * provider of {@code net.jrf.codec.Codec} (with a public no-arg constructor), both on client and server.</p>
+ * <p>Codecs are stateless and thread-safe: each method call, or each stream created, uses its own state.
+ * Chunks are best compressed with {@link #compress(byte[], int, int, int, byte[], int, int)} into a reused
+ * array (e.g. a {@link CodecPool.Buffer}), which does not allocate anything with the built-in codecs.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public abstract class Codec {
+	
+	private static final Logger log = Logger.getLogger(Codec.class.getName());
+	
+	/** No compression. */
+	public static final int NONE = 0;
+	
+	/** ID of the {@linkplain DeflateCodec deflate} codec. */
+	public static final int DEFLATE = 0;
+	
+	/** ID of the {@linkplain LZCodec LZ} codec. */
+	public static final int LZ = 1;
+	
+	/** Maximum codec ID, so that compression values fit in a positive byte. It is reserved for {@link #ADAPTIVE}. */
+	public static final int MAX_ID = 7;
+	
+	/** Adaptive compression: each chunk is compressed on its own, as chosen by a {@link ChunkCompressor}. */
+	public static final int ADAPTIVE = (MAX_ID << 4) | 1;
+	
+	/** Maximum compression level. */
+	public static final int MAX_LEVEL = 15;
+	
+	/** Registered codecs, by ID. */
+	private static final Codec[] codecs = new Codec[MAX_ID+1];
+	
+	static {
+		register(new DeflateCodec());
+		register(new LZCodec());
+		try {
+			for (Codec c : ServiceLoader.load(Codec.class))
+				register(c);
+		} catch (RuntimeException | ServiceConfigurationError e) {
+			log.warning("Unable to load compression codecs: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Register a codec, replacing the one with the same ID.
+	 * @param codec The codec.
+	 * @throws IllegalArgumentException if the codec ID is not between {@code 0} and {@code MAX_ID-1}.
+	 */
+	public static void register(Codec codec) {
+		int id = codec.getId();
+		if (id < 0 || id >= MAX_ID)
+			throw new IllegalArgumentException("Invalid codec ID "+id+" for "+codec.getName());
+		synchronized (codecs) {
+			codecs[id] = codec;
+		}
+	}
+	
+	/**
+	 * Build a compression value.
+	 * @param codec The codec ID.
+	 * @param level The compression level, between {@code 1} and {@link #MAX_LEVEL}. {@code <= 0} for no compression.
+	 * @return The compression value to send.
+	 */
+	public static int compression(int codec, int level) {
+		if (level <= 0)
+			return NONE;
+		if (codec < 0 || codec > MAX_ID)
+			throw new IllegalArgumentException("Invalid codec ID "+codec);
+		return (codec << 4) | Math.min(level, MAX_LEVEL);
+	}
+	
+	/**
+	 * @param compression The compression value.
+	 * @return The codec ID of the compression value.
+	 */
+	public static int getId(int compression) {
+		return (compression >> 4) & MAX_ID;
+	}
+	
+	/**
+	 * @param compression The compression value.
+	 * @return The level of the compression value, {@code 0} when there is no compression.
+	 */
+	public static int getLevel(int compression) {
+		return (compression <= 0 ? 0 : compression & MAX_LEVEL);
+	}
+	
+	/**
+	 * @param compression The compression value.
+	 * @return {@code true} if the compression value is {@link #ADAPTIVE}.
+	 */
+	public static boolean isAdaptive(int compression) {
+		return (getLevel(compression) > 0 && getId(compression) == MAX_ID);
+	}
+	
+	/**
+	 * Get the codec of a compression value.
+	 * @param compression The compression value.
+	 * @return The codec, {@code null} if {@code compression} means no compression.
+	 * @throws IllegalArgumentException if the codec is not registered, or for {@link #ADAPTIVE}, which
+	 * 		has no codec of its own.
+	 */
+	public static Codec of(int compression) {
+		if (getLevel(compression) == 0)
+			return null;
+		if (isAdaptive(compression))
+			throw new IllegalArgumentException("Adaptive compression is chosen for each chunk");
+		Codec c;
+		synchronized (codecs) {
+			c = codecs[getId(compression)];
+		}
+		if (c == null)
+			throw new IllegalArgumentException("Unsupported codec "+getId(compression));
+		return c;
+	}
+	
+	/**
+	 * Check a compression value, typically received from the other side, can be handled.
+	 * @param compression The compression value.
+	 * @throws IOException if the codec is not registered.
+	 */
+	public static void check(int compression) throws IOException {
+		if (isAdaptive(compression))
+			return;
+		try {
+			of(compression);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Get a codec by its name.
+	 * @param name The codec name (case insensitive).
+	 * @return The codec, {@code null} if none is registered with that name.
+	 */
+	public static Codec forName(String name) {
+		synchronized (codecs) {
+			for (Codec c : codecs) {
+				if (c != null && c.getName().equalsIgnoreCase(name))
+					return c;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Describe a compression value.
+	 * @param compression The compression value.
+	 * @return The codec name and level, e.g. {@code "deflate:6"}, or {@code "none"}.
+	 */
+	public static String toString(int compression) {
+		if (getLevel(compression) == 0)
+			return "none";
+		if (isAdaptive(compression))
+			return "adaptive";
+		Codec c;
+		synchronized (codecs) {
+			c = codecs[getId(compression)];
+		}
+		return (c == null ? "#"+getId(compression) : c.getName())+":"+getLevel(compression);
+	}
+	
+	/**
+	 * @return The codec ID, between {@code 0} and {@code MAX_ID-1}.
+	 */
+	public abstract int getId();
+	
+	/**
+	 * @return The codec name.
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Compress bytes independently of any other.
+	 * @param src The bytes to compress.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes to compress.
+	 * @param level The compression level.
+	 * @return The compressed bytes.
+	 */
+	public abstract byte[] compress(byte[] src, int off, int len, int level);
+	
+	/**
+	 * Decompress bytes compressed by {@link #compress(byte[], int, int, int)}.
+	 * @param src The compressed bytes.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of compressed bytes.
+	 * @return The decompressed bytes.
+	 * @throws IOException if {@code src} contains invalid data.
+	 */
+	public abstract byte[] decompress(byte[] src, int off, int len) throws IOException;
+	
+	/**
+	 * Compress bytes independently of any other, into a given array. The default implementation copies the
+	 * result of {@link #compress(byte[], int, int, int)}: codecs should override it to compress in place.
+	 * @param src The bytes to compress.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes to compress.
+	 * @param level The compression level.
+	 * @param dst The array to compress to.
+	 * @param dp The offset in {@code dst}.
+	 * @param max The maximum number of compressed bytes wanted, e.g. {@code len-1} to keep only compressed
+	 * 		bytes smaller than {@code src}. It should not be more than {@code dst.length-dp}.
+	 * @return The number of compressed bytes, or {@code -1} if there are more than {@code max}.
+	 */
+	public int compress(byte[] src, int off, int len, int level, byte[] dst, int dp, int max) {
+		byte[] c = compress(src, off, len, level);
+		if (c.length > max)
+			return -1;
+		System.arraycopy(c, 0, dst, dp, c.length);
+		return c.length;
+	}
+	
+	/**
+	 * @return {@code true} if the codec compresses with a preset {@link Dictionary}.
+	 */
+	public boolean usesDictionary() {
+		return false;
+	}
+	
+	/**
+	 * Compress bytes independently of any other but a preset dictionary, into a given array. The default
+	 * implementation ignores the dictionary, for codecs which do not {@linkplain #usesDictionary() use} one.
+	 * The data are decompressed by {@link #decompress(byte[], int, int, byte[], int)}, given that the
+	 * dictionary is {@linkplain Dictionary#register(Dictionary) registered}.
+	 * @param dict The dictionary, {@code null} for none.
+	 * @see #compress(byte[], int, int, int, byte[], int, int)
+	 */
+	public int compress(byte[] src, int off, int len, int level, Dictionary dict, byte[] dst, int dp, int max) {
+		return compress(src, off, len, level, dst, dp, max);
+	}
+	
+	/**
+	 * Decompress bytes compressed by {@link #compress(byte[], int, int, int)} into a given array. The default
+	 * implementation copies the result of {@link #decompress(byte[], int, int)}: codecs should override it
+	 * to decompress in place.
+	 * @param src The compressed bytes.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of compressed bytes.
+	 * @param dst The array to decompress to.
+	 * @param dp The offset in {@code dst}.
+	 * @return The number of decompressed bytes, or {@code -1} if they do not fit in {@code dst}, which
+	 * 		content is then undefined.
+	 * @throws IOException if {@code src} contains invalid data.
+	 */
+	public int decompress(byte[] src, int off, int len, byte[] dst, int dp) throws IOException {
+		byte[] d = decompress(src, off, len);
+		if (d.length > dst.length - dp)
+			return -1;
+		System.arraycopy(d, 0, dst, dp, d.length);
+		return d.length;
+	}
+	
+	/**
+	 * Compress a whole stream, read from another one.
+	 * @param in The stream to compress, closed when the returned stream is closed.
+	 * @param level The compression level.
+	 * @return The compressed stream.
+	 */
+	public abstract InputStream compressing(InputStream in, int level);
+	
+	/**
+	 * Compress a whole stream, written to another one.
+	 * @param out Where the compressed stream is written, closed when the returned stream is closed.
+	 * @param level The compression level.
+	 * @param size The buffer size, e.g. the size of chunks sent.
+	 * @return The stream to write the bytes to compress to.
+	 */
+	public abstract OutputStream compressing(OutputStream out, int level, int size);
+	
+	/**
+	 * Compress a whole stream, written to another one, spreading the work on several threads. The default
+	 * implementation compresses on the calling thread, as {@link #compressing(OutputStream, int, int)}.
+	 * @param out Where the compressed stream is written, closed when the returned stream is closed.
+	 * @param level The compression level.
+	 * @param size The buffer size, e.g. the size of chunks sent.
+	 * @param pool The threads compressing parts of the stream.
+	 * @return The stream to write the bytes to compress to, to be written by a single thread. The compressed
+	 * 		stream can be decompressed by {@link #decompressing(OutputStream)}.
+	 */
+	public OutputStream compressing(OutputStream out, int level, int size, ForkJoinPool pool) {
+		return compressing(out, level, size);
+	}
+	
+	/**
+	 * Decompress a whole stream compressed by {@link #compressing(InputStream, int)} or
+	 * {@link #compressing(OutputStream, int, int)}.
+	 * @param out Where the decompressed stream is written, closed when the returned stream is closed.
+	 * @return The stream to write the compressed bytes to.
+	 */
+	public abstract OutputStream decompressing(OutputStream out);
+	
+	@Override
+	public String toString() {
+		return getName()+" ["+getId()+"]";
+	}
+	
+}
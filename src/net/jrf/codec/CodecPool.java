@@ -0,0 +1,160 @@
+package net.jrf.codec;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Pools of {@link Deflater}s (by level) and {@link Inflater}s, and per-thread buffers, so that compressing
+ * or decompressing a chunk does not allocate native zlib streams nor temporary arrays.</p>
+ * <p>Deflaters and inflaters are taken from the pool, then {@linkplain #release(Deflater, int) released}
+ * once done with, which resets them. At most {@link #MAX_POOLED} of each kind are kept, the others being
+ * {@code end()}-ed on release.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public final class CodecPool {
+	
+	/** Maximum number of deflaters kept for each level, and of inflaters. */
+	public static final int MAX_POOLED = 16;
+	
+	/** Pooled deflaters, by level. */
+	private static final ArrayDeque<Deflater>[] deflaters;
+	
+	/** Pooled raw deflaters (without zlib header nor checksum), by level. */
+	private static final ArrayDeque<Deflater>[] rawDeflaters;
+	
+	/** Pooled inflaters. */
+	private static final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+	
+	static {
+		deflaters = newPools();
+		rawDeflaters = newPools();
+	}
+	
+	private static ArrayDeque<Deflater>[] newPools() {
+		@SuppressWarnings({"unchecked","rawtypes"})
+		ArrayDeque<Deflater>[] d = new ArrayDeque[Deflater.BEST_COMPRESSION+1];
+		for (int i = 0; i < d.length; i++)
+			d[i] = new ArrayDeque<>();
+		return d;
+	}
+	
+	private CodecPool() { }
+	
+	/**
+	 * Take a deflater from the pool.
+	 * @param level The compression level, between {@code 0} and {@code 9}.
+	 * @return A reset deflater with that level, to {@linkplain #release(Deflater, int) release} once done with.
+	 */
+	public static Deflater deflater(int level) {
+		return deflater(level, false);
+	}
+	
+	/**
+	 * Take a deflater from the pool.
+	 * @param level The compression level, between {@code 0} and {@code 9}.
+	 * @param nowrap {@code true} for a raw deflater, which does not write the zlib header and checksum.
+	 * @return A reset deflater with that level, to {@linkplain #release(Deflater, int, boolean) release}
+	 * 		once done with.
+	 */
+	public static Deflater deflater(int level, boolean nowrap) {
+		ArrayDeque<Deflater> pool = (nowrap ? rawDeflaters : deflaters)[level];
+		Deflater d;
+		synchronized (pool) {
+			d = pool.pollLast();
+		}
+		return (d != null ? d : new Deflater(level, nowrap));
+	}
+	
+	/**
+	 * Return a deflater to the pool, after use. It should not be used afterwards.
+	 * @param d The deflater, taken from {@link #deflater(int)}.
+	 * @param level The level it was taken for.
+	 */
+	public static void release(Deflater d, int level) {
+		release(d, level, false);
+	}
+	
+	/**
+	 * Return a deflater to the pool, after use. It should not be used afterwards.
+	 * @param d The deflater, taken from {@link #deflater(int, boolean)}.
+	 * @param level The level it was taken for.
+	 * @param nowrap {@code true} if it is a raw deflater.
+	 */
+	public static void release(Deflater d, int level, boolean nowrap) {
+		d.reset();
+		ArrayDeque<Deflater> pool = (nowrap ? rawDeflaters : deflaters)[level];
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.addLast(d);
+				return;
+			}
+		}
+		d.end();
+	}
+	
+	/**
+	 * Take an inflater from the pool.
+	 * @return A reset inflater, to {@linkplain #release(Inflater) release} once done with.
+	 */
+	public static Inflater inflater() {
+		Inflater i;
+		synchronized (inflaters) {
+			i = inflaters.pollLast();
+		}
+		return (i != null ? i : new Inflater());
+	}
+	
+	/**
+	 * Return an inflater to the pool, after use. It should not be used afterwards.
+	 * @param i The inflater, taken from {@link #inflater()}.
+	 */
+	public static void release(Inflater i) {
+		i.reset();
+		synchronized (inflaters) {
+			if (inflaters.size() < MAX_POOLED) {
+				inflaters.addLast(i);
+				return;
+			}
+		}
+		i.end();
+	}
+	
+	/**
+	 * A per-thread array, reused by the successive calls of a thread. Its content is only valid until the
+	 * thread gets it again, so it must not be kept (e.g. it is copied when a message is sent).
+	 */
+	public static final class Buffer {
+		
+		private final ThreadLocal<byte[]> buf = new ThreadLocal<>();
+		
+		/**
+		 * Get the array of the calling thread.
+		 * @param size The minimum size of the array.
+		 * @return The array, with at least {@code size} bytes. Its content is undefined.
+		 */
+		public byte[] get(int size) {
+			return get(size, 0);
+		}
+		
+		/**
+		 * Get a bigger array for the calling thread, keeping the first bytes of its current one.
+		 * @param size The minimum size of the array.
+		 * @param keep The number of bytes to keep from the current array.
+		 * @return The array, with at least {@code size} bytes.
+		 */
+		public byte[] get(int size, int keep) {
+			byte[] b = buf.get();
+			if (b == null || b.length < size) {
+				int n = Math.max(size, (b == null ? 0 : (int)Math.min(2L * b.length, Integer.MAX_VALUE - 8))); // Grows exponentially
+				b = (b == null || keep <= 0 ? new byte[n] : Arrays.copyOf(b, n));
+				buf.set(b);
+			}
+			return b;
+		}
+	
+	}
+	
+}
@@ -0,0 +1,123 @@
+package net.jrf.codec;
+
+import java.util.Arrays;
+
+/**
+ * <p>Cheap estimates of whether bytes are worth compressing: the file formats which are already compressed,
+ * recognized by their first bytes, and the order-0 entropy of a sample of bytes.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public final class Compressibility {
+	
+	/** Number of first bytes needed by {@link #format(byte[], int, int)}. */
+	public static final int HEAD_SIZE = 16;
+	
+	/** Entropy, in bits per byte, above which bytes are considered as not compressible. */
+	public static final double ENTROPY_LIMIT = 7.5;
+	
+	/** Number of bytes sampled by {@link #entropy(byte[], int, int)}. */
+	private static final int SAMPLE = 4096;
+	
+	/** Number of contiguous bytes in each sample window, so that the sample does not miss local structure. */
+	private static final int WINDOW = 256;
+	
+	/** {@code n*log2(n)} for {@code n} up to {@link #SAMPLE}, summed on the histogram. */
+	private static final double[] NLOG2N = new double[SAMPLE+1];
+	
+	static {
+		for (int n = 1; n <= SAMPLE; n++)
+			NLOG2N[n] = n * Math.log(n) / Math.log(2);
+	}
+	
+	/** Per-thread histogram. */
+	private static final ThreadLocal<int[]> histogram = ThreadLocal.withInitial(() -> new int[256]);
+	
+	/** Magic bytes of compressed formats: offset, bytes and format name. */
+	private static final Object[][] MAGICS = {
+		{ 0, new int[] { 0xff, 0xd8, 0xff }, "jpeg" },
+		{ 0, new int[] { 0x89, 'P', 'N', 'G' }, "png" },
+		{ 0, new int[] { 'G', 'I', 'F', '8' }, "gif" },
+		{ 8, new int[] { 'W', 'E', 'B', 'P' }, "webp" },
+		{ 4, new int[] { 'f', 't', 'y', 'p' }, "mp4" }, // Also mov, m4a, heic
+		{ 0, new int[] { 0x1a, 0x45, 0xdf, 0xa3 }, "matroska" }, // Also webm
+		{ 0, new int[] { 'O', 'g', 'g', 'S' }, "ogg" },
+		{ 0, new int[] { 'f', 'L', 'a', 'C' }, "flac" },
+		{ 0, new int[] { 'I', 'D', '3' }, "mp3" },
+		{ 0, new int[] { 'P', 'K', 0x03, 0x04 }, "zip" }, // Also jar, docx, odt, apk
+		{ 0, new int[] { 0x1f, 0x8b }, "gzip" },
+		{ 0, new int[] { 'B', 'Z', 'h' }, "bzip2" },
+		{ 0, new int[] { 0xfd, '7', 'z', 'X', 'Z', 0x00 }, "xz" },
+		{ 0, new int[] { '7', 'z', 0xbc, 0xaf, 0x27, 0x1c }, "7z" },
+		{ 0, new int[] { 0x28, 0xb5, 0x2f, 0xfd }, "zstd" },
+		{ 0, new int[] { 0x04, 0x22, 0x4d, 0x18 }, "lz4" },
+		{ 0, new int[] { 'R', 'a', 'r', '!' }, "rar" },
+	};
+	
+	private Compressibility() { }
+	
+	/**
+	 * Recognize an already compressed file format from its first bytes.
+	 * @param b The first bytes of the file.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes in {@code b}, at most {@link #HEAD_SIZE} are used.
+	 * @return The format name, {@code null} if it is not a known compressed format.
+	 */
+	public static String format(byte[] b, int off, int len) {
+		for (Object[] m : MAGICS) {
+			int o = (Integer)m[0];
+			int[] magic = (int[])m[1];
+			if (len < o + magic.length)
+				continue;
+			int i = 0;
+			while (i < magic.length && (b[off+o+i] & 0xff) == magic[i])
+				i++;
+			if (i == magic.length)
+				return (String)m[2];
+		}
+		return null;
+	}
+	
+	/**
+	 * Estimate the entropy of bytes from the histogram of a sample of them: windows spread evenly.
+	 * @param b The bytes.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes.
+	 * @return The entropy, in bits per byte (between {@code 0} and {@code 8}).
+	 */
+	public static double entropy(byte[] b, int off, int len) {
+		int[] hist = histogram.get();
+		Arrays.fill(hist, 0);
+		int n;
+		if (len <= SAMPLE) {
+			for (int i = off, e = off + len; i < e; i++)
+				hist[b[i] & 0xff]++;
+			n = len;
+		} else {
+			int windows = SAMPLE / WINDOW;
+			long step = (long)(len - WINDOW) / (windows - 1);
+			for (int w = 0; w < windows; w++) {
+				for (int i = off + (int)(w * step), e = i + WINDOW; i < e; i++)
+					hist[b[i] & 0xff]++;
+			}
+			n = windows * WINDOW;
+		}
+		if (n == 0)
+			return 0.0;
+		double sum = 0.0;
+		for (int c : hist)
+			sum += NLOG2N[c];
+		return (NLOG2N[n] - sum) / n; // -sum(c/n * log2(c/n))
+	}
+	
+	/**
+	 * @param b The bytes.
+	 * @param off The offset in {@code b}.
+	 * @param len The number of bytes.
+	 * @return {@code true} if the bytes are likely to be compressed by less than a few percents.
+	 */
+	public static boolean isIncompressible(byte[] b, int off, int len) {
+		return entropy(b, off, len) > ENTROPY_LIMIT;
+	}
+	
+}
@@ -0,0 +1,175 @@
+package net.jrf.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import net.jrf.Utils;
+
+/**
+ * <p>The {@code java.util.zip} deflate codec, with levels {@code 1} to {@code 9} (higher levels are
+ * considered as {@code 9}).</p>
+ * <p>Deflaters and inflaters are taken from the {@link CodecPool}, so that compressing a chunk does not
+ * create a new zlib stream each time. Chunks can be deflated with a preset {@link Dictionary}, which header
+ * identifies. Whole streams can be deflated by blocks on several threads, still
+ * as a single zlib stream.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class DeflateCodec extends Codec {
+	
+	@Override
+	public int getId() {
+		return DEFLATE;
+	}
+	
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+	
+	private static int level(int level) {
+		return Math.max(1, Math.min(level, Deflater.BEST_COMPRESSION));
+	}
+	
+	@Override
+	public byte[] compress(byte[] src, int off, int len, int level) {
+		return Utils.deflate(src, off, len, level(level));
+	}
+	
+	@Override
+	public int compress(byte[] src, int off, int len, int level, byte[] dst, int dp, int max) {
+		return compress(src, off, len, level, null, dst, dp, max);
+	}
+	
+	@Override
+	public boolean usesDictionary() {
+		return true;
+	}
+	
+	@Override
+	public int compress(byte[] src, int off, int len, int level, Dictionary dict, byte[] dst, int dp, int max) {
+		level = level(level);
+		Deflater defl = CodecPool.deflater(level);
+		try {
+			if (dict != null)
+				defl.setDictionary(dict.bytes);
+			defl.setInput(src, off, len);
+			defl.finish();
+			int lim = dp + Math.min(max, dst.length - dp), op = dp;
+			while (!defl.finished()) {
+				if (op == lim) // Stop as soon as it is too long
+					return -1;
+				op += defl.deflate(dst, op, lim - op);
+			}
+			return op - dp;
+		} finally {
+			CodecPool.release(defl, level);
+		}
+	}
+	
+	@Override
+	public byte[] decompress(byte[] src, int off, int len) throws IOException {
+		return Utils.inflate(src, off, len);
+	}
+	
+	@Override
+	public int decompress(byte[] src, int off, int len, byte[] dst, int dp) throws IOException {
+		Inflater infl = CodecPool.inflater();
+		try {
+			infl.setInput(src, off, len);
+			int op = dp;
+			while (!infl.finished()) {
+				int n = infl.inflate(dst, op, dst.length - op);
+				if (n == 0) {
+					if (infl.needsDictionary()) { // Deflated with a preset dictionary
+						Dictionary.supply(infl);
+						continue;
+					}
+					if (op == dst.length)
+						return -1;
+					if (infl.needsInput()) // Truncated: keep what was inflated, as Utils.inflate()
+						break;
+				}
+				op += n;
+			}
+			return op - dp;
+		} catch (DataFormatException e) {
+			throw new IOException("Cannot inflate data: "+e.getMessage(), e);
+		} finally {
+			CodecPool.release(infl);
+		}
+	}
+	
+	@Override
+	public InputStream compressing(InputStream in, int level) {
+		final int l = level(level);
+		return new DeflaterInputStream(in, CodecPool.deflater(l)) {
+			private boolean released;
+			@Override public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!released) {
+						released = true;
+						CodecPool.release(def, l);
+					}
+				}
+			}
+		};
+	}
+	
+	@Override
+	public OutputStream compressing(OutputStream out, int level, int size) {
+		final int l = level(level);
+		return new DeflaterOutputStream(out, CodecPool.deflater(l), size) {
+			private boolean released;
+			@Override public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!released) {
+						released = true;
+						CodecPool.release(def, l);
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Deflate a stream by blocks on several threads, as a {@link ParallelDeflateOutputStream}, unless
+	 * {@code pool} has a single thread.
+	 */
+	@Override
+	public OutputStream compressing(OutputStream out, int level, int size, ForkJoinPool pool) {
+		if (pool.getParallelism() < 2)
+			return compressing(out, level, size);
+		return new ParallelDeflateOutputStream(out, level(level), pool, pool.getParallelism());
+	}
+	
+	@Override
+	public OutputStream decompressing(OutputStream out) {
+		return new InflaterOutputStream(out, CodecPool.inflater()) {
+			private boolean released;
+			@Override public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!released) {
+						released = true;
+						CodecPool.release(inf);
+					}
+				}
+			}
+		};
+	}
+	
+}
@@ -0,0 +1,252 @@
+package net.jrf.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Preset dictionary of the {@linkplain DeflateCodec deflate} codec: bytes which chunks are likely to share
+ * (e.g. the keys of JSON files or the tags of XML files), with which each chunk is deflated as if it followed
+ * them. Small chunks, which would start with an empty window, then compress almost as well as a big stream.</p>
+ * <p>A dictionary is identified by the Adler-32 checksum of its bytes, which zlib writes in the header of the
+ * data deflated with it. Dictionaries are {@linkplain #register(Dictionary) registered} in the JVM, so that
+ * such data are inflated without being told which dictionary they need: the server registers the dictionaries
+ * it stores, and the client the ones it fetched from the server.</p>
+ * <p>Dictionaries can be {@linkplain #train(List, int) trained} from sample files.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public final class Dictionary {
+	
+	/** Maximum size of a dictionary: the deflate window. */
+	public static final int MAX_SIZE = 1 << 15;
+	
+	/** Length of the substrings counted when training. */
+	private static final int K = 8;
+	
+	/** Length of the segments of samples a trained dictionary is made of. */
+	private static final int SEGMENT = 64;
+	
+	/** Number of bits of the substring hashes when training. */
+	private static final int HASH_BITS = 20;
+	
+	/** Registered dictionaries, by ID. */
+	private static final Map<Integer,Dictionary> registered = new HashMap<>();
+	
+	private final int id;
+	
+	/** The dictionary bytes, not modified. */
+	final byte[] bytes;
+	
+	/**
+	 * @param bytes The dictionary bytes, the most likely to be shared last. Only the last {@link #MAX_SIZE}
+	 * 		bytes are kept.
+	 * @throws IllegalArgumentException if {@code bytes} is empty.
+	 */
+	public Dictionary(byte[] bytes) {
+		if (bytes.length == 0)
+			throw new IllegalArgumentException("Empty dictionary");
+		this.bytes = Arrays.copyOfRange(bytes, Math.max(0, bytes.length - MAX_SIZE), bytes.length);
+		Adler32 adler = new Adler32();
+		adler.update(this.bytes);
+		id = (int)adler.getValue();
+	}
+	
+	/**
+	 * @return The dictionary ID: the Adler-32 checksum of its bytes.
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return A copy of the dictionary bytes.
+	 */
+	public byte[] getBytes() {
+		return bytes.clone();
+	}
+	
+	/**
+	 * @return The number of bytes of the dictionary.
+	 */
+	public int size() {
+		return bytes.length;
+	}
+	
+	/**
+	 * Register a dictionary, so that data deflated with it can be inflated.
+	 * @param dict The dictionary.
+	 * @return The dictionary registered with that ID: {@code dict}, or an equal one registered before.
+	 * @throws IllegalArgumentException if another dictionary with the same ID is registered.
+	 */
+	public static Dictionary register(Dictionary dict) {
+		synchronized (registered) {
+			Dictionary d = registered.putIfAbsent(dict.id, dict);
+			if (d == null)
+				return dict;
+			if (!Arrays.equals(d.bytes, dict.bytes))
+				throw new IllegalArgumentException("Another dictionary is registered as "+d);
+			return d;
+		}
+	}
+	
+	/**
+	 * Unregister a dictionary, e.g. once it is not used anymore. Data deflated with it cannot be inflated
+	 * until it is registered again.
+	 * @param id The dictionary ID.
+	 * @return {@code true} if a dictionary was registered with that ID.
+	 */
+	public static boolean unregister(int id) {
+		synchronized (registered) {
+			return registered.remove(id) != null;
+		}
+	}
+	
+	/**
+	 * Get a registered dictionary.
+	 * @param id The dictionary ID.
+	 * @return The dictionary, {@code null} if none is registered with that ID.
+	 */
+	public static Dictionary get(int id) {
+		synchronized (registered) {
+			return registered.get(id);
+		}
+	}
+	
+	/**
+	 * Give an inflater which {@linkplain Inflater#needsDictionary() needs a dictionary} the registered one
+	 * its data were deflated with.
+	 * @param infl The inflater.
+	 * @throws IOException if the dictionary is not registered.
+	 */
+	public static void supply(Inflater infl) throws IOException {
+		Dictionary d = get(infl.getAdler());
+		if (d == null)
+			throw new IOException("Unknown preset dictionary "+toString(infl.getAdler()));
+		infl.setDictionary(d.bytes);
+	}
+	
+	/**
+	 * <p>Train a dictionary from samples: the segments of 64 bytes which hold the most substrings
+	 * found in several samples, one for each part of the samples, so that the dictionary covers all of them.
+	 * Substrings of a segment picked are not counted anymore for the next segments. The segments holding the
+	 * most shared substrings are put last, closer to the data.</p>
+	 * @param samples The samples, e.g. the first bytes of files similar to the ones to compress.
+	 * @param size The maximum size of the dictionary, at most {@link #MAX_SIZE}.
+	 * @return The dictionary, {@code null} if the samples do not share anything.
+	 */
+	public static Dictionary train(List<byte[]> samples, int size) {
+		size = Math.max(SEGMENT, Math.min(size, MAX_SIZE));
+		// Number of samples each substring is found in
+		int[] freq = new int[1 << HASH_BITS];
+		int[] last = new int[1 << HASH_BITS];
+		Arrays.fill(last, -1);
+		long total = 0;
+		for (int s = 0; s < samples.size(); s++) {
+			byte[] b = samples.get(s);
+			for (int i = 0; i + K <= b.length; i++) {
+				int h = hash(b, i);
+				if (last[h] != s) {
+					last[h] = s;
+					freq[h]++;
+				}
+			}
+			total += b.length;
+		}
+		for (int h = 0; h < freq.length; h++) {
+			if (freq[h] < 2) // Not shared
+				freq[h] = 0;
+		}
+		// Best segment of each part ("epoch") of the samples
+		long epochs = Math.max(1, Math.min(size / SEGMENT, total / SEGMENT));
+		long epochLen = Math.max(1, total / epochs);
+		List<Segment> picked = new ArrayList<>();
+		Segment best = null;
+		long epoch = 0, base = 0;
+		for (byte[] b : samples) {
+			int w = Math.min(SEGMENT, b.length);
+			long score = -1;
+			for (int p = 0; w >= K && p + w <= b.length; p++) {
+				long e = (base + p) / epochLen;
+				if (e != epoch) {
+					pick(best, freq, picked);
+					best = null;
+					epoch = e;
+					score = -1;
+				}
+				if (score < 0) {
+					score = 0;
+					for (int i = p; i + K <= p + w; i++)
+						score += freq[hash(b, i)];
+				} else {
+					score += freq[hash(b, p + w - K)] - freq[hash(b, p - 1)];
+				}
+				if (score > 0 && (best == null || score > best.score))
+					best = new Segment(b, p, w, score);
+			}
+			base += b.length;
+		}
+		pick(best, freq, picked);
+		if (picked.isEmpty())
+			return null;
+		picked.sort((a, b) -> Long.compare(a.score, b.score));
+		byte[] dict = new byte[size];
+		int n = size;
+		for (int i = picked.size() - 1; i >= 0 && n > 0; i--) { // Filled from the end, with the best segments
+			Segment s = picked.get(i);
+			int l = Math.min(s.len, n);
+			n -= l;
+			System.arraycopy(s.b, s.off + s.len - l, dict, n, l);
+		}
+		return new Dictionary(Arrays.copyOfRange(dict, n, size));
+	}
+	
+	/** A segment of a sample, and the number of shared substrings it holds. */
+	private static final class Segment {
+		final byte[] b;
+		final int off;
+		final int len;
+		final long score;
+		Segment(byte[] b, int off, int len, long score) {
+			this.b = b;
+			this.off = off;
+			this.len = len;
+			this.score = score;
+		}
+	}
+	
+	/** Add the best segment of an epoch, so that its substrings are not counted anymore. */
+	private static void pick(Segment s, int[] freq, List<Segment> picked) {
+		if (s == null)
+			return;
+		picked.add(s);
+		for (int i = s.off; i + K <= s.off + s.len; i++)
+			freq[hash(s.b, i)] = 0;
+	}
+	
+	private static int hash(byte[] b, int i) {
+		long v = 0;
+		for (int k = 0; k < K; k++)
+			v = (v << 8) | (b[i+k] & 0xff);
+		return (int)((v * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+	}
+	
+	/**
+	 * @param id A dictionary ID.
+	 * @return The ID as written in logs, e.g. {@code "dict:1a2b3c4d"}.
+	 */
+	public static String toString(int id) {
+		return String.format("dict:%08x", id);
+	}
+	
+	@Override
+	public String toString() {
+		return toString(id)+" ("+bytes.length+" bytes)";
+	}
+	
+}
@@ -0,0 +1,457 @@
+package net.jrf.codec;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import net.jrf.Utils;
+
+/**
+ * <p>A pure Java codec of the LZ77 family, using the LZ4 block format: a greedy match finder with a single
+ * hash table lookup per position, and byte-aligned sequences which are decoded with array copies only. It
+ * compresses less than deflate but runs several times faster on both sides, which makes it worth using on
+ * links of several Gbit/s, where deflate is slower than the network.</p>
+ * <p>The level is ignored: there is a single level.</p>
+ * <p>Each compressed chunk starts with its decompressed length (4 bytes), followed by the LZ4 sequences.
+ * A compressed stream is a series of such chunks of at most {@link #BLOCK_SIZE} bytes, each preceded by
+ * its compressed length (4 bytes), ended by a {@code 0} length.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class LZCodec extends Codec {
+	
+	/** Size of the blocks a stream is compressed in. */
+	public static final int BLOCK_SIZE = 1 << 16;
+	
+	/** Minimum length of a match. */
+	private static final int MIN_MATCH = 4;
+	
+	/** Maximum distance of a match. */
+	private static final int MAX_DISTANCE = 0xffff;
+	
+	/** The last bytes are always literals. */
+	private static final int LAST_LITERALS = 5;
+	
+	/** No match starts in the last bytes. */
+	private static final int MF_LIMIT = 12;
+	
+	/** Number of bits of the hash table index. */
+	private static final int HASH_LOG = 14;
+	
+	/** The hash table of each thread, holding the last position of each hash. */
+	private static final ThreadLocal<int[]> hashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+	
+	/** Per-thread array compressed to, before being copied to an array of the compressed length. */
+	private static final CodecPool.Buffer out = new CodecPool.Buffer();
+	
+	@Override
+	public int getId() {
+		return LZ;
+	}
+	
+	@Override
+	public String getName() {
+		return "lz";
+	}
+	
+	/**
+	 * @param len A number of bytes.
+	 * @return The maximum compressed length of {@code len} bytes, for incompressible data.
+	 */
+	public static int maxCompressedLength(int len) {
+		return 4 + len + len / 255 + 16;
+	}
+	
+	@Override
+	public byte[] compress(byte[] src, int off, int len, int level) {
+		byte[] dst = out.get(maxCompressedLength(len));
+		return Arrays.copyOf(dst, compress(src, off, len, dst, 0));
+	}
+	
+	/**
+	 * Compress bytes to a given array.
+	 * @param src The bytes to compress.
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes to compress.
+	 * @param dst The array to compress to, with at least {@link #maxCompressedLength(int)} bytes from {@code dp}.
+	 * @param dp The offset in {@code dst}.
+	 * @return The position in {@code dst} after the compressed bytes.
+	 */
+	static int compress(byte[] src, int off, int len, byte[] dst, int dp) {
+		writeInt(dst, dp, len);
+		int op = dp + 4;
+		int end = off + len;
+		int anchor = off;
+		if (len > MF_LIMIT) {
+			int[] table = hashTable.get();
+			Arrays.fill(table, -1);
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int ip = off;
+			while (ip < mfLimit) {
+				int seq = readInt(src, ip);
+				int h = hash(seq);
+				int ref = table[h];
+				table[h] = ip;
+				if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+					ip += 1 + ((ip - anchor) >>> 6); // Skip faster in incompressible data
+					continue;
+				}
+				while (ip > anchor && ref > off && src[ip-1] == src[ref-1]) { // Extend backwards
+					ip--;
+					ref--;
+				}
+				int ml = MIN_MATCH;
+				while (ip + ml < matchLimit && src[ip+ml] == src[ref+ml])
+					ml++;
+				op = writeSequence(src, anchor, ip - anchor, ip - ref, ml, dst, op);
+				ip += ml;
+				anchor = ip;
+				if (ip - 2 < mfLimit)
+					table[hash(readInt(src, ip - 2))] = ip - 2;
+			}
+		}
+		return writeSequence(src, anchor, end - anchor, 0, 0, dst, op);
+	}
+	
+	/**
+	 * Write a sequence: literals followed by a match (none for the last sequence).
+	 * @return The position in {@code dst} after the sequence.
+	 */
+	private static int writeSequence(byte[] src, int lit, int litLen, int dist, int ml, byte[] dst, int op) {
+		int token = op++;
+		int t;
+		if (litLen >= 15) {
+			t = 15 << 4;
+			op = writeLength(litLen - 15, dst, op);
+		} else
+			t = litLen << 4;
+		System.arraycopy(src, lit, dst, op, litLen);
+		op += litLen;
+		if (ml > 0) { // Not the last sequence
+			dst[op++] = (byte)dist;
+			dst[op++] = (byte)(dist >>> 8);
+			ml -= MIN_MATCH;
+			if (ml >= 15) {
+				t |= 15;
+				op = writeLength(ml - 15, dst, op);
+			} else
+				t |= ml;
+		}
+		dst[token] = (byte)t;
+		return op;
+	}
+	
+	private static int writeLength(int l, byte[] dst, int op) {
+		for (; l >= 255; l -= 255)
+			dst[op++] = (byte)255;
+		dst[op++] = (byte)l;
+		return op;
+	}
+	
+	@Override
+	public byte[] decompress(byte[] src, int off, int len) throws IOException {
+		if (len < 5)
+			throw new IOException("Invalid LZ data: "+len+" bytes");
+		int rawLen = readInt(src, off);
+		if (rawLen < 0 || rawLen > 255L * len) // A byte cannot expand to more than 255 bytes
+			throw new IOException("Invalid LZ decompressed length "+rawLen);
+		byte[] dst = new byte[rawLen];
+		decompress(src, off + 4, len - 4, dst, 0, rawLen);
+		return dst;
+	}
+	
+	@Override
+	public int compress(byte[] src, int off, int len, int level, byte[] dst, int dp, int max) {
+		if (dst.length - dp >= maxCompressedLength(len)) { // Room for the worst case
+			int n = compress(src, off, len, dst, dp) - dp;
+			return (n <= max ? n : -1);
+		}
+		return super.compress(src, off, len, level, dst, dp, max);
+	}
+	
+	@Override
+	public int decompress(byte[] src, int off, int len, byte[] dst, int dp) throws IOException {
+		if (len < 5)
+			throw new IOException("Invalid LZ data: "+len+" bytes");
+		int rawLen = readInt(src, off);
+		if (rawLen < 0 || rawLen > 255L * len)
+			throw new IOException("Invalid LZ decompressed length "+rawLen);
+		if (rawLen > dst.length - dp)
+			return -1;
+		decompress(src, off + 4, len - 4, dst, dp, rawLen);
+		return rawLen;
+	}
+	
+	/**
+	 * Decompress LZ4 sequences.
+	 * @param src The compressed sequences (without the decompressed length).
+	 * @param off The offset in {@code src}.
+	 * @param len The number of bytes to decompress.
+	 * @param dst The array to decompress to.
+	 * @param dp The offset in {@code dst}.
+	 * @param rawLen The decompressed length.
+	 * @throws IOException if the data are invalid.
+	 */
+	private static void decompress(byte[] src, int off, int len, byte[] dst, int dp, int rawLen) throws IOException {
+		int ip = off, end = off + len;
+		int op = dp, lim = dp + rawLen;
+		for (;;) {
+			if (ip >= end)
+				throw new IOException("Truncated LZ data");
+			int t = src[ip++] & 0xff;
+			int litLen = t >>> 4;
+			if (litLen == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						throw new IOException("Truncated LZ data");
+					b = src[ip++] & 0xff;
+					litLen += b;
+				} while (b == 255 && litLen <= rawLen);
+			}
+			if (litLen > end - ip || litLen > lim - op)
+				throw new IOException("Invalid LZ literal length "+litLen);
+			System.arraycopy(src, ip, dst, op, litLen);
+			ip += litLen;
+			op += litLen;
+			if (ip == end) // Last sequence
+				break;
+			if (end - ip < 2)
+				throw new IOException("Truncated LZ data");
+			int dist = (src[ip] & 0xff) | (src[ip+1] & 0xff) << 8;
+			ip += 2;
+			if (dist == 0 || dist > op - dp)
+				throw new IOException("Invalid LZ match distance "+dist);
+			int ml = t & 15;
+			if (ml == 15) {
+				int b;
+				do {
+					if (ip >= end)
+						throw new IOException("Truncated LZ data");
+					b = src[ip++] & 0xff;
+					ml += b;
+				} while (b == 255 && ml <= rawLen);
+			}
+			ml += MIN_MATCH;
+			if (ml > lim - op)
+				throw new IOException("Invalid LZ match length "+ml);
+			int ref = op - dist;
+			if (dist >= ml) {
+				System.arraycopy(dst, ref, dst, op, ml);
+				op += ml;
+			} else { // Overlapping: repeats the last 'dist' bytes
+				for (int e = op + ml; op < e; )
+					dst[op++] = dst[ref++];
+			}
+		}
+		if (op != lim)
+			throw new IOException("Invalid LZ data: "+(op - dp)+" bytes decompressed instead of "+rawLen);
+	}
+	
+	private static int hash(int seq) {
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+	
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) << 24 | (b[off+1] & 0xff) << 16 | (b[off+2] & 0xff) << 8 | (b[off+3] & 0xff);
+	}
+	
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte)(v >>> 24);
+		b[off+1] = (byte)(v >>> 16);
+		b[off+2] = (byte)(v >>> 8);
+		b[off+3] = (byte)v;
+	}
+	
+	@Override
+	public InputStream compressing(InputStream in, int level) {
+		return new CompressingInputStream(in);
+	}
+	
+	@Override
+	public OutputStream compressing(OutputStream out, int level, int size) {
+		return new CompressingOutputStream(out);
+	}
+	
+	@Override
+	public OutputStream decompressing(OutputStream out) {
+		return new DecompressingOutputStream(out);
+	}
+	
+	/**
+	 * Reads a stream and compresses it in blocks.
+	 */
+	private static class CompressingInputStream extends FilterInputStream {
+		private final byte[] block = new byte[BLOCK_SIZE];
+		/** The compressed block, preceded by its length. */
+		private final byte[] buf = new byte[4 + maxCompressedLength(BLOCK_SIZE)];
+		private int pos, lim;
+		private boolean eof;
+		CompressingInputStream(InputStream in) {
+			super(in);
+		}
+		/** @return {@code false} when the end of stream was sent. */
+		private boolean fill() throws IOException {
+			if (eof)
+				return false;
+			int n = Utils.readFully(in, block);
+			if (n > 0) {
+				lim = compress(block, 0, n, buf, 4);
+				writeInt(buf, 0, lim - 4);
+			} else { // End of stream
+				writeInt(buf, 0, 0);
+				lim = 4;
+				eof = true;
+			}
+			pos = 0;
+			return true;
+		}
+		@Override public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+		}
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (pos == lim && !fill())
+				return -1;
+			int n = Math.min(len, lim - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		@Override public long skip(long n) throws IOException {
+			throw new IOException("skip not supported");
+		}
+		@Override public int available() throws IOException {
+			return (eof && pos == lim ? 0 : 1);
+		}
+		@Override public boolean markSupported() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Compresses the bytes written in blocks.
+	 */
+	private static class CompressingOutputStream extends FilterOutputStream {
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int len;
+		private final byte[] buf = new byte[4 + maxCompressedLength(BLOCK_SIZE)];
+		private boolean closed;
+		CompressingOutputStream(OutputStream out) {
+			super(out);
+		}
+		@Override public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		@Override public void write(byte[] b, int off, int n) throws IOException {
+			if (closed)
+				throw new IOException("Stream closed");
+			while (n > 0) {
+				int k = Math.min(n, block.length - len);
+				System.arraycopy(b, off, block, len, k);
+				len += k;
+				off += k;
+				n -= k;
+				if (len == block.length)
+					writeBlock();
+			}
+		}
+		private void writeBlock() throws IOException {
+			if (len == 0)
+				return;
+			int l = compress(block, 0, len, buf, 4);
+			writeInt(buf, 0, l - 4);
+			out.write(buf, 0, l);
+			len = 0;
+		}
+		@Override public void flush() throws IOException {
+			writeBlock();
+			out.flush();
+		}
+		@Override public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				writeBlock();
+				out.write(new byte[4]); // End of stream
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * Decompresses the blocks written.
+	 */
+	private static class DecompressingOutputStream extends FilterOutputStream {
+		/** The length of the next block, then the block. */
+		private final byte[] buf = new byte[maxCompressedLength(BLOCK_SIZE)];
+		private int len;
+		/** The decompressed block. */
+		private final byte[] raw = new byte[BLOCK_SIZE];
+		/** The length of the block being received, {@code -1} while its length is received. */
+		private int blockLen = -1;
+		private boolean eos, closed;
+		DecompressingOutputStream(OutputStream out) {
+			super(out);
+		}
+		@Override public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		@Override public void write(byte[] b, int off, int n) throws IOException {
+			if (closed)
+				throw new IOException("Stream closed");
+			while (n > 0) {
+				if (eos)
+					throw new IOException("Data after the end of the LZ stream");
+				int need = (blockLen < 0 ? 4 : blockLen);
+				int k = Math.min(n, need - len);
+				System.arraycopy(b, off, buf, len, k);
+				len += k;
+				off += k;
+				n -= k;
+				if (len < need)
+					continue;
+				len = 0;
+				if (blockLen < 0) {
+					blockLen = readInt(buf, 0);
+					if (blockLen == 0)
+						eos = true;
+					else if (blockLen < 5 || blockLen > buf.length)
+						throw new IOException("Invalid LZ block length "+blockLen);
+				} else {
+					int rawLen = readInt(buf, 0);
+					if (rawLen < 0 || rawLen > BLOCK_SIZE)
+						throw new IOException("Invalid LZ block decompressed length "+rawLen);
+					decompress(buf, 4, blockLen - 4, raw, 0, rawLen);
+					out.write(raw, 0, rawLen);
+					blockLen = -1;
+				}
+			}
+		}
+		/**
+		 * @throws EOFException if the end of the stream was not received.
+		 */
+		@Override public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (!eos)
+					throw new EOFException("Truncated LZ stream");
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,225 @@
+package net.jrf.codec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Deflates a stream on several threads, the way {@code pigz} does: the stream is split into blocks of
+ * {@link #BLOCK_SIZE} bytes, which are deflated in parallel and written in order.</p>
+ * <p>Each block is deflated with the last 32 KB of the previous one as preset dictionary,
+ * so that the compression ratio is almost that of a single deflater, and ends with a sync flush so that
+ * blocks can be concatenated. The result is a standard zlib stream, which any {@link java.util.zip.Inflater}
+ * decompresses (e.g. {@link Codec#decompressing(OutputStream)} on the other side).</p>
+ * <p>The stream is not thread-safe: it is written by a single thread, which also writes the compressed
+ * blocks to the underlying stream. At most twice as many blocks as the executor parallelism are in
+ * progress at a time.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class ParallelDeflateOutputStream extends OutputStream {
+	
+	/** Number of bytes of the blocks deflated in parallel. */
+	public static final int BLOCK_SIZE = 1 << 17;
+	
+	/** Number of bytes of the previous block used as dictionary: the deflate window. */
+	private static final int DICT_SIZE = 1 << 15;
+	
+	private final OutputStream out;
+	
+	private final int level;
+	
+	private final Executor exec;
+	
+	/** Maximum number of blocks being deflated. */
+	private final int maxPending;
+	
+	/** Blocks being deflated, in order. */
+	private final ArrayDeque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+	
+	/** Blocks given to deflaters, in order, recycled once neither them nor the next one are deflated. */
+	private final ArrayDeque<byte[]> inUse = new ArrayDeque<>();
+	
+	/** Blocks which can be reused. */
+	private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+	
+	/** Checksum of the uncompressed bytes, written at the end of the zlib stream. */
+	private final Adler32 adler = new Adler32();
+	
+	/** The block being filled. */
+	private byte[] block;
+	
+	/** Number of bytes in {@link #block}. */
+	private int count;
+	
+	/** The previous block, used as dictionary of the current one. {@code null} for the first block. */
+	private byte[] previous;
+	
+	private boolean headerWritten;
+	
+	private boolean closed;
+	
+	/**
+	 * Create a stream deflating on the {@linkplain ForkJoinPool#commonPool() common pool}.
+	 * @param out Where the zlib stream is written, closed when this stream is closed.
+	 * @param level The compression level, between {@code 1} and {@code 9}.
+	 */
+	public ParallelDeflateOutputStream(OutputStream out, int level) {
+		this(out, level, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+	}
+	
+	/**
+	 * @param out Where the zlib stream is written, closed when this stream is closed.
+	 * @param level The compression level, between {@code 1} and {@code 9}.
+	 * @param exec The executor deflating blocks.
+	 * @param parallelism The number of threads of {@code exec} expected to deflate blocks.
+	 */
+	public ParallelDeflateOutputStream(OutputStream out, int level, Executor exec, int parallelism) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid deflate level "+level);
+		this.out = out;
+		this.level = level;
+		this.exec = exec;
+		maxPending = 2 * Math.max(1, parallelism);
+		block = new byte[BLOCK_SIZE];
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			int n = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == BLOCK_SIZE)
+				submit(false);
+		}
+	}
+	
+	/**
+	 * Hand the current block to a deflater, and write the blocks already deflated.
+	 * @param last {@code true} for the last block, which finishes the deflate stream.
+	 */
+	private void submit(boolean last) throws IOException {
+		if (!headerWritten) {
+			writeHeader();
+			headerWritten = true;
+		}
+		adler.update(block, 0, count);
+		final byte[] b = block, dict = previous;
+		final int n = count;
+		pending.addLast(CompletableFuture.supplyAsync(() -> deflate(b, n, dict, last), exec));
+		inUse.addLast(b);
+		previous = b;
+		block = (free.isEmpty() ? new byte[BLOCK_SIZE] : free.pollFirst());
+		count = 0;
+		while (!pending.isEmpty() && (pending.size() > maxPending || pending.peekFirst().isDone()))
+			writeDeflated();
+	}
+	
+	/**
+	 * Write the first block in progress, once deflated. Its dictionary (the block before it) can then be reused.
+	 */
+	private void writeDeflated() throws IOException {
+		ByteBuffer d;
+		try {
+			d = pending.pollFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while deflating");
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot deflate block: "+e.getCause(), e.getCause());
+		}
+		out.write(d.array(), d.arrayOffset() + d.position(), d.remaining());
+		if (inUse.size() > pending.size() + 1) // The block before the one written is no longer a dictionary
+			free.addLast(inUse.pollFirst());
+	}
+	
+	private void writeHeader() throws IOException {
+		int cmf = 0x78; // Deflate, 32 KB window
+		int flevel = (level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3);
+		int flg = flevel << 6;
+		flg += 31 - (cmf * 256 + flg) % 31;
+		out.write(cmf);
+		out.write(flg);
+	}
+	
+	/**
+	 * Deflate a block, run by the executor.
+	 * @param b The block bytes.
+	 * @param len The number of bytes in the block.
+	 * @param dict The previous block, {@code null} for the first one.
+	 * @param last {@code true} to finish the deflate stream, otherwise the block ends with a sync flush.
+	 * @return The deflated bytes.
+	 */
+	private ByteBuffer deflate(byte[] b, int len, byte[] dict, boolean last) {
+		Deflater defl = CodecPool.deflater(level, true);
+		try {
+			if (dict != null)
+				defl.setDictionary(dict, BLOCK_SIZE - DICT_SIZE, DICT_SIZE);
+			defl.setInput(b, 0, len);
+			if (last)
+				defl.finish();
+			byte[] buf = new byte[len + len / 1000 + 64];
+			int n = 0;
+			for (;;) {
+				n += (last ? defl.deflate(buf, n, buf.length - n) : defl.deflate(buf, n, buf.length - n, Deflater.SYNC_FLUSH));
+				if (last ? defl.finished() : n < buf.length) // A sync flush is complete when the output is not full
+					break;
+				if (n == buf.length)
+					buf = Arrays.copyOf(buf, 2 * buf.length);
+			}
+			return ByteBuffer.wrap(buf, 0, n);
+		} finally {
+			CodecPool.release(defl, level, true);
+		}
+	}
+	
+	/**
+	 * Write the blocks already deflated. The current block is not deflated until it is full, or the stream
+	 * is closed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty() && pending.peekFirst().isDone())
+			writeDeflated();
+		out.flush();
+	}
+	
+	/**
+	 * Deflate the last block, write all blocks and the zlib checksum, and close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submit(true);
+			while (!pending.isEmpty())
+				writeDeflated();
+			int a = (int)adler.getValue();
+			out.write(new byte[] { (byte)(a >>> 24), (byte)(a >>> 16), (byte)(a >>> 8), (byte)a });
+		} finally {
+			out.close();
+		}
+	}
+	
+}
@@ -0,0 +1,152 @@
+package net.jrf.msg;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p>Incremental {@link Message} decoder, used when messages are read from non-blocking
+ * {@link SocketChannel}s: bytes are accumulated in a {@link ByteBuffer} until a whole frame (as
+ * described in {@link Message}, in either protocol) is available, and only then is the message decoded.</p>
+ * <p>Typical use:</p>
+ * <pre>
+ * if (channel.read(decoder.buffer()) &lt; 0)
+ * 	throw new EOFException();
+ * Message msg;
+ * while ((msg = decoder.next()) != null)
+ * 	process(msg);
+ * </pre>
+ * 
+ * @author Matthieu Labas
+ */
+public class FrameDecoder {
+	
+	/** Size of the smallest {@link Message#PROTOCOL_V1} frame header: marker, message number, reply-to and type length. */
+	private static final int HEADER_SIZE = Message.MARKER.length + 2+2 + 2;
+	
+	/** Initial buffer size, to which the buffer is shrunk when it is empty. */
+	private final int size;
+	
+	/** Bytes received, not yet decoded. The buffer is always left in "write" mode between calls. */
+	private ByteBuffer buf;
+	
+	/**
+	 * Create a decoder.
+	 * @param size The initial buffer size. It will grow as needed to hold bigger frames.
+	 */
+	public FrameDecoder(int size) {
+		this.size = size;
+		buf = ByteBuffer.allocate(size);
+	}
+	
+	/**
+	 * @return The buffer to read bytes in, which always has space remaining.
+	 */
+	public ByteBuffer buffer() {
+		if (!buf.hasRemaining()) { // Frame bigger than the buffer: grow it
+			ByteBuffer nbuf = ByteBuffer.allocate(2*buf.capacity());
+			buf.flip();
+			nbuf.put(buf);
+			buf = nbuf;
+		}
+		return buf;
+	}
+	
+	/**
+	 * Decode the next message from the bytes received so far.
+	 * @return The next message, or {@code null} if a whole frame has not been received yet.
+	 * @throws IOException when the frame is corrupted, or when the message could not be decoded.
+	 */
+	public Message next() throws IOException {
+		buf.flip();
+		int start = buf.position();
+		try {
+			if (!buf.hasRemaining())
+				return null;
+			if (buf.get(start) != Message.MARKER[0]) { // PROTOCOL_V2
+				try {
+					return nextV2();
+				} catch (BufferUnderflowException e) { // Incomplete frame
+					buf.position(start);
+					return null;
+				}
+			}
+			if (buf.remaining() < HEADER_SIZE)
+				return null;
+			for (int i = 0; i < Message.MARKER.length; i++) {
+				if (buf.get() != Message.MARKER[i])
+					throw new IOException("Bad marker at byte "+i);
+			}
+			int num = buf.getShort() & 0xffff;
+			int replyTo = Message.v1ReplyTo(buf.getShort() & 0xffff);
+			int clsLen = buf.getShort();
+			if (clsLen <= 0)
+				throw new IOException("Bad message type length "+clsLen);
+			if (buf.remaining() < clsLen + 4) {
+				buf.position(start);
+				return null;
+			}
+			byte[] cls = new byte[clsLen];
+			buf.get(cls);
+			int len = buf.getInt();
+			if (buf.remaining() < len) {
+				buf.position(start);
+				return null;
+			}
+			byte[] body = new byte[len];
+			buf.get(body);
+			return Message.create(new String(cls, Message.charset), num, replyTo, body);
+		} finally {
+			buf.compact();
+			if (buf.position() == 0 && buf.capacity() > size) // Release memory used by a big frame
+				buf = ByteBuffer.allocate(size);
+		}
+	}
+	
+	/**
+	 * Decode a {@link Message#PROTOCOL_V2} frame from {@link #buf}.
+	 * @return The message.
+	 * @throws BufferUnderflowException if the frame is incomplete.
+	 * @throws IOException when the frame is corrupted, or when the message could not be decoded.
+	 */
+	private Message nextV2() throws IOException {
+		int type = buf.get() & 0xff;
+		String clsName = null;
+		if (type == 0) {
+			int clsLen = buf.getShort();
+			if (clsLen <= 0)
+				throw new IOException("Bad message type length "+clsLen);
+			byte[] cls = new byte[clsLen];
+			buf.get(cls);
+			clsName = new String(cls, Message.charset);
+		}
+		int num = getVarInt();
+		int replyTo = getVarInt() - 1;
+		int len = getVarInt();
+		if (len < 0)
+			throw new IOException("Bad body length "+len);
+		if (buf.remaining() < len)
+			throw new BufferUnderflowException();
+		byte[] body = new byte[len];
+		buf.get(body);
+		return (clsName == null ? Message.create(type, num, replyTo, body) : Message.create(clsName, num, replyTo, body));
+	}
+	
+	/**
+	 * @return The next variable-length {@code int} in {@link #buf}.
+	 * @throws BufferUnderflowException if the value is incomplete.
+	 * @throws IOException if the value is coded on more than 5 bytes.
+	 */
+	private int getVarInt() throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buf.get() & 0xff;
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+	
+}
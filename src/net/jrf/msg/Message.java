@@ -8,19 +8,36 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import net.jrf.ByteBufferOut;
 import net.jrf.Utils;
+import net.jrf.msg.file.MsgFAHash;
+import net.jrf.msg.file.MsgFALong;
+import net.jrf.msg.file.MsgFAString;
+import net.jrf.msg.file.MsgFileAction;
+import net.jrf.msg.file.MsgFileDigest;
+import net.jrf.msg.file.MsgFileInfos;
+import net.jrf.msg.file.MsgFileList;
+import net.jrf.msg.file.MsgFileLong;
 
 /**
  * <p>Abstract class handling sending of messages.</p>
  * 
  * <p><strong>ALL SUB CLASSES <em>MUST</em> IMPLEMENT A NULLARY CONSTRUCTOR</strong>, as it will be
- * used for intanciation through {@link Class#newInstance()}.</p>
+ * used for intanciation, either through the factory given to {@link #register(int, Class, Supplier)} or
+ * through {@link Class#newInstance()}.</p>
  * 
- * On the wire, the Message is transmitted as follow:
+ * <p>Two wire formats coexist. Receivers detect the format of each frame from its first byte, so peers
+ * only have to agree on the format they <em>send</em>: {@link #PROTOCOL_V1} is used until both sides
+ * announced {@link #PROTOCOL_V2} support in a {@link MsgPing} handshake.</p>
+ * 
+ * On the wire, the Message is transmitted as follow in {@link #PROTOCOL_V1}:
  * <table border="1" style="border-collapse:collapse" summary="Message network format">
  * <tr><th><strong>Field</strong></th><th><strong>Size</strong></th><th></th></tr>
  * <tr><td><strong>Marker</strong></td><td>4</td><td>{@code "_JRF"}</td></tr>
@@ -31,6 +48,17 @@ import net.jrf.Utils;
  * <tr><td><strong>Body length</strong></td><td>4</td><td></td></tr>
  * <tr><td><strong>Body content</strong></td><td><em>&lt;<code>body length</code>&gt;</em></td><td>(as returned by {@link #encode()})</td></tr>
  * </table>
+ * Message numbers are truncated to 16 bits in {@link #PROTOCOL_V1}. In {@link #PROTOCOL_V2}, they are
+ * transmitted on 32 bits and variable-length quantities (see {@link ByteBufferOut#writeVarInt(int)}) are used:
+ * <table border="1" style="border-collapse:collapse" summary="Message network format v2">
+ * <tr><th><strong>Field</strong></th><th><strong>Size</strong></th><th></th></tr>
+ * <tr><td><strong>Type ID</strong></td><td>1</td><td>As {@linkplain #register(int, Class, Supplier) registered}, never {@code '_'}</td></tr>
+ * <tr><td><strong>Type content</strong></td><td><em>2+n</em></td><td>Class name, only when type ID is {@code 0}</td></tr>
+ * <tr><td><strong>Message number</strong></td><td>1-5</td><td>Varint</td></tr>
+ * <tr><td><strong>Reply to</strong></td><td>1-5</td><td>Varint, message number + 1 (<code>0</code> if not applicable)</td></tr>
+ * <tr><td><strong>Body length</strong></td><td>1-5</td><td>Varint</td></tr>
+ * <tr><td><strong>Body content</strong></td><td><em>&lt;<code>body length</code>&gt;</em></td><td>(as returned by {@link #encode()})</td></tr>
+ * </table>
  * All sub-classes must implement {@link #encode()} and {@link #decode(byte[])} method to provide their own serialization.
  * 
  * @author Matthieu Labas
@@ -44,38 +72,137 @@ public abstract class Message {
 	
 	public static final byte[] MARKER = "_JRF".getBytes(charset);
 	
+	/** Original wire format, starting with {@link #MARKER} and the message class name. */
+	public static final int PROTOCOL_V1 = 1;
+	
+	/** Compact wire format, starting with a one-byte type ID. */
+	public static final int PROTOCOL_V2 = 2;
+	
+	/** The most recent protocol version supported. */
+	public static final int PROTOCOL = PROTOCOL_V2;
+	
+	/** Highest type ID, so that type IDs are never mistaken for the first {@link #MARKER} byte. */
+	public static final int MAX_TYPE_ID = MARKER[0] - 1;
+	
+	/** First message number. Message numbers are always above {@code 0xffff}, so that replies to
+	 * {@link #PROTOCOL_V1} frames (which only hold the lower 16 bits) are never mistaken for replies to
+	 * {@link #PROTOCOL_V2} frames. */
+	private static final int FIRST_NUM = 0x10000;
+	
 	/** Message counter. */
-	private static AtomicInteger numCounter = new AtomicInteger();
+	private static final AtomicInteger numCounter = new AtomicInteger(FIRST_NUM);
+	
+	/** Message factories, indexed by type ID. */
+	private static final AtomicReferenceArray<Supplier<? extends Message>> factories = new AtomicReferenceArray<>(MAX_TYPE_ID+1);
+	
+	/** Type IDs of registered message classes. */
+	private static final Map<Class<?>,Integer> typeIDs = new ConcurrentHashMap<>();
+	
+	/** Type IDs of registered message classes, by class name, to decode {@link #PROTOCOL_V1} frames. */
+	private static final Map<String,Integer> typeNames = new ConcurrentHashMap<>();
+	
+	static {
+		register(1, MsgAck.class, MsgAck::new);
+		register(2, MsgClose.class, MsgClose::new);
+		register(3, MsgData.class, MsgData::new);
+		register(4, MsgFlush.class, MsgFlush::new);
+		register(5, MsgGet.class, MsgGet::new);
+		register(6, MsgISAction.class, MsgISAction::new);
+		register(7, MsgOpen.class, MsgOpen::new);
+		register(8, MsgPing.class, MsgPing::new);
+		register(9, MsgRead.class, MsgRead::new);
+		register(10, MsgWrite.class, MsgWrite::new);
+		register(11, MsgFileAction.class, MsgFileAction::new);
+		register(12, MsgFALong.class, MsgFALong::new);
+		register(13, MsgFAString.class, MsgFAString::new);
+		register(14, MsgFileInfos.class, MsgFileInfos::new);
+		register(15, MsgFileList.class, MsgFileList::new);
+		register(16, MsgFileLong.class, MsgFileLong::new);
+		register(17, MsgReadAt.class, MsgReadAt::new);
+		register(18, MsgWriteAt.class, MsgWriteAt::new);
+		register(19, MsgPut.class, MsgPut::new);
+		register(20, MsgSync.class, MsgSync::new);
+		register(21, MsgFAHash.class, MsgFAHash::new);
+		register(22, MsgFileDigest.class, MsgFileDigest::new);
+		register(23, MsgDict.class, MsgDict::new);
+	}
 	
 	/** Message number. */
-	protected short num;
+	protected int num;
 	
 	/** Message number to which this message replies {@code -1} if not applicable. */
-	protected short replyTo;
+	protected int replyTo;
 	
-	protected Message(short replyTo) {
+	protected Message(int replyTo) {
 		this.replyTo = replyTo;
-		num = (short)(numCounter.incrementAndGet() & 0xffff);
+		num = nextNum();
 	}
 	
 	protected Message() {
-		this((short)-1);
+		this(-1);
+	}
+	
+	/**
+	 * @return The next message number, above {@code 0xffff} and whose lower 16 bits are neither
+	 * 		{@code 0} nor {@code 0xffff}, which have special meanings in {@link #PROTOCOL_V1}.
+	 */
+	private static int nextNum() {
+		for (;;) {
+			int n = numCounter.incrementAndGet();
+			if (n < FIRST_NUM) { // Wrapped around
+				numCounter.compareAndSet(n, FIRST_NUM);
+				continue;
+			}
+			int low = n & 0xffff;
+			if (low != 0 && low != 0xffff)
+				return n;
+		}
+	}
+	
+	/**
+	 * Register a message type, so that it is transmitted with a one-byte type ID and instantiated without
+	 * reflection in {@link #PROTOCOL_V2}. Message types that are not registered are transmitted with their
+	 * class name. Both peers have to register the same type IDs.
+	 * @param id The type ID, between {@code 1} and {@link #MAX_TYPE_ID}.
+	 * @param cls The message class.
+	 * @param factory The message factory, usually a reference to the nullary constructor.
+	 * @throws IllegalArgumentException if {@code id} is invalid or already registered.
+	 */
+	public static synchronized <M extends Message> void register(int id, Class<M> cls, Supplier<M> factory) {
+		if (id < 1 || id > MAX_TYPE_ID)
+			throw new IllegalArgumentException("Invalid type ID "+id+" for "+cls.getName());
+		if (!factories.compareAndSet(id, null, factory))
+			throw new IllegalArgumentException("Type ID "+id+" of "+cls.getName()+" already registered");
+		typeIDs.put(cls, Integer.valueOf(id));
+		typeNames.put(cls.getName(), Integer.valueOf(id));
 	}
 	
 	/**
 	 * @return This message number.
 	 */
-	public short getNum() {
+	public int getNum() {
 		return num;
 	}
 	
 	/**
 	 * @return The message number this message replies to.
 	 */
-	public short getReplyTo() {
+	public int getReplyTo() {
 		return replyTo;
 	}
 	
+	/**
+	 * Check whether this message replies to a given message. Replies to messages sent with
+	 * {@link #PROTOCOL_V1} only hold the lower 16 bits of the message number.
+	 * @param msgNum The number of the message sent.
+	 * @return {@code true} if this message is a reply to {@code msgNum}.
+	 */
+	public boolean isReplyTo(int msgNum) {
+		if (replyTo > 0xffff)
+			return replyTo == msgNum;
+		return replyTo == (msgNum & 0xffff);
+	}
+	
 	/**
 	 * Gets a {@code byte[]} String representation, where printable characters are displayed as-is
 	 * and others are shown as their hex code.
@@ -135,46 +262,102 @@ public abstract class Message {
 	 * Compute the network header overhead for a given {@link Message} subclass. Useful when precise MTU
 	 * control is needed.
 	 * @param cls The {@code Message} subclass.
-	 * @return The number of bytes overhead.
+	 * @return The number of bytes overhead in {@link #PROTOCOL_V1}, which is never less than in
+	 * 		{@link #PROTOCOL_V2}.
 	 */
 	public static int getHeaderSize(Class<? extends Message> cls) {
 		return MARKER.length + 2+2 + 2+cls.getName().getBytes(charset).length + 4;
 	}
 	
 	/**
-	 * Send the Message on the {@code Socket}.
-	 * @param sok The socket used to send the Message.
-	 * @return The message number.
+	 * Serializes the whole message frame (header and body) in {@link #PROTOCOL_V1}.
+	 * @return A byte buffer containing the frame, <strong>in which only the first {@link ByteBufferOut#size()}
+	 * 		bytes are valid!</strong>
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public ByteBufferOut frame() throws IOException {
+		return frame(PROTOCOL_V1);
+	}
+	
+	/**
+	 * Serializes the whole message frame (header and body), as it is transmitted on the wire.
+	 * @param protocol The wire format, {@link #PROTOCOL_V1} or {@link #PROTOCOL_V2}.
+	 * @return A byte buffer containing the frame, <strong>in which only the first {@link ByteBufferOut#size()}
+	 * 		bytes are valid!</strong>
 	 * @throws IOException if an I/O error occurs.
 	 */
-	public synchronized short send(Socket sok) throws IOException {
+	public ByteBufferOut frame(int protocol) throws IOException {
 		ByteBufferOut bb = encode();
 		int szEnc = bb.size();
-		String cls = getClass().getName();
-		int sz = MARKER.length+10+cls.length()+szEnc;
-		try (ByteBufferOut data = new ByteBufferOut(sz)) {
-			data.write(MARKER); // Marker
-			data.writeShort(num); // Message number
-			data.writeShort(replyTo); // Reply to
-			data.writeString(cls); // Type
-			data.writeInt(szEnc); // Body size
+		try {
+			ByteBufferOut data = new ByteBufferOut(MARKER.length+10+getClass().getName().length()+szEnc);
+			writeHeader(data, protocol, szEnc);
 			data.write(bb.getRawArray(), 0, szEnc); // Body
-			byte[] buf = data.getRawArray();
-			int len = data.size();
 			log.fine(Thread.currentThread().getName()+" sending message "+this+" ("+szEnc+" body bytes)");
-			log.finest(Thread.currentThread().getName()+"\t"+debug(buf, len));
-			sok.getOutputStream().write(buf, 0, len);
-			return num;
+			log.finest(Thread.currentThread().getName()+"\t"+debug(data.getRawArray(), data.size()));
+			return data;
 		} finally {
 			bb.close();
 		}
 	}
 	
 	/**
-	 * Receive and decode a message by reading a {@code Socket}. The appropriate {@code Message}
-	 * subclass is instanciated by reflection, using the nullary constructor of the decoded class
-	 * name. If the class cannot be found in the classpath or no nullary constructor exists, an
-	 * {@code IOException} is thrown.
+	 * Write the frame header, which is followed by the message body on the wire.
+	 * @param data The buffer to write the header to.
+	 * @param protocol The wire format, {@link #PROTOCOL_V1} or {@link #PROTOCOL_V2}.
+	 * @param szBody The size of the body, as serialized by {@link #encode()}.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	protected void writeHeader(ByteBufferOut data, int protocol, int szBody) throws IOException {
+		if (protocol >= PROTOCOL_V2) {
+			Integer id = typeIDs.get(getClass());
+			if (id != null) {
+				data.writeByte(id.intValue()); // Type ID
+			} else { // Unregistered type: send class name
+				data.writeByte(0);
+				data.writeString(getClass().getName());
+			}
+			data.writeVarInt(num); // Message number
+			data.writeVarInt(replyTo+1); // Reply to
+			data.writeVarInt(szBody); // Body size
+		} else {
+			data.write(MARKER); // Marker
+			data.writeShort(num); // Message number (lower 16 bits)
+			data.writeShort(replyTo); // Reply to
+			data.writeString(getClass().getName()); // Type
+			data.writeInt(szBody); // Body size
+		}
+	}
+	
+	/**
+	 * Send the Message on the {@code Socket}, in {@link #PROTOCOL_V1}.
+	 * @param sok The socket used to send the Message.
+	 * @return The message number.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public int send(Socket sok) throws IOException {
+		return send(sok, PROTOCOL_V1);
+	}
+	
+	/**
+	 * Send the Message on the {@code Socket}.
+	 * @param sok The socket used to send the Message.
+	 * @param protocol The wire format, {@link #PROTOCOL_V1} or {@link #PROTOCOL_V2}.
+	 * @return The message number.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public int send(Socket sok, int protocol) throws IOException {
+		try (ByteBufferOut data = frame(protocol)) {
+			sok.getOutputStream().write(data.getRawArray(), 0, data.size());
+			return num;
+		}
+	}
+	
+	/**
+	 * Receive and decode a message by reading a {@code Socket}, in either protocol. The appropriate
+	 * {@code Message} subclass is instanciated from its type ID or by reflection, using the nullary
+	 * constructor of the decoded class name. If the class cannot be found in the classpath or no nullary
+	 * constructor exists, an {@code IOException} is thrown.
 	 * @param sok The socket to read from.
 	 * @return The decoded message.
 	 * @throws IOException when reading from the socket, or when the {@code Message} subclass could
@@ -182,15 +365,73 @@ public abstract class Message {
 	 */
 	public static Message receive(Socket sok) throws IOException {
 		DataInputStream dis = new DataInputStream(sok.getInputStream()); // Do NOT close this DataInputStream, as it will cascade-close the socket InputStream, cascade-closing the socket itself!
+		int type = dis.readUnsignedByte();
+		if (type != (MARKER[0] & 0xff)) { // PROTOCOL_V2
+			String clsName = (type == 0 ? Utils.readString(dis) : null);
+			int num = Utils.readVarInt(dis);
+			int replyTo = Utils.readVarInt(dis) - 1;
+			byte[] buf = new byte[Utils.readVarInt(dis)]; // Allocate body size
+			dis.readFully(buf);
+			return (clsName == null ? create(type, num, replyTo, buf) : create(clsName, num, replyTo, buf));
+		}
+		
 		byte[] mrk = new byte[MARKER.length];
-		dis.readFully(mrk);
+		mrk[0] = (byte)type;
+		dis.readFully(mrk, 1, mrk.length-1);
 		if (!Arrays.equals(mrk, MARKER))
 			throw new IOException("Bad marker "+new String(mrk, charset));
 		mrk = null;
 		
-		short num = dis.readShort();
-		short replyTo = dis.readShort();
+		int num = dis.readUnsignedShort();
+		int replyTo = v1ReplyTo(dis.readUnsignedShort());
 		String clsName = Utils.readString(dis);
+		byte[] buf = new byte[dis.readInt()]; // Allocate body size
+		dis.readFully(buf);
+		return create(clsName, num, replyTo, buf);
+	}
+	
+	/**
+	 * @param replyTo The unsigned reply-to field of a {@link #PROTOCOL_V1} frame.
+	 * @return The reply-to message number, {@code -1} if not applicable.
+	 */
+	static int v1ReplyTo(int replyTo) {
+		return (replyTo == 0xffff ? -1 : replyTo);
+	}
+	
+	/**
+	 * Instanciate and decode a message from its {@link #PROTOCOL_V2} frame fields, using the factory
+	 * registered for {@code typeID}.
+	 * @param typeID The message type ID.
+	 * @param num The message number.
+	 * @param replyTo The message number this message replies to.
+	 * @param body The message body, as serialized by {@link #encode()}.
+	 * @return The decoded message.
+	 * @throws IOException when the type ID is unknown, or when the decoding could not be performed.
+	 */
+	static Message create(int typeID, int num, int replyTo, byte[] body) throws IOException {
+		Supplier<? extends Message> factory = (typeID <= MAX_TYPE_ID ? factories.get(typeID) : null);
+		if (factory == null)
+			throw new IOException("Unknown message type ID "+typeID);
+		return init(factory.get(), num, replyTo, body);
+	}
+	
+	/**
+	 * Instanciate and decode a message from its frame fields. The appropriate {@code Message}
+	 * subclass is instanciated by its registered factory or by reflection, using the nullary constructor
+	 * of {@code clsName}.
+	 * @param clsName The message class name.
+	 * @param num The message number.
+	 * @param replyTo The message number this message replies to.
+	 * @param body The message body, as serialized by {@link #encode()}.
+	 * @return The decoded message.
+	 * @throws IOException when the {@code Message} subclass could not be instanciated, or when the
+	 * 		decoding could not be performed.
+	 */
+	static Message create(String clsName, int num, int replyTo, byte[] body) throws IOException {
+		Integer id = typeNames.get(clsName);
+		if (id != null) // Registered type: no need for reflection
+			return create(id.intValue(), num, replyTo, body);
+		
 		Message msg;
 		Class<?> cls;
 		try {
@@ -199,19 +440,18 @@ public abstract class Message {
 			throw new IOException("Class not found "+clsName+": "+e.getMessage(), e);
 		}
 		try {
-			synchronized (Message.class) {
-				numCounter.decrementAndGet(); // The nullary constructor will pre-increment numCounter, so to prevent jumps in message numbers we have to counter it (FIXME)
-				msg = (Message)cls.newInstance();
-			}
+			msg = (Message)cls.newInstance(); // The nullary constructor increments numCounter, which only creates harmless jumps in message numbers
 		} catch (InstantiationException | IllegalAccessException e) {
 			throw new IOException("Unable to instanciate message of class "+cls+" does it define a nullary constructor?: "+e.getMessage(), e);
 		}
+		return init(msg, num, replyTo, body);
+	}
+	
+	private static Message init(Message msg, int num, int replyTo, byte[] body) throws IOException {
 		msg.num = num;
 		msg.replyTo = replyTo;
-		byte[] buf = new byte[dis.readInt()]; // Allocate body size
-		dis.readFully(buf);
-		msg.decode(buf);
-		log.fine(Thread.currentThread().getName()+" received message "+msg+" ("+buf.length+" body bytes)");
+		msg.decode(body);
+		log.fine(Thread.currentThread().getName()+" received message "+msg+" ("+body.length+" body bytes)");
 		return msg;
 	}
 	
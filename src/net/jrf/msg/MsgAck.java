@@ -5,7 +5,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 
 import net.jrf.ByteBufferOut;
-import net.jrf.Utils;
+import net.jrf.codec.Dictionary;
 
 /**
  * <p>Message received to acknowledge a command or report an error during execution of the last
@@ -31,23 +31,31 @@ public class MsgAck extends MsgFileCmd {
 	 * {@link #WARN} or {@link #ERR}). {@code null} if not present. */
 	protected String msg;
 	
+	/** The ID of the preset dictionary of the file opened, when acknowledging a {@link MsgOpen}. {@code 0}
+	 * for none. Only sent when not {@code 0}, older peers ignore it. */
+	protected int dictionary;
+	
+	/** {@code true} when acknowledging a {@link MsgOpen} if the deflated chunks of the file are transferred as
+	 * a single deflate stream. Only sent when {@code true}, after {@link #dictionary}. */
+	protected boolean contextual;
+	
 	// Mandatory no-arg constructor
 	public MsgAck() {
 		super((short)-1);
 	}
 	
-	public MsgAck(short replyTo, short fileID, long code, String msg) {
+	public MsgAck(int replyTo, short fileID, long code, String msg) {
 		super(fileID);
 		this.replyTo = replyTo;
 		this.code = code;
 		this.msg = msg;
 	}
 	
-	public MsgAck(short replyTo, short fileID) {
+	public MsgAck(int replyTo, short fileID) {
 		this(replyTo, fileID, OK);
 	}
 	
-	MsgAck(short replyTo, short fileID, long code) {
+	MsgAck(int replyTo, short fileID, long code) {
 		this(replyTo, fileID, code, null);
 	}
 	
@@ -59,6 +67,37 @@ public class MsgAck extends MsgFileCmd {
 		return msg;
 	}
 	
+	/**
+	 * @return The ID of the preset {@link Dictionary} the chunks of the file opened
+	 * 		are compressed with, {@code 0} for none.
+	 */
+	public int getDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * @param id The ID of the preset dictionary the chunks of the file opened are compressed with.
+	 */
+	public void setDictionary(int id) {
+		dictionary = id;
+	}
+	
+	/**
+	 * @return {@code true} if the deflated chunks of the file opened are transferred as a single deflate
+	 * 		stream, each chunk continuing the previous ones.
+	 */
+	public boolean isContextual() {
+		return contextual;
+	}
+	
+	/**
+	 * @param contextual {@code true} if the deflated chunks of the file opened are transferred as a single
+	 * 		deflate stream.
+	 */
+	public void setContextual(boolean contextual) {
+		this.contextual = contextual;
+	}
+	
 	@Override
 	protected ByteBufferOut encode() throws IOException {
 		byte[] _msg = null;
@@ -74,6 +113,10 @@ public class MsgAck extends MsgFileCmd {
 			if (_msg.length > 0)
 				bb.write(_msg, 0, _msg.length);
 		}
+		if (dictionary != 0 || contextual)
+			bb.writeInt(dictionary);
+		if (contextual)
+			bb.writeBoolean(true);
 		return bb;
 	}
 	
@@ -87,8 +130,13 @@ public class MsgAck extends MsgFileCmd {
 				msg = null;
 			else if (n == 0)
 				msg = "";
-			else
-				msg = Utils.readString(dis);
+			else {
+				byte[] _msg = new byte[n];
+				dis.readFully(_msg);
+				msg = new String(_msg, charset);
+			}
+			dictionary = (dis.available() >= 4 ? dis.readInt() : 0);
+			contextual = (dis.available() > 0 && dis.readBoolean());
 		}
 	}
 	
@@ -97,6 +145,10 @@ public class MsgAck extends MsgFileCmd {
 		String s = stdToString()+" on file "+fileID+" - code "+code;
 		if (msg != null)
 			s += " ["+msg+"]";
+		if (dictionary != 0)
+			s += " "+Dictionary.toString(dictionary);
+		if (contextual)
+			s += " contextual";
 		return s;
 	}
 	
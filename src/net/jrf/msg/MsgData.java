@@ -3,8 +3,11 @@ package net.jrf.msg;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import net.jrf.ByteBufferOut;
+import net.jrf.Utils;
+import net.jrf.codec.Codec;
 
 /**
  * <p>Data chunk message, used to transfer file chunks between JRF client and server.
@@ -20,9 +23,8 @@ public class MsgData extends MsgFileCmd {
 	/** Valid number of bytes in {@link #data}. */
 	protected int len;
 	
-	/** The deflate level {@link #data} was deflated with, or {@code <= 0} if {code data} is
-	 * not deflated. N.B. that the value is not necessary for inflation but is kept for potential
-	 * logging. */
+	/** The compression {@link #data} was compressed with (see {@link Codec}), or {@code <= 0} if
+	 * {@code data} is not compressed. Its codec is needed to decompress {@code data}. */
 	protected int deflate;
 	
 	/** {@code false} if this is the last reply data message. */
@@ -34,16 +36,15 @@ public class MsgData extends MsgFileCmd {
 	}
 	
 	/**
-	 * Create a new data chunk message for the specified file. If indicated ({@code deflate > 0},
-	 * the data will be deflated upon construction (i.e. by the constructor).
+	 * Create a new data chunk message for the specified file.
 	 * @param replyTo The message number asking for data.
 	 * @param fileID The file {@code data} belongs to.
 	 * @param data The chunk data.
 	 * @param len The {@code data} length.
-	 * @param deflate If {@code > 0}, {@code data} should be considered deflated.
+	 * @param deflate If {@code > 0}, the compression {@code data} was compressed with.
 	 * @param hasNext {@code true} if another data chunk is expected after this one.
 	 */
-	public MsgData(short replyTo, short fileID, byte[] data, int len, int deflate, boolean hasNext) {
+	public MsgData(int replyTo, short fileID, byte[] data, int len, int deflate, boolean hasNext) {
 		super(replyTo, fileID);
 		this.hasNext = hasNext;
 		this.deflate = deflate;
@@ -67,17 +68,48 @@ public class MsgData extends MsgFileCmd {
 		return hasNext;
 	}
 	
+	/**
+	 * Get the chunk data when it was compressed on its own (e.g. with {@link Codec#ADAPTIVE} compression),
+	 * and not as part of a compressed stream.
+	 * @return The decompressed chunk data.
+	 * @throws IOException if the data cannot be decompressed.
+	 */
+	public byte[] getChunkData() throws IOException {
+		if (deflate > 0)
+			return Utils.decompress(data, 0, len, deflate);
+		return (data.length == len ? data : Arrays.copyOf(data, len));
+	}
+	
 	@Override
 	protected ByteBufferOut encode() throws IOException {
 		ByteBufferOut bb = new ByteBufferOut(8+len);
 		bb.writeShort(fileID);
 		bb.writeByte(hasNext?1:0);
-		bb.writeByte(deflate); // Between 0 and 9
+		bb.writeByte(deflate); // Codec and level
 		bb.writeInt(len);
 		bb.write(data, 0, len);
 		return bb;
 	}
 	
+	/**
+	 * Serializes the frame of this message up to its data, which is to be sent right after it (e.g.
+	 * directly from a file, with {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+	 * The data given at creation is ignored, and can be {@code null}.
+	 * @param protocol The wire format, {@link #PROTOCOL_V1} or {@link #PROTOCOL_V2}.
+	 * @return A byte buffer containing the frame head, <strong>in which only the first {@link ByteBufferOut#size()}
+	 * 		bytes are valid!</strong>
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public ByteBufferOut frameHead(int protocol) throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(64+getClass().getName().length());
+		writeHeader(bb, protocol, 8+len);
+		bb.writeShort(fileID);
+		bb.writeByte(hasNext?1:0);
+		bb.writeByte(deflate); // Codec and level
+		bb.writeInt(len);
+		return bb;
+	}
+	
 	@Override
 	protected void decode(byte[] buf) throws IOException {
 		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
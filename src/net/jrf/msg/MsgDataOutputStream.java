@@ -0,0 +1,122 @@
+package net.jrf.msg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.Codec;
+
+/**
+ * <p>Sends the bytes written to it as {@link MsgData} chunks replying to a message, the last one (sent when
+ * the stream is closed) having no next. This is the sending side of the transfers which receiver writes
+ * each {@code MsgData} to a stream until the last one (e.g. {@link MsgGet} and {@link MsgPut}).</p>
+ * <p>The bytes are sent as they are written: to send them compressed, wrap the stream in a
+ * {@linkplain Codec#compressing(OutputStream, int, int) compressing stream}, or give a {@link ChunkCompressor}
+ * to compress each chunk on its own.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgDataOutputStream extends OutputStream {
+	
+	/** Sends a message to the other side. */
+	public static interface Sender {
+		void send(Message msg) throws IOException;
+	}
+	
+	private final Sender sender;
+	
+	private final int replyTo;
+	
+	private final short fileID;
+	
+	/** The compression of the bytes, only reported in the {@link MsgData}. */
+	private final int deflate;
+	
+	/** Compresses each chunk, {@code null} if the chunks are sent as they are. */
+	private final ChunkCompressor compressor;
+	
+	/** The next chunk to send. */
+	private final byte[] buf;
+	
+	/** Number of bytes in {@link #buf}. */
+	private int len;
+	
+	private boolean closed;
+	
+	/**
+	 * @param sender Sends the messages.
+	 * @param replyTo The message number the {@code MsgData} reply to.
+	 * @param fileID The file ID of the {@code MsgData}.
+	 * @param chunk The maximum number of bytes in each {@code MsgData}.
+	 * @param deflate The compression of the bytes written, {@code <= 0} if they are not compressed.
+	 */
+	public MsgDataOutputStream(Sender sender, int replyTo, short fileID, int chunk, int deflate) {
+		this.sender = sender;
+		this.replyTo = replyTo;
+		this.fileID = fileID;
+		this.deflate = deflate;
+		compressor = null;
+		buf = new byte[chunk];
+	}
+	
+	/**
+	 * @param sender Sends the messages.
+	 * @param replyTo The message number the {@code MsgData} reply to.
+	 * @param fileID The file ID of the {@code MsgData}.
+	 * @param chunk The maximum number of bytes in each {@code MsgData}.
+	 * @param compressor Compresses each chunk on its own, and is told the time spent sending it.
+	 */
+	public MsgDataOutputStream(Sender sender, int replyTo, short fileID, int chunk, ChunkCompressor compressor) {
+		this.sender = sender;
+		this.replyTo = replyTo;
+		this.fileID = fileID;
+		this.deflate = 0;
+		this.compressor = compressor;
+		buf = new byte[chunk];
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (n > 0) {
+			if (len == buf.length) { // Only sent when more bytes come, so that the last chunk is sent on close
+				send(true);
+				len = 0;
+			}
+			int k = Math.min(n, buf.length - len);
+			System.arraycopy(b, off, buf, len, k);
+			len += k;
+			off += k;
+			n -= k;
+		}
+	}
+	
+	/**
+	 * Send the last chunk.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		send(false);
+	}
+	
+	private void send(boolean next) throws IOException {
+		if (compressor == null) {
+			sender.send(new MsgData(replyTo, fileID, buf, len, deflate, next));
+			return;
+		}
+		ChunkCompressor.Chunk c = compressor.compress(buf, 0, len);
+		long t0 = System.nanoTime();
+		sender.send(new MsgData(replyTo, fileID, c.data, c.len, c.compression, next)); // Not compressed: c.data is buf
+		compressor.transferred(c.len, System.nanoTime() - t0);
+	}
+	
+}
@@ -0,0 +1,95 @@
+package net.jrf.msg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.codec.Dictionary;
+
+/**
+ * <p>Request of a preset {@link Dictionary} of the server, by its ID (as given when {@linkplain MsgOpen opening}
+ * a file), and its reply holding the dictionary bytes. The client then caches the dictionary, so it is only
+ * fetched once.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgDict extends Message {
+	
+	/** The dictionary ID. */
+	protected int id;
+	
+	/** The dictionary bytes, {@code null} in the request. */
+	protected byte[] dict;
+	
+	// Mandatory no-arg constructor
+	MsgDict() {
+		super();
+	}
+	
+	/**
+	 * Request a dictionary.
+	 * @param id The dictionary ID.
+	 */
+	public MsgDict(int id) {
+		super();
+		this.id = id;
+	}
+	
+	/**
+	 * Reply with a dictionary.
+	 * @param replyTo The request message number.
+	 * @param dict The dictionary.
+	 */
+	public MsgDict(int replyTo, Dictionary dict) {
+		super(replyTo);
+		id = dict.getId();
+		this.dict = dict.getBytes();
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return The dictionary bytes, {@code null} for a request.
+	 */
+	public byte[] getBytes() {
+		return dict;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(8+(dict == null ? 0 : dict.length));
+		bb.writeInt(id);
+		if (dict == null)
+			bb.writeInt(-1);
+		else {
+			bb.writeInt(dict.length);
+			bb.write(dict, 0, dict.length);
+		}
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			id = dis.readInt();
+			int n = dis.readInt();
+			if (n < 0)
+				dict = null;
+			else if (n > Dictionary.MAX_SIZE)
+				throw new IOException("Invalid dictionary size "+n);
+			else {
+				dict = new byte[n];
+				dis.readFully(dict);
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return stdToString()+" "+Dictionary.toString(id)+(dict == null ? "" : " ("+dict.length+" bytes)");
+	}
+	
+}
@@ -13,13 +13,13 @@ public abstract class MsgFileCmd extends Message {
 	
 	protected short fileID;
 	
-	public MsgFileCmd(short replyTo, short fileID) {
+	public MsgFileCmd(int replyTo, short fileID) {
 		super(replyTo);
 		this.fileID = fileID;
 	}
 	
 	public MsgFileCmd(short fileID) {
-		this((short)-1, fileID);
+		this(-1, fileID);
 	}
 	
 	public short getFileID() {
@@ -6,9 +6,12 @@ import java.io.IOException;
 
 import net.jrf.ByteBufferOut;
 import net.jrf.Utils;
+import net.jrf.codec.Codec;
 
 /**
- * Special message to request a complete file, potentially deflated.
+ * <p>Special message to request a complete file, potentially compressed.</p>
+ * <p>A range of the file can be requested instead, so that a file can be downloaded in several parts
+ * concurrently. Each range is compressed independently.</p>
  * 
  * @author Matthieu Labas
  */
@@ -17,22 +20,44 @@ public class MsgGet extends Message {
 	/** The file name to open. */
 	protected String file;
 	
-	/** The requested deflate level for chunk transfer. No deflate requested when {@code <= 0}. */
+	/** The requested compression for chunk transfer (see {@link Codec}). No compression requested when {@code <= 0}. */
 	protected int deflate;
 	
 	/** The chunk size when sending file. */
 	protected int mtu;
 	
+	/** The position of the first byte to send. */
+	protected long offset;
+	
+	/** The number of bytes to send from {@link #offset}, or {@code -1} to send up to the end of file. */
+	protected long length;
+	
 	// Mandatory no-arg constructor
 	public MsgGet() {
 		super();
+		length = -1l;
 	}
 	
 	public MsgGet(String file, int deflate, int mtu) {
+		this(file, deflate, mtu, 0l, -1l);
+	}
+	
+	/**
+	 * Request a range of a file.
+	 * @param file The file name.
+	 * @param deflate The compression to apply on the range, {@code <= 0} for none.
+	 * @param mtu The chunk size.
+	 * @param offset The position of the first byte to send.
+	 * @param length The number of bytes to send, or {@code -1} to send up to the end of file. Less bytes
+	 * 		are sent if the file ends before.
+	 */
+	public MsgGet(String file, int deflate, int mtu, long offset, long length) {
 		super();
 		this.file = file;
 		this.deflate = deflate;
 		this.mtu = mtu;
+		this.offset = offset;
+		this.length = length;
 	}
 	
 	public String getFilename() {
@@ -47,12 +72,31 @@ public class MsgGet extends Message {
 		return mtu;
 	}
 	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return {@code true} if only a range of the file is requested.
+	 */
+	public boolean isRange() {
+		return (offset != 0l || length >= 0l);
+	}
+	
 	@Override
 	protected ByteBufferOut encode() throws IOException {
 		ByteBufferOut bb = new ByteBufferOut(8+2*file.length()); // Should be enough
 		bb.writeString(file);
 		bb.writeByte(deflate);
 		bb.writeShort(mtu);
+		if (isRange()) { // Omitted for whole files, as sent by older clients
+			bb.writeLong(offset);
+			bb.writeLong(length);
+		}
 		return bb;
 	}
 	
@@ -62,12 +106,19 @@ public class MsgGet extends Message {
 			file = Utils.readString(dis);
 			deflate = dis.readByte();
 			mtu = dis.readShort() & 0xffff;
+			if (dis.available() >= 16) {
+				offset = dis.readLong();
+				length = dis.readLong();
+			} else {
+				offset = 0l;
+				length = -1l;
+			}
 		}
 	}
 	
 	@Override
 	public String toString() {
-		return stdToString()+" "+file;
+		return stdToString()+" "+file+(isRange() ? " ["+offset+"+"+length+"]" : "")+(deflate > 0 ? " "+Codec.toString(deflate) : "");
 	}
 	
 }
@@ -5,10 +5,13 @@ import java.io.DataInputStream;
 import java.io.IOException;
 
 import net.jrf.ByteBufferOut;
+import net.jrf.RemoteFileChannel;
 import net.jrf.RemoteInputStream;
 
 /**
- * <p>Perform an action on a {@link RemoteInputStream}.</p>
+ * <p>Perform an action on a {@link RemoteInputStream}, or on a {@link RemoteFileChannel} for
+ * {@link StreamAction#SIZE} and {@link StreamAction#TRUNCATE}, or on a parallel upload for
+ * {@link StreamAction#ALLOCATE}, {@link StreamAction#ATTACH} and {@link StreamAction#COMMIT}.</p>
  * @see StreamAction
  * 
  * @author Matthieu Labas
@@ -75,6 +78,16 @@ public class MsgISAction extends MsgFileCmd {
 		MARK_SUPPORTED,
 		MARK,
 		RESET,
+		/** Get the file size. */
+		SIZE,
+		/** Truncate the file to the given size. */
+		TRUNCATE,
+		/** Set the size of a file opened for parallel upload ({@code 'p'} mode). */
+		ALLOCATE,
+		/** Attach to a file opened for parallel upload on another connection of the same server. */
+		ATTACH,
+		/** Check that a file opened for parallel upload was completely written, with the given size. */
+		COMMIT,
 		;
 	}
 	
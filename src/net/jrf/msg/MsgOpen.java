@@ -6,11 +6,17 @@ import java.io.IOException;
 
 import net.jrf.ByteBufferOut;
 import net.jrf.Utils;
+import net.jrf.codec.Codec;
+import net.jrf.codec.Dictionary;
 
 /**
  * <p>Open file request.</p>
- * <p>The {@link #file} is an absolute path, as seen by the Server. An optional {@link #deflate} level
- * can be specified to activate in-place deflate when transferring file chunks.</p>
+ * <p>The {@link #file} is an absolute path, as seen by the Server. An optional {@link #deflate} compression
+ * (a deflate level, or any {@linkplain Codec codec} and level) can be specified to activate in-place
+ * compression when transferring file chunks. With deflate, the server can compress chunks with a preset
+ * {@link Dictionary} for the file, if the client {@linkplain #acceptsDictionary() accepts} it. Files read or
+ * written sequentially can also have their chunks deflated as a single stream, each chunk continuing the
+ * previous ones, if the client {@linkplain #acceptsContextual() accepts} it.</p>
  * 
  * @author Matthieu Labas
  */
@@ -19,22 +25,42 @@ public class MsgOpen extends Message {
 	/** The file name to open. */
 	protected String file;
 	
-	/** {@code "r"} to read or {@code "w"} to write. */
+	/** {@code "r"} to read, {@code "w"} to write, {@code "u"} to read and write at any position (update) or
+	 * {@code "p"} to write at any position from several connections (parallel upload, the file is truncated). */
 	protected char mode;
 	
-	/** The requested deflate level for chunk transfer. No deflate requested when {@code <= 0}. */
+	/** The requested compression for chunk transfer (see {@link Codec}). No compression requested when {@code <= 0}. */
 	protected int deflate;
 	
+	/** {@code true} if the client can compress and decompress chunks with a preset {@link Dictionary} of the
+	 * server, which ID is then given in the {@link MsgAck}. Older clients do not send it. */
+	protected boolean dictionary;
+	
+	/** {@code true} if the client can compress and decompress the deflated chunks of a file read or written
+	 * sequentially as a single deflate stream, which the server confirms in the {@link MsgAck}. Older clients
+	 * do not send it. */
+	protected boolean contextual;
+	
 	// Mandatory no-arg constructor
 	MsgOpen() {
 		super();
 	}
 	
 	public MsgOpen(String file, char mode, int deflate) {
+		this(file, mode, deflate, false);
+	}
+	
+	public MsgOpen(String file, char mode, int deflate, boolean dictionary) {
+		this(file, mode, deflate, dictionary, false);
+	}
+	
+	public MsgOpen(String file, char mode, int deflate, boolean dictionary, boolean contextual) {
 		super();
 		this.file = file;
 		this.mode = mode;
 		this.deflate = deflate;
+		this.dictionary = dictionary;
+		this.contextual = contextual;
 	}
 	
 	public String getFile() {
@@ -49,12 +75,29 @@ public class MsgOpen extends Message {
 		return deflate;
 	}
 	
+	/**
+	 * @return {@code true} if the client can use a preset dictionary of the server.
+	 */
+	public boolean acceptsDictionary() {
+		return dictionary;
+	}
+	
+	/**
+	 * @return {@code true} if the client can deflate and inflate the chunks as a single stream.
+	 * @see net.jrf.codec.ChunkCompressor#setContextual(boolean)
+	 */
+	public boolean acceptsContextual() {
+		return contextual;
+	}
+	
 	@Override
 	protected ByteBufferOut encode() throws IOException {
 		ByteBufferOut bb = new ByteBufferOut(10+2*file.length()); // Should be enough
 		bb.writeString(file);
 		bb.writeChar(mode);
 		bb.writeByte(deflate);
+		bb.writeBoolean(dictionary);
+		bb.writeBoolean(contextual);
 		return bb;
 	}
 	
@@ -64,12 +107,14 @@ public class MsgOpen extends Message {
 			file = Utils.readString(dis);
 			mode = dis.readChar();
 			deflate = dis.readByte();
+			dictionary = (dis.available() > 0 && dis.readBoolean());
+			contextual = (dis.available() > 0 && dis.readBoolean());
 		}
 	}
 	
 	@Override
 	public String toString() {
-		return stdToString()+" "+file+"["+mode+"]";
+		return stdToString()+" "+file+"["+mode+"]"+(deflate > 0 ? " "+Codec.toString(deflate) : "");
 	}
 	
 }
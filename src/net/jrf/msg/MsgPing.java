@@ -5,33 +5,57 @@ import java.io.IOException;
 import net.jrf.ByteBufferOut;
 
 /**
- * Special message to check for network connectivity.
+ * <p>Special message to check for network connectivity.</p>
+ * <p>It is also used as a handshake, when a {@link net.jrf.client.JRFClient} connects: the ping then holds
+ * the highest {@linkplain Message#PROTOCOL protocol version} supported by the client, and the server replies
+ * with the version both will use. Older peers ignore the message body, and do not reply to client pings,
+ * so both sides keep on using {@link Message#PROTOCOL_V1}.</p>
  * 
  * @author Matthieu Labas
  */
 public class MsgPing extends Message {
 	
-	public MsgPing(short replyTo) {
+	/** Protocol version, {@code 0} for a plain ping. */
+	protected int protocol;
+	
+	public MsgPing(int replyTo, int protocol) {
 		super(replyTo);
+		this.protocol = protocol;
+	}
+	
+	public MsgPing(int replyTo) {
+		this(replyTo, 0);
 	}
 	
 	// Mandatory no-arg constructor
 	public MsgPing() {
-		this((short)-1);
+		this(-1);
+	}
+	
+	/**
+	 * @return The protocol version, {@code 0} for a plain ping.
+	 */
+	public int getProtocol() {
+		return protocol;
 	}
 	
 	@Override
 	protected ByteBufferOut encode() throws IOException {
-		return new ByteBufferOut(0);
+		if (protocol <= 0)
+			return new ByteBufferOut(0);
+		ByteBufferOut bb = new ByteBufferOut(1);
+		bb.writeByte(protocol);
+		return bb;
 	}
 	
 	@Override
 	protected void decode(byte[] buf) throws IOException {
+		protocol = (buf.length == 0 ? 0 : buf[0] & 0xff);
 	}
 	
 	@Override
 	public String toString() {
-		return stdToString();
+		return stdToString()+(protocol <= 0 ? "" : " protocol "+protocol);
 	}
 	
 }
@@ -0,0 +1,91 @@
+package net.jrf.msg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.Utils;
+import net.jrf.codec.Codec;
+
+/**
+ * <p>Special message to send a complete file, potentially compressed as a whole (the counterpart of {@link MsgGet}).</p>
+ * <p>The server creates the file and replies with a {@link MsgAck} holding its file ID. The file content
+ * is then sent in {@link MsgData} messages replying to this message, the last one having no next. The
+ * server inflates them as a single stream and replies to the last one with a {@link MsgAck}. If the file
+ * cannot be written, the error {@code MsgAck} is sent right away and the next data are ignored.</p>
+ * <p>An interrupted upload can be resumed by sending the file from an offset: the remote file is then
+ * truncated to that offset, and the data are appended to it.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgPut extends Message {
+	
+	/** The file name to create. */
+	protected String file;
+	
+	/** The compression the file content is compressed with (see {@link Codec}). Not compressed when {@code <= 0}. */
+	protected int deflate;
+	
+	/** The position the data are written from, {@code 0} to create the file. */
+	protected long offset;
+	
+	// Mandatory no-arg constructor
+	public MsgPut() {
+		super();
+	}
+	
+	public MsgPut(String file, int deflate) {
+		this(file, deflate, 0l);
+	}
+	
+	/**
+	 * Resume the upload of a file.
+	 * @param file The file name.
+	 * @param deflate The compression the data are compressed with, {@code <= 0} for none.
+	 * @param offset The position to write from. The file must be at least that long.
+	 */
+	public MsgPut(String file, int deflate, long offset) {
+		super();
+		this.file = file;
+		this.deflate = deflate;
+		this.offset = offset;
+	}
+	
+	public String getFilename() {
+		return file;
+	}
+	
+	public int getDeflate() {
+		return deflate;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(8+2*file.length()); // Should be enough
+		bb.writeString(file);
+		bb.writeByte(deflate);
+		if (offset > 0) // Omitted when creating the file
+			bb.writeLong(offset);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			file = Utils.readString(dis);
+			deflate = dis.readByte();
+			offset = (dis.available() >= 8 ? dis.readLong() : 0l);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return stdToString()+" "+file+(offset > 0 ? " from "+offset : "");
+	}
+	
+}
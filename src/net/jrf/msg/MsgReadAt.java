@@ -0,0 +1,57 @@
+package net.jrf.msg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+
+/**
+ * <p>Read bytes from a file at a given position, without changing the current position of the file.
+ * Replied with a {@link MsgData}, or a {@link MsgAck} upon error.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgReadAt extends MsgRead {
+	
+	/** The position in the file to read from. */
+	protected long position;
+	
+	// Mandatory no-arg constructor
+	public MsgReadAt() {
+		super();
+	}
+	
+	public MsgReadAt(short fileID, long position, int len) {
+		super(fileID, len);
+		this.position = position;
+	}
+	
+	public long getPosition() {
+		return position;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(14);
+		bb.writeShort(fileID);
+		bb.writeLong(position);
+		bb.writeInt(len);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			fileID = dis.readShort();
+			position = dis.readLong();
+			len = dis.readInt();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return stdToString()+" "+len+" bytes at "+position+" on file "+fileID;
+	}
+	
+}
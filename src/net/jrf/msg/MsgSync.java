@@ -0,0 +1,141 @@
+package net.jrf.msg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.Delta;
+import net.jrf.Utils;
+import net.jrf.codec.Codec;
+
+/**
+ * <p>Special message to synchronize a file with a delta transfer (see {@link Delta}): only the parts of the
+ * file which are not in the receiver copy are sent.</p>
+ * <p>To download a file, the message holds the {@linkplain Delta.Signature signature} of the client copy.
+ * The server replies with the delta, in {@link MsgData} messages as for {@link MsgGet}.</p>
+ * <p>To upload a file, the server replies with the signature of its copy, in {@code MsgData} messages
+ * holding a file ID. The delta is then sent in {@code MsgData} messages with that file ID, as for
+ * {@link MsgPut}, and the server rebuilds the file in a temporary file which replaces its copy once complete.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgSync extends Message {
+	
+	/** The file name. */
+	protected String file;
+	
+	/** The compression of the delta (see {@link Codec}). Not compressed when {@code <= 0}. */
+	protected int deflate;
+	
+	/** The chunk size when sending the delta or the signature. */
+	protected int mtu;
+	
+	/** {@code true} if the file is uploaded to the server. */
+	protected boolean upload;
+	
+	/** The block size of the server signature, when uploading. */
+	protected int blockSize;
+	
+	/** The serialized signature of the client copy, when downloading. */
+	protected byte[] signature;
+	
+	// Mandatory no-arg constructor
+	public MsgSync() {
+		super();
+	}
+	
+	/**
+	 * Request the delta to download a file.
+	 * @param file The file name.
+	 * @param deflate The compression to apply on the delta, {@code <= 0} for none.
+	 * @param mtu The chunk size.
+	 * @param signature The signature of the client copy.
+	 */
+	public MsgSync(String file, int deflate, int mtu, Delta.Signature signature) {
+		super();
+		this.file = file;
+		this.deflate = deflate;
+		this.mtu = mtu;
+		upload = false;
+		blockSize = signature.getBlockSize();
+		this.signature = signature.toBytes();
+	}
+	
+	/**
+	 * Request the signature of the server copy, to upload a file.
+	 * @param file The file name.
+	 * @param deflate The compression the delta is compressed with, {@code <= 0} for none.
+	 * @param mtu The chunk size.
+	 * @param blockSize The block size of the signature.
+	 */
+	public MsgSync(String file, int deflate, int mtu, int blockSize) {
+		super();
+		this.file = file;
+		this.deflate = deflate;
+		this.mtu = mtu;
+		upload = true;
+		this.blockSize = blockSize;
+		signature = new byte[0];
+	}
+	
+	public String getFilename() {
+		return file;
+	}
+	
+	public int getDeflate() {
+		return deflate;
+	}
+	
+	public int getMTU() {
+		return mtu;
+	}
+	
+	public boolean isUpload() {
+		return upload;
+	}
+	
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	/**
+	 * @return The signature of the client copy, when downloading.
+	 * @throws IOException if the signature is invalid.
+	 */
+	public Delta.Signature getSignature() throws IOException {
+		return Delta.Signature.fromBytes(signature);
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(20+2*file.length()+signature.length);
+		bb.writeString(file);
+		bb.writeByte(deflate);
+		bb.writeInt(mtu);
+		bb.writeBoolean(upload);
+		bb.writeInt(blockSize);
+		bb.writeInt(signature.length);
+		bb.write(signature);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			file = Utils.readString(dis);
+			deflate = dis.readByte();
+			mtu = dis.readInt();
+			upload = dis.readBoolean();
+			blockSize = dis.readInt();
+			signature = new byte[dis.readInt()];
+			dis.readFully(signature);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return stdToString()+" "+file+(upload ? " [upload, blocks of "+blockSize+"]" : " [download, "+signature.length+" bytes signature]");
+	}
+	
+}
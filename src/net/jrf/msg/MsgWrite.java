@@ -5,6 +5,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 
 import net.jrf.ByteBufferOut;
+import net.jrf.codec.Codec;
 
 public class MsgWrite extends MsgFileCmd {
 	
@@ -17,9 +18,8 @@ public class MsgWrite extends MsgFileCmd {
 	/** The number of bytes to write. */
 	protected int len;
 	
-	/** The deflate level {@link #buffer} was deflated with, or {@code <= 0} if {@code buffer} is
-	 * not deflated. N.B. that the value is not necessary for inflation but is kept for potential
-	 * logging. */
+	/** The compression {@link #buffer} was compressed with (see {@link Codec}), or {@code <= 0} if
+	 * {@code buffer} is not compressed. Its codec is needed to decompress {@code buffer}. */
 	protected int deflate;
 	
 	// Mandatory no-arg constructor
@@ -55,7 +55,7 @@ public class MsgWrite extends MsgFileCmd {
 	protected ByteBufferOut encode() throws IOException {
 		ByteBufferOut bb = new ByteBufferOut(6+len);
 		bb.writeShort(fileID);
-		bb.writeByte(deflate); // Between 0 and 9
+		bb.writeByte(deflate); // Codec and level
 		bb.writeInt(len);
 		bb.write(buffer, off, len);
 		return bb;
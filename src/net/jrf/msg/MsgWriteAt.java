@@ -0,0 +1,62 @@
+package net.jrf.msg;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+
+/**
+ * <p>Write bytes to a file at a given position, without changing the current position of the file.
+ * Replied with a {@link MsgAck}.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgWriteAt extends MsgWrite {
+	
+	/** The position in the file to write to. */
+	protected long position;
+	
+	// Mandatory no-arg constructor
+	public MsgWriteAt() {
+		super();
+	}
+	
+	public MsgWriteAt(short fileID, long position, byte[] buf, int off, int len, int deflate) {
+		super(fileID, buf, off, len, deflate);
+		this.position = position;
+	}
+	
+	public long getPosition() {
+		return position;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(15+len);
+		bb.writeShort(fileID);
+		bb.writeLong(position);
+		bb.writeByte(deflate); // Codec and level
+		bb.writeInt(len);
+		bb.write(buffer, off, len);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			fileID = dis.readShort();
+			position = dis.readLong();
+			deflate = dis.readByte();
+			len = dis.readInt();
+			buffer = new byte[len];
+			dis.readFully(buffer);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return stdToString()+" "+len+" bytes at "+position+" on file "+fileID;
+	}
+	
+}
@@ -0,0 +1,72 @@
+package net.jrf.msg.file;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.Utils;
+
+/**
+ * Request the digest of a file, or of a range of it, computed by the server (see
+ * {@link Utils#digest(java.io.File, String, long, long)}). Replied with a {@link MsgFileDigest}, or with
+ * an error {@code MsgAck}.
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgFAHash extends MsgFileAction {
+	
+	/** The digest algorithm, e.g. {@value Utils#CRC32C} or {@value Utils#SHA256}. */
+	protected String algorithm;
+	
+	/** The position of the first byte to hash. */
+	protected long offset;
+	
+	/** The number of bytes to hash, or {@code -1} up to the end of the file. */
+	protected long length;
+	
+	public MsgFAHash() {
+		this(null, null, 0l, -1l);
+	}
+	
+	public MsgFAHash(String pathname, String algorithm, long offset, long length) {
+		super(FileAction.HASH, pathname);
+		this.algorithm = algorithm;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = super.encode();
+		bb.writeString(algorithm);
+		bb.writeLong(offset);
+		bb.writeLong(length);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(DataInputStream dis) throws IOException {
+		super.decode(dis);
+		algorithm = Utils.readString(dis);
+		offset = dis.readLong();
+		length = dis.readLong();
+	}
+	
+	@Override
+	public String toString() {
+		return super.toString()+" "+algorithm+(offset != 0l || length >= 0l ? " ["+offset+"+"+length+"]" : "");
+	}
+	
+}
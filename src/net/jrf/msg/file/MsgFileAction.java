@@ -93,6 +93,12 @@ public class MsgFileAction extends Message {
 		FREE_SPACE,
 		TOTAL_SPACE,
 		USABLE_SPACE,
+		
+		/** Computes the CRC32 of the first bytes of the file, to check a partial copy before resuming a transfer. */
+		CHECKSUM,
+		
+		/** Computes the digest of the file, or of a range of it (see {@link MsgFAHash}). */
+		HASH,
 		;
 	}
 	
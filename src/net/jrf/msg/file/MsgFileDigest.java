@@ -0,0 +1,57 @@
+package net.jrf.msg.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.msg.Message;
+
+/**
+ * Reply message for {@link MsgFAHash}, holding the digest.
+ * 
+ * @author Matthieu Labas
+ */
+public class MsgFileDigest extends Message {
+	
+	protected byte[] digest;
+	
+	// Mandatory nullary constructor
+	public MsgFileDigest() {
+		this(-1, new byte[0]);
+	}
+	
+	public MsgFileDigest(int replyTo, byte[] digest) {
+		super(replyTo);
+		this.digest = digest;
+	}
+	
+	public byte[] getDigest() {
+		return digest;
+	}
+	
+	@Override
+	protected ByteBufferOut encode() throws IOException {
+		ByteBufferOut bb = new ByteBufferOut(1+digest.length);
+		bb.writeByte(digest.length);
+		bb.write(digest);
+		return bb;
+	}
+	
+	@Override
+	protected void decode(byte[] buf) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf))) {
+			digest = new byte[dis.readUnsignedByte()];
+			dis.readFully(digest);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(stdToString()).append(':');
+		for (byte b : digest)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+}
@@ -21,15 +21,22 @@ public class MsgFileInfos extends Message {
 	
 	// Mandatory nullary constructor
 	public MsgFileInfos() {
-		this((short)-1, null);
+		this(-1, null);
 	}
 	
-	public MsgFileInfos(short replyTo, File f) {
+	public MsgFileInfos(int replyTo, File f) {
 		super(replyTo);
 		if (f != null)
 			infos = new FileInfos(f);
 	}
 	
+	/**
+	 * @return The file information.
+	 */
+	public FileInfos getFileInfos() {
+		return infos;
+	}
+	
 	public String getName() {
 		return infos.getName();
 	}
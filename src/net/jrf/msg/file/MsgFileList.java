@@ -25,10 +25,10 @@ public class MsgFileList extends Message {
 	
 	// Mandatory no-arg constructor
 	public MsgFileList() {
-		this((short)-1, null, false);
+		this(-1, null, false);
 	}
 	
-	public MsgFileList(short replyTo, File[] files, boolean last) {
+	public MsgFileList(int replyTo, File[] files, boolean last) {
 		super(replyTo);
 		setFiles(files);
 		this.last = last;
@@ -24,10 +24,10 @@ public class MsgFileLong extends Message {
 	
 	// Mandatory nullary constructor
 	public MsgFileLong() {
-		this((short)-1, -1l);
+		this(-1, -1l);
 	}
 	
-	public MsgFileLong(short replyTo, long val) {
+	public MsgFileLong(int replyTo, long val) {
 		super(replyTo);
 		this.val = val;
 	}
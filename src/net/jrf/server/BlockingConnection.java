@@ -0,0 +1,24 @@
+package net.jrf.server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import net.jrf.client.JRFClient;
+import net.jrf.msg.Message;
+
+/**
+ * {@link Connection} read by the {@link JRFProvider} itself, in its own thread.
+ * 
+ * @author Matthieu Labas
+ */
+interface BlockingConnection extends Connection {
+	
+	/**
+	 * Block until the next message is received from the remote client.
+	 * @return The received message.
+	 * @throws SocketTimeoutException when no message was received during {@link JRFClient#TIMEOUT}.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	Message receive() throws IOException;
+	
+}
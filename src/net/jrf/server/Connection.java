@@ -0,0 +1,81 @@
+package net.jrf.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.jrf.client.JRFClient;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgData;
+
+/**
+ * <p>Network connection between a {@link JRFProvider} and its remote {@link JRFClient}, abstracting the
+ * way messages are actually exchanged (blocking {@code Socket} or non-blocking {@code SocketChannel}).</p>
+ * <p>Messages are received either by the provider itself on a {@link BlockingConnection}, or by the
+ * {@link SelectorLoop} serving the connection.</p>
+ * 
+ * @author Matthieu Labas
+ */
+interface Connection {
+	
+	/**
+	 * Send a message to the remote client. Implementations should allow concurrent calls from several
+	 * threads (e.g. command replies and file transfers).
+	 * @param msg The message to send.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	void send(Message msg) throws IOException;
+	
+	/**
+	 * Send a data message which payload is given as a {@code ByteBuffer} instead of {@link MsgData#getData()}
+	 * (e.g. a slice of a mapped file), without copying it through the Java heap.
+	 * @param msg The data message, which {@linkplain MsgData#getLength() length} is the number of bytes
+	 * 		remaining in {@code payload}.
+	 * @param payload The payload. Its position is not changed, but it should not be modified until sent.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	void send(MsgData msg, ByteBuffer payload) throws IOException;
+	
+	/**
+	 * Send a data message which payload is read from a file instead of {@link MsgData#getData()}, without
+	 * copying it through the Java heap (with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+	 * The method returns once the payload has been handed to the network, so {@code file} can then be closed.
+	 * @param msg The data message, which {@linkplain MsgData#getLength() length} is the number of bytes to send
+	 * 		from {@code file}.
+	 * @param file The file to read the payload from.
+	 * @param position The position of the payload in {@code file}.
+	 * @throws IOException if an I/O error occurs, or if {@code file} is shorter than expected (the frame
+	 * 		is then completed with zeros).
+	 */
+	void send(MsgData msg, FileChannel file, long position) throws IOException;
+	
+	/**
+	 * Set the protocol used to send messages, once negotiated with the remote client. Received messages
+	 * are always decoded in the protocol they were sent with.
+	 * @param protocol {@link Message#PROTOCOL_V1} or {@link Message#PROTOCOL_V2}.
+	 */
+	void setProtocol(int protocol);
+	
+	/**
+	 * @return The average time to send a byte to the remote client, in ns, measured while the network was
+	 * 		the bottleneck (see {@link SendRate}). {@code < 0} if not measured yet.
+	 */
+	double getNsPerByte();
+	
+	/**
+	 * @return The local address of the connection.
+	 */
+	InetSocketAddress getLocal();
+	
+	/**
+	 * @return The address of the remote client.
+	 */
+	InetSocketAddress getRemote();
+	
+	/**
+	 * Gracefully close the connection, after pending messages have been sent.
+	 */
+	void close();
+	
+}
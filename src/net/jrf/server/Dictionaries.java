@@ -0,0 +1,199 @@
+package net.jrf.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.jrf.Utils;
+import net.jrf.codec.Dictionary;
+
+/**
+ * <p>Preset {@link Dictionary dictionaries} of a {@link JRFServer}, used to compress the chunks of the files
+ * clients open with deflate. A file uses the dictionary of its nearest directory which has one, or else the
+ * dictionary of its extension. Clients are given the ID of the dictionary when opening the file, and fetch
+ * it the first time.</p>
+ * <p>Dictionaries are {@linkplain #train(File, String, int) trained} from sample files, and extension
+ * dictionaries can be {@linkplain #save(File) saved} to and {@linkplain #load(File) loaded} from a directory,
+ * as {@code <extension>.dict} files.</p>
+ * 
+ * @author Matthieu Labas
+ */
+public class Dictionaries {
+	
+	/** Suffix of the dictionary files. */
+	public static final String SUFFIX = ".dict";
+	
+	/** Maximum number of sample files a dictionary is trained from. */
+	public static final int MAX_SAMPLES = 1000;
+	
+	/** Number of first bytes read from each sample file. */
+	public static final int SAMPLE_SIZE = 1 << 16;
+	
+	/** Dictionaries, by lower-case extension (without the dot). */
+	private final Map<String,Dictionary> byExtension = new HashMap<>();
+	
+	/** Dictionaries, by absolute directory. */
+	private final Map<Path,Dictionary> byDirectory = new HashMap<>();
+	
+	Dictionaries() {
+	}
+	
+	/**
+	 * Set the dictionary of the files with an extension.
+	 * @param extension The extension, e.g. {@code "json"}.
+	 * @param dict The dictionary, {@code null} to remove it.
+	 * @return The previous dictionary of the extension, {@code null} if none.
+	 * @throws IllegalArgumentException if another dictionary with the same ID is registered.
+	 */
+	public synchronized Dictionary put(String extension, Dictionary dict) {
+		String ext = extension.toLowerCase(Locale.ROOT);
+		if (ext.startsWith("."))
+			ext = ext.substring(1);
+		if (dict == null)
+			return byExtension.remove(ext);
+		return byExtension.put(ext, Dictionary.register(dict));
+	}
+	
+	/**
+	 * Set the dictionary of the files in a directory and its sub-directories (unless they have their own).
+	 * @param dir The directory.
+	 * @param dict The dictionary, {@code null} to remove it.
+	 * @return The previous dictionary of the directory, {@code null} if none.
+	 * @throws IllegalArgumentException if another dictionary with the same ID is registered.
+	 */
+	public synchronized Dictionary put(File dir, Dictionary dict) {
+		Path p = dir.toPath().toAbsolutePath().normalize();
+		if (dict == null)
+			return byDirectory.remove(p);
+		return byDirectory.put(p, Dictionary.register(dict));
+	}
+	
+	/**
+	 * Get the dictionary of a file.
+	 * @param file The file path.
+	 * @return The dictionary of its nearest directory, or else of its extension. {@code null} if none.
+	 */
+	public synchronized Dictionary forFile(String file) {
+		if (byDirectory.isEmpty() && byExtension.isEmpty())
+			return null;
+		Path p;
+		try {
+			p = Paths.get(file).toAbsolutePath().normalize();
+		} catch (InvalidPathException e) {
+			return null;
+		}
+		if (!byDirectory.isEmpty()) {
+			for (Path d = p.getParent(); d != null; d = d.getParent()) {
+				Dictionary dict = byDirectory.get(d);
+				if (dict != null)
+					return dict;
+			}
+		}
+		String name = String.valueOf(p.getFileName());
+		int dot = name.lastIndexOf('.');
+		return (dot < 0 ? null : byExtension.get(name.substring(dot + 1).toLowerCase(Locale.ROOT)));
+	}
+	
+	/**
+	 * Get a dictionary of an extension or a directory, as fetched by clients.
+	 * @param id The dictionary ID.
+	 * @return The dictionary, {@code null} if no extension or directory has a dictionary with that ID.
+	 */
+	synchronized Dictionary get(int id) {
+		for (Dictionary dict : byDirectory.values()) {
+			if (dict.getId() == id)
+				return dict;
+		}
+		for (Dictionary dict : byExtension.values()) {
+			if (dict.getId() == id)
+				return dict;
+		}
+		return null;
+	}
+	
+	/**
+	 * Load the extension dictionaries saved in a directory, as {@code <extension>.dict} files.
+	 * @param dir The directory.
+	 * @return The number of dictionaries loaded.
+	 * @throws IOException if a file cannot be read.
+	 */
+	public int load(File dir) throws IOException {
+		File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX) && n.length() > SUFFIX.length());
+		if (files == null)
+			throw new FileNotFoundException(dir.getPath());
+		for (File f : files) {
+			String n = f.getName();
+			put(n.substring(0, n.length() - SUFFIX.length()), new Dictionary(Files.readAllBytes(f.toPath())));
+		}
+		return files.length;
+	}
+	
+	/**
+	 * Save the extension dictionaries in a directory, as {@code <extension>.dict} files.
+	 * @param dir The directory.
+	 * @throws IOException if a file cannot be written.
+	 */
+	public void save(File dir) throws IOException {
+		Map<String,Dictionary> dicts;
+		synchronized (this) {
+			dicts = new HashMap<>(byExtension);
+		}
+		for (Map.Entry<String,Dictionary> e : dicts.entrySet())
+			Files.write(new File(dir, e.getKey()+SUFFIX).toPath(), e.getValue().getBytes());
+	}
+	
+	/**
+	 * Train a dictionary from the files of a directory (not its sub-directories), and set it as the dictionary
+	 * of the extension, or of the directory. At most {@link #MAX_SAMPLES} files are sampled, on their first
+	 * {@link #SAMPLE_SIZE} bytes.
+	 * @param dir The directory holding the sample files.
+	 * @param extension The extension of the sample files, which dictionary is set. {@code null} to sample all
+	 * 		files and set the dictionary of {@code dir}.
+	 * @param size The maximum size of the dictionary, at most {@link Dictionary#MAX_SIZE}.
+	 * @return The dictionary, {@code null} if the files do not share anything.
+	 * @throws IOException if a file cannot be read.
+	 * @see Dictionary#train(List, int)
+	 */
+	public Dictionary train(File dir, String extension, int size) throws IOException {
+		String suffix = (extension == null ? null : "."+(extension.startsWith(".") ? extension.substring(1) : extension).toLowerCase(Locale.ROOT));
+		File[] files = dir.listFiles(f -> f.isFile() && (suffix == null || f.getName().toLowerCase(Locale.ROOT).endsWith(suffix)));
+		if (files == null)
+			throw new FileNotFoundException(dir.getPath());
+		List<byte[]> samples = new ArrayList<>();
+		byte[] buf = new byte[SAMPLE_SIZE];
+		for (int i = 0; i < files.length && samples.size() < MAX_SAMPLES; i++) {
+			try (InputStream is = new FileInputStream(files[i])) {
+				int n = Utils.readFully(is, buf);
+				if (n > 0)
+					samples.add(Arrays.copyOf(buf, n));
+			}
+		}
+		Dictionary dict = Dictionary.train(samples, size);
+		if (dict != null) {
+			dict = Dictionary.register(dict);
+			if (extension == null)
+				put(dir, dict);
+			else
+				put(extension, dict);
+		}
+		return dict;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return byExtension.size()+" extension and "+byDirectory.size()+" directory dictionaries";
+	}
+	
+}
@@ -0,0 +1,95 @@
+package net.jrf.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.jrf.Utils;
+
+/**
+ * <p>Digests of files requested by clients, shared by all the {@link JRFProvider}s of a {@link JRFServer}, so that
+ * a file is not read again to compute the same digest as long as it did not change (i.e. as long as its length
+ * and modification date are the same).</p>
+ * <p>Digests being computed are shared as well: clients requesting the digest of the same file at the same
+ * time wait for the same computation.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class Digests {
+	
+	/** Default maximum number of digests kept. */
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+	
+	/** Digests, by file canonical path, length, modification date, algorithm and range, least recently used first. */
+	private LinkedHashMap<String,CompletableFuture<byte[]>> digests;
+	
+	/** Maximum size of {@link #digests}. */
+	private int maxEntries;
+	
+	Digests(int maxEntries) {
+		digests = new LinkedHashMap<>(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * Get the digest of a file, computing it if it is not known.
+	 * @see Utils#digest(File, String, long, long)
+	 */
+	byte[] get(File f, String algorithm, long offset, long length) throws IOException {
+		if (!f.isFile())
+			throw new FileNotFoundException(f.getPath());
+		long mtime = f.lastModified();
+		long len = f.length();
+		String key = f.getCanonicalPath()+'\0'+len+'\0'+mtime+'\0'+algorithm.toUpperCase()+'\0'+offset+'\0'+length;
+		CompletableFuture<byte[]> d, mine = null;
+		synchronized (this) {
+			d = digests.get(key);
+			if (d == null) {
+				d = mine = new CompletableFuture<>();
+				digests.put(key, d);
+				for (Iterator<CompletableFuture<byte[]>> it = digests.values().iterator(); digests.size() > maxEntries; ) {
+					it.next();
+					it.remove();
+				}
+			}
+		}
+		if (mine != null) { // Computed by this thread
+			try {
+				byte[] digest = Utils.digest(f, algorithm, offset, length);
+				if (f.lastModified() != mtime || f.length() != len) // Modified while computed: not reliable
+					remove(key, mine);
+				mine.complete(digest);
+			} catch (IOException | RuntimeException e) {
+				remove(key, mine);
+				mine.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return d.get().clone();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the digest of "+f, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException)
+				throw new FileNotFoundException(cause.getMessage());
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+	
+	private synchronized void remove(String key, CompletableFuture<byte[]> d) {
+		digests.remove(key, d);
+	}
+	
+	/**
+	 * @return The number of digests kept.
+	 */
+	synchronized int size() {
+		return digests.size();
+	}
+	
+}
@@ -8,60 +8,91 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterInputStream;
 
+import net.jrf.AsyncOutputStream;
+import net.jrf.Delta;
+import net.jrf.RemoteFileChannel;
 import net.jrf.RemoteInputStream;
 import net.jrf.RemoteOutputStream;
 import net.jrf.Utils;
 import net.jrf.client.JRFClient;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.ChunkInflater;
+import net.jrf.codec.Codec;
+import net.jrf.codec.CodecPool;
+import net.jrf.codec.Compressibility;
+import net.jrf.codec.Dictionary;
 import net.jrf.msg.Message;
 import net.jrf.msg.MsgAck;
 import net.jrf.msg.MsgClose;
 import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgDataOutputStream;
+import net.jrf.msg.MsgDict;
 import net.jrf.msg.MsgFlush;
 import net.jrf.msg.MsgGet;
 import net.jrf.msg.MsgISAction;
 import net.jrf.msg.MsgISAction.StreamAction;
 import net.jrf.msg.MsgOpen;
 import net.jrf.msg.MsgPing;
+import net.jrf.msg.MsgPut;
 import net.jrf.msg.MsgRead;
+import net.jrf.msg.MsgReadAt;
+import net.jrf.msg.MsgSync;
 import net.jrf.msg.MsgWrite;
+import net.jrf.msg.MsgWriteAt;
+import net.jrf.msg.file.MsgFAHash;
 import net.jrf.msg.file.MsgFALong;
 import net.jrf.msg.file.MsgFAString;
 import net.jrf.msg.file.MsgFileAction;
 import net.jrf.msg.file.MsgFileAction.FileAction;
+import net.jrf.msg.file.MsgFileDigest;
 import net.jrf.msg.file.MsgFileInfos;
 import net.jrf.msg.file.MsgFileList;
 import net.jrf.msg.file.MsgFileLong;
+import net.jrf.server.MappedFiles.MappedInputStream;
+import net.jrf.server.Uploads.Upload;
 
 /**
  * <p>The JRF Provider is the {@link JRFClient} Server counterpart, receiving and processing file
  * commands.</p>
- * <p>It keeps a list of locally opened files, corresponding to {@link RemoteInputStream}s and
- * {@link RemoteOutputStream}s on the client side.</p>
+ * <p>It keeps a list of locally opened files, corresponding to {@link RemoteInputStream}s,
+ * {@link RemoteOutputStream}s and {@link RemoteFileChannel}s on the client side.</p>
+ * <p>Messages are either read by the provider itself, in its own thread (see {@link #run()}), or received
+ * by a {@link SelectorLoop} multiplexing several connections and pushed to {@link #dispatch(Message)} by
+ * a worker thread.</p>
  * 
  * @author Matthieu Labas
  */
-public class JRFProvider extends Thread {
+public class JRFProvider implements Runnable {
 	
 	private static final Logger log = Logger.getLogger(JRFProvider.class.getName());
 	
@@ -72,7 +103,24 @@ public class JRFProvider extends Thread {
 	/** Counter for file IDs. */
 	private static final AtomicInteger fileCounter = new AtomicInteger();
 	
-	private Socket sok;
+	/** Maximum size of a decompressed chunk written, to stop on decompression bombs. */
+	private static final int MAX_CHUNK = 1 << 30;
+	
+	/** Per-thread array written chunks are decompressed to. */
+	private static final CodecPool.Buffer rawChunk = new CodecPool.Buffer();
+	
+	/** The provider name, used for logging. */
+	private String name;
+	
+	/** The connection to the remote {@link JRFClient}. */
+	private Connection con;
+	
+	/** The connection read by the provider thread, {@code null} when messages are received by a
+	 * {@link SelectorLoop}. */
+	private BlockingConnection in;
+	
+	/** The thread reading {@link #in}, when the provider {@linkplain #start() runs on its own}. */
+	private Thread thread;
 	
 	/** The Server to report close event to. */
 	private JRFServer srv;
@@ -83,8 +131,14 @@ public class JRFProvider extends Thread {
 	/** Map of locally opened files for write. Key is the file ID. */
 	private Map<Short,NamedFileOutputStream> localOS;
 	
+	/** Map of locally opened files for positional read and write. Key is the file ID. */
+	private Map<Short,NamedFileChannel> localCH;
+	
+	/** Map of files being received through {@link MsgPut} commands. Key is the file ID. */
+	private Map<Short,PutFile> localPut;
+	
 	/** When was the last network activity. */
-	private long lastActivity;
+	private volatile long lastActivity;
 	
 	/** Executor used to exchange files requested through {@link MsgGet} commands.
 	 * Such exchanges are processed in the background so other commands can be processed. */
@@ -92,37 +146,69 @@ public class JRFProvider extends Thread {
 	
 	/** Last timestamp a ping was sent. */
 	private long pingStamp;
-	private boolean pingSent;
+	private volatile boolean pingSent;
 	
 	private volatile boolean goOn;
 	
 	/**
 	 * Create a {@code JRFProvider} serving files to a remote {@link JRFClient} connected through the
-	 * given socket.
-	 * @param sok The connection to the remote {@code JRFClient}.
+	 * given connection.
+	 * @param con The connection to the remote {@code JRFClient}.
 	 * @param srv The Server creating this object.
 	 */
-	JRFProvider(Socket sok, JRFServer srv) {
+	JRFProvider(Connection con, JRFServer srv) {
 		this.srv = srv;
-		setName(JRFProvider.class.getSimpleName()+"/"+sa2Str((InetSocketAddress)sok.getLocalSocketAddress())+">"+sa2Str((InetSocketAddress)sok.getRemoteSocketAddress()));
-		try {
-			sok.setSoTimeout(JRFClient.TIMEOUT);
-		} catch (SocketException e) {
-			log.warning(getName()+": Unable to set timeout on "+sok+": "+e.getMessage());
-		}
-		// Keepalive is basically useless, we use our own ping messages
-		this.sok = sok;
+		name = JRFProvider.class.getSimpleName()+"/"+sa2Str(con.getLocal())+">"+sa2Str(con.getRemote());
+		this.con = con;
 		lastActivity = System.currentTimeMillis();
 		localIS = new HashMap<>();
 		localOS = new HashMap<>();
+		localPut = new HashMap<>();
+		localCH = new HashMap<>();
 		goOn = true;
 	}
 	
+	/**
+	 * Create a {@code JRFProvider} reading messages from the given connection in its own thread, once
+	 * {@linkplain #start() started}.
+	 * @param con The connection to the remote {@code JRFClient}.
+	 * @param srv The Server creating this object.
+	 */
+	JRFProvider(BlockingConnection con, JRFServer srv) {
+		this((Connection)con, srv);
+		in = con;
+	}
+	
+	/**
+	 * @return The provider name.
+	 */
+	public String getName() {
+		return name;
+	}
+	
 	/**
 	 * @return The address of the connected {@link JRFClient}.
 	 */
 	public InetSocketAddress getRemote() {
-		return (InetSocketAddress)sok.getRemoteSocketAddress();
+		return con.getRemote();
+	}
+	
+	/**
+	 * Start reading messages in a dedicated thread.
+	 */
+	void start() {
+		thread = Utils.newThread(this, name, srv.getEngine() == JRFServer.Engine.VIRTUAL_THREADS);
+		thread.start();
+	}
+	
+	/**
+	 * Wait for the provider thread to finish, if it was {@linkplain #start() started}.
+	 */
+	void join() {
+		if (thread == null)
+			return;
+		while (thread.isAlive())
+			try{thread.join();}catch(InterruptedException e){}
 	}
 	
 	/**
@@ -141,14 +227,54 @@ public class JRFProvider extends Thread {
 	 * @return The list of currently opened output files names.
 	 */
 	public List<String> getOpenedOutputFiles() {
+		List<String> opnd;
 		synchronized (localOS) {
-			List<String> opnd = new ArrayList<>(localOS.size());
+			opnd = new ArrayList<>(localOS.size());
 			for (NamedFileOutputStream os : localOS.values())
 				opnd.add(os.name);
+		}
+		synchronized (localPut) {
+			for (PutFile f : localPut.values())
+				opnd.add(f.name);
+		}
+		return opnd;
+	}
+	
+	/**
+	 * @return The list of currently opened files names for update (positional read and write).
+	 */
+	public List<String> getOpenedUpdateFiles() {
+		synchronized (localCH) {
+			List<String> opnd = new ArrayList<>(localCH.size());
+			for (NamedFileChannel ch : localCH.values())
+				opnd.add(ch.name);
 			return opnd;
 		}
 	}
 	
+	/**
+	 * Get an opened file for positional I/O, whatever the mode it was opened with.
+	 * @param fileID The file ID.
+	 * @return The file, or {@code null} if {@code fileID} is not opened.
+	 */
+	private ChannelFile getChannelFile(short fileID) {
+		ChannelFile f;
+		synchronized (localCH) {
+			f = localCH.get(fileID);
+		}
+		if (f == null) {
+			synchronized (localIS) {
+				f = localIS.get(fileID);
+			}
+		}
+		if (f == null) {
+			synchronized (localOS) {
+				f = localOS.get(fileID);
+			}
+		}
+		return f;
+	}
+	
 	/**
 	 * @param addr
 	 * @return {@code addr} in dotted numeric format (no DNS lookup).
@@ -180,18 +306,51 @@ public class JRFProvider extends Thread {
 				}
 			}
 		}
+		synchronized (localCH) {
+			for (NamedFileChannel ch : localCH.values()) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+					log.warning(getName()+": Exception while closing local file "+ch+": "+e.getMessage());
+				}
+			}
+		}
+		synchronized (localPut) {
+			for (PutFile f : localPut.values()) {
+				try {
+					f.close();
+				} catch (IOException e) {
+					log.warning(getName()+": Exception while closing local file "+f+": "+e.getMessage());
+				}
+			}
+		}
 		
 		// Close the connection
-		if (execFile != null) {
-			execFile.shutdown();
-			for (;;) {
-				try {
-					if (execFile.awaitTermination(1, TimeUnit.SECONDS))
-						break;
-				} catch (InterruptedException e) { }
+		final ExecutorService exec = execFile;
+		if (exec != null) {
+			exec.shutdown();
+			if (thread == null && !exec.isTerminated()) { // Run by a SelectorLoop, which must not wait for file operations
+				Thread t = Utils.newThread(() -> closeAfter(exec), name+"/close", false);
+				t.setDaemon(true);
+				t.start();
+				return;
 			}
 		}
-		JRFClient.gracefulClose(sok, true); // Close socket after executor has finished
+		closeAfter(exec);
+	}
+	
+	/**
+	 * Close the connection once the file operations have finished.
+	 * @param exec The executor running the file operations, already shut down. {@code null} if none.
+	 */
+	private void closeAfter(ExecutorService exec) {
+		while (exec != null) {
+			try {
+				if (exec.awaitTermination(1, TimeUnit.SECONDS))
+					break;
+			} catch (InterruptedException e) { }
+		}
+		con.close(); // Close connection after executor has finished
 		srv.providerClosed(this);
 	}
 	
@@ -212,47 +371,119 @@ public class JRFProvider extends Thread {
 	
 	// "Open file" command
 	private void handleOpen(MsgOpen m) throws IOException {
-		short num = m.getNum();
+		int num = m.getNum();
 		String file = m.getFile();
 		log.info(getName()+": Request open file "+file);
 		MsgAck ack;
 		try {
+			Codec.check(m.getDeflate());
 			char mode = m.getMode();
+			Dictionary dict = dictionary(m);
+			boolean contextual = contextual(m);
 			switch (mode) {
 				case 'w': {
-					NamedFileOutputStream os = new NamedFileOutputStream(m.getFile());
+					NamedFileOutputStream os = new NamedFileOutputStream(m.getFile(), contextual);
 					ack = new MsgAck(num, (short)(fileCounter.incrementAndGet() & 0xffff));
 					synchronized (localOS) {
 						localOS.put(ack.getFileID(), os);
 					}
 					break; }
 				
+				case 'u': {
+					NamedFileChannel ch = new NamedFileChannel(m.getFile(), m.getDeflate());
+					if (ch.compressor != null) {
+						ch.compressor.setDictionary(dict);
+						ch.compressor.setTransferRate(con::getNsPerByte);
+					}
+					ack = new MsgAck(num, (short)(fileCounter.incrementAndGet() & 0xffff));
+					synchronized (localCH) {
+						localCH.put(ack.getFileID(), ch);
+					}
+					break; }
+				
+				case 'p': { // Parallel upload, which the client other connections attach to
+					short fileID = (short)(fileCounter.incrementAndGet() & 0xffff);
+					NamedFileChannel ch = new NamedFileChannel(srv.getUploads(), srv.getUploads().create(m.getFile(), fileID));
+					ack = new MsgAck(num, fileID);
+					synchronized (localCH) {
+						localCH.put(fileID, ch);
+					}
+					break; }
+				
 				default:
 					log.warning("Unhandled mode '"+mode+"', assuming 'r'");
 				case 'r': {
-					NamedFileInputStream is = new NamedFileInputStream(m.getFile(), m.getDeflate());
+					NamedFileInputStream is = NamedFileInputStream.open(m.getFile(), m.getDeflate(), srv.getMappedFiles());
+					if (is.compressor != null) {
+						is.compressor.setDictionary(dict);
+						is.compressor.setContextual(contextual);
+						is.compressor.setTransferRate(con::getNsPerByte);
+					}
 					ack = new MsgAck(num, (short)(fileCounter.incrementAndGet() & 0xffff));
 					synchronized (localIS) {
 						localIS.put(ack.getFileID(), is);
 					}
 					break; }
 			}
-			log.fine(getName()+": "+file+"["+mode+"] > ID "+ack.getFileID());
+			if (dict != null && mode != 'p') // Parallel uploads are written from several connections
+				ack.setDictionary(dict.getId());
+			ack.setContextual(contextual);
+			log.fine(getName()+": "+file+"["+mode+"] > ID "+ack.getFileID()+(dict != null ? " with "+dict : "")+(contextual ? ", contextual" : ""));
 		} catch (IOException e) {
 			log.warning(getName()+": "+file+": "+e.getClass().getSimpleName()+" - "+e.getMessage());
 			ack = new MsgAck(num, (short)-1, MsgAck.WARN, e.getMessage());
 		}
 		try {
-			ack.send(sok);
+			con.send(ack);
 		} catch (IOException e) {
 			log.warning(getName()+": Unable to send open-Ack event back to requestor: "+e.getMessage());
 			throw e;
 		}
 	}
 	
+	/**
+	 * Get the preset dictionary to compress the chunks of a file with.
+	 * @param m The open request.
+	 * @return The dictionary of the file, {@code null} if there is none, or if the client or the requested
+	 * 		codec do not use dictionaries.
+	 */
+	private Dictionary dictionary(MsgOpen m) {
+		int deflate = m.getDeflate();
+		if (!m.acceptsDictionary() || deflate <= 0 || m.getMode() == 'p')
+			return null;
+		if (!Codec.isAdaptive(deflate) && !Codec.of(deflate).usesDictionary())
+			return null;
+		return srv.getDictionaries().forFile(m.getFile());
+	}
+	
+	/**
+	 * Tell whether the deflated chunks of a file are transferred as a single deflate stream.
+	 * @param m The open request.
+	 * @return {@code true} if the client accepts it, and the file is read or written sequentially with deflate
+	 * 		(or the adaptive compression). Files read or written at any position compress each chunk on its own.
+	 */
+	private static boolean contextual(MsgOpen m) {
+		int deflate = m.getDeflate();
+		if (!m.acceptsContextual() || deflate <= 0 || (m.getMode() != 'r' && m.getMode() != 'w'))
+			return false;
+		return (Codec.isAdaptive(deflate) || ChunkInflater.isContextual(deflate));
+	}
+	
+	// "Dictionary" request: reply with the dictionary bytes
+	private void handleDict(MsgDict m) throws IOException {
+		log.info(getName()+": Request "+m);
+		Dictionary d = srv.getDictionaries().get(m.getId()); // Only the dictionaries of the server, not the ones it fetched as a client
+		if (d == null) {
+			log.warning(getName()+": "+Dictionary.toString(m.getId())+" not found");
+			con.send(new MsgAck(m.getNum(), (short)-1, MsgAck.WARN, "Dictionary not found"));
+			return;
+		}
+		con.send(new MsgDict(m.getNum(), d));
+	}
+	
 	// "File read" command
 	private void handleRead(MsgRead m) throws IOException {
-		short num = m.getNum();
+		int num = m.getNum();
 		short fileID = m.getFileID();
 		int len = m.getLength();
 		log.info(getName()+": Request read "+len+" bytes from file "+fileID);
@@ -265,6 +496,17 @@ public class JRFProvider extends Thread {
 		if (is == null) { // File descriptor not found
 			log.warning(getName()+": Local file ID "+fileID+" not found");
 			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
+		} else if (is.getMapped() != null && len <= MappedFiles.MAX_SLICE) { // Send the bytes from the mapping
+			try {
+				ByteBuffer slice = is.getMapped().readSlice(len);
+				log.fine(getName()+": read "+slice.remaining()+" mapped bytes from file "+fileID);
+				sendSlice(num, fileID, slice, is.compressor, true);
+				return;
+			} catch (IOException e) {
+				String msg = e.getMessage();
+				log.warning(getName()+": Error when reading "+len+" bytes from file ID "+fileID+": "+msg);
+				ack = new MsgAck(num, fileID, MsgAck.ERR, msg);
+			}
 		} else {
 			int n = 0;
 			try {
@@ -275,16 +517,7 @@ public class JRFProvider extends Thread {
 						break;
 					n += r;
 				}
-				int defl = is.deflate;
-				if (defl > 0) {
-					byte[] bufd = Utils.deflate(buf, 0, n, defl);
-					if (bufd.length < n) { // Only apply deflate if it's worth it
-						buf = bufd;
-						n = buf.length;
-					} else
-						defl = 0;
-				}
-				data = new MsgData(num, fileID, buf, n, defl, false);
+				data = newData(num, fileID, buf, n, is.compressor, true);
 				log.fine(getName()+": read "+n+" bytes from file "+fileID);
 			} catch (IOException e) { // Exception during read
 				String msg = e.getMessage();
@@ -294,18 +527,211 @@ public class JRFProvider extends Thread {
 		}
 		try {
 			if (data != null)
-				data.send(sok);
+				sendData(data, is.compressor);
+			else
+				con.send(ack);
+		} catch (IOException e) {
+			log.warning(getName()+": Unable to send read-"+(data!=null?"Data":"Ack")+"event back to requestor: "+e.getMessage());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Create the reply to a read command.
+	 * @param num The read command number.
+	 * @param fileID The file ID.
+	 * @param buf The bytes read.
+	 * @param n The number of bytes read.
+	 * @param compressor Compresses the bytes as requested when opening the file, {@code null} for no compression.
+	 * @param next {@code true} if the bytes are the next ones of the stream, {@code false} if they were read
+	 * 		at a given position.
+	 * @return The data message, compressed if it's worth it.
+	 */
+	private static MsgData newData(int num, short fileID, byte[] buf, int n, ChunkCompressor compressor, boolean next) {
+		if (compressor == null)
+			return new MsgData(num, fileID, buf, n, 0, false);
+		ChunkCompressor.Chunk c = (next ? compressor.compressNext(buf, 0, n) : compressor.compress(buf, 0, n));
+		return new MsgData(num, fileID, c.data, c.len, c.compression, false);
+	}
+	
+	/**
+	 * Create a compressor of the chunks sent to the client, adapting to the network speed measured by the
+	 * connection.
+	 * @param deflate The compression requested.
+	 * @return The compressor.
+	 */
+	private ChunkCompressor newCompressor(int deflate) {
+		ChunkCompressor compressor = new ChunkCompressor(deflate);
+		compressor.setTransferRate(con::getNsPerByte);
+		return compressor;
+	}
+	
+	/**
+	 * Send a data message, reporting the time spent to the compressor that compressed it.
+	 * @param data The data message.
+	 * @param compressor The compressor, {@code null} if the file is not compressed.
+	 * @throws IOException if an I/O error occurs when sending the message.
+	 */
+	private void sendData(MsgData data, ChunkCompressor compressor) throws IOException {
+		long t0 = System.nanoTime();
+		con.send(data);
+		if (compressor != null)
+			compressor.transferred(data.getLength(), System.nanoTime() - t0);
+	}
+	
+	/**
+	 * Reply to a read command with bytes from a mapped file.
+	 * @param num The read command number.
+	 * @param fileID The file ID.
+	 * @param slice The bytes read.
+	 * @param compressor Compresses the bytes as requested when opening the file, {@code null} for no compression.
+	 * @param next {@code true} if the bytes are the next ones of the stream, {@code false} if they were read
+	 * 		at a given position.
+	 * @throws IOException if an I/O error occurs when sending the reply.
+	 */
+	private void sendSlice(int num, short fileID, ByteBuffer slice, ChunkCompressor compressor, boolean next) throws IOException {
+		try {
+			if (compressor != null) { // Compression needs the bytes in the heap
+				byte[] buf = new byte[slice.remaining()];
+				slice.get(buf);
+				sendData(newData(num, fileID, buf, buf.length, compressor, next), compressor);
+			} else
+				con.send(new MsgData(num, fileID, null, slice.remaining(), 0, false), slice);
+		} catch (IOException e) {
+			log.warning(getName()+": Unable to send read-Data event back to requestor: "+e.getMessage());
+			throw e;
+		}
+	}
+	
+	// "File read at position" command
+	private void handleReadAt(MsgReadAt m) throws IOException {
+		int num = m.getNum();
+		short fileID = m.getFileID();
+		int len = m.getLength();
+		long pos = m.getPosition();
+		log.info(getName()+": Request read "+len+" bytes at "+pos+" from file "+fileID);
+		MsgAck ack = null;
+		MsgData data = null;
+		ChannelFile f = getChannelFile(fileID);
+		MappedInputStream mis = (f instanceof NamedFileInputStream ? ((NamedFileInputStream)f).getMapped() : null);
+		if (f == null) { // File descriptor not found
+			log.warning(getName()+": Local file ID "+fileID+" not found");
+			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
+		} else if (mis != null && len <= MappedFiles.MAX_SLICE) { // Send the bytes from the mapping
+			ByteBuffer slice = null;
+			try {
+				slice = mis.getFile().slice(pos, len);
+			} catch (RuntimeException e) { // Invalid position or length
+				String msg = e.getMessage();
+				if (msg == null)
+					msg = e.getClass().getSimpleName();
+				log.warning(getName()+": Error when reading "+len+" bytes at "+pos+" from file ID "+fileID+": "+msg);
+				ack = new MsgAck(num, fileID, MsgAck.ERR, msg);
+			}
+			if (slice != null) {
+				log.fine(getName()+": read "+slice.remaining()+" mapped bytes at "+pos+" from file "+fileID);
+				sendSlice(num, fileID, slice, f.getCompressor(), false);
+				return;
+			}
+		} else {
+			int n = 0;
+			try {
+				FileChannel ch = f.getChannel();
+				byte[] buf = new byte[len];
+				ByteBuffer bb = ByteBuffer.wrap(buf);
+				while (n < len) {
+					int r = ch.read(bb, pos + n); // Does not change the channel position
+					if (r < 0)
+						break;
+					n += r;
+				}
+				data = newData(num, fileID, buf, n, f.getCompressor(), false);
+				log.fine(getName()+": read "+n+" bytes at "+pos+" from file "+fileID);
+			} catch (IOException | RuntimeException e) { // Exception during read (e.g. NonReadableChannelException)
+				String msg = e.getMessage();
+				if (msg == null)
+					msg = e.getClass().getSimpleName();
+				log.warning(getName()+": Error when reading "+n+"/"+len+" bytes at "+pos+" from file ID "+fileID+": "+msg);
+				ack = new MsgAck(num, fileID, MsgAck.ERR, msg);
+			}
+		}
+		try {
+			if (data != null)
+				sendData(data, f.getCompressor());
 			else
-				ack.send(sok);
+				con.send(ack);
 		} catch (IOException e) {
 			log.warning(getName()+": Unable to send read-"+(data!=null?"Data":"Ack")+"event back to requestor: "+e.getMessage());
 			throw e;
 		}
 	}
 	
+	// "File write at position" command
+	private void handleWriteAt(MsgWriteAt m) throws IOException {
+		int num = m.getNum();
+		short fileID = m.getFileID();
+		int len = m.getLength();
+		long pos = m.getPosition();
+		log.info(getName()+": Request write "+len+" bytes at "+pos+" to file "+fileID);
+		MsgAck ack;
+		ChannelFile f = getChannelFile(fileID);
+		if (f == null) { // File descriptor not found
+			log.warning(getName()+": Local file ID "+fileID+" not found");
+			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
+		} else {
+			try {
+				ByteBuffer bb = chunkData(m.getBuffer(), len, m.getDeflate());
+				len = bb.remaining();
+				FileChannel ch = f.getChannel();
+				while (bb.hasRemaining())
+					ch.write(bb, pos + bb.position()); // Does not change the channel position
+				if (f instanceof NamedFileChannel)
+					((NamedFileChannel)f).written(pos, len);
+				log.fine(getName()+": wrote "+len+" at "+pos+" to file "+fileID);
+				ack = new MsgAck(num, fileID, MsgAck.OK, null);
+			} catch (IOException | RuntimeException e) { // Exception during write (e.g. NonWritableChannelException)
+				String msg = e.getMessage();
+				if (msg == null)
+					msg = e.getClass().getSimpleName();
+				log.warning(getName()+": Error when writing "+len+" bytes at "+pos+" to file ID "+fileID+": "+msg);
+				ack = new MsgAck(num, fileID, MsgAck.ERR, msg);
+			}
+		}
+		try {
+			con.send(ack);
+		} catch (IOException e) {
+			log.warning(getName()+": Unable to send write-ack event back to requestor: "+e.getMessage());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get the bytes of a written chunk, decompressed to a per-thread array when compressed.
+	 * @param buf The chunk bytes.
+	 * @param len The number of bytes in the chunk.
+	 * @param compression The compression of the chunk, {@code 0} if not compressed.
+	 * @return The bytes to write, only valid until the thread gets another chunk.
+	 * @throws IOException if the chunk cannot be decompressed.
+	 */
+	private static ByteBuffer chunkData(byte[] buf, int len, int compression) throws IOException {
+		if (compression <= 0)
+			return ByteBuffer.wrap(buf, 0, len);
+		Codec.check(compression);
+		Codec codec = Codec.of(compression);
+		for (int size = Math.max(4 * len, 1 << 16); ; size *= 2) { // Chunks usually have the same size: grows once
+			byte[] raw = rawChunk.get(size);
+			int n = codec.decompress(buf, 0, len, raw, 0);
+			if (n >= 0)
+				return ByteBuffer.wrap(raw, 0, n);
+			if (raw.length >= MAX_CHUNK)
+				throw new IOException("Decompressed chunk is larger than "+MAX_CHUNK+" bytes");
+			size = Math.max(size, raw.length);
+		}
+	}
+	
 	// "File write" command
 	private void handleWrite(MsgWrite m) throws IOException {
-		short num = m.getNum();
+		int num = m.getNum();
 		short fileID = m.getFileID();
 		int len = m.getLength();
 		log.info(getName()+": Request write "+len+" bytes to file "+fileID);
@@ -318,13 +744,14 @@ public class JRFProvider extends Thread {
 			log.warning(getName()+": Local file ID "+fileID+" not found");
 			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
 		} else {
-			byte[] buf = m.getBuffer();
-			if (m.getDeflate() > 0) {
-				buf = Utils.inflate(buf, 0, len);
-				len = buf.length;
-			}
 			try {
-				os.write(buf, 0, len);
+				if (os.inflater != null && m.getDeflate() <= 0) // The client restarts the stream after uncompressed chunks
+					os.inflater.reset();
+				ByteBuffer bb = (os.inflater != null && ChunkInflater.isContextual(m.getDeflate()) ?
+						os.inflater.inflate(m.getBuffer(), 0, len, MAX_CHUNK) : // Continues the previous chunks
+						chunkData(m.getBuffer(), len, m.getDeflate()));
+				len = bb.remaining();
+				os.write(bb.array(), bb.position(), len);
 				log.fine(getName()+": wrote "+len+" to file "+fileID);
 				ack = new MsgAck(num, fileID, MsgAck.OK, null);
 			} catch (IOException e) { // Exception during read
@@ -334,7 +761,7 @@ public class JRFProvider extends Thread {
 			}
 		}
 		try {
-			ack.send(sok);
+			con.send(ack);
 		} catch (IOException e) {
 			log.warning(getName()+": Unable to send write-ack event back to requestor: "+e.getMessage());
 			throw e;
@@ -343,17 +770,33 @@ public class JRFProvider extends Thread {
 	
 	// "Action on file" command
 	private void handleAction(MsgISAction m) throws IOException {
-		short num = m.getNum();
+		int num = m.getNum();
 		short fileID = m.getFileID();
 		StreamAction action = m.getAction();
 		long val = m.getValue();
 		log.info(getName()+": Request "+m);
 		MsgAck ack;
-		InputStream is;
-		synchronized (localIS) {
-			is = localIS.get(fileID);
+		InputStream is = null;
+		ChannelFile f = null;
+		NamedFileChannel up = null;
+		if (action == StreamAction.SIZE || action == StreamAction.TRUNCATE) { // Actions on any opened file
+			f = getChannelFile(fileID);
+		} else if (action == StreamAction.ALLOCATE || action == StreamAction.COMMIT) { // Actions on parallel uploads
+			synchronized (localCH) {
+				up = localCH.get(fileID);
+			}
+			if (up != null && up.upload == null) // Not an upload
+				up = null;
+			f = up;
+		} else if (action == StreamAction.ATTACH) {
+			handleAttach(m);
+			return;
+		} else {
+			synchronized (localIS) {
+				is = localIS.get(fileID);
+			}
 		}
-		if (is == null) { // File descriptor not found
+		if (is == null && f == null) { // File descriptor not found
 			log.warning(getName()+": Local file ID "+fileID+" not found");
 			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
 		} else {
@@ -366,26 +809,62 @@ public class JRFProvider extends Thread {
 					case MARK: is.mark((int)val); break;
 					case RESET: is.reset(); break;
 					case SKIP: ret = is.skip(val); break;
+					case SIZE: ret = f.getChannel().size(); break;
+					case TRUNCATE: ret = f.getChannel().truncate(val).size(); break;
+					case ALLOCATE: up.upload.allocate(val); ret = val; break;
+					case COMMIT: up.upload.commit(val); ret = val; break;
+					case ATTACH: break; // Handled above
 				}
 				ack = new MsgAck(num, fileID, ret, null);
 				log.fine(getName()+": Performed "+action+"="+ret+" on file "+fileID);
-			} catch (IOException e) { // Exception during action
+			} catch (IOException | RuntimeException e) { // Exception during action (e.g. NonWritableChannelException)
 				String msg = e.getMessage();
+				if (msg == null)
+					msg = e.getClass().getSimpleName();
 				log.warning(getName()+": Error when performing "+action+"/"+val+" on file ID "+fileID+": "+msg);
 				ack = new MsgAck(num, fileID, MsgAck.ERR, msg);
 			}
 		}
 		try {
-			ack.send(sok);
+			con.send(ack);
 		} catch (IOException e) {
 			log.warning(getName()+": Unable to send "+action+"-Ack event back to requestor: "+e.getMessage());
 			throw e;
 		}
 	}
 	
+	// "Attach to parallel upload" command: the upload file ID is used on this connection as well
+	private void handleAttach(MsgISAction m) throws IOException {
+		int num = m.getNum();
+		short fileID = m.getFileID();
+		MsgAck ack;
+		Upload u = srv.getUploads().attach(fileID);
+		if (u == null) {
+			log.warning(getName()+": Upload file ID "+fileID+" not found");
+			ack = new MsgAck(num, fileID, MsgAck.WARN, "File not found");
+		} else {
+			NamedFileChannel old;
+			synchronized (localCH) {
+				old = localCH.get(fileID);
+				if (old == null)
+					localCH.put(fileID, new NamedFileChannel(srv.getUploads(), u));
+			}
+			if (old != null) // Already attached (e.g. created on this connection)
+				srv.getUploads().release(u);
+			log.fine(getName()+": Attached to upload "+u+" as file "+fileID);
+			ack = new MsgAck(num, fileID, MsgAck.OK, null);
+		}
+		try {
+			con.send(ack);
+		} catch (IOException e) {
+			log.warning(getName()+": Unable to send attach-ack event back to requestor: "+e.getMessage());
+			throw e;
+		}
+	}
+	
 	// "Flush on file" command
 	private void handleFlush(MsgFlush m) throws IOException {
-		short num = m.getNum();
+		int num = m.getNum();
 		short fileID = m.getFileID();
 		log.info(getName()+": Request "+m);
 		MsgAck ack;
@@ -399,7 +878,7 @@ public class JRFProvider extends Thread {
 		} else {
 			try {
 				os.flush();
-				ack = new MsgAck(num, fileID, 1l, null);
+				ack = new MsgAck(num, fileID, MsgAck.OK, null);
 				log.fine(getName()+": Performed flush on file "+fileID);
 			} catch (IOException e) {
 				String msg = e.getMessage();
@@ -408,7 +887,7 @@ public class JRFProvider extends Thread {
 			}
 		}
 		try {
-			ack.send(sok);
+			con.send(ack);
 		} catch (IOException e) {
 			log.warning(getName()+": Unable to send flush-ack event back to requestor: "+e.getMessage());
 			throw e;
@@ -421,11 +900,21 @@ public class JRFProvider extends Thread {
 		log.info(getName()+": Request close file "+fileID);
 		Closeable stream;
 		synchronized (localIS) {
-			stream = localIS.get(m.getFileID());
+			stream = localIS.remove(m.getFileID());
 		}
 		if (stream == null) { // Maybe an OutputStream?
 			synchronized (localOS) {
-				stream = localOS.get(m.getFileID());
+				stream = localOS.remove(m.getFileID());
+			}
+		}
+		if (stream == null) { // Maybe a channel?
+			synchronized (localCH) {
+				stream = localCH.remove(m.getFileID());
+			}
+		}
+		if (stream == null) { // Maybe an aborted file PUT?
+			synchronized (localPut) {
+				stream = localPut.remove(m.getFileID());
 			}
 		}
 		if (stream == null) { // File descriptor not found
@@ -443,44 +932,144 @@ public class JRFProvider extends Thread {
 	// "File get" command
 	private void handleFileGet(final MsgGet m) throws IOException {
 		log.info(getName()+": Request get file "+m.getFilename());
-		if (execFile == null)
-			execFile = Executors.newSingleThreadExecutor(); // TODO: Or multi-thread (but parallelizing disk I/O might not be a good thing...)
 		try {
-			execFile.execute(new Runnable() {
+			getFileExecutor().execute(new Runnable() {
 				@Override public void run() {
-					byte[] buf = new byte[m.getMTU() - Message.getHeaderSize(MsgData.class)];
+					int chunk = m.getMTU() - Message.getHeaderSize(MsgData.class);
 					String name = m.getFilename();
 					Thread.currentThread().setName("GET "+name);
-					short replyTo = m.getNum();
+					int replyTo = m.getNum();
 					int deflate = m.getDeflate();
-					Deflater defl = null;
-					InputStream is = null;
-					try (InputStream topis = new BufferedInputStream(new FileInputStream(name), 2*buf.length)) {
-						if (deflate > 0) {
-							defl = new Deflater(deflate);
-							is = new DeflaterInputStream(topis, defl);
-						} else
-							is = topis;
-						
-						int n;
-						boolean next = true;
-						while (next) {
-							n = Utils.readFully(is, buf);
-							next = (n == buf.length);
-							new MsgData(replyTo, (short)-1, buf, n, deflate, next).send(sok);
+					if (deflate <= 0) { // Send file chunks straight from the page cache
+						try (FileChannel fc = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+							long size = fc.size();
+							long pos = Math.min(m.getOffset(), size);
+							long end = (m.getLength() < 0 ? size : Math.min(size, pos + m.getLength()));
+							boolean next = true;
+							while (next) {
+								int n = (int)Math.min(chunk, end - pos);
+								next = (pos + n < end);
+								con.send(new MsgData(replyTo, (short)-1, null, n, 0, next), fc, pos);
+								pos += n;
+							}
+						} catch (IOException | InvalidPathException ex) {
+							try {
+								con.send(new MsgAck(replyTo, (short)-1, MsgAck.ERR, ex.getMessage()));
+							} catch (IOException e) {
+								log.severe("I/O error when sending I/O error report on file GET "+name+": "+e.getMessage());
+							}
 						}
+						return;
+					}
+					byte[] buf = new byte[chunk];
+					try (InputStream topis = (new File(name).length() >= MappedFiles.MAP_THRESHOLD ?
+							new MappedInputStream(srv.getMappedFiles(), name) :
+							new BufferedInputStream(new FileInputStream(name), 2*buf.length))) {
+						InputStream rawis = topis;
+						if (m.isRange()) { // Each range is compressed on its own
+							for (long skip = m.getOffset(); skip > 0; ) {
+								long n = topis.skip(skip);
+								if (n <= 0)
+									break; // End of file: nothing to send
+								skip -= n;
+							}
+							if (m.getLength() >= 0)
+								rawis = new RangeInputStream(topis, m.getLength());
+						}
+						Codec.check(deflate);
+						if (Codec.isAdaptive(deflate)) { // Each chunk is compressed on its own
+							sendChunks(replyTo, rawis, buf, newCompressor(deflate));
+							return;
+						}
+						// Compressed by blocks on several CPUs (when the codec can), sent in order as they are compressed
+						OutputStream os = Codec.of(deflate).compressing(new MsgDataOutputStream(con::send, replyTo, (short)-1, chunk, deflate),
+								Codec.getLevel(deflate), chunk, ForkJoinPool.commonPool());
+						int n;
+						while ((n = rawis.read(buf)) >= 0)
+							os.write(buf, 0, n);
+						os.close(); // Sends the last chunk. Not closed on error, as the error is sent instead
 					} catch (IOException ex) {
 						try {
-							new MsgAck(m.getReplyTo(), (short)-1, MsgAck.ERR, ex.getMessage()).send(sok);
+							con.send(new MsgAck(replyTo, (short)-1, MsgAck.ERR, ex.getMessage()));
 						} catch (IOException e) {
 							log.severe("I/O error when sending I/O error report on file GET "+name+": "+e.getMessage());
 						}
-					} finally {
-						if (defl != null) {
-							defl.end();
-							try {
-								is.close(); // 'is' is the DeflaterInputStream
-							} catch (IOException e) { }
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Provider is closing... "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Send a file as chunks compressed on their own.
+	 * @param replyTo The message number the chunks reply to.
+	 * @param is The file content.
+	 * @param buf The buffer of a chunk.
+	 * @param compressor Compresses each chunk.
+	 * @throws IOException if an I/O error occurs when reading the file or sending a chunk.
+	 */
+	private void sendChunks(int replyTo, InputStream is, byte[] buf, ChunkCompressor compressor) throws IOException {
+		boolean next = true;
+		while (next) {
+			int n = Utils.readFully(is, buf);
+			next = (n == buf.length);
+			ChunkCompressor.Chunk c = compressor.compress(buf, 0, n);
+			long t0 = System.nanoTime();
+			con.send(new MsgData(replyTo, (short)-1, c.data, c.len, c.compression, next));
+			compressor.transferred(c.len, System.nanoTime() - t0);
+		}
+	}
+	
+	// "File put" command: reply with MsgAck holding the file ID, then receive the file content as MsgData
+	private void handleFilePut(MsgPut m) throws IOException {
+		int num = m.getNum();
+		String file = m.getFilename();
+		log.info(getName()+": Request put file "+file);
+		MsgAck ack;
+		try {
+			Codec.check(m.getDeflate());
+			PutFile f = new PutFile(file, num, m.getDeflate(), m.getOffset());
+			ack = new MsgAck(num, (short)(fileCounter.incrementAndGet() & 0xffff));
+			synchronized (localPut) {
+				localPut.put(ack.getFileID(), f);
+			}
+			log.fine(getName()+": "+file+"[put] > ID "+ack.getFileID());
+		} catch (IOException e) {
+			log.warning(getName()+": "+file+": "+e.getClass().getSimpleName()+" - "+e.getMessage());
+			ack = new MsgAck(num, (short)-1, MsgAck.WARN, e.getMessage());
+		}
+		try {
+			con.send(ack);
+		} catch (IOException e) {
+			log.warning(getName()+": Unable to send put-Ack event back to requestor: "+e.getMessage());
+			throw e;
+		}
+	}
+	
+	// "File sync" command: send the delta of the file to the client signature, or the signature of the file
+	// when uploading, the delta being then received as for "File put"
+	private void handleSync(final MsgSync m) throws IOException {
+		log.info(getName()+": Request sync file "+m.getFilename()+(m.isUpload() ? " (upload)" : ""));
+		try {
+			getFileExecutor().execute(new Runnable() {
+				@Override public void run() {
+					String name = m.getFilename();
+					Thread.currentThread().setName("SYNC "+name);
+					int chunk = m.getMTU() - Message.getHeaderSize(MsgData.class);
+					try {
+						Codec.check(m.getDeflate());
+						if (m.isUpload())
+							sendSignature(m, chunk);
+						else
+							sendDelta(m, chunk);
+					} catch (IOException | InvalidPathException ex) {
+						log.warning(getName()+": "+name+": "+ex.getClass().getSimpleName()+" - "+ex.getMessage());
+						try {
+							con.send(new MsgAck(m.getNum(), (short)-1, (ex instanceof FileNotFoundException ? MsgAck.WARN : MsgAck.ERR), ex.getMessage()));
+						} catch (IOException e) {
+							log.severe("I/O error when sending I/O error report on file SYNC "+name+": "+e.getMessage());
 						}
 					}
 				}
@@ -490,35 +1079,199 @@ public class JRFProvider extends Thread {
 		}
 	}
 	
+	private void sendDelta(MsgSync m, int chunk) throws IOException {
+		Delta.Signature sig = m.getSignature();
+		try (InputStream is = new BufferedInputStream(new FileInputStream(m.getFilename()), 1 << 16)) {
+			OutputStream os;
+			if (Codec.isAdaptive(m.getDeflate())) {
+				os = new MsgDataOutputStream(con::send, m.getNum(), (short)-1, chunk, newCompressor(m.getDeflate()));
+			} else {
+				os = new MsgDataOutputStream(con::send, m.getNum(), (short)-1, chunk, m.getDeflate());
+				if (m.getDeflate() > 0)
+					os = Codec.of(m.getDeflate()).compressing(os, Codec.getLevel(m.getDeflate()), chunk);
+			}
+			long lit = Delta.diff(sig, is, os);
+			os.close();
+			log.fine(getName()+": Sent "+lit+" literal bytes of "+m.getFilename()+" against "+sig);
+		}
+	}
+	
+	private void sendSignature(MsgSync m, int chunk) throws IOException {
+		int bs = m.getBlockSize();
+		if (bs < Delta.MIN_BLOCK || bs > Delta.MAX_BLOCK)
+			throw new IOException("Invalid block size "+bs);
+		SyncFile f = SyncFile.create(m.getFilename(), m.getNum(), m.getDeflate(), bs);
+		short fileID = (short)(fileCounter.incrementAndGet() & 0xffff);
+		Delta.Signature sig;
+		try {
+			sig = f.signature();
+		} catch (IOException e) {
+			f.close();
+			throw e;
+		}
+		synchronized (localPut) { // Before the signature is sent, as the delta follows
+			localPut.put(fileID, f);
+		}
+		log.fine(getName()+": "+m.getFilename()+"[sync] > ID "+fileID+", "+sig);
+		try (OutputStream os = new MsgDataOutputStream(con::send, m.getNum(), fileID, chunk, 0)) {
+			os.write(sig.toBytes());
+		}
+	}
+	
+	// File content of a "File put" command: decompressed in the file, the last one is replied with MsgAck
+	private void handlePutData(MsgData m) throws IOException {
+		short fileID = m.getFileID();
+		int len = m.getLength();
+		log.info(getName()+": Received "+len+" bytes for file "+fileID);
+		PutFile f;
+		synchronized (localPut) {
+			f = (m.hasNext() ? localPut.get(fileID) : localPut.remove(fileID));
+		}
+		if (f == null) { // File descriptor not found
+			log.warning(getName()+": Local file ID "+fileID+" not found");
+			if (!m.hasNext())
+				con.send(new MsgAck(m.getReplyTo(), fileID, MsgAck.WARN, "File not found"));
+			return;
+		}
+		MsgAck ack = null;
+		if (!f.failed) { // Once failed, the data still received are ignored
+			try {
+				f.write(m);
+				if (!m.hasNext()) {
+					f.finish();
+					log.fine(getName()+": Received file "+f.name);
+					ack = new MsgAck(f.num, fileID, MsgAck.OK, null);
+				}
+			} catch (IOException e) { // Reported right away, so that the client stops sending
+				String msg = e.getMessage();
+				log.warning(getName()+": Error when writing "+len+" bytes to file ID "+fileID+": "+msg);
+				f.failed = true;
+				ack = new MsgAck(f.num, fileID, MsgAck.ERR, msg);
+			}
+		}
+		if (f.failed && !m.hasNext()) {
+			try {
+				f.close();
+			} catch (IOException e) { }
+		}
+		if (ack != null) {
+			try {
+				con.send(ack);
+			} catch (IOException e) {
+				log.warning(getName()+": Unable to send put-ack event back to requestor: "+e.getMessage());
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * @return The executor running the {@link MsgGet} transfers, and other long file operations, created
+	 * 		when first needed.
+	 */
+	private synchronized ExecutorService getFileExecutor() {
+		if (execFile == null) {
+			if (srv.getEngine() == JRFServer.Engine.VIRTUAL_THREADS) // Virtual threads are cheap: one per transfer
+				execFile = Utils.newVirtualThreadPerTaskExecutor();
+			if (execFile == null)
+				execFile = newFileExecutor();
+		}
+		return execFile;
+	}
+	
+	/**
+	 * Create the executor running the {@link MsgGet} transfers of a client. Several transfers can run at
+	 * once, e.g. the ranges of a file downloaded in parallel, whose deflate is then spread on several CPUs.
+	 * Threads are released when the client stops requesting files.
+	 * @return The executor.
+	 */
+	private static ExecutorService newFileExecutor() {
+		int n = Runtime.getRuntime().availableProcessors();
+		ThreadPoolExecutor exec = new ThreadPoolExecutor(n, n, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		exec.allowCoreThreadTimeOut(true);
+		return exec;
+	}
+	
 	// Any operation on RemoteFile
 	private void handleFileOp(MsgFileAction msg) throws IOException {
 		log.info(getName()+": Request FileOp "+msg);
 		
 		FileAction action = msg.getAction();
-		short num = msg.getNum();
+		int num = msg.getNum();
 		File f = msg.getFile();
 		switch (action) {
-			case GET_ATTRIBUTES: new MsgFileInfos(num, f).send(sok); break;
+			case GET_ATTRIBUTES: con.send(new MsgFileInfos(num, f)); break;
 			
-			case LIST_FILES: new MsgFileList(num, f.listFiles(), true).send(sok); break;
-			case LIST_ROOTS: new MsgFileList(num, File.listRoots(), true).send(sok); break;
+			case LIST_FILES: con.send(new MsgFileList(num, f.listFiles(), true)); break;
+			case LIST_ROOTS: con.send(new MsgFileList(num, File.listRoots(), true)); break;
 			
-			case CREATE_NEW: new MsgFileLong(num, f.createNewFile() ? 1l : 0l).send(sok); break;
-			case DELETE: new MsgFileLong(num, f.delete() ? 1l : 0l).send(sok); break;
-			case MKDIR: new MsgFileLong(num, f.mkdir() ? 1l : 0l).send(sok); break;
-			case MKDIRS: new MsgFileLong(num, f.mkdirs() ? 1l : 0l).send(sok); break;
+			case CREATE_NEW: con.send(new MsgFileLong(num, f.createNewFile() ? 1l : 0l)); break;
+			case DELETE: con.send(new MsgFileLong(num, f.delete() ? 1l : 0l)); break;
+			case MKDIR: con.send(new MsgFileLong(num, f.mkdir() ? 1l : 0l)); break;
+			case MKDIRS: con.send(new MsgFileLong(num, f.mkdirs() ? 1l : 0l)); break;
 			
-			case RENAME: new MsgFileLong(num, f.renameTo(new File(((MsgFAString)msg).getValue())) ? 1l : 0l).send(sok); break;
+			case RENAME: con.send(new MsgFileLong(num, f.renameTo(new File(((MsgFAString)msg).getValue())) ? 1l : 0l)); break;
 			
-			case SET_EXECUTE: new MsgFileLong(num, f.setExecutable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l).send(sok); break;
-			case SET_LAST_MODIFIED: new MsgFileLong(num, f.setLastModified(((MsgFALong)msg).getValue()) ? 1l : 0l).send(sok); break;
-			case SET_READ: new MsgFileLong(num, f.setReadable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l).send(sok); break;
-			case SET_READONLY: new MsgFileLong(num, f.setReadOnly() ? 1l : 0l).send(sok); break;
-			case SET_WRITE: new MsgFileLong(num, f.setWritable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l).send(sok); break;
+			case SET_EXECUTE: con.send(new MsgFileLong(num, f.setExecutable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l)); break;
+			case SET_LAST_MODIFIED: con.send(new MsgFileLong(num, f.setLastModified(((MsgFALong)msg).getValue()) ? 1l : 0l)); break;
+			case SET_READ: con.send(new MsgFileLong(num, f.setReadable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l)); break;
+			case SET_READONLY: con.send(new MsgFileLong(num, f.setReadOnly() ? 1l : 0l)); break;
+			case SET_WRITE: con.send(new MsgFileLong(num, f.setWritable(((MsgFALong)msg).getValue() != 0l) ? 1l : 0l)); break;
 			
-			case FREE_SPACE: new MsgFileLong(num, f.getFreeSpace()).send(sok); break;
-			case TOTAL_SPACE: new MsgFileLong(num, f.getTotalSpace()).send(sok); break;
-			case USABLE_SPACE: new MsgFileLong(num, f.getUsableSpace()).send(sok); break;
+			case FREE_SPACE: con.send(new MsgFileLong(num, f.getFreeSpace())); break;
+			case TOTAL_SPACE: con.send(new MsgFileLong(num, f.getTotalSpace())); break;
+			case USABLE_SPACE: con.send(new MsgFileLong(num, f.getUsableSpace())); break;
+			
+			case CHECKSUM: handleChecksum(num, f, ((MsgFALong)msg).getValue()); break;
+			case HASH: handleHash((MsgFAHash)msg); break;
+		}
+	}
+	
+	// Digest of a file, computed in the background so that several files are hashed in parallel
+	private void handleHash(final MsgFAHash m) throws IOException {
+		try {
+			getFileExecutor().execute(new Runnable() {
+				@Override public void run() {
+					File f = m.getFile();
+					Message reply;
+					try {
+						reply = new MsgFileDigest(m.getNum(), srv.getDigests().get(f, m.getAlgorithm(), m.getOffset(), m.getLength()));
+					} catch (IOException | InvalidPathException e) {
+						log.warning(getName()+": Unable to compute "+m.getAlgorithm()+" of "+f+": "+e.getMessage());
+						reply = new MsgAck(m.getNum(), (short)-1, (e instanceof FileNotFoundException ? MsgAck.WARN : MsgAck.ERR), e.getMessage());
+					}
+					try {
+						con.send(reply);
+					} catch (IOException e) {
+						log.warning(getName()+": Unable to send digest of "+f+" back to requestor: "+e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Provider is closing... "+e.getMessage());
+		}
+	}
+	
+	// Checksum of the beginning of a file, computed in the background as the file can be big
+	private void handleChecksum(final int num, final File f, final long length) throws IOException {
+		try {
+			getFileExecutor().execute(new Runnable() {
+				@Override public void run() {
+					long crc;
+					try {
+						crc = Utils.crc32(f, length);
+					} catch (IOException | InvalidPathException e) {
+						log.warning(getName()+": Unable to compute checksum of "+f+": "+e.getMessage());
+						crc = -1l;
+					}
+					try {
+						con.send(new MsgFileLong(num, crc));
+					} catch (IOException e) {
+						log.warning(getName()+": Unable to send checksum of "+f+" back to requestor: "+e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Provider is closing... "+e.getMessage());
 		}
 	}
 	
@@ -531,12 +1284,12 @@ public class JRFProvider extends Thread {
 		long t0 = System.currentTimeMillis();
 		long dead = t0 - lastActivity;
 //		log.finest(this+": "+dead+" ms inactivity");
-		if (dead < JRFServer.CLIENT_TIMEOUT)
+		if (dead < JRFServer.CLIENT_TIMEOUT || pingSent)
 			return false;
 		
 		log.fine(getName()+": No activity for "+(dead/1000)+"s. Pinging...");
 		try {
-			new MsgPing().send(sok);
+			con.send(new MsgPing());
 			pingStamp = t0;
 			pingSent = true;
 		} catch (IOException e) {
@@ -546,58 +1299,109 @@ public class JRFProvider extends Thread {
 		return true;
 	}
 	
+	/**
+	 * Ping the client if needed, and check it answered a previous ping.
+	 * @return {@code false} if the client did not reply to the ping in time, and the connection should
+	 * 		be closed.
+	 */
+	boolean checkAlive() {
+		checkPing(); // Ping client if needed
+		if (pingSent && System.currentTimeMillis() - pingStamp > PING_TIMEOUT) {
+			long dead = System.currentTimeMillis() - lastActivity;
+			log.warning(getName()+": No response to ping after inactivity of "+(dead/1000)+"s. Closing...");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Record activity on the connection: a message was received from the client, which is alive.
+	 */
+	void received() {
+		lastActivity = System.currentTimeMillis();
+		pingSent = false; // Something was received, don't ping
+	}
+	
+	/**
+	 * Process a message received from the client.
+	 * @param msg The received message.
+	 * @throws IOException if an I/O error occurs when replying to the client.
+	 */
+	void dispatch(Message msg) throws IOException {
+		log.fine(getName()+": received message "+msg);
+		received();
+		
+		// Command messages
+		if (msg instanceof MsgOpen) { // Open file: reply with MsgAck to reply with file ID
+			handleOpen((MsgOpen)msg);
+			
+		} else if (msg instanceof MsgReadAt) { // Read in file at position: reply with MsgData, or MsgAck upon exception
+			handleReadAt((MsgReadAt)msg);
+			
+		} else if (msg instanceof MsgWriteAt) { // Write to file at position: reply with MsgAck
+			handleWriteAt((MsgWriteAt)msg);
+			
+		} else if (msg instanceof MsgRead) { // Read in file: reply with MsgData, or MsgAck upon exception
+			handleRead((MsgRead)msg);
+			
+		} else if (msg instanceof MsgWrite) { // Write to file: reply with MsgAck
+			handleWrite((MsgWrite)msg);
+			
+		} else if (msg instanceof MsgISAction) { // Action on file: reply with MsgAck
+			handleAction((MsgISAction)msg);
+			
+		} else if (msg instanceof MsgFlush) { // Action on file: reply with MsgAck
+			handleFlush((MsgFlush)msg);
+			
+		} else if (msg instanceof MsgClose) { // Close file: no reply
+			handleClose((MsgClose)msg);
+			
+		} else if (msg instanceof MsgFileAction) { // Operation on java.io.File
+			handleFileOp((MsgFileAction)msg);
+			
+		} else if (msg instanceof MsgGet) { // Request file download
+			handleFileGet((MsgGet)msg);
+			
+		} else if (msg instanceof MsgSync) { // Request delta transfer: reply with the delta or the signature
+			handleSync((MsgSync)msg);
+			
+		} else if (msg instanceof MsgDict) { // Request preset dictionary: reply with MsgDict, or MsgAck if not found
+			handleDict((MsgDict)msg);
+			
+		} else if (msg instanceof MsgPut) { // Request file upload: reply with MsgAck to reply with file ID
+			handleFilePut((MsgPut)msg);
+			
+		} else if (msg instanceof MsgData) { // File upload content: reply with MsgAck to the last one
+			handlePutData((MsgData)msg);
+			
+		} else if (msg instanceof MsgPing) {
+			int protocol = ((MsgPing)msg).getProtocol();
+			if (protocol > 0) { // Client handshake: reply with the protocol to use, which we use from now on
+				protocol = Math.min(protocol, Message.PROTOCOL);
+				con.send(new MsgPing(msg.getNum(), protocol));
+				con.setProtocol(protocol);
+				log.info(getName()+": using protocol version "+protocol);
+			}
+			// Otherwise ping reply received ("pong"): nothing, lastActivity is now updated
+			
+		} else { // Unknown
+			log.warning(getName()+": Don't know how to handle file message "+msg);
+		}
+	}
+	
 	@Override
 	public void run() {
 		while (goOn) {
 			try {
 				log.fine(getName()+": waiting for message...");
-				Message msg = Message.receive(sok); // Can SocketTimeoutException
-				log.fine(getName()+": received message "+msg);
-				lastActivity = System.currentTimeMillis();
-				pingSent = false; // Something was received, don't ping
-				
-				// Command messages
-				if (msg instanceof MsgOpen) { // Open file: reply with MsgAck to reply with file ID
-					handleOpen((MsgOpen)msg);
-					
-				} else if (msg instanceof MsgRead) { // Read in file: reply with MsgData, or MsgAck upon exception
-					handleRead((MsgRead)msg);
-					
-				} else if (msg instanceof MsgWrite) { // Write to file: reply with MsgAck
-					handleWrite((MsgWrite)msg);
-					
-				} else if (msg instanceof MsgISAction) { // Action on file: reply with MsgAck
-					handleAction((MsgISAction)msg);
-					
-				} else if (msg instanceof MsgFlush) { // Action on file: reply with MsgAck
-					handleFlush((MsgFlush)msg);
-					
-				} else if (msg instanceof MsgClose) { // Close file: no reply
-					handleClose((MsgClose)msg);
-					
-				} else if (msg instanceof MsgFileAction) { // Operation on java.io.File
-					handleFileOp((MsgFileAction)msg);
-					
-				} else if (msg instanceof MsgGet) { // Request file download
-					handleFileGet((MsgGet)msg);
-					
-				} else if (msg instanceof MsgPing) { // Ping reply received ("pong")
-					// Nothing, lastActivity is now updated
-					
-				} else { // Unknown
-					log.warning(getName()+": Don't know how to handle file message "+msg);
-				}
+				dispatch(in.receive()); // Can SocketTimeoutException
 			} catch (SocketTimeoutException e) {
 				log.finest(getName()+": timeout...");
-				checkPing(); // Ping client if needed
-				if (pingSent && lastActivity - pingStamp > PING_TIMEOUT) {
-					long dead = System.currentTimeMillis() - lastActivity;
-					log.warning(getName()+": No response to ping after inactivity of "+(dead/1000)+"s. Closing...");
+				if (!checkAlive())
 					goOn = false;
-				}
 				continue;
 			} catch (EOFException e) { // FIN received: graceful disconnection
-				log.info(getName()+": "+sok.getRemoteSocketAddress()+" disconnected. Ending.");
+				log.info(getName()+": "+getRemote()+" disconnected. Ending.");
 				goOn = false;
 			} catch (IOException e) {
 				log.log(Level.SEVERE, getName()+": Exception while processing messages. Closing connection: "+e.getClass().getSimpleName()+" - "+e.getMessage(), e);
@@ -613,28 +1417,349 @@ public class JRFProvider extends Thread {
 	
 	
 	
-	private static class NamedFileInputStream extends BufferedInputStream {
+	/**
+	 * Let a compressor recognize an already compressed format from the first bytes of a file.
+	 * @param compressor The compressor of the bytes read from the file.
+	 * @param ch The file.
+	 */
+	private static void sniff(ChunkCompressor compressor, FileChannel ch) {
+		ByteBuffer head = ByteBuffer.allocate(Compressibility.HEAD_SIZE);
+		try {
+			while (head.hasRemaining() && ch.read(head, head.position()) > 0); // Does not change the channel position
+		} catch (IOException | RuntimeException e) { // E.g. NonReadableChannelException: reported when reading
+			return;
+		}
+		head.flip();
+		sniff(compressor, head);
+	}
+	
+	/**
+	 * Let a compressor recognize an already compressed format from the first bytes of a file.
+	 * @param compressor The compressor of the bytes read from the file.
+	 * @param head The first bytes of the file.
+	 */
+	private static void sniff(ChunkCompressor compressor, ByteBuffer head) {
+		if (!head.hasRemaining()) // Empty file: sniffed on the first chunk read instead
+			return;
+		byte[] b = new byte[head.remaining()];
+		head.get(b);
+		compressor.sniff(b, 0, b.length);
+		if (compressor.getFormat() != null)
+			log.fine("Compression bypassed on "+compressor.getFormat()+" content");
+	}
+	
+	/**
+	 * An opened file on which positional I/O can be performed, through its {@link FileChannel}.
+	 */
+	private static interface ChannelFile {
+		/** @return The file channel, which data written through the file are flushed to. */
+		FileChannel getChannel() throws IOException;
+		/** @return Compresses the bytes read as requested when opening the file, {@code null} for no compression. */
+		ChunkCompressor getCompressor();
+	}
+	
+	/**
+	 * A file opened for read: either a buffered {@code FileInputStream} or, for big files, a {@link MappedInputStream}
+	 * on the mapping shared by all providers.
+	 */
+	private static class NamedFileInputStream extends FilterInputStream implements ChannelFile {
 		public final String name;
-		public final int deflate;
-		public NamedFileInputStream(String name, int deflate) throws FileNotFoundException {
-			super(new FileInputStream(name));
+		public final ChunkCompressor compressor;
+		/** The channel for positional reads, opened when needed for mapped files. */
+		private FileChannel ch;
+		private NamedFileInputStream(String name, int deflate, InputStream in, FileChannel ch) {
+			super(in);
 			this.name = name;
-			this.deflate = deflate;
+			compressor = (deflate > 0 ? new ChunkCompressor(deflate) : null);
+			this.ch = ch;
+		}
+		public static NamedFileInputStream open(String name, int deflate, MappedFiles mapped) throws IOException {
+			if (new File(name).length() >= MappedFiles.MAP_THRESHOLD) {
+				try {
+					NamedFileInputStream is = new NamedFileInputStream(name, deflate, new MappedInputStream(mapped, name), null);
+					if (is.compressor != null)
+						sniff(is.compressor, is.getMapped().getFile().slice(0, Compressibility.HEAD_SIZE));
+					return is;
+				} catch (IOException e) {
+					log.warning("Unable to map "+name+", reading it instead: "+e.getMessage());
+				}
+			}
+			FileInputStream fis = new FileInputStream(name);
+			NamedFileInputStream is = new NamedFileInputStream(name, deflate, new BufferedInputStream(fis), fis.getChannel());
+			if (is.compressor != null)
+				sniff(is.compressor, fis.getChannel());
+			return is;
+		}
+		/** @return The mapped stream, {@code null} if the file is not mapped. */
+		public MappedInputStream getMapped() {
+			return (in instanceof MappedInputStream ? (MappedInputStream)in : null);
+		}
+		@Override public synchronized FileChannel getChannel() throws IOException {
+			if (ch == null)
+				ch = FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+			return ch;
+		}
+		@Override public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (ch != null)
+					ch.close();
+				if (compressor != null)
+					compressor.end();
+			}
+		}
+		@Override public ChunkCompressor getCompressor() {
+			return compressor;
 		}
 		@Override public String toString() {
 			return "in:"+name;
 		}
 	}
 	
-	private static class NamedFileOutputStream extends BufferedOutputStream {
+	/**
+	 * Reads at most a given number of bytes from a stream, to send a range of a file.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+		private long remaining;
+		private RangeInputStream(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+		@Override public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+		@Override public long skip(long n) throws IOException {
+			n = in.skip(Math.min(n, remaining));
+			remaining -= n;
+			return n;
+		}
+		@Override public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+		@Override public boolean markSupported() {
+			return false;
+		}
+	}
+	
+	private static class NamedFileOutputStream extends BufferedOutputStream implements ChannelFile {
 		public final String name;
-		public NamedFileOutputStream(String name) throws FileNotFoundException {
+		/** Inflates the chunks written when they are deflated as a single stream, {@code null} otherwise. */
+		public final ChunkInflater inflater;
+		public NamedFileOutputStream(String name, boolean contextual) throws FileNotFoundException {
 			super(new FileOutputStream(name));
 			this.name = name;
+			inflater = (contextual ? new ChunkInflater() : null);
+		}
+		@Override public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (inflater != null)
+					inflater.end();
+			}
+		}
+		@Override public FileChannel getChannel() throws IOException {
+			flush(); // Positional writes should not be overwritten by buffered data
+			return ((FileOutputStream)out).getChannel();
+		}
+		@Override public ChunkCompressor getCompressor() {
+			return null;
 		}
 		@Override public String toString() {
 			return "out:"+name;
 		}
 	}
 	
+	/**
+	 * A file received through a {@link MsgPut} command, decompressed as a whole, or chunk by chunk with the
+	 * {@linkplain Codec#ADAPTIVE adaptive} compression.
+	 */
+	private static class PutFile extends FilterOutputStream {
+		public final String name;
+		/** The {@link MsgPut} message number, which data reply to. */
+		public final int num;
+		/** {@code true} once an error was reported to the client. */
+		public boolean failed;
+		/** {@code true} if each chunk is compressed on its own. */
+		private final boolean chunked;
+		public PutFile(String name, int num, int deflate, long offset) throws IOException {
+			this(name, num, deflate, deflate > 0 && !Codec.isAdaptive(deflate) ?
+					new AsyncOutputStream(open(name, offset)) : // Written to disk while the next data are inflated
+					new BufferedOutputStream(open(name, offset), 1 << 16));
+		}
+		/** @param out Where the received data are written, once decompressed. */
+		protected PutFile(String name, int num, int deflate, OutputStream out) {
+			super(deflate > 0 && !Codec.isAdaptive(deflate) ? Codec.of(deflate).decompressing(out) : out); // Its resources are released on close
+			this.name = name;
+			this.num = num;
+			chunked = Codec.isAdaptive(deflate);
+		}
+		/** Create the file, or truncate it to {@code offset} to append the next data, when resuming. */
+		private static OutputStream open(String name, long offset) throws IOException {
+			if (offset <= 0)
+				return new FileOutputStream(name);
+			FileChannel fc;
+			try {
+				fc = FileChannel.open(Paths.get(name), StandardOpenOption.WRITE);
+			} catch (InvalidPathException | NoSuchFileException e) {
+				throw new FileNotFoundException(e.getMessage());
+			}
+			try {
+				if (fc.size() < offset)
+					throw new IOException("Cannot resume "+name+" at "+offset+": it is only "+fc.size()+" bytes");
+				fc.truncate(offset);
+				fc.position(offset);
+			} catch (IOException e) {
+				fc.close();
+				throw e;
+			}
+			return Channels.newOutputStream(fc);
+		}
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		/** Write the bytes of a received chunk. */
+		public void write(MsgData m) throws IOException {
+			if (chunked) {
+				byte[] b = m.getChunkData();
+				out.write(b, 0, b.length);
+			} else
+				out.write(m.getData(), 0, m.getLength());
+		}
+		/** Close the file once all the data were received. */
+		public void finish() throws IOException {
+			close();
+		}
+		@Override public String toString() {
+			return "put:"+name;
+		}
+	}
+	
+	/**
+	 * File rebuilt from a delta to its current content (the basis), in a temporary file which replaces it
+	 * once the whole delta was received. Closing it before aborts the upload.
+	 */
+	private static class SyncFile extends PutFile {
+		/** The current content, {@code null} if the file does not exist. */
+		private final FileChannel basis;
+		private final int blockSize;
+		private final File tmp;
+		private boolean finished;
+		private SyncFile(String name, int num, int deflate, int blockSize, FileChannel basis, File tmp) throws IOException {
+			super(name, num, deflate, new Delta.Patcher(basis, blockSize, new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)));
+			this.basis = basis;
+			this.blockSize = blockSize;
+			this.tmp = tmp;
+		}
+		static SyncFile create(String name, int num, int deflate, int blockSize) throws IOException {
+			File f = new File(name).getAbsoluteFile();
+			File dir = f.getParentFile();
+			if (dir == null || !dir.isDirectory())
+				throw new FileNotFoundException(name+" (No such directory)");
+			FileChannel basis = (f.isFile() ? FileChannel.open(f.toPath(), StandardOpenOption.READ) : null);
+			File tmp = null;
+			try {
+				tmp = File.createTempFile(".jrf", ".tmp", dir);
+				return new SyncFile(name, num, deflate, blockSize, basis, tmp);
+			} catch (IOException e) {
+				if (basis != null)
+					basis.close();
+				if (tmp != null)
+					tmp.delete();
+				throw e;
+			}
+		}
+		/** Compute the signature of the basis. */
+		Delta.Signature signature() throws IOException {
+			if (basis == null)
+				return new Delta.Signature(blockSize);
+			return Delta.Signature.compute(new BufferedInputStream(Channels.newInputStream(basis), 1 << 16), blockSize); // Not closed, so the basis stays open
+		}
+		@Override public void finish() throws IOException {
+			super.close();
+			if (basis != null)
+				basis.close(); // Before replacing it
+			Files.move(tmp.toPath(), Paths.get(name), StandardCopyOption.REPLACE_EXISTING);
+			finished = true;
+		}
+		@Override public void close() throws IOException {
+			if (finished)
+				return;
+			try {
+				super.close();
+			} catch (IOException e) { // Incomplete
+			} finally {
+				if (basis != null)
+					basis.close();
+				tmp.delete();
+			}
+		}
+		@Override public String toString() {
+			return "sync:"+name;
+		}
+	}
+	
+	private static class NamedFileChannel implements ChannelFile, Closeable {
+		public final String name;
+		public final ChunkCompressor compressor;
+		private final FileChannel ch;
+		/** The parallel upload the file is part of, {@code null} if the file is opened for update. */
+		public final Upload upload;
+		private final Uploads uploads;
+		public NamedFileChannel(String name, int deflate) throws IOException {
+			try {
+				ch = FileChannel.open(Paths.get(name), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			} catch (InvalidPathException e) {
+				throw new FileNotFoundException(e.getMessage());
+			}
+			this.name = name;
+			compressor = (deflate > 0 ? new ChunkCompressor(deflate) : null);
+			if (compressor != null)
+				sniff(compressor, ch);
+			upload = null;
+			uploads = null;
+		}
+		public NamedFileChannel(Uploads uploads, Upload upload) {
+			name = upload.name;
+			compressor = null;
+			ch = upload.ch;
+			this.upload = upload;
+			this.uploads = uploads;
+		}
+		/** Record a range written to a parallel upload. */
+		public void written(long pos, long len) {
+			if (upload != null)
+				upload.written(pos, len);
+		}
+		@Override public FileChannel getChannel() {
+			return ch;
+		}
+		@Override public ChunkCompressor getCompressor() {
+			return compressor;
+		}
+		@Override public void close() throws IOException {
+			if (upload != null)
+				uploads.release(upload); // Closes the file when closed by all connections
+			else
+				ch.close();
+		}
+		@Override public String toString() {
+			return (upload != null ? "put:" : "upd:")+name;
+		}
+	}
+	
 }
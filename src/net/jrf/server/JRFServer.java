@@ -1,20 +1,38 @@
 package net.jrf.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import net.jrf.Utils;
+import net.jrf.client.JRFClient;
+
 /**
  * <p>Class listening for connections on a {@code ServerSocket} and creating {@link JRFProvider} instances
  * on new connections.
+ * <p>Connections are served according to the server {@link Engine}: either one (platform or virtual) thread
+ * per connection, or a fixed number of {@link SelectorLoop} threads multiplexing all connections (and worker
+ * threads processing their messages).</p>
  * <p>Several server instances can be created on different ports, if needed. The {@code main()} method
  * will create a single server running on the given @code address:port} and show a small CLI to query
  * connections:
@@ -36,14 +54,40 @@ public class JRFServer extends Thread {
 	 * which will close if it doesn't reply. */
 	public static final int CLIENT_TIMEOUT = 5 * 60_000;
 	
+	/** Number of event-loop threads used by the {@link Engine#SELECTOR} engine. */
+	public static final int SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/** Maximum number of worker threads dispatching the messages of the {@link Engine#SELECTOR} engine. More
+	 * than {@link #SELECTOR_THREADS}, as workers also wait on file operations. */
+	public static final int SELECTOR_WORKERS = 4 * SELECTOR_THREADS;
+	
 	/** Server instances. The key is the bind address. */
 	private static final Map<InetSocketAddress,JRFServer> instances = new HashMap<>(4);
 	
+	/**
+	 * Get the server bound to the given address, creating it with the {@link Engine#THREADS} engine
+	 * if needed.
+	 * @param addr The address to bind to.
+	 * @return The server.
+	 * @throws IOException if the server could not be bound.
+	 */
 	public static JRFServer get(InetSocketAddress addr) throws IOException {
+		return get(addr, Engine.THREADS);
+	}
+	
+	/**
+	 * Get the server bound to the given address, creating it if needed.
+	 * @param addr The address to bind to.
+	 * @param engine The engine to serve connections with, if the server has to be created (an existing
+	 * 		server keeps its engine).
+	 * @return The server.
+	 * @throws IOException if the server could not be bound.
+	 */
+	public static JRFServer get(InetSocketAddress addr, Engine engine) throws IOException {
 		synchronized (instances) {
 			JRFServer fp = instances.get(addr);
 			if (fp == null) {
-				fp = new JRFServer(addr);
+				fp = new JRFServer(addr, engine);
 				instances.put(addr, fp);
 			}
 			return fp;
@@ -58,15 +102,70 @@ public class JRFServer extends Thread {
 	
 	private ServerSocket srv;
 	
+	private Engine engine;
+	
+	/** Checks for inactive clients with the {@link Engine#VIRTUAL_THREADS} engine, where providers block
+	 * on reads without timeout. {@code null} for other engines. */
+	private ScheduledExecutorService pinger;
+	
+	/** Event loops of the {@link Engine#SELECTOR} engine, {@code null} for other engines. */
+	private SelectorLoop[] loops;
+	
+	/** Dispatches the messages received by {@link #loops}, so that they do not block on file operations.
+	 * {@code null} for other engines. */
+	private ExecutorService workers;
+	
+	/** Index of the event loop that will serve the next connection. */
+	private int nextLoop;
+	
 	private volatile boolean goOn;
 	
 	private List<JRFProvider> clients;
 	
-	private JRFServer(InetSocketAddress addr) throws IOException {
-		srv = new ServerSocket();
+	/** Memory mappings of the files read by clients, shared by all providers. */
+	private MappedFiles mappedFiles;
+	
+	/** Files being uploaded in parallel through several connections. */
+	private Uploads uploads;
+	
+	/** Digests of the files hashed for clients, shared by all providers. */
+	private Digests digests;
+	
+	/** Preset dictionaries compressing the chunks of opened files, shared by all providers. */
+	private Dictionaries dictionaries;
+	
+	private JRFServer(InetSocketAddress addr, Engine engine) throws IOException {
+		if (engine == Engine.VIRTUAL_THREADS && !Utils.hasVirtualThreads()) {
+			log.warning("Virtual threads are not supported by this JVM, using platform threads");
+			engine = Engine.THREADS;
+		}
+		this.engine = engine;
+		// Channels only for the SELECTOR engine (non-blocking connections): before Java 13, the timed read of a
+		// channel socket holds its blocking lock, which would stall the writes of the other threads
+		srv = (engine == Engine.SELECTOR ? ServerSocketChannel.open().socket() : new ServerSocket());
 		srv.bind(addr);
 		clients = new ArrayList<>();
+		mappedFiles = new MappedFiles(MappedFiles.DEFAULT_MAX_UNUSED);
+		uploads = new Uploads();
+		digests = new Digests(Digests.DEFAULT_MAX_ENTRIES);
+		dictionaries = new Dictionaries();
 		setName(JRFServer.class.getSimpleName()+" on *:"+srv.getLocalPort());
+		if (engine == Engine.SELECTOR) {
+			// Bounded, so that many busy connections queue their dispatch instead of each holding a thread. Threads
+			// are released when idle
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(SELECTOR_WORKERS, SELECTOR_WORKERS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override public Thread newThread(Runnable r) {
+					return new Thread(r, "Worker #"+count.getAndIncrement()+" of "+getName());
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			workers = pool;
+			loops = new SelectorLoop[SELECTOR_THREADS];
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new SelectorLoop(this, i, workers);
+		}
 		goOn = true;
 	}
 	
@@ -77,6 +176,41 @@ public class JRFServer extends Thread {
 		return (InetSocketAddress)srv.getLocalSocketAddress();
 	}
 	
+	/**
+	 * @return The engine serving client connections.
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+	
+	/**
+	 * @return The memory mappings of the files read by clients.
+	 */
+	MappedFiles getMappedFiles() {
+		return mappedFiles;
+	}
+	
+	/**
+	 * @return The files being uploaded in parallel.
+	 */
+	Uploads getUploads() {
+		return uploads;
+	}
+	
+	/**
+	 * @return The digests of the files hashed for clients.
+	 */
+	Digests getDigests() {
+		return digests;
+	}
+	
+	/**
+	 * @return The preset dictionaries compressing the chunks of the files opened by clients, to configure.
+	 */
+	public Dictionaries getDictionaries() {
+		return dictionaries;
+	}
+	
 	/**
 	 * @return A copy of the list of JRF Providers currently connected to the JRF Server.
 	 */
@@ -109,12 +243,61 @@ public class JRFServer extends Thread {
 		}
 	}
 	
+	/**
+	 * Accept the next connection on the server channel, and hand it to the next event loop.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	private void acceptChannel() throws IOException {
+		SocketChannel ch = srv.getChannel().accept();
+		SelectorLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		SelectorLoop.ChannelConnection con = loop.connect(ch);
+		JRFProvider cli = new JRFProvider(con, this);
+		con.prov = cli;
+		synchronized (clients) {
+			clients.add(cli);
+		}
+		log.info("Connection from "+con.getRemote()+" on "+loop.getName());
+		loop.register(con);
+	}
+	
+	/**
+	 * Close clients that did not reply to ping. Used by the {@link Engine#VIRTUAL_THREADS} engine.
+	 */
+	private void checkClients() {
+		List<JRFProvider> provs;
+		synchronized (clients) {
+			provs = new ArrayList<>(clients);
+		}
+		for (JRFProvider prov : provs) {
+			if (!prov.checkAlive())
+				prov.requestStop();
+		}
+	}
+	
 	@Override
 	public void run() {
+		if (loops != null) {
+			for (SelectorLoop loop : loops)
+				loop.start();
+		}
+		if (engine == Engine.VIRTUAL_THREADS) {
+			pinger = Executors.newSingleThreadScheduledExecutor();
+			pinger.scheduleWithFixedDelay(new Runnable() {
+				@Override public void run() {
+					checkClients();
+				}
+			}, JRFClient.TIMEOUT, JRFClient.TIMEOUT, TimeUnit.MILLISECONDS);
+		}
 		while (goOn) {
 			try {
+				if (loops != null) {
+					acceptChannel();
+					continue;
+				}
 				Socket sok = srv.accept();
-				JRFProvider cli = new JRFProvider(sok, this);
+				// Virtual threads block on reads: inactive clients are checked by 'pinger'
+				JRFProvider cli = new JRFProvider(engine == Engine.VIRTUAL_THREADS ? new SocketConnection(sok, 0) : new SocketConnection(sok), this);
 				synchronized (clients) {
 					clients.add(cli);
 				}
@@ -129,14 +312,26 @@ public class JRFServer extends Thread {
 		}
 		log.info("Server closed.");
 		
+		if (pinger != null)
+			pinger.shutdownNow();
+		
 		synchronized (clients) {
 			for (JRFProvider prov : clients)
 				prov.requestStop();
 			for (JRFProvider prov : clients)
-				try{prov.join();}catch(InterruptedException e){}
+				prov.join();
 			clients = null;
 		}
 		
+		if (loops != null) {
+			for (SelectorLoop loop : loops)
+				loop.requestStop();
+			for (SelectorLoop loop : loops)
+				while (loop.isAlive())
+					try{loop.join();}catch(InterruptedException e){}
+			workers.shutdown();
+		}
+		
 		synchronized (instances) {
 			instances.values().remove(this);
 		}
@@ -144,14 +339,44 @@ public class JRFServer extends Thread {
 	
 	
 	
+	/**
+	 * Engines to serve client connections.
+	 */
+	public static enum Engine {
+		/** One {@link JRFProvider} thread per connection, blocking on socket reads. */
+		THREADS,
+		/** One {@link JRFProvider} virtual thread per connection, blocking on socket reads. Requires Java 21,
+		 * falls back to {@link #THREADS} otherwise. */
+		VIRTUAL_THREADS,
+		/** Non-blocking connections multiplexed on {@link #SELECTOR_THREADS} event-loop threads. */
+		SELECTOR,
+		;
+	}
+	
 	public static void usage() {
-		System.out.println("Options: [hostname[:port]]");
+		System.out.println("Options: [-selector|-virtual] [-dict <dir>] [hostname[:port]]");
 		System.out.println("If <port> is not specified, 2205 will be used.");
+		System.out.println("-selector serves connections with "+SELECTOR_THREADS+" event-loop threads instead of one thread per connection.");
+		System.out.println("-virtual serves each connection in a virtual thread (Java 21+).");
+		System.out.println("-dict loads the preset dictionaries <extension>"+Dictionaries.SUFFIX+" of <dir>, to compress the chunks of opened files.");
 	}
 	
 	public static void main(String[] args) throws NumberFormatException, IOException {
 		String[] hp = null;
 		int port = DEFAULT_PORT;
+		Engine engine = Engine.THREADS;
+		if (args.length > 0 && "-selector".equals(args[0])) {
+			engine = Engine.SELECTOR;
+			args = Arrays.copyOfRange(args, 1, args.length);
+		} else if (args.length > 0 && "-virtual".equals(args[0])) {
+			engine = Engine.VIRTUAL_THREADS;
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		String dictDir = null;
+		if (args.length > 1 && "-dict".equals(args[0])) {
+			dictDir = args[1];
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
 		
 		switch (args.length) {
 			case 0: break;
@@ -174,7 +399,9 @@ public class JRFServer extends Thread {
 				break;
 		}
 		InetSocketAddress addr = (hp == null || hp[0].isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(hp[0], port));
-		final JRFServer srv = JRFServer.get(addr);
+		final JRFServer srv = JRFServer.get(addr, engine);
+		if (dictDir != null)
+			System.out.println("Loaded "+srv.getDictionaries().load(new File(dictDir))+" dictionaries from "+dictDir);
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override public void run() {
 				srv.requestStop();
@@ -215,6 +442,8 @@ public class JRFServer extends Thread {
 								System.out.println("    [ in] "+fi);
 							for (String fi : prov.getOpenedOutputFiles())
 								System.out.println("    [out] "+fi);
+							for (String fi : prov.getOpenedUpdateFiles())
+								System.out.println("    [upd] "+fi);
 						}
 					}
 					break;
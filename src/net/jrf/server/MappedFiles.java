@@ -0,0 +1,296 @@
+package net.jrf.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>Read-only memory mappings of files, shared by all the {@link JRFProvider}s of a {@link JRFServer}: clients
+ * reading the same file are served from the same mapping (i.e. from the page cache), instead of each
+ * holding its own buffers.</p>
+ * <p>Files are mapped in windows of {@link #WINDOW_SIZE} bytes, so that files bigger than 2 GB can be mapped.
+ * Windows overlap by {@link #MAX_SLICE} bytes, so that any {@linkplain MappedFile#slice(long, int) slice}
+ * is held by a single window.</p>
+ * <p>Mappings are reference-counted. Unused mappings are kept, so that a file which is read often does not
+ * have to be mapped again, until the size of unused mappings exceeds a limit: the least recently used are
+ * then released. Java does not unmap files explicitly, so released mappings are unmapped when garbage
+ * collected (i.e. once the slices still being sent are not used anymore).</p>
+ * <p>A mapping is not shared anymore when the file size or modification date has changed.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class MappedFiles {
+	
+	/** Size above which files opened for read are mapped. */
+	public static final long MAP_THRESHOLD = 1 << 20;
+	
+	/** Size of the mapped windows. */
+	public static final long WINDOW_SIZE = 1l << 30;
+	
+	/** Maximum size of a slice, which is also the overlap between windows. */
+	public static final int MAX_SLICE = 1 << 26;
+	
+	/** Default limit for the size of the unused mappings. */
+	public static final long DEFAULT_MAX_UNUSED = 1l << 32;
+	
+	/** Mappings, by canonical file path, least recently used first. */
+	private LinkedHashMap<String,MappedFile> files;
+	
+	/** Size of the mappings which are not used. */
+	private long unused;
+	
+	/** Limit for {@link #unused}. */
+	private long maxUnused;
+	
+	MappedFiles(long maxUnused) {
+		files = new LinkedHashMap<>(16, 0.75f, true);
+		this.maxUnused = maxUnused;
+	}
+	
+	/**
+	 * Get the mapping of a file, mapping it if it is not already. The mapping should be
+	 * {@linkplain #release(MappedFile) released} when not used anymore.
+	 * @param name The file name.
+	 * @return The mapping.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	MappedFile acquire(String name) throws IOException {
+		File f = new File(name);
+		String key = f.getCanonicalPath();
+		synchronized (this) {
+			MappedFile m = files.get(key);
+			if (m != null && m.size == f.length() && m.lastModified == f.lastModified()) {
+				if (m.refs++ == 0)
+					unused -= m.size;
+				return m;
+			}
+		}
+		MappedFile m = new MappedFile(key); // Map outside the lock
+		synchronized (this) {
+			MappedFile old = files.put(key, m);
+			if (old != null && old.refs == 0) // Outdated: release it. Used ones are released by their last user
+				unused -= old.size;
+			m.refs = 1;
+		}
+		return m;
+	}
+	
+	/**
+	 * Release a mapping {@linkplain #acquire(String) acquired} before.
+	 * @param m The mapping.
+	 */
+	synchronized void release(MappedFile m) {
+		if (--m.refs > 0 || files.get(m.path) != m) // Still used, or outdated
+			return;
+		unused += m.size;
+		for (Iterator<MappedFile> iter = files.values().iterator(); iter.hasNext() && unused > maxUnused;) {
+			MappedFile lru = iter.next();
+			if (lru.refs == 0) {
+				iter.remove();
+				unused -= lru.size;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of files currently mapped (used or not).
+	 */
+	synchronized int size() {
+		return files.size();
+	}
+	
+	
+	
+	/**
+	 * A file mapped in memory, read-only.
+	 */
+	static class MappedFile {
+		
+		/** The canonical file path. */
+		final String path;
+		
+		/** The file size when it was mapped. */
+		final long size;
+		
+		/** The file modification date when it was mapped. */
+		final long lastModified;
+		
+		private final MappedByteBuffer[] windows;
+		
+		/** Number of users, guarded by the {@link MappedFiles} lock. */
+		private int refs;
+		
+		private MappedFile(String path) throws IOException {
+			this.path = path;
+			lastModified = new File(path).lastModified();
+			try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) { // Mappings remain valid once closed
+				size = ch.size();
+				windows = new MappedByteBuffer[(int)((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+				for (int i = 0; i < windows.length; i++) {
+					long start = i * WINDOW_SIZE;
+					windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE + MAX_SLICE, size - start));
+				}
+			}
+		}
+		
+		/**
+		 * Get a part of the file, without copying it.
+		 * @param position The position in the file.
+		 * @param len The number of bytes, at most {@link MappedFiles#MAX_SLICE}.
+		 * @return A read-only buffer holding the bytes from {@code position}, which can hold less than
+		 * 		{@code len} bytes at the end of file (none if {@code position} is beyond).
+		 */
+		ByteBuffer slice(long position, int len) {
+			if (len > MAX_SLICE)
+				throw new IllegalArgumentException("Slice of "+len+" bytes is bigger than "+MAX_SLICE);
+			if (position >= size)
+				return ByteBuffer.allocate(0);
+			len = (int)Math.min(len, size - position);
+			int w = (int)(position / WINDOW_SIZE);
+			ByteBuffer bb = windows[w].asReadOnlyBuffer();
+			int start = (int)(position - w * WINDOW_SIZE);
+			bb.limit(start + len);
+			bb.position(start);
+			return bb.slice();
+		}
+		
+		/**
+		 * Copy a part of the file.
+		 * @param position The position in the file.
+		 * @param b The buffer to copy to.
+		 * @param off The offset in {@code b}.
+		 * @param len The number of bytes to copy.
+		 * @return The number of bytes copied, less than {@code len} only at the end of file.
+		 * @throws IOException if the file could not be read (e.g. it was truncated since it was mapped).
+		 */
+		int read(long position, byte[] b, int off, int len) throws IOException {
+			int n = 0;
+			try {
+				while (n < len) {
+					ByteBuffer bb = slice(position + n, Math.min(len - n, MAX_SLICE));
+					if (!bb.hasRemaining())
+						break;
+					int r = bb.remaining();
+					bb.get(b, off + n, r);
+					n += r;
+				}
+			} catch (InternalError e) { // Access to a part of the mapping which is not in the file anymore
+				throw new IOException("Unable to read mapped file "+path+": "+e.getMessage(), e);
+			}
+			return n;
+		}
+		
+		@Override
+		public String toString() {
+			return path;
+		}
+	
+	}
+	
+	/**
+	 * {@code InputStream} reading a {@link MappedFile}, which supports {@link #mark(int)}.
+	 */
+	static class MappedInputStream extends InputStream {
+		
+		private MappedFiles owner;
+		
+		private MappedFile file;
+		
+		private long position;
+		
+		private long mark;
+		
+		MappedInputStream(MappedFiles owner, String name) throws IOException {
+			this.owner = owner;
+			file = owner.acquire(name);
+		}
+		
+		/**
+		 * @return The mapped file.
+		 */
+		MappedFile getFile() {
+			return file;
+		}
+		
+		/**
+		 * Read the next bytes without copying them.
+		 * @param len The maximum number of bytes to read, at most {@link MappedFiles#MAX_SLICE}.
+		 * @return A read-only buffer holding the bytes read, empty at the end of file.
+		 * @throws IOException if the stream is closed.
+		 */
+		synchronized ByteBuffer readSlice(int len) throws IOException {
+			ensureOpen();
+			ByteBuffer bb = file.slice(position, len);
+			position += bb.remaining();
+			return bb;
+		}
+		
+		private void ensureOpen() throws IOException {
+			if (file == null)
+				throw new IOException("Stream closed");
+		}
+		
+		@Override
+		public synchronized int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff);
+		}
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len == 0)
+				return 0;
+			int n = file.read(position, b, off, len);
+			position += n;
+			return (n == 0 ? -1 : n);
+		}
+		
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			ensureOpen();
+			n = Math.max(0l, Math.min(n, file.size - position));
+			position += n;
+			return n;
+		}
+		
+		@Override
+		public synchronized int available() throws IOException {
+			ensureOpen();
+			return (int)Math.min(Integer.MAX_VALUE, Math.max(0l, file.size - position));
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+		
+		@Override
+		public synchronized void mark(int readlimit) {
+			mark = position;
+		}
+		
+		@Override
+		public synchronized void reset() throws IOException {
+			ensureOpen();
+			position = mark;
+		}
+		
+		@Override
+		public synchronized void close() {
+			if (file == null)
+				return;
+			owner.release(file);
+			file = null;
+		}
+	
+	}
+	
+}
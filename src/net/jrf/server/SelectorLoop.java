@@ -0,0 +1,526 @@
+package net.jrf.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.client.JRFClient;
+import net.jrf.msg.FrameDecoder;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgData;
+
+/**
+ * <p>Event loop serving several {@link JRFProvider}s, multiplexing their non-blocking {@code SocketChannel}s
+ * on a single {@link Selector}. Used by the {@link JRFServer.Engine#SELECTOR} engine, so that a fixed number
+ * of threads can serve many (mostly idle) clients.</p>
+ * <p>Received bytes are decoded incrementally by a {@link FrameDecoder} and complete messages are queued on
+ * their connection. They are {@linkplain JRFProvider#dispatch(Message) dispatched} in order by a worker
+ * thread, so that file operations (e.g. {@code FileChannel.force()} on commit) do not stall the loop. A
+ * connection is not read anymore while too many of its messages are waiting to be dispatched. Messages
+ * sent by providers are queued and written when the channel is ready. Threads other than the loop (e.g.
+ * workers and file GET transfers) block when too many bytes are queued on a connection.</p>
+ * <p>File payloads are written straight from the file to the channel (see {@link FileRegion}).</p>
+ * 
+ * @author Matthieu Labas
+ */
+class SelectorLoop extends Thread {
+	
+	private static final Logger log = Logger.getLogger(SelectorLoop.class.getName());
+	
+	/** Initial size of the read buffer of each connection. */
+	public static final int BUFFER_SIZE = 8192;
+	
+	/** Number of bytes queued on a connection above which threads other than the loop thread block
+	 * when sending messages. */
+	public static final int WRITE_HIGH_WATERMARK = 1 << 20;
+	
+	/** Number of received messages waiting to be dispatched above which a connection is not read anymore.
+	 * It is read again once half of them have been dispatched. */
+	public static final int READ_HIGH_WATERMARK = 64;
+	
+	private Selector selector;
+	
+	/** Connections waiting to be registered with {@link #selector}. */
+	private Queue<ChannelConnection> registrations;
+	
+	/** Connections which interest operations changed outside of the loop thread (e.g. messages queued
+	 * for {@link SelectionKey#OP_WRITE}). */
+	private Queue<ChannelConnection> updates;
+	
+	/** Runs the received messages handlers. */
+	private Executor workers;
+	
+	private volatile boolean goOn;
+	
+	/**
+	 * @param srv The server accepting the connections.
+	 * @param index The loop index, used to name the thread.
+	 * @param workers The executor dispatching the received messages, which can be shared by several loops.
+	 * @throws IOException if the selector could not be opened.
+	 */
+	SelectorLoop(JRFServer srv, int index, Executor workers) throws IOException {
+		setName(SelectorLoop.class.getSimpleName()+" #"+index+" of "+srv.getName());
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<>();
+		updates = new ConcurrentLinkedQueue<>();
+		this.workers = workers;
+		goOn = true;
+	}
+	
+	/**
+	 * Create a connection on an accepted channel, which will be served by this loop once
+	 * {@linkplain #register(ChannelConnection) registered}.
+	 * @param ch The accepted channel.
+	 * @return The connection.
+	 * @throws IOException if the channel could not be configured as non-blocking.
+	 */
+	ChannelConnection connect(SocketChannel ch) throws IOException {
+		ch.configureBlocking(false);
+		return new ChannelConnection(ch);
+	}
+	
+	/**
+	 * Start serving the given connection.
+	 * @param con The connection, which provider has been set.
+	 */
+	void register(ChannelConnection con) {
+		registrations.add(con);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Request the loop to stop. Connections still registered are closed.
+	 */
+	public void requestStop() {
+		goOn = false;
+		selector.wakeup();
+	}
+	
+	private void registerPending() {
+		ChannelConnection con;
+		while ((con = registrations.poll()) != null) {
+			try {
+				con.key = con.ch.register(selector, SelectionKey.OP_READ, con);
+			} catch (ClosedChannelException e) {
+				log.warning(getName()+": "+con+" closed before registration");
+				con.prov.requestStop();
+			}
+		}
+		while ((con = updates.poll()) != null)
+			con.updateInterest();
+	}
+	
+	/**
+	 * Close a connection after an error or a client disconnection.
+	 * @param con The connection.
+	 */
+	private static void terminate(ChannelConnection con) {
+		con.abort();
+		con.prov.requestStop();
+	}
+	
+	@Override
+	public void run() {
+		long lastCheck = System.currentTimeMillis();
+		while (goOn) {
+			try {
+				selector.select(JRFClient.TIMEOUT);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, getName()+": Exception on select. Stopping: "+e.getMessage(), e);
+				break;
+			}
+			registerPending();
+			
+			for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				ChannelConnection con = (ChannelConnection)key.attachment();
+				try {
+					if (key.isValid() && key.isWritable())
+						con.flush();
+					if (key.isValid() && key.isReadable())
+						con.read();
+				} catch (IOException e) {
+					log.log(Level.SEVERE, con.prov.getName()+": Exception while processing messages. Closing connection: "+e.getClass().getSimpleName()+" - "+e.getMessage(), e);
+					terminate(con);
+				}
+			}
+			
+			long t = System.currentTimeMillis();
+			if (t - lastCheck >= JRFClient.TIMEOUT) { // Check for inactive clients
+				lastCheck = t;
+				for (SelectionKey key : selector.keys()) {
+					ChannelConnection con = (ChannelConnection)key.attachment();
+					if (key.isValid() && !con.prov.checkAlive())
+						terminate(con);
+				}
+			}
+		}
+		
+		for (SelectionKey key : new ArrayList<>(selector.keys())) {
+			ChannelConnection con = (ChannelConnection)key.attachment();
+			con.prov.requestStop();
+			con.abort(); // In case messages were still queued
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning(getName()+": Exception while closing selector: "+e.getMessage());
+		}
+		log.info(getName()+": Stopped.");
+	}
+	
+	
+	
+	/**
+	 * {@link Connection} on a non-blocking {@code SocketChannel}, served by a {@link SelectorLoop}.
+	 */
+	class ChannelConnection implements Connection {
+		
+		private SocketChannel ch;
+		
+		private SelectionKey key;
+		
+		/** The provider processing messages received on this connection. */
+		JRFProvider prov;
+		
+		private FrameDecoder decoder;
+		
+		/** Frames waiting to be written, as {@code ByteBuffer}s or {@link FileRegion}s. Also used as a lock
+		 * for the write state. */
+		private ArrayDeque<Object> out;
+		
+		/** Number of bytes remaining in {@link #out}. */
+		private int outBytes;
+		
+		/** {@code true} when the channel should be closed once {@link #out} is empty. */
+		private boolean closing;
+		
+		/** {@code true} when the channel is closed. */
+		private boolean closed;
+		
+		/** Received messages waiting to be dispatched. Also used as a lock for the dispatch state. */
+		private ArrayDeque<Message> inbox;
+		
+		/** {@code true} while a worker dispatches the messages of {@link #inbox}. */
+		private boolean dispatching;
+		
+		/** {@code true} while the channel is not read because {@link #inbox} is full. */
+		private volatile boolean paused;
+		
+		/** {@code true} once the client disconnected. The provider is stopped once the remaining messages
+		 * have been dispatched. */
+		private volatile boolean eof;
+		
+		private volatile int protocol;
+		
+		/** Time at which the last write found the socket buffer full, {@code 0} if it was not full. */
+		private long fullSince;
+		
+		private final SendRate rate = new SendRate();
+		
+		private ChannelConnection(SocketChannel ch) {
+			this.ch = ch;
+			protocol = Message.PROTOCOL_V1;
+			decoder = new FrameDecoder(BUFFER_SIZE);
+			out = new ArrayDeque<>();
+			inbox = new ArrayDeque<>();
+		}
+		
+		@Override
+		public void send(Message msg) throws IOException {
+			ByteBufferOut frame = msg.frame(protocol);
+			queue(ByteBuffer.wrap(frame.getRawArray(), 0, frame.size()), null, 0);
+		}
+		
+		/**
+		 * The payload is queued as-is, and written by the loop thread.
+		 */
+		@Override
+		public void send(MsgData msg, ByteBuffer payload) throws IOException {
+			ByteBufferOut head = msg.frameHead(protocol);
+			queue(ByteBuffer.wrap(head.getRawArray(), 0, head.size()), payload.duplicate(), payload.remaining());
+		}
+		
+		/**
+		 * The payload is queued as a {@link FileRegion}, written by the loop thread with
+		 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. When called by the
+		 * loop thread, which cannot wait for the payload to be written, the payload is read in the heap instead.
+		 */
+		@Override
+		public void send(MsgData msg, FileChannel file, long position) throws IOException {
+			if (Thread.currentThread() == SelectorLoop.this || msg.getLength() == 0) {
+				ByteBuffer data = ByteBuffer.allocate(msg.getLength());
+				while (data.hasRemaining() && file.read(data, position + data.position()) >= 0);
+				data.clear(); // Completed with zeros if the file is shorter than expected
+				send(msg, data);
+				return;
+			}
+			ByteBufferOut head = msg.frameHead(protocol);
+			FileRegion region = new FileRegion(file, position, msg.getLength());
+			queue(ByteBuffer.wrap(head.getRawArray(), 0, head.size()), region, msg.getLength());
+			synchronized (out) { // The file cannot be closed before the payload is written
+				while (region.position < region.end && !closed) {
+					try { out.wait(); } catch (InterruptedException e) { }
+				}
+			}
+			if (region.position < region.end)
+				throw new IOException("Connection closed");
+			if (region.error != null)
+				throw region.error;
+		}
+		
+		/**
+		 * Queue a frame to be written by the loop thread. Threads other than the loop thread block while
+		 * too many bytes are queued.
+		 * @param head The frame, or its head when a payload follows.
+		 * @param payload The frame payload ({@code ByteBuffer} or {@link FileRegion}), {@code null} if none.
+		 * @param len The payload size.
+		 * @throws IOException if the connection is closed.
+		 */
+		private void queue(ByteBuffer head, Object payload, int len) throws IOException {
+			boolean loop = (Thread.currentThread() == SelectorLoop.this);
+			synchronized (out) {
+				if (!loop) { // Do not let other threads queue too many bytes
+					while (outBytes > WRITE_HIGH_WATERMARK && !closed && !closing) {
+						try { out.wait(); } catch (InterruptedException e) { }
+					}
+				}
+				if (closed || closing)
+					throw new IOException("Connection closed");
+				out.add(head);
+				outBytes += head.remaining();
+				if (payload != null) {
+					out.add(payload);
+					outBytes += len;
+				}
+			}
+			if (loop) // Try to write right away
+				flush();
+			else
+				requestWrite();
+		}
+		
+		@Override
+		public void setProtocol(int protocol) {
+			this.protocol = protocol;
+		}
+		
+		private void requestWrite() {
+			updates.add(this);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Set the interest operations of the channel: read unless {@linkplain #paused} or disconnected, and
+		 * write when messages are queued. Called by the loop thread.
+		 */
+		private void updateInterest() {
+			if (key == null || !key.isValid())
+				return;
+			int ops = (paused || eof ? 0 : SelectionKey.OP_READ);
+			synchronized (out) {
+				if (!out.isEmpty())
+					ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+		
+		/**
+		 * Read available bytes and queue received messages, to be dispatched by a worker. Called by the
+		 * loop thread when the channel is readable.
+		 * @throws IOException if an I/O error occurs, or if a malformed frame is received.
+		 */
+		private void read() throws IOException {
+			boolean fin = (ch.read(decoder.buffer()) < 0);
+			boolean start;
+			synchronized (inbox) {
+				Message msg;
+				while ((msg = decoder.next()) != null)
+					inbox.add(msg);
+				if (inbox.size() >= READ_HIGH_WATERMARK)
+					paused = true;
+				if (fin)
+					eof = true;
+				start = !dispatching && (fin || !inbox.isEmpty());
+				if (start)
+					dispatching = true;
+			}
+			prov.received(); // Also when the worker is busy, so the client is not considered inactive
+			if (paused || fin)
+				updateInterest();
+			if (start)
+				workers.execute(this::dispatch);
+		}
+		
+		/**
+		 * Dispatch the received messages, in order, until none is left. Run by a worker.
+		 */
+		private void dispatch() {
+			boolean fin;
+			for (;;) {
+				Message msg;
+				synchronized (inbox) {
+					msg = inbox.poll();
+					if (msg == null) {
+						dispatching = false;
+						fin = eof;
+						break;
+					}
+					if (paused && inbox.size() <= READ_HIGH_WATERMARK / 2) { // Read again
+						paused = false;
+						requestWrite();
+					}
+				}
+				try {
+					prov.dispatch(msg);
+				} catch (IOException e) {
+					log.log(Level.SEVERE, prov.getName()+": Exception while processing messages. Closing connection: "+e.getClass().getSimpleName()+" - "+e.getMessage(), e);
+					terminate(this);
+					return;
+				}
+			}
+			if (fin) { // FIN received: graceful disconnection, once replies are sent
+				log.info(prov.getName()+": "+getRemote()+" disconnected. Ending.");
+				prov.requestStop();
+			}
+		}
+		
+		/**
+		 * Write as many queued bytes as possible. Called by the loop thread.
+		 * @throws IOException if an I/O error occurs.
+		 */
+		private void flush() throws IOException {
+			synchronized (out) {
+				if (closed)
+					return;
+				long sent = outBytes;
+				Object o;
+				while ((o = out.peek()) != null) {
+					if (o instanceof FileRegion) {
+						FileRegion r = (FileRegion)o;
+						long n = r.file.transferTo(r.position, r.end - r.position, ch);
+						if (n <= 0 && r.position >= r.file.size()) { // File was truncated: complete the frame with zeros
+							r.error = new IOException("File is shorter than expected ("+r.position+" bytes)");
+							out.poll();
+							out.addFirst(ByteBuffer.allocate((int)(r.end - r.position)));
+							r.position = r.end;
+							out.notifyAll();
+							continue;
+						}
+						r.position += n;
+						outBytes -= n;
+						if (r.position < r.end) // Socket buffer is full
+							break;
+						out.notifyAll(); // Release the sender
+					} else {
+						ByteBuffer bb = (ByteBuffer)o;
+						outBytes -= ch.write(bb);
+						if (bb.hasRemaining()) // Socket buffer is full
+							break;
+					}
+					out.poll();
+				}
+				long t = System.nanoTime();
+				if (fullSince != 0) // Bytes written since the buffer was full have been sent by the network
+					rate.measured(sent - outBytes, t - fullSince);
+				fullSince = (out.isEmpty() ? 0 : t);
+				if (outBytes <= WRITE_HIGH_WATERMARK)
+					out.notifyAll();
+				updateInterest();
+				if (out.isEmpty() && closing)
+					abort();
+			}
+		}
+		
+		/**
+		 * Close the channel immediately, discarding queued messages.
+		 */
+		private void abort() {
+			synchronized (out) {
+				if (closed)
+					return;
+				closed = true;
+				out.clear();
+				outBytes = 0;
+				out.notifyAll(); // Release threads blocked on send()
+			}
+			synchronized (inbox) { // Messages are not dispatched anymore
+				inbox.clear();
+			}
+			try {
+				ch.close(); // Also cancels 'key'
+			} catch (IOException e) {
+				log.warning(getName()+": Exception while closing "+this+": "+e.getMessage());
+			}
+		}
+		
+		@Override
+		public void close() {
+			synchronized (out) {
+				if (closed || closing)
+					return;
+				closing = true;
+				out.notifyAll();
+				if (!out.isEmpty()) { // Close once everything has been sent
+					requestWrite();
+					return;
+				}
+			}
+			abort();
+		}
+		
+		@Override
+		public double getNsPerByte() {
+			return rate.get();
+		}
+		
+		@Override
+		public InetSocketAddress getLocal() {
+			return (InetSocketAddress)ch.socket().getLocalSocketAddress();
+		}
+		
+		@Override
+		public InetSocketAddress getRemote() {
+			return (InetSocketAddress)ch.socket().getRemoteSocketAddress();
+		}
+		
+		@Override
+		public String toString() {
+			return ch.toString();
+		}
+		
+	}
+	
+	/**
+	 * A file payload waiting to be written on a {@link ChannelConnection}.
+	 */
+	private static class FileRegion {
+		final FileChannel file;
+		/** Next position to write, updated by the loop thread. */
+		long position;
+		final long end;
+		/** Error to report to the sender. */
+		IOException error;
+		FileRegion(FileChannel file, long position, int len) {
+			this.file = file;
+			this.position = position;
+			end = position + len;
+		}
+	}
+	
+}
@@ -0,0 +1,39 @@
+package net.jrf.server;
+
+/**
+ * <p>Average time to send a byte on a {@link Connection}, measured while the network is the bottleneck.</p>
+ * <p>Bytes handed to a socket which send buffer has room for them are only copied (or queued), which tells
+ * nothing about the network speed. Only the bytes sent while the connection waits for the network to drain
+ * the socket buffer are measured.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class SendRate {
+	
+	/** Weight of a new measure in the average. */
+	private static final double ALPHA = 0.25;
+	
+	/** Average time to send a byte, in ns. {@code < 0} if not measured yet. */
+	private double nsPerByte = -1.0;
+	
+	/**
+	 * Record the time spent by the network to send bytes.
+	 * @param bytes The number of bytes sent while the socket buffer was full.
+	 * @param ns The time spent, in ns.
+	 */
+	synchronized void measured(long bytes, long ns) {
+		if (bytes <= 0)
+			return;
+		double v = (double)ns / bytes;
+		nsPerByte = (nsPerByte < 0 ? v : nsPerByte + ALPHA * (v - nsPerByte));
+	}
+	
+	/**
+	 * @return The average time to send a byte, in ns. {@code < 0} if not measured yet (e.g. the socket
+	 * 		buffer never filled up).
+	 */
+	synchronized double get() {
+		return nsPerByte;
+	}
+	
+}
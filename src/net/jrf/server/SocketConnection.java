@@ -0,0 +1,176 @@
+package net.jrf.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import net.jrf.ByteBufferOut;
+import net.jrf.client.JRFClient;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgData;
+
+/**
+ * {@link BlockingConnection} on a blocking {@code Socket}, read by a dedicated {@link JRFProvider} thread.
+ * 
+ * @author Matthieu Labas
+ */
+class SocketConnection implements BlockingConnection {
+	
+	private static final Logger log = Logger.getLogger(SocketConnection.class.getName());
+	
+	/** Time above which a write is considered to have waited for the network to drain the socket buffer, in ns
+	 * (copying a chunk to the socket buffer takes a few microseconds). */
+	private static final long BLOCKED_NS = 200_000;
+	
+	private Socket sok;
+	
+	/** Lock to send whole messages. A {@code ReentrantLock} does not pin virtual threads when blocking
+	 * on socket writes, unlike {@code synchronized}. */
+	private ReentrantLock sendLock;
+	
+	private volatile int protocol;
+	
+	/** {@code true} if the last data message sent waited for the network. */
+	private boolean blocked;
+	
+	private final SendRate rate = new SendRate();
+	
+	SocketConnection(Socket sok) {
+		this(sok, JRFClient.TIMEOUT);
+	}
+	
+	/**
+	 * @param sok The connected socket.
+	 * @param timeout The socket read timeout, in ms. {@code 0} to block until a message is received.
+	 */
+	SocketConnection(Socket sok, int timeout) {
+		try {
+			sok.setSoTimeout(timeout);
+		} catch (SocketException e) {
+			log.warning("Unable to set timeout on "+sok+": "+e.getMessage());
+		}
+		// Keepalive is basically useless, we use our own ping messages
+		this.sok = sok;
+		sendLock = new ReentrantLock();
+		protocol = Message.PROTOCOL_V1;
+	}
+	
+	@Override
+	public void send(Message msg) throws IOException {
+		sendLock.lock();
+		try {
+			long t0 = System.nanoTime();
+			msg.send(sok, protocol);
+			if (msg instanceof MsgData)
+				sent(((MsgData)msg).getLength(), System.nanoTime() - t0);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	@Override
+	public void send(MsgData msg, ByteBuffer payload) throws IOException {
+		payload = payload.duplicate();
+		sendLock.lock();
+		try (ByteBufferOut head = msg.frameHead(protocol)) {
+			long t0 = System.nanoTime();
+			OutputStream os = sok.getOutputStream();
+			os.write(head.getRawArray(), 0, head.size());
+			WritableByteChannel ch = sok.getChannel();
+			if (ch == null) // Socket not opened through a channel: copy through the heap
+				ch = Channels.newChannel(os);
+			while (payload.hasRemaining())
+				ch.write(payload);
+			sent(msg.getLength(), System.nanoTime() - t0);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send the payload with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+	 * to the socket channel, if any, so it is sent straight from the page cache.
+	 */
+	@Override
+	public void send(MsgData msg, FileChannel file, long position) throws IOException {
+		sendLock.lock();
+		try (ByteBufferOut head = msg.frameHead(protocol)) {
+			OutputStream os = sok.getOutputStream();
+			os.write(head.getRawArray(), 0, head.size());
+			WritableByteChannel ch = sok.getChannel();
+			if (ch == null) // Socket not opened through a channel: copy through the heap
+				ch = Channels.newChannel(os);
+			long end = position + msg.getLength();
+			long t0 = System.nanoTime();
+			while (position < end) {
+				long n = file.transferTo(position, end - position, ch);
+				if (n <= 0 && position >= file.size()) { // File was truncated: keep the frame consistent
+					os.write(new byte[(int)(end - position)]);
+					throw new IOException("File is shorter than expected ("+position+" bytes)");
+				}
+				position += n;
+			}
+			sent(msg.getLength(), System.nanoTime() - t0);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Measure the network speed from a data message which write waited for the network to drain the socket
+	 * buffer. The first of such writes is not measured, as the buffer was not full when it started. Called
+	 * while holding {@link #sendLock}.
+	 * @param bytes The number of bytes of the payload.
+	 * @param ns The time spent writing the message, in ns.
+	 */
+	private void sent(long bytes, long ns) {
+		boolean b = (ns >= BLOCKED_NS);
+		if (b && blocked)
+			rate.measured(bytes, ns);
+		blocked = b;
+	}
+	
+	@Override
+	public double getNsPerByte() {
+		return rate.get();
+	}
+	
+	@Override
+	public void setProtocol(int protocol) {
+		this.protocol = protocol;
+	}
+	
+	@Override
+	public Message receive() throws IOException {
+		return Message.receive(sok); // Can SocketTimeoutException
+	}
+	
+	@Override
+	public InetSocketAddress getLocal() {
+		return (InetSocketAddress)sok.getLocalSocketAddress();
+	}
+	
+	@Override
+	public InetSocketAddress getRemote() {
+		return (InetSocketAddress)sok.getRemoteSocketAddress();
+	}
+	
+	@Override
+	public void close() {
+		JRFClient.gracefulClose(sok, true);
+	}
+	
+	@Override
+	public String toString() {
+		return sok.toString();
+	}
+	
+}
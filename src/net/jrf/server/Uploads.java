@@ -0,0 +1,181 @@
+package net.jrf.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Files being uploaded in parallel, shared by all the {@link JRFProvider}s of a {@link JRFServer}: an upload
+ * is created by a client on one connection, then attached to by the same client on its other connections,
+ * so that ranges of the file are written at once through several connections, on the same file.</p>
+ * <p>Each upload keeps track of the ranges written, so that its completeness can be checked before the
+ * client commits it.</p>
+ * <p>Uploads are reference-counted: the file is closed when the last provider it is opened by closes it.</p>
+ * 
+ * @author Matthieu Labas
+ */
+class Uploads {
+	
+	/** Uploads, by file ID. */
+	private Map<Short,Upload> uploads;
+	
+	Uploads() {
+		uploads = new HashMap<>();
+	}
+	
+	/**
+	 * Create an upload: the file is created, or truncated if it exists.
+	 * @param name The file name.
+	 * @param fileID The file ID, which the other connections attach to.
+	 * @return The upload, to be {@linkplain #release(Upload) released} when not used anymore.
+	 * @throws IOException if the file cannot be created.
+	 */
+	Upload create(String name, short fileID) throws IOException {
+		Upload u = new Upload(name, fileID);
+		synchronized (this) {
+			uploads.put(fileID, u);
+		}
+		return u;
+	}
+	
+	/**
+	 * Attach to an upload created on another connection.
+	 * @param fileID The upload file ID.
+	 * @return The upload, to be {@linkplain #release(Upload) released} when not used anymore, or {@code null}
+	 * 		if there is no such upload.
+	 */
+	synchronized Upload attach(short fileID) {
+		Upload u = uploads.get(fileID);
+		if (u != null)
+			u.refs++;
+		return u;
+	}
+	
+	/**
+	 * Release an upload {@linkplain #create(String, short) created} or {@linkplain #attach(short) attached} to
+	 * before, closing its file if it was the last user.
+	 * @param u The upload.
+	 * @throws IOException if the file could not be closed.
+	 */
+	void release(Upload u) throws IOException {
+		synchronized (this) {
+			if (--u.refs > 0)
+				return;
+			uploads.remove(u.fileID);
+		}
+		u.ch.close();
+	}
+	
+	/**
+	 * @return The number of uploads in progress.
+	 */
+	synchronized int size() {
+		return uploads.size();
+	}
+	
+	
+	
+	/**
+	 * A file being uploaded.
+	 */
+	static class Upload {
+		
+		/** The file name. */
+		final String name;
+		
+		/** The file ID of the connection which created the upload. */
+		final short fileID;
+		
+		/** The file, written by all connections. */
+		final FileChannel ch;
+		
+		/** Ranges written: end position by start position, merged when contiguous. Guarded by {@code this}. */
+		private final TreeMap<Long,Long> written;
+		
+		/** Number of providers the upload is opened by, guarded by the {@link Uploads} lock. */
+		private int refs;
+		
+		private Upload(String name, short fileID) throws IOException {
+			try {
+				ch = FileChannel.open(Paths.get(name), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (InvalidPathException e) {
+				throw new FileNotFoundException(e.getMessage());
+			}
+			this.name = name;
+			this.fileID = fileID;
+			written = new TreeMap<>();
+			refs = 1;
+		}
+		
+		/**
+		 * Set the file to its final size, so that ranges can be written in any order without the file
+		 * growing for each.
+		 * @param size The file size.
+		 * @throws IOException if the file cannot be resized.
+		 */
+		void allocate(long size) throws IOException {
+			if (ch.size() > size)
+				ch.truncate(size);
+			else if (size > 0 && ch.size() < size)
+				ch.write(ByteBuffer.allocate(1), size - 1);
+		}
+		
+		/**
+		 * Record that a range was written.
+		 * @param pos The range position.
+		 * @param len The range length.
+		 */
+		synchronized void written(long pos, long len) {
+			if (len <= 0)
+				return;
+			long end = pos + len;
+			Map.Entry<Long,Long> e = written.floorEntry(pos);
+			if (e != null && e.getValue() >= pos) { // Merge with the range before
+				pos = e.getKey();
+				end = Math.max(end, e.getValue());
+			}
+			for (e = written.ceilingEntry(pos); e != null && e.getKey() <= end; e = written.ceilingEntry(pos)) { // Merge with the ranges after
+				end = Math.max(end, e.getValue());
+				written.remove(e.getKey());
+			}
+			written.put(pos, end);
+		}
+		
+		/**
+		 * Check the upload is complete, and force its content to disk.
+		 * @param size The expected file size.
+		 * @throws IOException if the file does not have the expected size, or if a range was not written.
+		 */
+		void commit(long size) throws IOException {
+			long gap;
+			synchronized (this) {
+				Map.Entry<Long,Long> first = written.firstEntry();
+				if (size == 0)
+					gap = -1l;
+				else if (first == null || first.getKey() > 0)
+					gap = 0l;
+				else
+					gap = (first.getValue() >= size ? -1l : first.getValue());
+			}
+			if (gap >= 0)
+				throw new IOException("Upload of "+name+" is incomplete: nothing written at "+gap);
+			if (ch.size() != size)
+				throw new IOException("Upload of "+name+" is "+ch.size()+" bytes instead of "+size);
+			ch.force(false);
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	
+	}
+	
+}
@@ -3,26 +3,73 @@ package net.jrf.test;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import net.jrf.AsyncOutputStream;
+import net.jrf.ByteBufferOut;
+import net.jrf.Delta;
 import net.jrf.RemoteFile;
+import net.jrf.RemoteFileChannel;
 import net.jrf.RemoteInputStream;
 import net.jrf.RemoteOutputStream;
 import net.jrf.StreamInfo;
 import net.jrf.Utils;
 import net.jrf.client.JRFClient;
+import net.jrf.client.JRFClientPool;
+import net.jrf.codec.ChunkCompressor;
+import net.jrf.codec.ChunkInflater;
+import net.jrf.codec.Codec;
+import net.jrf.codec.CodecPool;
+import net.jrf.codec.Compressibility;
+import net.jrf.codec.Dictionary;
+import net.jrf.codec.LZCodec;
+import net.jrf.codec.ParallelDeflateOutputStream;
+import net.jrf.msg.FrameDecoder;
+import net.jrf.msg.Message;
+import net.jrf.msg.MsgAck;
+import net.jrf.msg.MsgClose;
+import net.jrf.msg.MsgData;
+import net.jrf.msg.MsgFlush;
+import net.jrf.msg.MsgGet;
+import net.jrf.msg.MsgOpen;
+import net.jrf.msg.MsgPing;
+import net.jrf.msg.MsgPut;
+import net.jrf.msg.MsgRead;
+import net.jrf.msg.MsgWrite;
+import net.jrf.msg.file.MsgFileAction;
+import net.jrf.msg.file.MsgFileAction.FileAction;
 import net.jrf.msg.file.MsgFileInfos;
+import net.jrf.server.Dictionaries;
 import net.jrf.server.JRFServer;
 
 public class UnitTesting {
@@ -135,6 +182,7 @@ public class UnitTesting {
 	public void writeDelete() {
 		try (RemoteOutputStream os = cli.getRemoteOutputStream(file2Write)) {
 			os.write(contentUndeflatable);
+			os.flush(); // Writes are buffered until flushed
 			StreamInfo info = os.getInfo();
 			assertEquals(info.getIOBytes(), info.getXferBytes()); // No deflate performed
 		} catch (IOException e) {
@@ -154,6 +202,7 @@ public class UnitTesting {
 	public void writeDeflateNoDeflate() {
 		try (RemoteOutputStream os = cli.getRemoteOutputStream(file2Write, 3)) {
 			os.write(contentUndeflatable);
+			os.flush(); // Writes are buffered until flushed
 			StreamInfo info = os.getInfo();
 			assertEquals(info.getIOBytes(), info.getXferBytes()); // No deflate performed, even through requested
 		} catch (IOException e) {
@@ -168,6 +217,7 @@ public class UnitTesting {
 	public void writeDeflate() {
 		try (RemoteOutputStream os = cli.getRemoteOutputStream(file2Write, 3)) {
 			os.write(contentDeflatable);
+			os.flush(); // Writes are buffered until flushed
 			StreamInfo info = os.getInfo();
 			assertTrue(info.getIOBytes() > info.getXferBytes()); // Deflate performed
 		} catch (IOException e) {
@@ -389,6 +439,1166 @@ public class UnitTesting {
 		}
 	}
 	
+	@Test
+	public void selectorEngine() {
+		InetSocketAddress addr = new InetSocketAddress(JRFServer.DEFAULT_PORT+1);
+		JRFServer nio = null;
+		JRFClient c = null;
+		try {
+			nio = JRFServer.get(addr, JRFServer.Engine.SELECTOR);
+			nio.start();
+			c = new JRFClient(new InetSocketAddress("127.0.0.1", addr.getPort()));
+			c.start();
+			byte[] buf = new byte[contentDeflatable.length + 1];
+			try (RemoteInputStream is = c.getRemoteInputStream(file2ReadDeflate, 3)) {
+				buf = Arrays.copyOf(buf, is.read(buf));
+				assertArrayEquals(contentDeflatable, buf);
+			}
+			String getFile = file2ReadRaw+".get";
+			c.getFile(file2ReadRaw, 0, getFile, 1500);
+			checkSameFiles(file2ReadRaw, getFile);
+			if (!new File(getFile).delete())
+				System.err.println("Unable to delete "+getFile);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (c != null)
+				c.requestStop();
+			if (nio != null) {
+				nio.requestStop();
+				while (nio.isAlive())
+					try{nio.join();}catch(InterruptedException e){}
+			}
+		}
+	}
+	
+	@Test(timeout = 30000)
+	public void selectorBlockingHandler() {
+		InetSocketAddress addr = new InetSocketAddress(JRFServer.DEFAULT_PORT+1);
+		File fifo = new File(workDir, "test.fifo"); // Opening a FIFO for reading blocks until a writer opens it
+		JRFServer nio = null;
+		List<JRFClient> clients = new ArrayList<>();
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			if (new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() != 0) {
+				System.err.println("Cannot create FIFO "+fifo+": skipped");
+				return;
+			}
+			nio = JRFServer.get(addr, JRFServer.Engine.SELECTOR);
+			nio.start();
+			for (int i = 0; i <= JRFServer.SELECTOR_THREADS; i++) { // One more than loops: the first loop serves two
+				JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", addr.getPort()));
+				c.start();
+				clients.add(c);
+			}
+			JRFClient blocked = clients.get(0);
+			Future<?> open = exec.submit(() -> {
+				try (RemoteInputStream is = blocked.getRemoteInputStream(fifo.getPath())) {
+				} catch (IOException e) { // Client timeout while the server is blocked
+				}
+			});
+			Thread.sleep(200); // Let the server block on the FIFO
+			for (JRFClient c : clients.subList(1, clients.size())) // Served while the open is blocked
+				assertTrue(new RemoteFile(c, file2ReadRaw).exists());
+			try (FileOutputStream os = new FileOutputStream(fifo)) { // Release the server
+			}
+			open.get();
+			assertTrue(new RemoteFile(blocked, file2ReadRaw).exists());
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			fail(e.getMessage());
+		} finally {
+			exec.shutdownNow();
+			for (JRFClient c : clients)
+				c.requestStop();
+			if (nio != null) {
+				nio.requestStop();
+				while (nio.isAlive())
+					try{nio.join();}catch(InterruptedException e){}
+			}
+			if (fifo.exists() && !fifo.delete())
+				System.err.println("Unable to delete "+fifo);
+		}
+	}
+	
+	@Test
+	public void varInt() {
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+		int[] sizes = { 1, 1, 1, 2, 2, 3, 5, 5, 5 };
+		try (ByteBufferOut out = new ByteBufferOut(64)) {
+			for (int i = 0; i < values.length; i++) {
+				int sz = out.size();
+				out.writeVarInt(values[i]);
+				assertEquals("#"+i, sizes[i], out.size() - sz);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.getRawArray(), 0, out.size()));
+			for (int v : values)
+				assertEquals(v, Utils.readVarInt(in));
+			assertEquals(0, in.available());
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+		byte[] malformed = { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0 };
+		try {
+			Utils.readVarInt(new DataInputStream(new ByteArrayInputStream(malformed)));
+			fail("More than 5 bytes accepted");
+		} catch (IOException e) { // Expected
+		}
+	}
+	
+	@Test
+	public void frames() {
+		try {
+			MsgRead read = new MsgRead((short)7, 123456);
+			MsgAck ack = new MsgAck(read.getNum(), (short)7, MsgAck.WARN, "Warning");
+			ByteBufferOut v1 = read.frame(Message.PROTOCOL_V1);
+			ByteBufferOut v2 = read.frame(Message.PROTOCOL_V2);
+			ByteBufferOut ackV2 = ack.frame(Message.PROTOCOL_V2);
+			assertTrue(v2.size() < v1.size()); // Type ID and varints instead of class name and fixed-size fields
+			FrameDecoder dec = new FrameDecoder(8);
+			List<Message> msgs = new ArrayList<>();
+			for (ByteBufferOut frame : new ByteBufferOut[] { v1, v2, ackV2 }) {
+				for (int i = 0; i < frame.size(); i++) { // Frames can be received in any number of parts
+					dec.buffer().put(frame.getRawArray()[i]);
+					Message m;
+					while ((m = dec.next()) != null)
+						msgs.add(m);
+				}
+			}
+			assertEquals(3, msgs.size());
+			for (int i = 0; i < 2; i++) {
+				MsgRead m = (MsgRead)msgs.get(i);
+				assertEquals(read.getFileID(), m.getFileID());
+				assertEquals(read.getLength(), m.getLength());
+			}
+			assertEquals(read.getNum(), msgs.get(1).getNum());
+			MsgAck m = (MsgAck)msgs.get(2);
+			assertTrue(m.isReplyTo(read.getNum()));
+			assertEquals(MsgAck.WARN, m.getCode());
+			assertEquals("Warning", m.getMessage());
+			
+			new RemoteFile(cli, file2ReadRaw); // Replied to after the protocol handshake
+			assertEquals(Message.PROTOCOL_V2, cli.getProtocol());
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Handles the messages received by a {@linkplain UnitTesting#fakeServer(ServerSocket, FakeHandler) fake server}.
+	 */
+	private static interface FakeHandler {
+		/**
+		 * @return {@code false} to close the connection.
+		 */
+		boolean handle(Message msg, Socket sok) throws IOException;
+	}
+	
+	/**
+	 * Serve a single connection with a handler instead of a {@link JRFServer}. The protocol handshake is not
+	 * replied to, so messages are exchanged in {@link Message#PROTOCOL_V1}.
+	 * @return The thread serving the connection.
+	 */
+	private static Thread fakeServer(final ServerSocket ss, final FakeHandler handler) {
+		return fakeServer(ss, handler, false);
+	}
+	
+	/**
+	 * Serve a single connection with a handler instead of a {@link JRFServer}.
+	 * @param handshake {@code true} to reply to the protocol handshake, so the client uses {@link Message#PROTOCOL}.
+	 * @return The thread serving the connection.
+	 */
+	private static Thread fakeServer(final ServerSocket ss, final FakeHandler handler, final boolean handshake) {
+		Thread t = new Thread(() -> {
+			try (Socket sok = ss.accept()) {
+				for (;;) {
+					Message msg = Message.receive(sok);
+					if (msg instanceof MsgPing) {
+						if (handshake && ((MsgPing)msg).getProtocol() > 0)
+							new MsgPing(msg.getNum(), Message.PROTOCOL).send(sok);
+					} else if (!handler.handle(msg, sok))
+						break;
+				}
+			} catch (IOException e) { // Client closed
+			}
+		}, "Fake server");
+		t.start();
+		return t;
+	}
+	
+	@Test(timeout = 20000)
+	public void writeWindow() {
+		final List<MsgWrite> writes = new ArrayList<>();
+		try (ServerSocket ss = new ServerSocket(0)) {
+			Thread srvThread = fakeServer(ss, (msg, sok) -> {
+				if (msg instanceof MsgOpen) {
+					new MsgAck(msg.getNum(), (short)1).send(sok);
+				} else if (msg instanceof MsgWrite) { // Acknowledged by 4, the second one failing
+					writes.add((MsgWrite)msg);
+					if (writes.size() % 4 == 0) {
+						for (int i = writes.size() - 4; i < writes.size(); i++)
+							new MsgAck(writes.get(i).getNum(), (short)1, (i == 1 ? MsgAck.ERR : MsgAck.OK), (i == 1 ? "Disk full" : null)).send(sok);
+					}
+				} else if (msg instanceof MsgFlush) {
+					new MsgAck(msg.getNum(), (short)1).send(sok);
+				}
+				return !(msg instanceof MsgClose);
+			});
+			JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", ss.getLocalPort()));
+			c.start();
+			try {
+				RemoteOutputStream os = c.getRemoteOutputStream(file2Write);
+				os.setBufferSize(0);
+				os.setWindow(4);
+				for (int i = 0; i < 4; i++) // Not waiting for the acknowledges, which are sent after the 4th write
+					os.write(contentUndeflatable, i, 1);
+				try {
+					os.flush();
+					fail("Write error not reported");
+				} catch (IOException e) { // Reported once acknowledged
+					assertEquals("Disk full", e.getMessage());
+				}
+				try {
+					os.close();
+					fail("Write error not reported");
+				} catch (IOException e) { // Still reported
+					assertEquals("Disk full", e.getMessage());
+				}
+				assertEquals(0, c.getOpenedFileCount());
+				while (srvThread.isAlive()) // Closed by the server once the stream is closed
+					try{srvThread.join();}catch(InterruptedException e){}
+				assertEquals(4, writes.size());
+			} finally {
+				c.requestStop();
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test(timeout = 20000)
+	public void putFileV1() {
+		final List<Message> msgs = new ArrayList<>();
+		try (ServerSocket ss = new ServerSocket(0)) {
+			Thread srvThread = fakeServer(ss, (msg, sok) -> { // Server not knowing the handshake nor MsgPut
+				msgs.add(msg);
+				if (msg instanceof MsgOpen || msg instanceof MsgWrite || msg instanceof MsgFlush)
+					new MsgAck(msg.getNum(), (short)1).send(sok);
+				return !(msg instanceof MsgClose);
+			});
+			JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", ss.getLocalPort()));
+			c.start();
+			try {
+				long t0 = System.currentTimeMillis();
+				c.putFile(file2ReadRaw, 0, file2Write, 1500);
+				assertTrue(System.currentTimeMillis() - t0 >= JRFClient.HANDSHAKE_TIMEOUT); // Waited for the handshake reply
+				while (srvThread.isAlive())
+					try{srvThread.join();}catch(InterruptedException e){}
+				assertTrue(msgs.get(0) instanceof MsgOpen); // Uploaded as a stream, without other request
+				assertEquals(Message.PROTOCOL_V1, c.getProtocol());
+				int len = 0;
+				for (Message m : msgs) {
+					if (m instanceof MsgWrite)
+						len += ((MsgWrite)m).getLength();
+				}
+				assertEquals(new File(file2ReadRaw).length(), len);
+			} finally {
+				c.requestStop();
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test(timeout = 20000)
+	public void putFileAbort() {
+		File local = new File(workDir, "test_abort.txt");
+		final int[] chunks = new int[1];
+		try (ServerSocket ss = new ServerSocket(0)) {
+			Files.write(local.toPath(), new byte[32 << 20]); // Chunks are sent after many blocks are compressed
+			Thread srvThread = fakeServer(ss, (msg, sok) -> {
+				if (msg instanceof MsgPut) { // Fails right after the file is created
+					new MsgAck(msg.getNum(), (short)1).send(sok, Message.PROTOCOL);
+					new MsgAck(msg.getNum(), (short)1, MsgAck.ERR, "Disk full").send(sok, Message.PROTOCOL);
+				} else if (msg instanceof MsgData) {
+					chunks[0]++;
+				}
+				return !(msg instanceof MsgClose);
+			}, true);
+			JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", ss.getLocalPort()));
+			c.start();
+			try {
+				c.putFile(local.getPath(), Codec.compression(Codec.DEFLATE, 6), file2Write, 1500);
+				fail("Write error not reported");
+			} catch (IOException e) { // Reported while sending
+				assertEquals("Disk full", e.getMessage());
+			} finally {
+				c.requestStop();
+			}
+			while (srvThread.isAlive()) // Closed by the server once the upload is aborted
+				try{srvThread.join();}catch(InterruptedException e){}
+						assertEquals(0, chunks[0]); // Aborted while the first blocks are compressed
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!local.delete())
+				System.err.println("Unable to delete "+local);
+		}
+	}
+	
+	@Test(timeout = 20000)
+	public void writeConnectionLost() {
+		try (ServerSocket ss = new ServerSocket(0)) {
+			final int[] writes = new int[1];
+			fakeServer(ss, (msg, sok) -> {
+				if (msg instanceof MsgOpen)
+					new MsgAck(msg.getNum(), (short)1).send(sok);
+				return !(msg instanceof MsgWrite && ++writes[0] == 2); // Connection lost before the writes are acknowledged
+			});
+			JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", ss.getLocalPort()));
+			c.start();
+			RemoteOutputStream os = c.getRemoteOutputStream(file2Write);
+			os.setBufferSize(0);
+			os.write(contentUndeflatable);
+			os.write(contentUndeflatable); // The first one is waiting for its acknowledge
+			while (c.isAlive()) // The stream is closed along with the client, without waiting for the acknowledge
+				try{c.join();}catch(InterruptedException e){}
+			assertEquals(0, c.getOpenedFileCount());
+			try {
+				os.write(contentUndeflatable);
+				fail("Write on a lost connection");
+			} catch (IOException e) { // Expected
+			}
+			os.close();
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test
+	public void remoteFileChannel() {
+		final byte[] content = new byte[256 * 1024];
+		new Random(9).nextBytes(content);
+		final int part = content.length / 4;
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try (final RemoteFileChannel ch = cli.getRemoteFileChannel(file2Write, 0)) {
+			ch.setChunkSize(4096); // Several requests per read or write
+			List<Future<Integer>> writes = new ArrayList<>();
+			for (int i = 3; i >= 0; i--) { // Parts written concurrently, the last one first
+				final int off = i * part;
+				writes.add(exec.submit(() -> ch.write(ByteBuffer.wrap(content, off, part), off)));
+			}
+			for (Future<Integer> f : writes)
+				assertEquals(part, (int)f.get());
+			assertEquals(0l, ch.position()); // Not used by positional writes
+			assertEquals(content.length, ch.size());
+			
+			List<Future<byte[]>> reads = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				final int off = i * part;
+				reads.add(exec.submit(() -> {
+					ByteBuffer bb = ByteBuffer.allocate(part);
+					while (bb.hasRemaining())
+						assertTrue(ch.read(bb, off + bb.position()) > 0);
+					return bb.array();
+				}));
+			}
+			for (int i = 0; i < 4; i++)
+				assertArrayEquals(Arrays.copyOfRange(content, i * part, (i+1) * part), reads.get(i).get());
+			assertEquals(-1, ch.read(ByteBuffer.allocate(10), content.length)); // End of file
+			ByteBuffer bb = ByteBuffer.allocate(100);
+			assertEquals(10, ch.read(bb, content.length - 10)); // Only what remains
+			assertArrayEquals(Arrays.copyOfRange(content, content.length - 10, content.length), Arrays.copyOf(bb.array(), 10));
+			
+			ch.position(part); // Relative operations use and move the position
+			assertEquals(3, ch.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+			assertEquals(part + 3, ch.position());
+			ch.truncate(part + 3);
+			assertEquals(part + 3, ch.size());
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			fail(e.getMessage());
+		} finally {
+			exec.shutdown();
+		}
+		try {
+			byte[] expected = Arrays.copyOf(content, part + 3);
+			expected[part] = 1; expected[part+1] = 2; expected[part+2] = 3;
+			assertArrayEquals(expected, Files.readAllBytes(new File(file2Write).toPath()));
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!new File(file2Write).delete())
+				System.err.println("Unable to delete "+file2Write);
+		}
+	}
+	
+	@Test
+	public void clientPool() {
+		JRFClientPool pool = null;
+		List<RemoteInputStream> streams = new ArrayList<>();
+		try {
+			pool = new JRFClientPool(new InetSocketAddress("127.0.0.1", JRFServer.DEFAULT_PORT), 3);
+			for (int i = 0; i < 2; i++)
+				streams.add(pool.getRemoteInputStream(file2ReadRaw));
+			assertEquals(0, pool.getClient().getOpenedFileCount()); // Streams opened on different connections
+			streams.add(pool.getRemoteInputStream(file2ReadRaw));
+			assertEquals(1, pool.getClient().getOpenedFileCount()); // One on each connection
+			for (RemoteInputStream is : streams)
+				is.close();
+			
+			JRFClient c = pool.getClient();
+			c.requestStop();
+			while (c.isAlive())
+				try{c.join();}catch(InterruptedException e){}
+			compareFileAttributes(new File(file2ReadRaw), pool.getRemoteFile(file2ReadRaw)); // Closed connection replaced
+			for (int i = 0; i < pool.size(); i++) {
+				JRFClient c2 = pool.getClient();
+				assertNotSame(c, c2);
+				assertTrue(c2.isAlive());
+			}
+			
+			pool.requestStop();
+			try {
+				pool.getRemoteFile(file2ReadRaw);
+				fail("Stopped pool used");
+			} catch (IOException e) { // Expected
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (pool != null) {
+				pool.requestStop();
+				try{pool.join();}catch(InterruptedException e){}
+			}
+		}
+	}
+	
+	@Test
+	public void getFileRanges() {
+		String getFile = bigFile+".get";
+		try {
+			for (int deflate : new int[] { 0, 6 }) {
+				cli.getFile(bigFile, deflate, getFile, 16384, 4);
+				checkSameFiles(bigFile, getFile);
+			}
+			if (!new File(getFile).delete())
+				System.err.println("Unable to delete "+getFile);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test
+	public void putFileRanges() {
+		try {
+			for (int deflate : new int[] { 0, 6 }) {
+				cli.putFile(bigFile, deflate, file2Write, 16384, 4);
+				checkSameFiles(bigFile, file2Write);
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!new File(file2Write).delete())
+				System.err.println("Unable to delete "+file2Write);
+		}
+	}
+	
+	/**
+	 * Write the journal of a resumable transfer, as left by an interrupted transfer.
+	 */
+	private static void writeJournal(File journal, String type, File local, String remote, File file) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("type", type);
+		p.setProperty("local", local.getAbsolutePath());
+		p.setProperty("remote", remote);
+		p.setProperty("size", Long.toString(file.length()));
+		p.setProperty("lastModified", Long.toString(file.lastModified()));
+		try (OutputStream os = new FileOutputStream(journal)) {
+			p.store(os, null);
+		}
+	}
+	
+	@Test
+	public void getFileResumable() {
+		File big = new File(bigFile);
+		File getFile = new File(bigFile+".get");
+		File journal = JRFClient.getJournal(getFile.getPath(), bigFile, false);
+		try {
+			assertEquals(big.length(), cli.getFileResumable(bigFile, 0, getFile.getPath(), 1500));
+			assertFalse(journal.exists()); // Deleted once complete
+			checkSameFiles(bigFile, getFile.getPath());
+			
+			long part = big.length() / 3;
+			try (RandomAccessFile raf = new RandomAccessFile(getFile, "rw")) {
+				raf.setLength(part);
+			}
+			writeJournal(journal, "get", getFile, bigFile, big);
+			assertEquals(big.length() - part, cli.getFileResumable(bigFile, 0, getFile.getPath(), 1500)); // Resumed
+			assertFalse(journal.exists());
+			checkSameFiles(bigFile, getFile.getPath());
+			
+			try (RandomAccessFile raf = new RandomAccessFile(getFile, "rw")) { // Partial file not matching
+				raf.setLength(part);
+				raf.write(0);
+				raf.seek(0);
+				raf.write(~raf.read());
+			}
+			writeJournal(journal, "get", getFile, bigFile, big);
+			assertEquals(big.length(), cli.getFileResumable(bigFile, 0, getFile.getPath(), 1500)); // Restarted
+			checkSameFiles(bigFile, getFile.getPath());
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!getFile.delete())
+				System.err.println("Unable to delete "+getFile);
+		}
+	}
+	
+	@Test(timeout = 20000)
+	public void getFileResumableV1() {
+		final File remote = new File(file2ReadRaw);
+		File getFile = new File(file2Write);
+		File journal = JRFClient.getJournal(getFile.getPath(), remote.getPath(), false);
+		final List<Message> gets = new ArrayList<>();
+		try (ServerSocket ss = new ServerSocket(0)) {
+			Thread srvThread = fakeServer(ss, (msg, sok) -> { // Server not knowing checksums nor offsets
+				if (msg instanceof MsgFileAction && ((MsgFileAction)msg).getAction() == FileAction.GET_ATTRIBUTES) {
+					new MsgFileInfos(msg.getNum(), remote).send(sok);
+				} else if (msg instanceof MsgGet) { // Whole file, whatever the offset
+					gets.add(msg);
+					byte[] content = Files.readAllBytes(remote.toPath());
+					for (int off = 0; off < content.length; off += 1000) {
+						int len = Math.min(1000, content.length - off);
+						new MsgData(msg.getNum(), (short)0, Arrays.copyOfRange(content, off, off + len), len, 0, off + len < content.length).send(sok);
+					}
+				} else {
+					gets.add(msg); // Unexpected: left without reply
+				}
+				return true;
+			});
+			JRFClient c = new JRFClient(new InetSocketAddress("127.0.0.1", ss.getLocalPort()));
+			c.start();
+			try {
+				try (RandomAccessFile raf = new RandomAccessFile(getFile, "rw")) { // Matching partial file
+					raf.setLength(0);
+					raf.write(Files.readAllBytes(remote.toPath()), 0, (int)(remote.length() / 3));
+				}
+				writeJournal(journal, "get", getFile, remote.getPath(), remote);
+				assertEquals(remote.length(), c.getFileResumable(remote.getPath(), 0, getFile.getPath(), 1500)); // Restarted
+				assertEquals(Message.PROTOCOL_V1, c.getProtocol());
+				assertEquals(1, gets.size());
+				assertTrue(gets.get(0) instanceof MsgGet);
+				assertEquals(0, ((MsgGet)gets.get(0)).getOffset());
+				assertFalse(journal.exists());
+				checkSameFiles(remote.getPath(), getFile.getPath());
+			} finally {
+				c.requestStop();
+			}
+			while (srvThread.isAlive())
+				try{srvThread.join();}catch(InterruptedException e){}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!getFile.delete())
+				System.err.println("Unable to delete "+getFile);
+		}
+	}
+	
+	@Test
+	public void putFileResumable() {
+		File big = new File(bigFile);
+		File dir = new File(workDir, "journals");
+		JRFClient.setJournalDir(dir);
+		File journal = JRFClient.getJournal(bigFile, file2Write, true);
+		assertEquals(dir, journal.getParentFile()); // Not next to the local file, which directory may not be writable
+		assertFalse(journal.equals(JRFClient.getJournal(bigFile, file2Write+".other", true))); // Same file sent elsewhere
+		assertFalse(journal.equals(JRFClient.getJournal(bigFile, file2Write, false)));
+		try {
+			assertEquals(big.length(), cli.putFileResumable(bigFile, 0, file2Write, 1500));
+			assertFalse(journal.exists());
+			checkSameFiles(bigFile, file2Write);
+			
+			long part = big.length() / 3;
+			try (RandomAccessFile raf = new RandomAccessFile(file2Write, "rw")) {
+				raf.setLength(part);
+			}
+			writeJournal(journal, "put", big, file2Write, big);
+			assertEquals(big.length() - part, cli.putFileResumable(bigFile, 0, file2Write, 1500));
+			assertFalse(journal.exists());
+			checkSameFiles(bigFile, file2Write);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			JRFClient.setJournalDir(null);
+			if (!new File(file2Write).delete())
+				System.err.println("Unable to delete "+file2Write);
+			if (!dir.delete())
+				System.err.println("Unable to delete "+dir);
+		}
+	}
+	
+	/**
+	 * @return Random bytes, and the same bytes with some inserted and some removed, which shifts the blocks
+	 * 		after them.
+	 */
+	private static byte[][] shiftedContent() {
+		Random rnd = new Random(17);
+		byte[] content = new byte[1 << 20];
+		rnd.nextBytes(content);
+		byte[] inserted = new byte[1000];
+		rnd.nextBytes(inserted);
+		ByteArrayOutputStream shifted = new ByteArrayOutputStream(content.length);
+		shifted.write(content, 0, 1000);
+		shifted.write(inserted, 0, inserted.length);
+		shifted.write(content, 1000, 500_000);
+		shifted.write(content, 600_000, content.length - 600_000);
+		return new byte[][] { content, shifted.toByteArray() };
+	}
+	
+	@Test
+	public void delta() {
+		byte[][] contents = shiftedContent();
+		File basis = new File(workDir, "delta.basis");
+		try {
+			Files.write(basis.toPath(), contents[0]);
+			int bs = Delta.blockSize(contents[0].length);
+			Delta.Signature sig = Delta.Signature.compute(new ByteArrayInputStream(contents[0]), bs);
+			sig = Delta.Signature.fromBytes(sig.toBytes());
+			assertEquals(contents[0].length, sig.getLength());
+			assertEquals(bs, sig.getBlockSize());
+			ByteArrayOutputStream delta = new ByteArrayOutputStream();
+			long literal = Delta.diff(sig, new ByteArrayInputStream(contents[1]), delta);
+			assertTrue(literal < 1000 + 4*bs); // Inserted bytes and the blocks they were inserted or removed in
+			ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+			try (FileChannel fc = FileChannel.open(basis.toPath()); Delta.Patcher patcher = new Delta.Patcher(fc, bs, rebuilt)) {
+				patcher.write(delta.toByteArray());
+			}
+			assertArrayEquals(contents[1], rebuilt.toByteArray());
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!basis.delete())
+				System.err.println("Unable to delete "+basis);
+		}
+	}
+	
+	@Test
+	public void syncFile() {
+		byte[][] contents = shiftedContent();
+		File basis = new File(workDir, "sync.basis");
+		File changed = new File(workDir, "sync.changed");
+		try {
+			Files.write(changed.toPath(), contents[1]);
+			for (int deflate : new int[] { 0, 6 }) {
+				Files.write(basis.toPath(), contents[0]); // Local basis updated from the remote file
+				long n = cli.syncFile(changed.getPath(), basis.getPath(), false, deflate, 16384);
+				assertArrayEquals(contents[1], Files.readAllBytes(basis.toPath()));
+				assertTrue(n < contents[1].length / 20);
+				
+				Files.write(basis.toPath(), contents[0]); // Remote basis updated from the local file
+				n = cli.syncFile(basis.getPath(), changed.getPath(), true, deflate, 16384);
+				assertArrayEquals(contents[1], Files.readAllBytes(basis.toPath()));
+				assertTrue(n < contents[1].length / 20);
+			}
+			assertTrue(basis.delete()); // No basis: the whole file is sent
+			long n = cli.syncFile(changed.getPath(), basis.getPath(), false, 0, 16384);
+			assertArrayEquals(contents[1], Files.readAllBytes(basis.toPath()));
+			assertTrue(n >= contents[1].length);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!basis.delete() || !changed.delete())
+				System.err.println("Unable to delete "+basis+" or "+changed);
+		}
+	}
+	
+	@Test
+	public void transferIfDifferent() {
+		String getFile = bigFile+".get";
+		try {
+			assertTrue(cli.getFileIfDifferent(bigFile, 0, getFile, 16384) > 0); // No local file
+			checkSameFiles(bigFile, getFile);
+			assertEquals(-1l, cli.getFileIfDifferent(bigFile, 0, getFile, 16384));
+			try (RandomAccessFile raf = new RandomAccessFile(getFile, "rw")) { // Same length, different content
+				raf.seek(raf.length() / 2);
+				raf.write(~raf.read());
+			}
+			assertTrue(cli.getFileIfDifferent(bigFile, 0, getFile, 16384) > 0);
+			checkSameFiles(bigFile, getFile);
+			
+			assertTrue(cli.putFileIfDifferent(bigFile, 0, file2Write, 16384) > 0); // No remote file
+			checkSameFiles(bigFile, file2Write);
+			assertEquals(-1l, cli.putFileIfDifferent(bigFile, 0, file2Write, 16384));
+			assertEquals(-1l, cli.putFileIfDifferent(getFile, 0, file2Write, 16384));
+			try (RandomAccessFile raf = new RandomAccessFile(file2Write, "rw")) {
+				raf.setLength(raf.length() - 1);
+			}
+			assertTrue(cli.putFileIfDifferent(bigFile, 0, file2Write, 16384) > 0);
+			checkSameFiles(bigFile, file2Write);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!new File(getFile).delete() || !new File(file2Write).delete())
+				System.err.println("Unable to delete "+getFile+" or "+file2Write);
+		}
+	}
+	
+	/**
+	 * @param size The number of bytes.
+	 * @return Text bytes, looking like a log file.
+	 */
+	private static byte[] text(int size) {
+		Random rnd = new Random(size);
+		String[] words = { "INFO", "WARN", "request", "served", "in", "ms", "client", "/data/file", "GET", "PUT" };
+		StringBuilder sb = new StringBuilder(size + 100);
+		while (sb.length() < size) {
+			sb.append("2026-10-17 12:").append(rnd.nextInt(60));
+			for (int i = 0; i < 8; i++)
+				sb.append(' ').append(words[rnd.nextInt(words.length)]);
+			sb.append(' ').append(rnd.nextInt(100000)).append('\n');
+		}
+		return Arrays.copyOf(sb.toString().getBytes(Message.charset), size);
+	}
+	
+	/**
+	 * @param size The number of bytes.
+	 * @return Random bytes, which cannot be compressed.
+	 */
+	private static byte[] random(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+	
+	@Test
+	public void codecs() {
+		byte[][] contents = { new byte[0], { 42 }, contentUndeflatable, contentDeflatable, text(300_000), random(200_000) };
+		int[] compressions = { Codec.compression(Codec.DEFLATE, 1), Codec.compression(Codec.DEFLATE, 9), Codec.compression(Codec.LZ, 1) };
+		try {
+			for (int compression : compressions) {
+				Codec codec = Codec.of(compression);
+				int level = Codec.getLevel(compression);
+				for (byte[] b : contents) {
+					String msg = Codec.toString(compression)+", "+b.length+" bytes";
+					byte[] c = Utils.compress(b, 0, b.length, compression);
+					assertArrayEquals(msg, b, Utils.decompress(c, 0, c.length, compression));
+					if (codec.getId() == Codec.LZ)
+						assertTrue(msg, c.length <= LZCodec.maxCompressedLength(b.length));
+					
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					try (InputStream is = codec.compressing(new ByteArrayInputStream(b), level); OutputStream os = codec.decompressing(out)) {
+						byte[] buf = new byte[777];
+						int n;
+						while ((n = is.read(buf)) > 0)
+							os.write(buf, 0, n);
+					}
+					assertArrayEquals(msg, b, out.toByteArray());
+					
+					out.reset();
+					try (OutputStream os = codec.compressing(codec.decompressing(out), level, 4096)) {
+						os.write(b);
+					}
+					assertArrayEquals(msg, b, out.toByteArray());
+				}
+			}
+			
+			Codec lz = Codec.of(Codec.compression(Codec.LZ, 1));
+			byte[] text = text(100_000);
+			byte[] c = lz.compress(text, 0, text.length, 1);
+			assertTrue(c.length < text.length / 2);
+			c[c.length / 2] ^= 0x55;
+			try { // Corrupted input is either detected, or decompressed to wrong bytes, but does not overflow
+				lz.decompress(c, 0, c.length);
+			} catch (IOException e) { // Expected
+			}
+			OutputStream os = lz.decompressing(new ByteArrayOutputStream());
+			os.write(c, 0, 3);
+			try {
+				os.close();
+				fail("Truncated LZ stream accepted");
+			} catch (IOException e) { // Expected
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test
+	public void codecRegistry() {
+		assertNull(Codec.of(0));
+		int lz = Codec.compression(Codec.LZ, 3);
+		assertEquals(Codec.LZ, Codec.getId(lz));
+		assertEquals(3, Codec.getLevel(lz));
+		assertEquals(Codec.LZ, Codec.of(lz).getId());
+		assertSame(Codec.of(lz), Codec.forName(Codec.of(lz).getName().toUpperCase()));
+		assertEquals(Codec.MAX_LEVEL, Codec.getLevel(Codec.compression(Codec.DEFLATE, 99)));
+		assertEquals(Codec.NONE, Codec.compression(Codec.LZ, 0));
+		assertEquals("none", Codec.toString(0));
+		assertTrue(Codec.isAdaptive(Codec.ADAPTIVE));
+		int unknown = Codec.compression(Codec.MAX_ID - 1, 1);
+		try {
+			Codec.check(Codec.ADAPTIVE);
+			Codec.check(lz);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+		try {
+			Codec.check(unknown);
+			fail("Unknown codec accepted");
+		} catch (IOException e) { // Expected
+		}
+		String getFile = file2ReadRaw+".get";
+		try {
+			cli.getFile(file2ReadRaw, unknown, getFile, 1500);
+			fail("Unknown codec accepted");
+		} catch (IOException e) { // Expected
+		}
+		try {
+			assertTrue(cli.getFile(file2ReadRaw, lz, getFile, 1500) > 0);
+			checkSameFiles(file2ReadRaw, getFile);
+			if (!new File(getFile).delete())
+				System.err.println("Unable to delete "+getFile);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+	
+	@Test
+	public void codecPool() {
+		byte[] text = text(100_000);
+		try {
+			Deflater d = CodecPool.deflater(6);
+			byte[] deflated = Utils.deflate(text, 0, text.length, d);
+			CodecPool.release(d, 6);
+			Deflater d2 = CodecPool.deflater(6);
+			assertSame(d, d2); // Reused
+			assertArrayEquals(deflated, Utils.deflate(text, 0, text.length, d2)); // Reset when released
+			CodecPool.release(d2, 6);
+			Deflater raw = CodecPool.deflater(6, true);
+			assertNotSame(d, raw); // Raw deflaters are pooled apart
+			CodecPool.release(raw, 6, true);
+			
+			Inflater i = CodecPool.inflater();
+			assertArrayEquals(text, Utils.inflate(deflated, 0, deflated.length, i));
+			CodecPool.release(i);
+			Inflater i2 = CodecPool.inflater();
+			assertSame(i, i2);
+			assertArrayEquals(text, Utils.inflate(deflated, 0, deflated.length, i2));
+			CodecPool.release(i2);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+		
+		final CodecPool.Buffer buf = new CodecPool.Buffer();
+		byte[] b = buf.get(100);
+		assertTrue(b.length >= 100);
+		assertSame(b, buf.get(50)); // Big enough
+		for (int k = 0; k < 10; k++)
+			b[k] = (byte)k;
+		byte[] b2 = buf.get(1000, 10);
+		assertTrue(b2.length >= 1000);
+		assertArrayEquals(Arrays.copyOf(b, 10), Arrays.copyOf(b2, 10)); // Kept
+		final byte[][] other = new byte[1][];
+		Thread t = new Thread(() -> other[0] = buf.get(50));
+		t.start();
+		while (t.isAlive())
+			try{t.join();}catch(InterruptedException e){}
+		assertNotSame(b2, other[0]); // Per-thread
+	}
+	
+	@Test
+	public void transferRate() {
+		byte[] text = text(1 << 20);
+		final double[] nsPerByte = { -1.0 };
+		ChunkCompressor queued = new ChunkCompressor(Codec.ADAPTIVE); // Sending only queues the chunks
+		ChunkCompressor measured = new ChunkCompressor(Codec.ADAPTIVE);
+		measured.setTransferRate(() -> nsPerByte[0]);
+		for (int off = 0; off < text.length; off += 8192) {
+			if (off == text.length / 4)
+				nsPerByte[0] = 1000.0; // Measured once the socket buffer is full: slow network
+			for (ChunkCompressor cc : new ChunkCompressor[] { queued, measured }) {
+				ChunkCompressor.Chunk c = cc.compress(text, off, 8192);
+				cc.transferred(c.len, 1000);
+			}
+		}
+		assertEquals(Codec.NONE, queued.getCompression()); // Network looks infinitely fast
+		assertTrue(measured.getCompression() != Codec.NONE); // Worth compressing
+	}
+	
+	@Test
+	public void compressibility() {
+		byte[] random = random(1 << 20);
+		byte[] text = text(1 << 16);
+		assertEquals(0.0, Compressibility.entropy(random, 0, 0), 0.0);
+		assertEquals(0.0, Compressibility.entropy(new byte[10_000], 0, 10_000), 0.0);
+		assertTrue(Compressibility.entropy(random, 0, random.length) > 7.9);
+		assertTrue(Compressibility.isIncompressible(random, 0, random.length));
+		assertFalse(Compressibility.isIncompressible(text, 0, text.length));
+		
+		byte[] jpeg = Arrays.copyOf(text, text.length);
+		jpeg[0] = (byte)0xff; jpeg[1] = (byte)0xd8; jpeg[2] = (byte)0xff;
+		assertEquals("jpeg", Compressibility.format(jpeg, 0, Compressibility.HEAD_SIZE));
+		assertNull(Compressibility.format(jpeg, 0, 2)); // Too short to tell
+		assertNull(Compressibility.format(text, 0, Compressibility.HEAD_SIZE));
+		
+		int deflate = Codec.compression(Codec.DEFLATE, 6);
+		ChunkCompressor cc = new ChunkCompressor(deflate);
+		for (int i = 0; i < ChunkCompressor.FAILURES; i++) {
+			ChunkCompressor.Chunk c = cc.compress(random, i * 65536, 65536);
+			assertEquals(0, c.compression);
+			assertSame(random, c.data); // Sent as is
+		}
+		assertTrue(cc.isBypassed());
+		assertEquals(0, cc.getTriedChunks()); // Entropy too high to try
+		cc = new ChunkCompressor(deflate);
+		assertEquals(0, cc.compress(jpeg, 0, jpeg.length).compression); // Known compressed format
+		assertEquals("jpeg", cc.getFormat());
+		assertTrue(cc.isBypassed());
+		cc = new ChunkCompressor(deflate);
+		assertEquals(deflate, cc.compress(text, 0, text.length).compression);
+		assertFalse(cc.isBypassed());
+	}
+	
+	@Test
+	public void parallelDeflate() {
+		byte[] text = text(5 * ParallelDeflateOutputStream.BLOCK_SIZE / 2);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			for (int level : new int[] { 1, 6, 9 }) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try (OutputStream os = new ParallelDeflateOutputStream(out, level, exec, 4)) {
+					for (int off = 0; off < text.length; off += 7777) // Blocks do not match writes
+						os.write(text, off, Math.min(7777, text.length - off));
+				}
+				byte[] deflated = out.toByteArray();
+				assertArrayEquals(text, Utils.inflate(deflated, 0, deflated.length)); // A single zlib stream
+				assertTrue(deflated.length < Utils.deflate(text, 0, text.length, level).length * 1.02);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new ParallelDeflateOutputStream(out, 6, exec, 4).close();
+			assertArrayEquals(new byte[0], Utils.inflate(out.toByteArray(), 0, out.size()));
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	@Test
+	public void asyncOutputStream() {
+		byte[] text = text(3 * AsyncOutputStream.BUFFER_SIZE + 10);
+		ExecutorService exec = Executors.newFixedThreadPool(2);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (OutputStream os = new AsyncOutputStream(out, exec)) {
+				os.write(text, 0, 10);
+				for (int i = 10; i < 1000; i++)
+					os.write(text[i]);
+				os.flush();
+				assertEquals(1000, out.size()); // Written once flushed
+				os.write(text, 1000, text.length - 1000);
+			}
+			assertArrayEquals(text, out.toByteArray());
+			
+			OutputStream failing = new OutputStream() {
+				@Override public void write(int b) throws IOException {
+					throw new IOException("Disk full");
+				}
+			};
+			try (OutputStream os = new AsyncOutputStream(failing, exec)) {
+				for (int i = 0; i < 4 * AsyncOutputStream.MAX_QUEUED; i++)
+					os.write(text, 0, AsyncOutputStream.BUFFER_SIZE);
+				os.flush();
+				fail("Write error not reported");
+			} catch (IOException e) { // Reported by a later write, flush or close
+				assertTrue(e.getMessage().contains("Disk full"));
+			}
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	/**
+	 * @return A small JSON record, which compresses poorly on its own.
+	 */
+	private static byte[] json(Random rnd, int id) {
+		String[] names = { "alice", "bob", "carol", "dave" };
+		String[] cities = { "Paris", "Lyon", "Nantes", "Lille" };
+		return ("{\"id\": "+id+", \"name\": \""+names[rnd.nextInt(names.length)]+"\", \"address\": {\"city\": \""+
+				cities[rnd.nextInt(cities.length)]+"\", \"zip\": \""+rnd.nextInt(99999)+"\"}, \"tags\": [\"customer\", \"active\"], "+
+				"\"created\": \"2026-10-"+(10+rnd.nextInt(20))+"T12:00:00Z\", \"balance\": "+rnd.nextInt(100000)+"}").getBytes(Message.charset);
+	}
+	
+	@Test
+	public void dictionary() {
+		Random rnd = new Random(24);
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+			samples.add(json(rnd, i));
+		Dictionary dict = Dictionary.register(Dictionary.train(samples, 8192));
+		assertTrue(dict.size() <= 8192);
+		assertSame(dict, Dictionary.register(new Dictionary(dict.getBytes()))); // Same bytes, same ID
+		assertSame(dict, Dictionary.get(dict.getId()));
+		byte[] random = random(2000);
+		assertNull(Dictionary.train(Arrays.asList(Arrays.copyOf(random, 1000), Arrays.copyOfRange(random, 1000, 2000)), 8192)); // Nothing shared
+		
+		byte[] one = json(rnd, 1000);
+		Codec deflate = Codec.of(Codec.compression(Codec.DEFLATE, 6));
+		assertTrue(deflate.usesDictionary());
+		byte[] c = new byte[4096];
+		int without = deflate.compress(one, 0, one.length, 6, c, 0, c.length);
+		int with = deflate.compress(one, 0, one.length, 6, dict, c, 0, c.length);
+		assertTrue(with > 0 && with < without * 0.7);
+		try {
+			assertArrayEquals(one, deflate.decompress(c, 0, with)); // With the registered dictionary
+			with = deflate.compress(one, 0, one.length, 6, new Dictionary(random(1000)), c, 0, c.length); // Registered by no test
+			deflate.decompress(c, 0, with);
+			fail("Unknown dictionary accepted");
+		} catch (IOException e) { // Expected
+			assertTrue(e.getMessage().contains("dictionary"));
+		}
+	}
+	
+	@Test
+	public void dictionaries() {
+		Random rnd = new Random(24);
+		File dir = new File(workDir, "dict");
+		Dictionaries dicts = srv.getDictionaries();
+		try {
+			assertTrue(dir.mkdir());
+			for (int i = 0; i < 100; i++)
+				Files.write(new File(dir, "s"+i+".json").toPath(), json(rnd, i));
+			Dictionary dict = dicts.train(dir, "json", 8192);
+			assertNotNull(dict);
+			assertSame(dict, dicts.forFile("/any/where/FILE.JSON"));
+			assertNull(dicts.forFile(file2ReadRaw));
+			
+			byte[] one = json(rnd, 1000);
+			File f = new File(dir, "new.json");
+			assertTrue(Dictionary.unregister(dict.getId())); // Unknown to the client, as in another JVM
+			try (RemoteOutputStream os = cli.getRemoteOutputStream(f.getPath(), 6)) {
+				os.write(one);
+				os.flush();
+				assertEquals(dict.getId(), os.getInfo().getDictionary().getId()); // Fetched from the server
+				assertSame(os.getInfo().getDictionary(), Dictionary.get(dict.getId())); // And registered
+				assertTrue(os.getInfo().getXferBytes() < one.length / 2);
+			}
+			assertArrayEquals(one, Files.readAllBytes(f.toPath()));
+			assertTrue(read(one, f.getPath(), 6).getXferBytes() < one.length / 2); // Read with the dictionary too
+			
+			dicts.save(dir);
+			dicts.put("json", null);
+			assertNull(dicts.forFile(f.getPath()));
+			assertEquals(1, dicts.load(dir));
+			assertEquals(dict.getId(), dicts.forFile(f.getPath()).getId());
+			Dictionary other = new Dictionary(text(1000));
+			dicts.put(dir, other);
+			assertEquals(other.getId(), dicts.forFile(new File(dir, "sub/x.json").getPath()).getId()); // Directory first
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally { // Not known by other tests
+			for (Dictionary d : new Dictionary[] { dicts.put("json", null), dicts.put(dir, null) }) {
+				if (d != null)
+					Dictionary.unregister(d.getId());
+			}
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					if (!f.delete())
+						System.err.println("Cannot delete "+f);
+				}
+			}
+			if (!dir.delete())
+				System.err.println("Cannot delete "+dir);
+		}
+	}
+	
+	@Test
+	public void contextualChunks() {
+		byte[] text = text(256 * 1024);
+		List<byte[]> chunks = new ArrayList<>();
+		for (int off = 0; off < text.length; off += 4096) {
+			chunks.add(Arrays.copyOfRange(text, off, off + 4096));
+			if (chunks.size() == 10)
+				chunks.add(random(4096)); // Sent uncompressed: restarts the stream
+			else if (chunks.size() == 20)
+				chunks.add(new byte[] { 'x' }); // Not smaller once deflated: restarts the stream
+		}
+		int deflate = Codec.compression(Codec.DEFLATE, 6);
+		try {
+			for (Dictionary dict : new Dictionary[] { null, Dictionary.register(new Dictionary(Arrays.copyOf(text, 8192))) }) {
+				ChunkCompressor cc = new ChunkCompressor(deflate);
+				cc.setContextual(true);
+				cc.setDictionary(dict);
+				ChunkInflater infl = new ChunkInflater();
+				long contextual = 0;
+				long independent = 0;
+				for (byte[] b : chunks) {
+					ChunkCompressor.Chunk c = cc.compressNext(b, 0, b.length);
+					if (b.length == 1) // Never smaller
+						assertEquals(0, c.compression);
+					byte[] data = Arrays.copyOfRange(c.data, c.off, c.off + c.len); // Only valid until the next chunk
+					contextual += data.length;
+					independent += Math.min(b.length, Utils.compress(b, 0, b.length, deflate).length);
+					if (ChunkInflater.isContextual(c.compression)) {
+						ByteBuffer bb = infl.inflate(data, 0, data.length);
+						data = Arrays.copyOfRange(bb.array(), bb.position(), bb.limit());
+					} else {
+						assertEquals(0, c.compression);
+						infl.reset();
+					}
+					assertArrayEquals(b, data);
+				}
+				assertTrue(contextual < independent * 0.95);
+				cc.end();
+				
+				try { // Inflating more than allowed
+					cc = new ChunkCompressor(deflate);
+					cc.setContextual(true);
+					ChunkCompressor.Chunk c = cc.compressNext(text, 0, text.length);
+					new ChunkInflater().inflate(c.data, c.off, c.len, text.length - 1);
+					fail("Inflated chunk larger than allowed");
+				} catch (IOException e) { // Expected
+				} finally {
+					cc.end();
+				}
+				infl.end();
+				try {
+					infl.inflate(text, 0, 10);
+					fail("Ended inflater used");
+				} catch (IOException e) { // Expected
+				}
+			}
+			
+			File f = new File(file2Write);
+			try (RemoteOutputStream os = cli.getRemoteOutputStream(file2Write, 6)) {
+				for (byte[] b : chunks)
+					os.write(b);
+				os.flush();
+				assertTrue(os.getInfo().isContextual());
+			}
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			for (byte[] b : chunks)
+				written.write(b);
+			assertArrayEquals(written.toByteArray(), Files.readAllBytes(f.toPath()));
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			try (RemoteInputStream is = cli.getRemoteInputStream(file2Write, 6)) {
+				byte[] buf = new byte[1000];
+				int n;
+				while ((n = is.read(buf)) > 0)
+					read.write(buf, 0, n);
+				assertTrue(is.getInfo().isContextual());
+			}
+			assertArrayEquals(written.toByteArray(), read.toByteArray());
+		} catch (IOException e) {
+			fail(e.getMessage());
+		} finally {
+			if (!new File(file2Write).delete())
+				System.err.println("Unable to delete "+file2Write);
+		}
+	}
+	
 	@Test
 	public void ping() {
 		// TODO: Open a connection and idle it for more than JRFServer.CLIENT_TIMEOUT ms to check pings are received. Try to kill the connection to check pings will close it automatically